@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import org.apache.zookeeper.ClientCnxnSocketNetty;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.client.ZKClientConfig;
+import org.apache.zookeeper.common.NettyUtils;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the netty transports over loopback: a server using the
+ * NettyServerCnxnFactory and a client using the ClientCnxnSocketNetty,
+ * both with the transport and the epoll options of the trial.
+ *
+ * testGetDataLatency measures the latency of synchronous reads,
+ * testGetDataThroughput the throughput of reads issued by several
+ * threads sharing the session. The epoll trials only run on Linux.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class NettyTransportBench {
+
+    static final String path = "/bench";
+
+    @State(Scope.Benchmark)
+    public static class Cluster {
+
+        @Param({"nio", "epoll"})
+        public String transport;
+
+        @Param({"false", "true"})
+        public boolean tcpQuickAck;
+
+        @Param({"0", "50"})
+        public int busyPollMicros;
+
+        @Param({"128"})
+        public int dataSize;
+
+        File dataDir;
+        ZooKeeperServer zks;
+        ServerCnxnFactory factory;
+        ZooKeeper zk;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            System.setProperty(NettyUtils.NETTY_TRANSPORT, transport);
+            System.setProperty(NettyUtils.NETTY_EPOLL_TCP_QUICKACK, Boolean.toString(tcpQuickAck));
+            System.setProperty(NettyUtils.NETTY_EPOLL_BUSY_POLL_MICROS, Integer.toString(busyPollMicros));
+            System.setProperty(ServerCnxnFactory.ZOOKEEPER_SERVER_CNXN_FACTORY, NettyServerCnxnFactory.class.getName());
+
+            dataDir = Files.createTempDirectory("NettyTransportBench").toFile();
+            zks = new ZooKeeperServer(dataDir, dataDir, 3000);
+            factory = ServerCnxnFactory.createFactory(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 100);
+            factory.startup(zks);
+
+            ZKClientConfig config = new ZKClientConfig();
+            config.setProperty(ZKClientConfig.ZOOKEEPER_CLIENT_CNXN_SOCKET, ClientCnxnSocketNetty.class.getName());
+            CountDownLatch connected = new CountDownLatch(1);
+            zk = new ZooKeeper(InetAddress.getLoopbackAddress().getHostAddress() + ":" + factory.getLocalPort(), 30000, event -> {
+                if (event.getState() == KeeperState.SyncConnected) {
+                    connected.countDown();
+                }
+            }, config);
+            if (!connected.await(30, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Unable to connect to the server");
+            }
+            zk.create(path, new byte[dataSize], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            zk.close();
+            factory.shutdown();
+            zks.shutdown();
+            delete(dataDir);
+        }
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] testGetDataLatency(Cluster cluster) throws Exception {
+        return cluster.zk.getData(path, false, null);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Threads(8)
+    public byte[] testGetDataThroughput(Cluster cluster) throws Exception {
+        return cluster.zk.getData(path, false, null);
+    }
+
+}
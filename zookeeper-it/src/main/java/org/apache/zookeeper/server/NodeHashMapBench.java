@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import org.apache.zookeeper.data.StatPersisted;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the memory footprint and the lookup throughput of the
+ * ConcurrentHashMap based NodeHashMapImpl and the CompactNodeHashMap.
+ *
+ * testFill prints the heap retained by the map per node after each
+ * iteration, the nodes are shared so that only the cost of the map and the
+ * paths is measured. With nodeCount=10000000 the bench needs
+ * a large heap, e.g. -jvmArgs -Xmx8g.
+ */
+@Fork(1)
+public class NodeHashMapBench {
+
+    static final String pathPrefix = "/reasonably/long/path/parent";
+
+    static final DataNode node = new DataNode(new byte[0], 0L, new StatPersisted());
+
+    @State(Scope.Benchmark)
+    public static class MapState {
+
+        @Param({"NodeHashMapImpl", "CompactNodeHashMap"})
+        public String nodeHashMapClass;
+
+        @Param({"1000000", "10000000"})
+        public int nodeCount;
+
+        @Param({"1000"})
+        public int childrenPerParent;
+
+        NodeHashMap nodes;
+        String[] paths;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            nodes = create(this);
+            paths = new String[1024];
+            for (int i = 0; i < paths.length; i++) {
+                paths[i] = path(ThreadLocalRandom.current().nextInt(nodeCount), childrenPerParent);
+            }
+            fill(nodes, nodeCount, childrenPerParent);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Footprint {
+
+        long bytesPerNode;
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            System.out.println("Retained bytes per node: " + bytesPerNode);
+        }
+    }
+
+    static NodeHashMap create(MapState state) throws Exception {
+        return (NodeHashMap) Class.forName("org.apache.zookeeper.server." + state.nodeHashMapClass)
+            .getConstructor(DigestCalculator.class)
+            .newInstance(new DigestCalculator());
+    }
+
+    static String path(int i, int childrenPerParent) {
+        return pathPrefix + (i / childrenPerParent) + "/node" + i;
+    }
+
+    static void fill(NodeHashMap nodes, int nodeCount, int childrenPerParent) {
+        for (int i = 0; i < nodeCount; i++) {
+            nodes.putWithoutDigest(path(i, childrenPerParent), node);
+        }
+    }
+
+    static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * The output of this test is the time used to insert the nodes, the
+     * heap they retain is printed after each iteration.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public NodeHashMap testFill(MapState state, Footprint footprint) throws Exception {
+        long before = usedHeap();
+        NodeHashMap nodes = create(state);
+        fill(nodes, state.nodeCount, state.childrenPerParent);
+        footprint.bytesPerNode = (usedHeap() - before) / state.nodeCount;
+        return nodes;
+    }
+
+    /**
+     * The output of this test is the number of lookups of existing paths
+     * per millisecond.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2, time = 1)
+    @Measurement(iterations = 3, time = 2)
+    @Threads(4)
+    public DataNode testGet(MapState state) {
+        return state.nodes.get(state.paths[ThreadLocalRandom.current().nextInt(state.paths.length)]);
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.proto.GetDataRequest;
+import org.apache.zookeeper.proto.RequestHeader;
+import org.apache.zookeeper.proto.SetDataRequest;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode the header and the record of a client request from its payload
+ * buffer, the way the server does, either through the InputStream based
+ * archive or straight from the buffer.
+ *
+ * Run it with -prof gc, gc.alloc.rate.norm is the number of bytes
+ * allocated per decoded request.
+ */
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RequestDecodeBench {
+
+    @State(Scope.Thread)
+    public static class Payload {
+
+        @Param({"getData", "setData"})
+        public String request;
+
+        @Param({"64"})
+        public int pathLength;
+
+        @Param({"128"})
+        public int dataSize;
+
+        ByteBuffer buffer;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            StringBuilder path = new StringBuilder("/");
+            while (path.length() < pathLength) {
+                path.append('n');
+            }
+            Record record;
+            int type;
+            if (request.equals("getData")) {
+                record = new GetDataRequest(path.toString(), true);
+                type = OpCode.getData;
+            } else {
+                record = new SetDataRequest(path.toString(), new byte[dataSize], -1);
+                type = OpCode.setData;
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            BinaryOutputArchive archive = BinaryOutputArchive.getArchive(baos);
+            new RequestHeader(1, type).serialize(archive, "header");
+            record.serialize(archive, "request");
+            buffer = ByteBuffer.wrap(baos.toByteArray());
+        }
+
+        Record newRecord() {
+            return request.equals("getData") ? new GetDataRequest() : new SetDataRequest();
+        }
+    }
+
+    private static Record decode(Payload payload, BinaryInputArchive archive) throws IOException {
+        RequestHeader header = new RequestHeader();
+        header.deserialize(archive, "header");
+        Record record = payload.newRecord();
+        record.deserialize(archive, "request");
+        return record;
+    }
+
+    @Benchmark
+    public Record testDecodeFromStream(Payload payload) throws IOException {
+        payload.buffer.rewind();
+        return decode(payload, new BinaryInputArchive(
+            new DataInputStream(new ByteBufferInputStream(payload.buffer))));
+    }
+
+    @Benchmark
+    public Record testDecodeFromBuffer(Payload payload) throws IOException {
+        payload.buffer.rewind();
+        return decode(payload, BinaryInputArchive.getArchive(payload.buffer));
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compare the WorkerService on worker threads and on virtual threads, with
+ * requests from many sessions that each block for a while, as with slow
+ * auth providers or sends.
+ *
+ * The output of the tests is the time used to run one request per session,
+ * the requests of a session being ordered when the workers are assignable.
+ * The virtualThreads=true trials need a JVM supporting virtual threads,
+ * otherwise they fall back to the worker threads.
+ */
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class WorkerServiceBench {
+
+    @State(Scope.Benchmark)
+    public static class Workers {
+
+        @Param({"false", "true"})
+        public boolean virtualThreads;
+
+        @Param({"false", "true"})
+        public boolean assignable;
+
+        @Param({"1000", "10000"})
+        public int sessions;
+
+        @Param({"64"})
+        public int numWorkerThreads;
+
+        @Param({"100"})
+        public int blockMicros;
+
+        WorkerService workerService;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            System.setProperty(WorkerService.VIRTUAL_THREADS, Boolean.toString(virtualThreads));
+            workerService = new WorkerService("bench", numWorkerThreads, assignable);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            workerService.stop();
+            workerService.join(5000);
+        }
+    }
+
+    @Benchmark
+    public void testBlockingRequests(Workers workers) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(workers.sessions);
+        long blockNanos = TimeUnit.MICROSECONDS.toNanos(workers.blockMicros);
+        for (long session = 0; session < workers.sessions; session++) {
+            workers.workerService.schedule(new WorkerService.WorkRequest() {
+                @Override
+                public void doWork() {
+                    LockSupport.parkNanos(blockNanos);
+                    done.countDown();
+                }
+            }, session);
+        }
+        done.await();
+    }
+
+}
@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.test.ClientBase;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the time used to load a snapshot with the sequential loader and
+ * the parallel one controlled by zookeeper.snapshot.deserializationThreads.
+ *
+ * The snapshot is generated once per trial, with nodeCount=10000000 and
+ * dataSize=256 it is a few GB on disk, so the bench needs a large heap,
+ * e.g. -jvmArgs -Xmx32g.
+ */
+@Fork(1)
+public class SnapshotDeserializationBench {
+
+    static final String pathPrefix = "/reasonably/long/path";
+
+    @State(Scope.Benchmark)
+    public static class SnapshotState {
+
+        @Param({"1", "4", "8"})
+        public int threads;
+
+        @Param({"1000000", "10000000"})
+        public int nodeCount;
+
+        @Param({"256"})
+        public int dataSize;
+
+        @Param({"1000"})
+        public int childrenPerParent;
+
+        File snapDir;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            ZooKeeperServer.setDigestEnabled(true);
+            snapDir = ClientBase.createTmpDir();
+
+            DataTree dt = new DataTree();
+            byte[] data = new byte[dataSize];
+            dt.createNode("/reasonably", data, ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, 1, 1);
+            dt.createNode("/reasonably/long", data, ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, 1, 1);
+            dt.createNode(pathPrefix, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, 1, 1);
+            long zxid = 1;
+            String parent = null;
+            for (int i = 0; i < nodeCount; i++) {
+                if (i % childrenPerParent == 0) {
+                    parent = pathPrefix + "/parent" + i;
+                    dt.createNode(parent, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, ++zxid, zxid);
+                }
+                // every 10th node is an ephemeral owned by one of 1000 sessions
+                long owner = i % 10 == 0 ? i % 1000 + 1 : 0;
+                dt.createNode(parent + "/node" + i, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, owner, -1, ++zxid, zxid);
+            }
+
+            Map<Long, Integer> sessions = new HashMap<>();
+            for (long i = 1; i <= 1000; i++) {
+                sessions.put(i, 30000);
+            }
+            new FileSnap(snapDir).serialize(
+                dt, sessions, new File(snapDir, Util.makeSnapshotName(zxid)), false);
+            System.setProperty(DataTree.SNAPSHOT_DESERIALIZATION_THREADS, Integer.toString(threads));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            System.clearProperty(DataTree.SNAPSHOT_DESERIALIZATION_THREADS);
+            for (File f : snapDir.listFiles()) {
+                f.delete();
+            }
+            snapDir.delete();
+        }
+    }
+
+    /**
+     * The output of this test is the time used to restore the tree from
+     * the snapshot file.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public DataTree testDeserializeSnapshot(SnapshotState state) throws Exception {
+        DataTree dt = new DataTree();
+        new FileSnap(state.snapDir).deserialize(dt, new HashMap<>());
+        return dt;
+    }
+
+}
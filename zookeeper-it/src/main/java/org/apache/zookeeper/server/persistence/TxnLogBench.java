@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the append + commit throughput of the stream based FileTxnLog
+ * and the memory mapped MappedFileTxnLog. Each invocation appends a batch
+ * of txns followed by a single commit, like SyncRequestProcessor does.
+ *
+ * The log is written to java.io.tmpdir, point it to the disk to measure
+ * with -jvmArgs -Djava.io.tmpdir=...
+ */
+@Fork(1)
+public class TxnLogBench {
+
+    @State(Scope.Benchmark)
+    public static class LogState {
+
+        @Param({"FileTxnLog", "MappedFileTxnLog"})
+        public String txnLogClass;
+
+        @Param({"128", "1024"})
+        public int txnSize;
+
+        @Param({"1", "100"})
+        public int batchSize;
+
+        File logDir;
+        FileTxnLog txnLog;
+        CreateTxn txn;
+        long zxid;
+
+        @Setup(Level.Iteration)
+        public void setup() throws Exception {
+            logDir = ClientBase.createTmpDir();
+            txnLog = (FileTxnLog) Class.forName("org.apache.zookeeper.server.persistence." + txnLogClass)
+                .getConstructor(File.class)
+                .newInstance(logDir);
+            txn = new CreateTxn("/reasonably/long/path", new byte[txnSize], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 1);
+            zxid = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws Exception {
+            txnLog.close();
+            for (File f : logDir.listFiles()) {
+                f.delete();
+            }
+            logDir.delete();
+        }
+    }
+
+    /**
+     * The output of this test is the number of batches appended and made
+     * durable per second, multiply by batchSize for the txns.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public void testAppendAndCommit(LogState state) throws Exception {
+        for (int i = 0; i < state.batchSize; i++) {
+            long zxid = ++state.zxid;
+            state.txnLog.append(new TxnHeader(1, (int) zxid, zxid, zxid, ZooDefs.OpCode.create), state.txn);
+        }
+        state.txnLog.commit();
+    }
+
+}
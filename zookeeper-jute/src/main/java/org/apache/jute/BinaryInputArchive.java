@@ -22,6 +22,7 @@
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -55,6 +56,16 @@ public static BinaryInputArchive getArchive(InputStream strm) {
         return new BinaryInputArchive(new DataInputStream(strm));
     }
 
+    /**
+     * Get an archive reading from the position of the given buffer, which is
+     * advanced as records are read. Reading from the buffer directly avoids
+     * the streams and the intermediate string copies of
+     * {@link #getArchive(InputStream)}.
+     */
+    public static BinaryInputArchive getArchive(ByteBuffer bb) {
+        return new BinaryInputArchive(new ByteBufferDataInput(bb));
+    }
+
     private static class BinaryIndex implements Index {
         private int nelems;
 
@@ -114,6 +125,9 @@ public String readString(String tag) throws IOException {
             return null;
         }
         checkLength(len);
+        if (in instanceof ByteBufferDataInput) {
+            return ((ByteBufferDataInput) in).readString(len);
+        }
         byte[] b = new byte[len];
         in.readFully(b);
         return new String(b, StandardCharsets.UTF_8);
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jute;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A DataInput reading straight from a ByteBuffer, advancing its position.
+ * Unlike a DataInputStream over an InputStream it allocates nothing per
+ * read, and strings are decoded from the backing array without an
+ * intermediate copy.
+ */
+final class ByteBufferDataInput implements DataInput {
+
+    private final ByteBuffer bb;
+
+    ByteBufferDataInput(ByteBuffer bb) {
+        this.bb = bb;
+    }
+
+    private void require(int len) throws EOFException {
+        if (bb.remaining() < len) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Read a UTF-8 string of the given length in bytes.
+     */
+    String readString(int len) throws IOException {
+        require(len);
+        String s;
+        if (bb.hasArray()) {
+            s = new String(bb.array(), bb.arrayOffset() + bb.position(), len, StandardCharsets.UTF_8);
+            bb.position(bb.position() + len);
+        } else {
+            byte[] b = new byte[len];
+            bb.get(b);
+            s = new String(b, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        require(len);
+        bb.get(b, off, len);
+    }
+
+    @Override
+    public int skipBytes(int n) {
+        int skipped = Math.max(0, Math.min(n, bb.remaining()));
+        bb.position(bb.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        require(1);
+        return bb.get();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        require(2);
+        return bb.getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        require(2);
+        return bb.getChar();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        require(4);
+        return bb.getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        require(8);
+        return bb.getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        require(4);
+        return bb.getFloat();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        require(8);
+        return bb.getDouble();
+    }
+
+    /**
+     * Read a line the way DataInputStream does: each byte is a char, the
+     * line ends at a \n, a \r, a \r\n or the end of the buffer.
+     *
+     * @return the line without its terminator, null at the end of the buffer
+     */
+    @Override
+    public String readLine() {
+        if (!bb.hasRemaining()) {
+            return null;
+        }
+        StringBuilder line = new StringBuilder();
+        while (bb.hasRemaining()) {
+            char c = (char) (bb.get() & 0xff);
+            if (c == '\n') {
+                break;
+            }
+            if (c == '\r') {
+                if (bb.hasRemaining() && bb.get(bb.position()) == '\n') {
+                    bb.get();
+                }
+                break;
+            }
+            line.append(c);
+        }
+        return line.toString();
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+}
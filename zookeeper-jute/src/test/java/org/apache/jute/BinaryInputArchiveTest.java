@@ -21,10 +21,13 @@
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
@@ -140,6 +143,76 @@ public void testBuffer() {
                 }
         );
     }
+
+    private ByteBuffer writeFields() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        // some bytes before the fields, so that the buffer has an array offset
+        baos.write(new byte[]{1, 2, 3});
+        BinaryOutputArchive oa = BinaryOutputArchive.getArchive(baos);
+        oa.writeInt(42, "int");
+        oa.writeString("h\u00e9llo-w\u00f6rld", "string");
+        oa.writeString(null, "null");
+        oa.writeBuffer("buffer".getBytes(StandardCharsets.UTF_8), "buffer");
+        oa.writeLong(Long.MAX_VALUE, "long");
+        oa.writeBool(true, "bool");
+        ByteBuffer bb = ByteBuffer.wrap(baos.toByteArray());
+        bb.position(3);
+        return bb.slice();
+    }
+
+    private void readFields(ByteBuffer bb) throws IOException {
+        BinaryInputArchive ia = BinaryInputArchive.getArchive(bb);
+        assertEquals(42, ia.readInt("int"));
+        assertEquals("h\u00e9llo-w\u00f6rld", ia.readString("string"));
+        assertNull(ia.readString("null"));
+        assertArrayEquals("buffer".getBytes(StandardCharsets.UTF_8), ia.readBuffer("buffer"));
+        assertEquals(Long.MAX_VALUE, ia.readLong("long"));
+        assertTrue(ia.readBool("bool"));
+        assertEquals(0, bb.remaining());
+    }
+
+    @Test
+    public void testByteBufferArchive() throws IOException {
+        readFields(writeFields());
+    }
+
+    @Test
+    public void testDirectByteBufferArchive() throws IOException {
+        ByteBuffer heap = writeFields();
+        ByteBuffer direct = ByteBuffer.allocateDirect(heap.remaining());
+        direct.put(heap).flip();
+        readFields(direct);
+    }
+
+    @Test
+    public void testByteBufferArchiveTruncated() {
+        ByteBuffer bb = ByteBuffer.allocate(6);
+        bb.putInt(5).put((byte) 'a').put((byte) 'b').flip();
+        BinaryInputArchive ia = BinaryInputArchive.getArchive(bb);
+        try {
+            ia.readString("");
+            fail("Should have thrown an EOFException");
+        } catch (EOFException e) {
+            // expected
+        } catch (IOException e) {
+            fail("Not an EOFException: " + e);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testByteBufferReadLine() throws IOException {
+        byte[] lines = "one\ntwo\r\nthree\rfour\n\n\u00e9five".getBytes(StandardCharsets.ISO_8859_1);
+        DataInputStream expected = new DataInputStream(new ByteArrayInputStream(lines));
+        ByteBufferDataInput actual = new ByteBufferDataInput(ByteBuffer.wrap(lines));
+        String line;
+        do {
+            line = expected.readLine();
+            assertEquals(line, actual.readLine());
+        } while (line != null);
+        assertNull(actual.readLine());
+    }
+
   /**
    * Record length is more than the maxbuffer + extrasize length.
    */
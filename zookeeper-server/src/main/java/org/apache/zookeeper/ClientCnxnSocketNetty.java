@@ -133,7 +133,7 @@ void connect(InetSocketAddress addr) throws IOException {
                                              .option(ChannelOption.SO_LINGER, -1)
                                              .option(ChannelOption.TCP_NODELAY, true)
                                              .handler(new ZKClientPipelineFactory(addr.getHostString(), addr.getPort()));
-        bootstrap = configureBootstrapAllocator(bootstrap);
+        bootstrap = configureBootstrapAllocator(NettyUtils.configureEpollOptions(bootstrap));
         bootstrap.validate();
 
         connectLock.lock();
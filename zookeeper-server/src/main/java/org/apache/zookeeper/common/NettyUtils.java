@@ -18,9 +18,13 @@
 
 package org.apache.zookeeper.common;
 
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
@@ -48,14 +52,59 @@ public class NettyUtils {
     private static final int DEFAULT_INET_ADDRESS_COUNT = 1;
 
     /**
-     * If {@link Epoll#isAvailable()} <code>== true</code>, returns a new
+     * The transport used by netty: "epoll", "nio", or "auto" (the default)
+     * to use epoll when it is available.
+     */
+    public static final String NETTY_TRANSPORT = "zookeeper.netty.transport";
+
+    /**
+     * Whether TCP_QUICKACK is set on the epoll sockets, to acknowledge
+     * requests immediately instead of delaying the acks.
+     */
+    public static final String NETTY_EPOLL_TCP_QUICKACK = "zookeeper.netty.epoll.tcpQuickAck";
+
+    /**
+     * The SO_BUSY_POLL timeout in microseconds of the epoll sockets, 0 (the
+     * default) disables busy polling.
+     */
+    public static final String NETTY_EPOLL_BUSY_POLL_MICROS = "zookeeper.netty.epoll.busyPollMicros";
+
+    /**
+     * The epoll mode, "edge" (the default) or "level" triggered.
+     */
+    public static final String NETTY_EPOLL_MODE = "zookeeper.netty.epoll.mode";
+
+    /**
+     * Returns true if the epoll transport should be used, that is if it is
+     * available and not disabled with {@link #NETTY_TRANSPORT}.
+     */
+    public static boolean useEpoll() {
+        String transport = System.getProperty(NETTY_TRANSPORT, "auto");
+        switch (transport) {
+        case "nio":
+            return false;
+        case "epoll":
+            if (!Epoll.isAvailable()) {
+                LOG.warn("{}=epoll but epoll is not available, using nio", NETTY_TRANSPORT, Epoll.unavailabilityCause());
+            }
+            return Epoll.isAvailable();
+        case "auto":
+            return Epoll.isAvailable();
+        default:
+            LOG.warn("Unknown {}={}, using auto", NETTY_TRANSPORT, transport);
+            return Epoll.isAvailable();
+        }
+    }
+
+    /**
+     * If {@link #useEpoll()} <code>== true</code>, returns a new
      * {@link EpollEventLoopGroup}, otherwise returns a new
      * {@link NioEventLoopGroup}. Creates the event loop group using the
      * default number of threads.
      * @return a new {@link EventLoopGroup}.
      */
     public static EventLoopGroup newNioOrEpollEventLoopGroup() {
-        if (Epoll.isAvailable()) {
+        if (useEpoll()) {
             return new EpollEventLoopGroup();
         } else {
             return new NioEventLoopGroup();
@@ -63,7 +112,7 @@ public static EventLoopGroup newNioOrEpollEventLoopGroup() {
     }
 
     /**
-     * If {@link Epoll#isAvailable()} <code>== true</code>, returns a new
+     * If {@link #useEpoll()} <code>== true</code>, returns a new
      * {@link EpollEventLoopGroup}, otherwise returns a new
      * {@link NioEventLoopGroup}. Creates the event loop group using the
      * specified number of threads instead of the default.
@@ -71,7 +120,7 @@ public static EventLoopGroup newNioOrEpollEventLoopGroup() {
      * @return a new {@link EventLoopGroup}.
      */
     public static EventLoopGroup newNioOrEpollEventLoopGroup(int nThreads) {
-        if (Epoll.isAvailable()) {
+        if (useEpoll()) {
             return new EpollEventLoopGroup(nThreads);
         } else {
             return new NioEventLoopGroup(nThreads);
@@ -79,12 +128,12 @@ public static EventLoopGroup newNioOrEpollEventLoopGroup(int nThreads) {
     }
 
     /**
-     * If {@link Epoll#isAvailable()} <code>== true</code>, returns
+     * If {@link #useEpoll()} <code>== true</code>, returns
      * {@link EpollSocketChannel}, otherwise returns {@link NioSocketChannel}.
      * @return a socket channel class.
      */
     public static Class<? extends SocketChannel> nioOrEpollSocketChannel() {
-        if (Epoll.isAvailable()) {
+        if (useEpoll()) {
             return EpollSocketChannel.class;
         } else {
             return NioSocketChannel.class;
@@ -92,19 +141,67 @@ public static Class<? extends SocketChannel> nioOrEpollSocketChannel() {
     }
 
     /**
-     * If {@link Epoll#isAvailable()} <code>== true</code>, returns
+     * If {@link #useEpoll()} <code>== true</code>, returns
      * {@link EpollServerSocketChannel}, otherwise returns
      * {@link NioServerSocketChannel}.
      * @return a server socket channel class.
      */
     public static Class<? extends ServerSocketChannel> nioOrEpollServerSocketChannel() {
-        if (Epoll.isAvailable()) {
+        if (useEpoll()) {
             return EpollServerSocketChannel.class;
         } else {
             return NioServerSocketChannel.class;
         }
     }
 
+    /**
+     * Sets the configured epoll socket options on the client channel, does
+     * nothing with the nio transport.
+     * @param bootstrap the client bootstrap.
+     * @return the bootstrap.
+     */
+    public static Bootstrap configureEpollOptions(Bootstrap bootstrap) {
+        if (useEpoll()) {
+            bootstrap.option(EpollChannelOption.EPOLL_MODE, epollMode())
+                     .option(EpollChannelOption.TCP_QUICKACK, Boolean.getBoolean(NETTY_EPOLL_TCP_QUICKACK));
+            int busyPollMicros = Integer.getInteger(NETTY_EPOLL_BUSY_POLL_MICROS, 0);
+            if (busyPollMicros > 0) {
+                bootstrap.option(EpollChannelOption.SO_BUSY_POLL, busyPollMicros);
+            }
+        }
+        return bootstrap;
+    }
+
+    /**
+     * Sets the configured epoll socket options on the accepted channels,
+     * does nothing with the nio transport.
+     * @param bootstrap the server bootstrap.
+     * @return the bootstrap.
+     */
+    public static ServerBootstrap configureEpollOptions(ServerBootstrap bootstrap) {
+        if (useEpoll()) {
+            bootstrap.option(EpollChannelOption.EPOLL_MODE, epollMode())
+                     .childOption(EpollChannelOption.EPOLL_MODE, epollMode())
+                     .childOption(EpollChannelOption.TCP_QUICKACK, Boolean.getBoolean(NETTY_EPOLL_TCP_QUICKACK));
+            int busyPollMicros = Integer.getInteger(NETTY_EPOLL_BUSY_POLL_MICROS, 0);
+            if (busyPollMicros > 0) {
+                bootstrap.childOption(EpollChannelOption.SO_BUSY_POLL, busyPollMicros);
+            }
+        }
+        return bootstrap;
+    }
+
+    private static EpollMode epollMode() {
+        String mode = System.getProperty(NETTY_EPOLL_MODE, "edge");
+        if (mode.equals("level")) {
+            return EpollMode.LEVEL_TRIGGERED;
+        }
+        if (!mode.equals("edge")) {
+            LOG.warn("Unknown {}={}, using edge", NETTY_EPOLL_MODE, mode);
+        }
+        return EpollMode.EDGE_TRIGGERED;
+    }
+
     /**
      * Attempts to detect and return the number of local network addresses that could be
      * used by a client to reach this server. This means we exclude the following address types:
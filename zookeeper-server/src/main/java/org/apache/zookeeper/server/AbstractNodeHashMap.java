@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.util.AdHash;
+
+/**
+ * The digest bookkeeping shared by the NodeHashMap implementations, which
+ * only have to store the nodes.
+ */
+abstract class AbstractNodeHashMap implements NodeHashMap {
+
+    private final boolean digestEnabled;
+    private final DigestCalculator digestCalculator;
+
+    private final AdHash hash;
+
+    AbstractNodeHashMap(DigestCalculator digestCalculator) {
+        this.digestCalculator = digestCalculator;
+        hash = new AdHash();
+        digestEnabled = ZooKeeperServer.isDigestEnabled();
+    }
+
+    @Override
+    public void preChange(String path, DataNode node) {
+        removeDigest(path, node);
+    }
+
+    @Override
+    public void postChange(String path, DataNode node) {
+        // we just made a change, so make sure the digest is
+        // invalidated
+        node.digestCached = false;
+        addDigest(path, node);
+    }
+
+    protected void addDigest(String path, DataNode node) {
+        // Excluding everything under '/zookeeper/' for digest calculation.
+        if (path.startsWith(ZooDefs.ZOOKEEPER_NODE_SUBTREE)) {
+            return;
+        }
+        if (digestEnabled) {
+            hash.addDigest(digestCalculator.calculateDigest(path, node));
+        }
+    }
+
+    protected void removeDigest(String path, DataNode node) {
+        // Excluding everything under '/zookeeper/' for digest calculation.
+        if (path.startsWith(ZooDefs.ZOOKEEPER_NODE_SUBTREE)) {
+            return;
+        }
+        if (digestEnabled) {
+            hash.removeDigest(digestCalculator.calculateDigest(path, node));
+        }
+    }
+
+    protected void clearDigest() {
+        hash.clear();
+    }
+
+    @Override
+    public long getDigest() {
+        return hash.getHash();
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+/**
+ * Sizes the group commits of the {@link SyncRequestProcessor} from the
+ * measured commit (fsync) time and the rate at which txns arrive.
+ *
+ * While a commit is in progress new txns queue up, so the processor batches
+ * naturally under load. The gap this policy fills is the moment the queue
+ * runs dry in the middle of a burst: flushing right away pays a full fsync
+ * for a handful of txns. Instead the processor waits for roughly as many txns
+ * as arrive during one commit, bounded by half the average commit time so
+ * the added latency stays below the cost of the fsync it saves.
+ *
+ * At low load fewer than one txn arrives per commit, the target is 1 and the
+ * processor flushes immediately, as it does without this policy.
+ *
+ * Not thread safe, only used by the sync thread.
+ */
+class AdaptiveFlushPolicy {
+
+    /** weight of the latest sample in the moving averages */
+    static final double ALPHA = 0.2;
+
+    private final int maxBatchSize;
+
+    private double commitNanos;
+    private double interArrivalNanos;
+    private long lastFlushNanos;
+    private long firstUnflushedNanos;
+
+    /**
+     * @param maxBatchSize upper bound of the target batch size, or 0 for
+     *                     no bound
+     * @param nowNanos the current {@link System#nanoTime()}
+     */
+    AdaptiveFlushPolicy(int maxBatchSize, long nowNanos) {
+        this.maxBatchSize = maxBatchSize > 0 ? maxBatchSize : Integer.MAX_VALUE;
+        this.lastFlushNanos = nowNanos;
+        this.firstUnflushedNanos = -1;
+    }
+
+    /**
+     * A txn was added to the batch.
+     */
+    void txnAdded(long nowNanos) {
+        if (firstUnflushedNanos < 0) {
+            firstUnflushedNanos = nowNanos;
+        }
+    }
+
+    /**
+     * A batch of txns was committed.
+     *
+     * @param batchSize the number of txns in the batch
+     * @param commitNanos the time the commit took
+     * @param nowNanos the current {@link System#nanoTime()}
+     */
+    void flushed(int batchSize, long commitNanos, long nowNanos) {
+        if (batchSize <= 0) {
+            return;
+        }
+        // txns of the batch arrived since the previous flush, under a
+        // steady load this is the arrival rate
+        double interArrival = (double) (nowNanos - lastFlushNanos) / batchSize;
+        if (this.commitNanos == 0) {
+            this.commitNanos = commitNanos;
+            this.interArrivalNanos = interArrival;
+        } else {
+            this.commitNanos += ALPHA * (commitNanos - this.commitNanos);
+            this.interArrivalNanos += ALPHA * (interArrival - this.interArrivalNanos);
+        }
+        lastFlushNanos = nowNanos;
+        firstUnflushedNanos = -1;
+    }
+
+    /**
+     * @return the number of txns expected to arrive during one commit,
+     * between 1 and the max batch size
+     */
+    int getTargetBatchSize() {
+        if (commitNanos == 0) {
+            return 1;
+        }
+        double expected = commitNanos / Math.max(interArrivalNanos, 1);
+        return (int) Math.max(1, Math.min(maxBatchSize, expected));
+    }
+
+    /**
+     * @param batchSize the number of txns waiting to be flushed
+     * @param nowNanos the current {@link System#nanoTime()}
+     * @return how long to wait for more txns before flushing the batch,
+     * 0 to flush now
+     */
+    long getFlushWaitNanos(int batchSize, long nowNanos) {
+        int missing = getTargetBatchSize() - batchSize;
+        if (missing <= 0 || firstUnflushedNanos < 0) {
+            return 0;
+        }
+        long deadline = firstUnflushedNanos + (long) (commitNanos / 2);
+        long fill = (long) (missing * interArrivalNanos);
+        return Math.max(0, Math.min(deadline - nowNanos, fill));
+    }
+
+}
@@ -67,6 +67,13 @@
  * frequency that should keep requests within the token limit. When load drops,
  * the drop probability will decrease, eventually returning to zero if possible.
  *
+ * Connections renewing an existing session can be given priority over the
+ * ones creating a new session, with {@link #checkLimit(int, boolean)}: a
+ * <code>renewReserve</code> fraction of <code>maxTokens</code> is then kept
+ * for renewals, and renewals are not dropped randomly. Under overload new
+ * sessions are shed first, so that clients reconnecting after a leader
+ * change do not lose their sessions.
+ *
  * [1] "BLUE: A New Class of Active Queue Management Algorithms"
  **/
 
@@ -86,6 +93,8 @@ public class BlueThrottle {
     private double decreasePoint;
     private double drop;
 
+    private double renewReserve;
+
     Random rng;
 
     public static final String CONNECTION_THROTTLE_TOKENS = "zookeeper.connection_throttle_tokens";
@@ -109,6 +118,9 @@ public class BlueThrottle {
     public static final String CONNECTION_THROTTLE_DECREASE_RATIO = "zookeeper.connection_throttle_decrease_ratio";
     private static final double DEFAULT_CONNECTION_THROTTLE_DECREASE_RATIO;
 
+    public static final String CONNECTION_THROTTLE_RENEW_RESERVE = "zookeeper.connection_throttle_renew_reserve";
+    private static final double DEFAULT_CONNECTION_THROTTLE_RENEW_RESERVE;
+
     public static final String WEIGHED_CONNECTION_THROTTLE = "zookeeper.connection_throttle_weight_enabled";
     private static boolean connectionWeightEnabled;
 
@@ -200,6 +212,7 @@ private static void logWeighedThrottlingSetting() {
         DEFAULT_CONNECTION_THROTTLE_DROP_INCREASE = getDoubleProp(CONNECTION_THROTTLE_DROP_INCREASE, 0.02);
         DEFAULT_CONNECTION_THROTTLE_DROP_DECREASE = getDoubleProp(CONNECTION_THROTTLE_DROP_DECREASE, 0.002);
         DEFAULT_CONNECTION_THROTTLE_DECREASE_RATIO = getDoubleProp(CONNECTION_THROTTLE_DECREASE_RATIO, 0);
+        DEFAULT_CONNECTION_THROTTLE_RENEW_RESERVE = getDoubleProp(CONNECTION_THROTTLE_RENEW_RESERVE, 0);
 
         logWeighedThrottlingSetting();
     }
@@ -230,6 +243,9 @@ public BlueThrottle() {
         this.decreasePoint = DEFAULT_CONNECTION_THROTTLE_DECREASE_RATIO;
         this.drop = 0;
 
+        // No priority for renewals by default (renewReserve = 0)
+        setRenewReserve(DEFAULT_CONNECTION_THROTTLE_RENEW_RESERVE);
+
         this.rng = new Random();
     }
 
@@ -263,6 +279,13 @@ public synchronized void setDecreasePoint(double ratio) {
         decreasePoint = ratio;
     }
 
+    public synchronized void setRenewReserve(double ratio) {
+        if (ratio < 0 || ratio > 1) {
+            throw new IllegalArgumentException("renewReserve must be between 0 and 1, got " + ratio);
+        }
+        renewReserve = ratio;
+    }
+
     public synchronized int getMaxTokens() {
         return maxTokens;
     }
@@ -291,6 +314,10 @@ public synchronized double getDecreasePoint() {
         return decreasePoint;
     }
 
+    public synchronized double getRenewReserve() {
+        return renewReserve;
+    }
+
     public synchronized double getDropChance() {
         return drop;
     }
@@ -316,6 +343,22 @@ public boolean isConnectionWeightEnabled() {
     }
 
     public synchronized boolean checkLimit(int need) {
+        return checkLimit(need, 0, true);
+    }
+
+    /**
+     * Check the limit for a connection renewing an existing session, or
+     * creating a new one. With a renew reserve, new sessions cannot use the
+     * reserved tokens, and renewals are not dropped randomly.
+     */
+    public synchronized boolean checkLimit(int need, boolean renew) {
+        if (renew) {
+            return checkLimit(need, 0, renewReserve == 0);
+        }
+        return checkLimit(need, (int) Math.round(maxTokens * renewReserve), true);
+    }
+
+    private boolean checkLimit(int need, int reserved, boolean blue) {
         // A maxTokens setting of zero disables throttling
         if (maxTokens == 0) {
             return true;
@@ -331,13 +374,13 @@ public synchronized boolean checkLimit(int need) {
         }
 
         // A freeze time of -1 disables BLUE randomized throttling
-        if (freezeTime != -1) {
+        if (freezeTime != -1 && blue) {
             if (!checkBlue(now)) {
                 return false;
             }
         }
 
-        if (tokens < need) {
+        if (tokens - reserved < need) {
             return false;
         }
 
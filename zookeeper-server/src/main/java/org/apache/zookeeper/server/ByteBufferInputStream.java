@@ -73,8 +73,7 @@ public long skip(long n) throws IOException {
     }
 
     public static void byteBuffer2Record(ByteBuffer bb, Record record) throws IOException {
-        BinaryInputArchive ia;
-        ia = BinaryInputArchive.getArchive(new ByteBufferInputStream(bb));
+        BinaryInputArchive ia = BinaryInputArchive.getArchive(bb);
         record.deserialize(ia, "request");
     }
 
@@ -0,0 +1,451 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.AbstractList;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * The children of a DataNode, stored compactly for parents with many
+ * children.
+ * <p>
+ * The names ending with the 10 digits of a sequential node are split into
+ * their prefix and their sequence number, and the sequence numbers sharing
+ * a prefix are kept as ints in an open addressing table, so such a child
+ * only costs a few bytes instead of a String and a HashMap entry. The
+ * other names are kept in an open addressing table of Strings.
+ * <p>
+ * {@link #snapshot()} returns an immutable list of the children which is
+ * kept until the next change, so that repeatedly listing a wide parent
+ * doesn't copy it every time. Iterating doesn't keep its copy. Like the HashSet it replaces, the set itself
+ * is guarded by the monitor of its DataNode.
+ */
+final class ChildrenSet extends AbstractSet<String> {
+
+    static final int SEQUENCE_DIGITS = 10;
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int nameCount;
+
+    // the prefixes of the sequential children and their sequence numbers
+    private Map<String, SequenceSet> sequences;
+
+    private int size;
+
+    private List<String> snapshot;
+
+    ChildrenSet() {
+    }
+
+    ChildrenSet(Collection<String> children) {
+        for (String child : children) {
+            add(child);
+        }
+    }
+
+    @Override
+    public boolean add(String child) {
+        boolean added;
+        int sequence = sequence(child);
+        if (sequence >= 0) {
+            if (sequences == null) {
+                sequences = new HashMap<>(4);
+            }
+            String prefix = child.substring(0, child.length() - SEQUENCE_DIGITS);
+            SequenceSet set = sequences.get(prefix);
+            if (set == null) {
+                set = new SequenceSet();
+                sequences.put(prefix, set);
+            }
+            added = set.add(sequence);
+        } else {
+            added = addName(child);
+        }
+        if (added) {
+            size++;
+            snapshot = null;
+        }
+        return added;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        String child = (String) o;
+        boolean removed;
+        int sequence = sequence(child);
+        if (sequence >= 0) {
+            String prefix = child.substring(0, child.length() - SEQUENCE_DIGITS);
+            SequenceSet set = sequences == null ? null : sequences.get(prefix);
+            removed = set != null && set.remove(sequence);
+            if (removed && set.count == 0) {
+                sequences.remove(prefix);
+            }
+        } else {
+            removed = removeName(child);
+        }
+        if (removed) {
+            size--;
+            snapshot = null;
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        String child = (String) o;
+        int sequence = sequence(child);
+        if (sequence >= 0) {
+            SequenceSet set = sequences == null
+                ? null
+                : sequences.get(child.substring(0, child.length() - SEQUENCE_DIGITS));
+            return set != null && set.contains(sequence);
+        }
+        return nameSlot(child) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Iterates over a copy of the children, so the set can be changed while
+     * iterating. The copy is not kept: only the lists returned by
+     * {@link #snapshot()} are, a pass over the tree mustn't leave every
+     * parent with a second copy of its children.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        List<String> children = snapshot;
+        return (children != null ? children : new Snapshot(this)).iterator();
+    }
+
+    /**
+     * @return an immutable list of the children as of now, sequential
+     *         children are turned back into Strings when they are read
+     */
+    List<String> snapshot() {
+        if (snapshot == null) {
+            snapshot = new Snapshot(this);
+        }
+        return snapshot;
+    }
+
+    // VisibleForTesting
+    boolean hasSnapshot() {
+        return snapshot != null;
+    }
+
+    /**
+     * @return the total length of the names of the children, without
+     *         turning the sequential children of a snapshot into Strings
+     */
+    static int length(List<String> children) {
+        if (children instanceof Snapshot) {
+            return ((Snapshot) children).length;
+        }
+        int length = 0;
+        for (String child : children) {
+            length += child.length();
+        }
+        return length;
+    }
+
+    /**
+     * @return the sequence number of a sequential child, or -1
+     */
+    static int sequence(String child) {
+        int length = child.length();
+        if (length < SEQUENCE_DIGITS) {
+            return -1;
+        }
+        long sequence = 0;
+        for (int i = length - SEQUENCE_DIGITS; i < length; i++) {
+            char c = child.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            sequence = sequence * 10 + (c - '0');
+        }
+        return sequence <= Integer.MAX_VALUE ? (int) sequence : -1;
+    }
+
+    static String format(String prefix, int sequence) {
+        int length = prefix.length();
+        char[] chars = new char[length + SEQUENCE_DIGITS];
+        prefix.getChars(0, length, chars, 0);
+        for (int i = chars.length - 1; i >= length; i--) {
+            chars[i] = (char) ('0' + sequence % 10);
+            sequence /= 10;
+        }
+        return new String(chars);
+    }
+
+    private boolean addName(String name) {
+        int mask = names.length - 1;
+        int i = name.hashCode() & mask;
+        while (names[i] != null) {
+            if (names[i].equals(name)) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        names[i] = name;
+        nameCount++;
+        if (nameCount > names.length / 4 * 3) {
+            String[] old = names;
+            names = new String[old.length * 2];
+            nameCount = 0;
+            for (String n : old) {
+                if (n != null) {
+                    addName(n);
+                }
+            }
+        }
+        return true;
+    }
+
+    private int nameSlot(String name) {
+        int mask = names.length - 1;
+        int i = name.hashCode() & mask;
+        while (names[i] != null) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean removeName(String name) {
+        int hole = nameSlot(name);
+        if (hole < 0) {
+            return false;
+        }
+        // move back the names of the probe sequence, no tombstone needed
+        int mask = names.length - 1;
+        int i = (hole + 1) & mask;
+        while (names[i] != null) {
+            int home = names[i].hashCode() & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                names[hole] = names[i];
+                hole = i;
+            }
+            i = (i + 1) & mask;
+        }
+        names[hole] = null;
+        nameCount--;
+        return true;
+    }
+
+    /**
+     * An open addressing set of non negative ints.
+     */
+    private static final class SequenceSet {
+
+        private static final int EMPTY = -1;
+
+        int[] slots = newSlots(INITIAL_CAPACITY);
+        int count;
+
+        private static int[] newSlots(int capacity) {
+            int[] slots = new int[capacity];
+            Arrays.fill(slots, EMPTY);
+            return slots;
+        }
+
+        private static int home(int sequence, int mask) {
+            return (sequence * 0x9E3779B9 >>> 16) & mask;
+        }
+
+        boolean add(int sequence) {
+            int mask = slots.length - 1;
+            int i = home(sequence, mask);
+            while (slots[i] != EMPTY) {
+                if (slots[i] == sequence) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            slots[i] = sequence;
+            count++;
+            if (count > slots.length / 4 * 3) {
+                int[] old = slots;
+                slots = newSlots(old.length * 2);
+                count = 0;
+                for (int s : old) {
+                    if (s != EMPTY) {
+                        add(s);
+                    }
+                }
+            }
+            return true;
+        }
+
+        private int slot(int sequence) {
+            int mask = slots.length - 1;
+            int i = home(sequence, mask);
+            while (slots[i] != EMPTY) {
+                if (slots[i] == sequence) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        boolean contains(int sequence) {
+            return slot(sequence) >= 0;
+        }
+
+        boolean remove(int sequence) {
+            int hole = slot(sequence);
+            if (hole < 0) {
+                return false;
+            }
+            int mask = slots.length - 1;
+            int i = (hole + 1) & mask;
+            while (slots[i] != EMPTY) {
+                int home = home(slots[i], mask);
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    slots[hole] = slots[i];
+                    hole = i;
+                }
+                i = (i + 1) & mask;
+            }
+            slots[hole] = EMPTY;
+            count--;
+            return true;
+        }
+
+    }
+
+    /**
+     * The children copied into flat arrays: the other names first, then the
+     * sequence numbers grouped by prefix.
+     */
+    private static final class Snapshot extends AbstractList<String> implements RandomAccess {
+
+        private final String[] names;
+        private final String[] prefixes;
+        // the index in sequences after the last sequence of each prefix
+        private final int[] ends;
+        private final int[] sequences;
+        // the total length of the names
+        private final int length;
+
+        Snapshot(ChildrenSet children) {
+            int length = 0;
+            names = new String[children.nameCount];
+            int n = 0;
+            for (String name : children.names) {
+                if (name != null) {
+                    names[n++] = name;
+                    length += name.length();
+                }
+            }
+            int groups = children.sequences == null ? 0 : children.sequences.size();
+            prefixes = new String[groups];
+            ends = new int[groups];
+            sequences = new int[children.size - names.length];
+            if (groups > 0) {
+                int g = 0;
+                int s = 0;
+                for (Map.Entry<String, SequenceSet> entry : children.sequences.entrySet()) {
+                    prefixes[g] = entry.getKey();
+                    for (int sequence : entry.getValue().slots) {
+                        if (sequence != SequenceSet.EMPTY) {
+                            sequences[s++] = sequence;
+                        }
+                    }
+                    length += (entry.getKey().length() + SEQUENCE_DIGITS) * (s - (g == 0 ? 0 : ends[g - 1]));
+                    ends[g++] = s;
+                }
+            }
+            this.length = length;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            if (index < names.length) {
+                return names[index];
+            }
+            int s = index - names.length;
+            int g = Arrays.binarySearch(ends, s);
+            // the first group ending after s
+            g = g >= 0 ? g + 1 : -g - 1;
+            return format(prefixes[g], sequences[s]);
+        }
+
+        @Override
+        public int size() {
+            return names.length + sequences.length;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int next = 0;
+                private int group = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return next < size();
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    int index = next++;
+                    if (index < names.length) {
+                        return names[index];
+                    }
+                    int s = index - names.length;
+                    while (ends[group] <= s) {
+                        group++;
+                    }
+                    return format(prefixes[group], sequences[s]);
+                }
+            };
+        }
+
+    }
+
+}
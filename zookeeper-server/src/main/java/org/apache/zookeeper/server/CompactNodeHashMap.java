@@ -0,0 +1,378 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A NodeHashMap storing the nodes in open addressing tables instead of a
+ * ConcurrentHashMap, to cut the per node overhead of large trees.
+ * <p>
+ * The ConcurrentHashMap keeps an entry object and a String per node on top
+ * of the path bytes. Here the paths are kept as their Latin-1 bytes (paths
+ * with other characters stay Strings) next to their hash in parallel
+ * arrays, and looked up by comparing the bytes to the path being read, so
+ * a node only costs its slots and its path bytes.
+ * <p>
+ * The tables are split into segments, each guarded by a StampedLock: the
+ * writers take the write lock of a segment, while the readers look up the
+ * path optimistically and only take the read lock when a write raced with
+ * them.
+ */
+public class CompactNodeHashMap extends AbstractNodeHashMap {
+
+    private static final int SEGMENT_BITS = 6;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    public CompactNodeHashMap(DigestCalculator digestCalculator) {
+        super(digestCalculator);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    @Override
+    public DataNode put(String path, DataNode node) {
+        DataNode oldNode = putWithoutDigest(path, node);
+        addDigest(path, node);
+        if (oldNode != null) {
+            removeDigest(path, oldNode);
+        }
+        return oldNode;
+    }
+
+    @Override
+    public DataNode putWithoutDigest(String path, DataNode node) {
+        int hash = path.hashCode();
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            return segment.put(hash, path, node);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public DataNode get(String path) {
+        int hash = path.hashCode();
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            DataNode node = segment.get(hash, path);
+            if (segment.lock.validate(stamp)) {
+                return node;
+            }
+        }
+        stamp = segment.lock.readLock();
+        try {
+            return segment.get(hash, path);
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public DataNode remove(String path) {
+        int hash = path.hashCode();
+        Segment segment = segmentFor(hash);
+        DataNode oldNode;
+        long stamp = segment.lock.writeLock();
+        try {
+            oldNode = segment.remove(hash, path);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+        if (oldNode != null) {
+            removeDigest(path, oldNode);
+        }
+        return oldNode;
+    }
+
+    /**
+     * The entries are weakly consistent like the ones of a
+     * ConcurrentHashMap: each segment is copied when the iteration reaches
+     * it.
+     */
+    @Override
+    public Set<Map.Entry<String, DataNode>> entrySet() {
+        return new AbstractSet<Map.Entry<String, DataNode>>() {
+            @Override
+            public Iterator<Map.Entry<String, DataNode>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return CompactNodeHashMap.this.size();
+            }
+        };
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                segment.clear();
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+        clearDigest();
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[(hash * 0x9E3779B9) >>> (Integer.SIZE - SEGMENT_BITS)];
+    }
+
+    /**
+     * @return the path as its Latin-1 bytes, or the path itself if some
+     *         characters don't fit
+     */
+    static Object encode(String path) {
+        int length = path.length();
+        for (int i = 0; i < length; i++) {
+            if (path.charAt(i) > 0xFF) {
+                return path;
+            }
+        }
+        return path.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    static String decode(Object key) {
+        if (key instanceof byte[]) {
+            return new String((byte[]) key, StandardCharsets.ISO_8859_1);
+        }
+        return (String) key;
+    }
+
+    static boolean matches(Object key, String path) {
+        if (!(key instanceof byte[])) {
+            return path.equals(key);
+        }
+        byte[] bytes = (byte[]) key;
+        if (bytes.length != path.length()) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if ((bytes[i] & 0xFF) != path.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int slot(int hash, int mask) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * A linear probing table holding the hashes of the keys in one array, and
+     * the keys next to their nodes in another so that a hit only touches one
+     * line of each. The arrays are only modified under the write lock; the
+     * optimistic readers may see them half updated, or the arrays of two
+     * different tables while resizing, so the lookups never trust what they
+     * read beyond the bounds of the arrays.
+     */
+    private static final class Segment {
+
+        final StampedLock lock = new StampedLock();
+
+        volatile int count;
+        int[] hashes;
+        Object[] entries;
+
+        Segment() {
+            allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(int capacity) {
+            hashes = new int[capacity];
+            entries = new Object[capacity * 2];
+        }
+
+        DataNode get(int hash, String path) {
+            int[] hashes = this.hashes;
+            Object[] entries = this.entries;
+            int mask = hashes.length - 1;
+            if (entries.length != hashes.length * 2) {
+                // racing with a resize, the caller will retry under the lock
+                return null;
+            }
+            for (int i = slot(hash, mask), probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                Object key = entries[2 * i];
+                if (key == null) {
+                    return null;
+                }
+                if (hashes[i] == hash && matches(key, path)) {
+                    return (DataNode) entries[2 * i + 1];
+                }
+            }
+            return null;
+        }
+
+        DataNode put(int hash, String path, DataNode node) {
+            int mask = hashes.length - 1;
+            int i = slot(hash, mask);
+            while (entries[2 * i] != null) {
+                if (hashes[i] == hash && matches(entries[2 * i], path)) {
+                    DataNode oldNode = (DataNode) entries[2 * i + 1];
+                    entries[2 * i + 1] = node;
+                    return oldNode;
+                }
+                i = (i + 1) & mask;
+            }
+            hashes[i] = hash;
+            entries[2 * i + 1] = node;
+            entries[2 * i] = encode(path);
+            count++;
+            if (count > hashes.length / 4 * 3) {
+                resize(hashes.length * 2);
+            }
+            return null;
+        }
+
+        DataNode remove(int hash, String path) {
+            int mask = hashes.length - 1;
+            int i = slot(hash, mask);
+            while (entries[2 * i] != null) {
+                if (hashes[i] == hash && matches(entries[2 * i], path)) {
+                    DataNode oldNode = (DataNode) entries[2 * i + 1];
+                    deleteSlot(i);
+                    count--;
+                    return oldNode;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        /**
+         * Empty the slot and move back the entries of the probe sequence
+         * after it, so that no tombstone is needed.
+         */
+        private void deleteSlot(int hole) {
+            int mask = hashes.length - 1;
+            int i = (hole + 1) & mask;
+            while (entries[2 * i] != null) {
+                int home = slot(hashes[i], mask);
+                // the entry can fill the hole if its home slot isn't
+                // cyclically between the hole and its current slot
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    hashes[hole] = hashes[i];
+                    entries[2 * hole] = entries[2 * i];
+                    entries[2 * hole + 1] = entries[2 * i + 1];
+                    hole = i;
+                }
+                i = (i + 1) & mask;
+            }
+            entries[2 * hole] = null;
+            entries[2 * hole + 1] = null;
+        }
+
+        private void resize(int capacity) {
+            int[] oldHashes = hashes;
+            Object[] oldEntries = entries;
+            allocate(capacity);
+            int mask = capacity - 1;
+            for (int j = 0; j < oldHashes.length; j++) {
+                if (oldEntries[2 * j] != null) {
+                    int i = slot(oldHashes[j], mask);
+                    while (entries[2 * i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    hashes[i] = oldHashes[j];
+                    entries[2 * i] = oldEntries[2 * j];
+                    entries[2 * i + 1] = oldEntries[2 * j + 1];
+                }
+            }
+        }
+
+        void clear() {
+            allocate(INITIAL_CAPACITY);
+            count = 0;
+        }
+
+        List<Map.Entry<String, DataNode>> entries() {
+            long stamp = lock.readLock();
+            try {
+                List<Map.Entry<String, DataNode>> list = new ArrayList<>(count);
+                for (int i = 0; i < entries.length; i += 2) {
+                    if (entries[i] != null) {
+                        list.add(new AbstractMap.SimpleImmutableEntry<>(decode(entries[i]), (DataNode) entries[i + 1]));
+                    }
+                }
+                return list;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, DataNode>> {
+
+        private int nextSegment = 0;
+        private Iterator<Map.Entry<String, DataNode>> current = Collections.emptyIterator();
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                if (nextSegment == segments.length) {
+                    return false;
+                }
+                current = segments[nextSegment++].entries().iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<String, DataNode> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+    }
+
+}
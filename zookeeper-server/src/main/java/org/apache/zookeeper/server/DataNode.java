@@ -22,6 +22,7 @@
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
@@ -64,7 +65,7 @@ public class DataNode implements Record {
      * does not contain the parent path -- just the last part of the path. This
      * should be synchronized on except deserializing (for speed up issues).
      */
-    private Set<String> children = null;
+    private ChildrenSet children = null;
 
     private static final Set<String> EMPTY_SET = Collections.emptySet();
 
@@ -100,8 +101,7 @@ public DataNode(byte[] data, Long acl, StatPersisted stat) {
      */
     public synchronized boolean addChild(String child) {
         if (children == null) {
-            // let's be conservative on the typical number of children
-            children = new HashSet<String>(8);
+            children = new ChildrenSet();
         }
         return children.add(child);
     }
@@ -125,7 +125,7 @@ public synchronized boolean removeChild(String child) {
      * @param children
      */
     public synchronized void setChildren(HashSet<String> children) {
-        this.children = children;
+        this.children = children == null ? null : new ChildrenSet(children);
     }
 
     /**
@@ -142,6 +142,19 @@ public synchronized Set<String> getChildren() {
         return Collections.unmodifiableSet(children);
     }
 
+    /**
+     * Get an immutable copy of the children, which is shared by the
+     * callers until the children change.
+     *
+     * @return the children of this datanode, or an empty list
+     */
+    public synchronized List<String> getChildrenSnapshot() {
+        if (children == null) {
+            return Collections.emptyList();
+        }
+        return children.snapshot();
+    }
+
     public synchronized void copyStat(Stat to) {
         to.setAversion(stat.getAversion());
         to.setCtime(stat.getCtime());
@@ -20,8 +20,10 @@
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -32,8 +34,17 @@
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
@@ -98,6 +109,36 @@ public class DataTree {
 
     private final RateLogger RATE_LOGGER = new RateLogger(LOG, 15 * 60 * 1000);
 
+    /**
+     * The number of threads used to rebuild the tree when loading a
+     * snapshot, 1 (the default) loads it on the calling thread.
+     */
+    public static final String SNAPSHOT_DESERIALIZATION_THREADS = "zookeeper.snapshot.deserializationThreads";
+
+    /**
+     * The number of decoded nodes handed to a loader thread at a time.
+     */
+    private static final int SNAPSHOT_DESERIALIZATION_BATCH_SIZE = 1024;
+
+    /**
+     * Whether snapshots written to disk are a consistent view of the tree
+     * as of the zxid they are named after instead of a fuzzy one.
+     */
+    public static final String SNAPSHOT_CONSISTENT_VIEW_ENABLED = "zookeeper.snapshot.consistentView";
+
+    /**
+     * The number of delta snapshots, holding only the nodes changed since
+     * the previous snapshot, taken between two full snapshots. 0 (the
+     * default) disables delta snapshots.
+     */
+    public static final String SNAPSHOT_MAX_DELTAS = "zookeeper.snapshot.maxDeltas";
+
+    /**
+     * The map storing the nodes, either "hash" (the default) for
+     * {@link NodeHashMapImpl} or "compact" for {@link CompactNodeHashMap}.
+     */
+    public static final String NODE_HASH_MAP = "zookeeper.nodeHashMap";
+
     /**
      * This map provides a fast lookup to the datanodes. The tree is the
      * source of truth and is where all the locking occurs
@@ -108,6 +149,12 @@ public class DataTree {
 
     private IWatchManager childWatches;
 
+    /**
+     * The watch triggers kept by {@link #replayTxn(TxnHeader, Record, List)}
+     * for the txn applied on this thread, null when they are fired at once.
+     */
+    private final ThreadLocal<List<Runnable>> deferredWatchTriggers = new ThreadLocal<>();
+
     /** cached total size of paths and data for all DataNodes */
     private final AtomicLong nodeDataSize = new AtomicLong(0);
 
@@ -189,6 +236,33 @@ public class DataTree {
 
     private final DigestCalculator digestCalculator;
 
+    private final boolean consistentSnapshotEnabled = Boolean.getBoolean(SNAPSHOT_CONSISTENT_VIEW_ENABLED);
+
+    // held while starting a snapshot view, and while applying a txn when a
+    // view is being started, so that a view is always started between two
+    // txns. Otherwise the txns only count themselves in unlockedTxns.
+    private final Object snapshotViewLock = new Object();
+    private volatile boolean snapshotViewStarting;
+    private final AtomicInteger unlockedTxns = new AtomicInteger();
+
+    private volatile SnapshotView snapshotView;
+
+    // marks the nodes created after the snapshot view was started
+    private static final DataNode CREATED_AFTER_SNAPSHOT = new DataNode(new byte[0], -1L, new StatPersisted());
+
+    private final boolean deltaSnapshotEnabled = Integer.getInteger(SNAPSHOT_MAX_DELTAS, 0) > 0;
+
+    // the paths changed since the last snapshot when delta snapshots are
+    // enabled, the changes are recorded under the read lock so that none is
+    // lost while the set is swapped by a snapshot
+    private Set<String> dirtyPaths = ConcurrentHashMap.newKeySet();
+    private final ReadWriteLock dirtyPathsLock = new ReentrantReadWriteLock();
+
+    // the zxid of the last snapshot taken of, or loaded into, this tree,
+    // -1 if there is none a delta snapshot could be based on
+    private volatile long lastSnapshotZxid = -1;
+    private volatile int deltasSinceFullSnapshot;
+
     @SuppressWarnings("unchecked")
     public Set<String> getEphemerals(long sessionId) {
         HashSet<String> retv = ephemerals.get(sessionId);
@@ -284,7 +358,7 @@ public DataTree() {
 
     DataTree(DigestCalculator digestCalculator) {
         this.digestCalculator = digestCalculator;
-        nodes = new NodeHashMapImpl(digestCalculator);
+        nodes = createNodeHashMap(digestCalculator);
 
         /* Rather than fight it, let root have an alias */
         nodes.put("", root);
@@ -309,6 +383,19 @@ public DataTree() {
         }
     }
 
+    private static NodeHashMap createNodeHashMap(DigestCalculator digestCalculator) {
+        String nodeHashMap = System.getProperty(NODE_HASH_MAP, "hash");
+        switch (nodeHashMap) {
+        case "compact":
+            return new CompactNodeHashMap(digestCalculator);
+        case "hash":
+            return new NodeHashMapImpl(digestCalculator);
+        default:
+            LOG.warn("Unknown {} {}, using the hash map", NODE_HASH_MAP, nodeHashMap);
+            return new NodeHashMapImpl(digestCalculator);
+        }
+    }
+
     /**
      * create a /zookeeper/config node for maintaining the configuration (membership and quorum system) info for
      * zookeeper
@@ -391,6 +478,10 @@ public void updateCountBytes(String lastPrefix, long bytesDiff, int countDiff) {
             return;
         }
         synchronized (node) {
+            SnapshotView view = snapshotView;
+            if (view != null) {
+                view.preserve(statNode, node);
+            }
             updatedStat = new StatsTrack(new String(node.data));
             updatedStat.setCount(updatedStat.getCount() + countDiff);
             updatedStat.setBytes(updatedStat.getBytes() + bytesDiff);
@@ -492,7 +583,7 @@ public void createNode(final String path, byte[] data, List<ACL> acl, long ephem
                 throw new KeeperException.NodeExistsException();
             }
 
-            nodes.preChange(parentName, parent);
+            preChange(parentName, parent);
             if (parentCVersion == -1) {
                 parentCVersion = parent.stat.getCversion();
                 parentCVersion++;
@@ -510,6 +601,11 @@ public void createNode(final String path, byte[] data, List<ACL> acl, long ephem
             parent.addChild(childName);
             nodes.postChange(parentName, parent);
             nodeDataSize.addAndGet(getNodeSize(path, child.data));
+            SnapshotView view = snapshotView;
+            if (view != null) {
+                view.markCreated(path);
+            }
+            markDirty(path);
             nodes.put(path, child);
             EphemeralType ephemeralType = EphemeralType.get(ephemeralOwner);
             if (ephemeralType == EphemeralType.CONTAINER) {
@@ -517,11 +613,7 @@ public void createNode(final String path, byte[] data, List<ACL> acl, long ephem
             } else if (ephemeralType == EphemeralType.TTL) {
                 ttls.add(path);
             } else if (ephemeralOwner != 0) {
-                HashSet<String> list = ephemerals.get(ephemeralOwner);
-                if (list == null) {
-                    list = new HashSet<String>();
-                    ephemerals.put(ephemeralOwner, list);
-                }
+                HashSet<String> list = ephemerals.computeIfAbsent(ephemeralOwner, k -> new HashSet<String>());
                 synchronized (list) {
                     list.add(path);
                 }
@@ -550,8 +642,7 @@ public void createNode(final String path, byte[] data, List<ACL> acl, long ephem
             updateCountBytes(lastPrefix, bytes, 1);
         }
         updateWriteStat(path, bytes);
-        dataWatches.triggerWatch(path, Event.EventType.NodeCreated);
-        childWatches.triggerWatch(parentName.equals("") ? "/" : parentName, Event.EventType.NodeChildrenChanged);
+        triggerWatches(path, parentName, Event.EventType.NodeCreated);
     }
 
     /**
@@ -576,7 +667,7 @@ public void deleteNode(String path, long zxid) throws KeeperException.NoNodeExce
             throw new KeeperException.NoNodeException();
         }
         synchronized (parent) {
-            nodes.preChange(parentName, parent);
+            preChange(parentName, parent);
             parent.removeChild(childName);
             // Only update pzxid when the zxid is larger than the current pzxid,
             // otherwise we might override some higher pzxid set by a create
@@ -591,6 +682,13 @@ public void deleteNode(String path, long zxid) throws KeeperException.NoNodeExce
         if (node == null) {
             throw new KeeperException.NoNodeException();
         }
+        SnapshotView view = snapshotView;
+        if (view != null) {
+            synchronized (node) {
+                view.preserve(path, node);
+            }
+        }
+        markDirty(path);
         nodes.remove(path);
         synchronized (node) {
             aclCache.removeUsage(node.acl);
@@ -647,9 +745,36 @@ public void deleteNode(String path, long zxid) throws KeeperException.NoNodeExce
                 "childWatches.triggerWatch " + parentName);
         }
 
-        WatcherOrBitSet processed = dataWatches.triggerWatch(path, EventType.NodeDeleted);
-        childWatches.triggerWatch(path, EventType.NodeDeleted, processed);
-        childWatches.triggerWatch("".equals(parentName) ? "/" : parentName, EventType.NodeChildrenChanged);
+        triggerWatches(path, parentName, EventType.NodeDeleted);
+    }
+
+    /**
+     * Fire the watches of a node change, or keep them to be fired later when
+     * the txn is applied with {@link #replayTxn(TxnHeader, Record, List)}.
+     */
+    private void triggerWatches(String path, String parentName, EventType type) {
+        List<Runnable> deferred = deferredWatchTriggers.get();
+        if (deferred != null) {
+            deferred.add(() -> fireWatches(path, parentName, type));
+        } else {
+            fireWatches(path, parentName, type);
+        }
+    }
+
+    private void fireWatches(String path, String parentName, EventType type) {
+        switch (type) {
+        case NodeCreated:
+            dataWatches.triggerWatch(path, type);
+            childWatches.triggerWatch("".equals(parentName) ? "/" : parentName, EventType.NodeChildrenChanged);
+            break;
+        case NodeDeleted:
+            WatcherOrBitSet processed = dataWatches.triggerWatch(path, type);
+            childWatches.triggerWatch(path, type, processed);
+            childWatches.triggerWatch("".equals(parentName) ? "/" : parentName, EventType.NodeChildrenChanged);
+            break;
+        default:
+            dataWatches.triggerWatch(path, type);
+        }
     }
 
     public Stat setData(String path, byte[] data, int version, long zxid, long time) throws KeeperException.NoNodeException {
@@ -661,7 +786,7 @@ public Stat setData(String path, byte[] data, int version, long zxid, long time)
         byte[] lastdata = null;
         synchronized (n) {
             lastdata = n.data;
-            nodes.preChange(path, n);
+            preChange(path, n);
             n.data = data;
             n.stat.setMtime(time);
             n.stat.setMzxid(zxid);
@@ -678,7 +803,7 @@ public Stat setData(String path, byte[] data, int version, long zxid, long time)
         nodeDataSize.addAndGet(getNodeSize(path, data) - getNodeSize(path, lastdata));
 
         updateWriteStat(path, dataBytes);
-        dataWatches.triggerWatch(path, EventType.NodeDataChanged);
+        triggerWatches(path, null, EventType.NodeDataChanged);
         return s;
     }
 
@@ -750,18 +875,14 @@ public List<String> getChildren(String path, Stat stat, Watcher watcher) throws
             if (stat != null) {
                 n.copyStat(stat);
             }
-            children = new ArrayList<String>(n.getChildren());
+            children = n.getChildrenSnapshot();
 
             if (watcher != null) {
                 childWatches.addWatch(path, watcher);
             }
         }
 
-        int bytes = 0;
-        for (String child : children) {
-            bytes += child.length();
-        }
-        updateReadStat(path, bytes);
+        updateReadStat(path, ChildrenSet.length(children));
 
         return children;
     }
@@ -782,8 +903,8 @@ public Stat setACL(String path, List<ACL> acl, int version) throws KeeperExcepti
             throw new KeeperException.NoNodeException();
         }
         synchronized (n) {
+            preChange(path, n);
             aclCache.removeUsage(n.acl);
-            nodes.preChange(path, n);
             n.stat.setAversion(version);
             n.acl = aclCache.convertAcls(acl);
             n.copyStat(stat);
@@ -874,6 +995,123 @@ public ProcessTxnResult processTxn(TxnHeader header, Record txn) {
     }
 
     public ProcessTxnResult processTxn(TxnHeader header, Record txn, boolean isSubTxn) {
+        if (isSubTxn || !consistentSnapshotEnabled) {
+            return applyTxn(header, txn, isSubTxn);
+        }
+        if (!snapshotViewStarting) {
+            unlockedTxns.incrementAndGet();
+            try {
+                // checked again once counted, beginSnapshotView sets the
+                // flag before waiting for the counted txns
+                if (!snapshotViewStarting) {
+                    return applyTxn(header, txn, false);
+                }
+            } finally {
+                unlockedTxns.decrementAndGet();
+            }
+        }
+        synchronized (snapshotViewLock) {
+            return applyTxn(header, txn, false);
+        }
+    }
+
+    /**
+     * Apply a txn replayed from the txn log or committed, possibly
+     * concurrently with other txns touching neither the same nodes nor the
+     * same session, see {@link #conflictKeys(TxnHeader, Record)}. Unlike
+     * processTxn this doesn't move the zxid and digest of the tree forward,
+     * which is done by {@link #replayedUpTo(long)} once all the txns up to
+     * a zxid are applied.
+     */
+    public ProcessTxnResult replayTxn(TxnHeader header, Record txn) {
+        return applyTxn(header, txn, true);
+    }
+
+    /**
+     * Like {@link #replayTxn(TxnHeader, Record)}, except the watches the txn
+     * triggers are not fired but added to watchTriggers, so that the caller
+     * can fire them in zxid order with the watches of the other txns.
+     */
+    public ProcessTxnResult replayTxn(TxnHeader header, Record txn, List<Runnable> watchTriggers) {
+        deferredWatchTriggers.set(watchTriggers);
+        try {
+            return applyTxn(header, txn, true);
+        } finally {
+            deferredWatchTriggers.remove();
+        }
+    }
+
+    /**
+     * Record that all the txns up to the given zxid have been applied with
+     * {@link #replayTxn(TxnHeader, Record)}.
+     */
+    public void replayedUpTo(long zxid) {
+        if (zxid > lastProcessedZxid) {
+            lastProcessedZxid = zxid;
+        }
+        if (digestFromLoadedSnapshot != null) {
+            compareSnapshotDigests(zxid);
+        } else {
+            logZxidDigest(zxid, getTreeDigest());
+        }
+    }
+
+    /**
+     * The nodes and session a txn depends on, or null if it has to be
+     * applied alone. Txns with disjoint keys can be applied concurrently
+     * with {@link #replayTxn(TxnHeader, Record)}.
+     */
+    public static Set<String> conflictKeys(TxnHeader hdr, Record txn) {
+        Set<String> keys = new HashSet<>();
+        switch (hdr.getType()) {
+        case OpCode.create:
+        case OpCode.create2:
+            return nodeAndParent(((CreateTxn) txn).getPath(), keys);
+        case OpCode.createContainer:
+            return nodeAndParent(((CreateContainerTxn) txn).getPath(), keys);
+        case OpCode.createTTL:
+            return nodeAndParent(((CreateTTLTxn) txn).getPath(), keys);
+        case OpCode.delete:
+        case OpCode.deleteContainer:
+            return nodeAndParent(((DeleteTxn) txn).getPath(), keys);
+        case OpCode.setData:
+            return node(((SetDataTxn) txn).getPath(), keys);
+        case OpCode.setACL:
+            return node(((SetACLTxn) txn).getPath(), keys);
+        case OpCode.check:
+            return node(((CheckVersionTxn) txn).getPath(), keys);
+        case OpCode.error:
+            return keys;
+        case OpCode.createSession:
+            // paths always start with a slash
+            keys.add(Long.toHexString(hdr.getClientId()));
+            return keys;
+        default:
+            // closing a session deletes its ephemerals, multi ops and reconfig
+            // may touch any node
+            return null;
+        }
+    }
+
+    private static Set<String> node(String path, Set<String> keys) {
+        if (path.startsWith(Quotas.procZookeeper)) {
+            // quota changes update the stats of whole subtrees
+            return null;
+        }
+        keys.add(path);
+        return keys;
+    }
+
+    private static Set<String> nodeAndParent(String path, Set<String> keys) {
+        int lastSlash = path.lastIndexOf('/');
+        if (lastSlash < 0 || node(path, keys) == null) {
+            return null;
+        }
+        keys.add(path.substring(0, lastSlash));
+        return keys;
+    }
+
+    private ProcessTxnResult applyTxn(TxnHeader header, Record txn, boolean isSubTxn) {
         ProcessTxnResult rc = new ProcessTxnResult();
 
         try {
@@ -1259,7 +1497,7 @@ private void updateQuotaForPath(String path) {
             return;
         }
         synchronized (node) {
-            nodes.preChange(statPath, node);
+            preChange(statPath, node);
             node.data = strack.toString().getBytes();
             nodes.postChange(statPath, node);
         }
@@ -1320,20 +1558,51 @@ private void setupQuota() {
      * @throws IOException
      */
     void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
+        serializeNode(oa, path, null);
+    }
+
+    /**
+     * Serialize the subtree, either as it is now or as it was when the
+     * given view was started.
+     *
+     * @param oa
+     *            OutputArchive to write to.
+     * @param path
+     *            a string builder.
+     * @param view
+     *            the snapshot view to serialize, or null to serialize the
+     *            live tree.
+     * @throws IOException
+     */
+    private void serializeNode(OutputArchive oa, StringBuilder path, SnapshotView view) throws IOException {
         String pathString = path.toString();
         DataNode node = getNode(pathString);
-        if (node == null) {
+        String[] children = null;
+        DataNode nodeCopy = null;
+        if (node != null) {
+            synchronized (node) {
+                // the original is preserved under the node lock before the
+                // first change, so if there is none the node is unchanged
+                nodeCopy = view == null ? null : view.getOriginal(pathString);
+                if (nodeCopy == null) {
+                    StatPersisted statCopy = new StatPersisted();
+                    copyStatPersisted(node.stat, statCopy);
+                    //we do not need to make a copy of node.data because the contents
+                    //are never changed
+                    nodeCopy = new DataNode(node.data, node.acl, statCopy);
+                    Set<String> childs = node.getChildren();
+                    children = childs.toArray(new String[childs.size()]);
+                }
+            }
+        } else if (view != null) {
+            // deleted after the view was started
+            nodeCopy = view.getOriginal(pathString);
+        }
+        if (nodeCopy == null || nodeCopy == CREATED_AFTER_SNAPSHOT) {
             return;
         }
-        String[] children = null;
-        DataNode nodeCopy;
-        synchronized (node) {
-            StatPersisted statCopy = new StatPersisted();
-            copyStatPersisted(node.stat, statCopy);
-            //we do not need to make a copy of node.data because the contents
-            //are never changed
-            nodeCopy = new DataNode(node.data, node.acl, statCopy);
-            Set<String> childs = node.getChildren();
+        if (children == null) {
+            List<String> childs = view.getOriginalChildren(pathString);
             children = childs.toArray(new String[childs.size()]);
         }
         serializeNodeData(oa, pathString, nodeCopy);
@@ -1345,8 +1614,224 @@ void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
             // to truncate the previous bytes of string.
             path.delete(off, Integer.MAX_VALUE);
             path.append(child);
-            serializeNode(oa, path);
+            serializeNode(oa, path, view);
+        }
+    }
+
+    /**
+     * Called before changing a node, preserves its current state for the
+     * snapshot view in progress if any and removes it from the digest. The
+     * caller must hold the node lock.
+     */
+    private void preChange(String path, DataNode node) {
+        SnapshotView view = snapshotView;
+        if (view != null) {
+            view.preserve(path, node);
+        }
+        markDirty(path);
+        nodes.preChange(path, node);
+    }
+
+    /**
+     * Record that the node is changed, for the next delta snapshot.
+     */
+    private void markDirty(String path) {
+        if (!deltaSnapshotEnabled) {
+            return;
+        }
+        dirtyPathsLock.readLock().lock();
+        try {
+            dirtyPaths.add(rootZookeeper.equals(path) ? "" : path);
+        } finally {
+            dirtyPathsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Start recording the changes for the next snapshot.
+     *
+     * @return the paths of the nodes changed since the last snapshot, or
+     *         null if delta snapshots are disabled
+     */
+    public Set<String> swapDirtyPaths() {
+        if (!deltaSnapshotEnabled) {
+            return null;
+        }
+        dirtyPathsLock.writeLock().lock();
+        try {
+            Set<String> paths = dirtyPaths;
+            dirtyPaths = ConcurrentHashMap.newKeySet();
+            return paths;
+        } finally {
+            dirtyPathsLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Give back the changed paths of a snapshot that failed, so that the
+     * next one includes them.
+     */
+    public void restoreDirtyPaths(Set<String> paths) {
+        dirtyPathsLock.readLock().lock();
+        try {
+            dirtyPaths.addAll(paths);
+        } finally {
+            dirtyPathsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Record that a snapshot of this tree was taken or loaded.
+     *
+     * @param zxid the zxid of the snapshot
+     * @param delta whether it is a delta snapshot
+     */
+    public void snapshotTaken(long zxid, boolean delta) {
+        lastSnapshotZxid = zxid;
+        deltasSinceFullSnapshot = delta ? deltasSinceFullSnapshot + 1 : 0;
+    }
+
+    /**
+     * @return the zxid of the last snapshot taken of, or loaded into, this
+     *         tree, or -1 if there is none
+     */
+    public long getLastSnapshotZxid() {
+        return lastSnapshotZxid;
+    }
+
+    /**
+     * @return the number of delta snapshots since the last full snapshot
+     */
+    public int getDeltasSinceFullSnapshot() {
+        return deltasSinceFullSnapshot;
+    }
+
+    /**
+     * Start a consistent view of the tree as of the last processed txn.
+     * While the view is open, the nodes are copied before they are first
+     * changed, so that the view can be serialized without blocking the
+     * txns and without replaying them afterwards to fix it up.
+     *
+     * @return the view, or null if consistent snapshots are disabled or
+     *         another view is already open, in which case the snapshot
+     *         should be taken from the live tree.
+     */
+    public SnapshotView beginSnapshotView() {
+        if (!consistentSnapshotEnabled) {
+            return null;
+        }
+        synchronized (snapshotViewLock) {
+            if (snapshotView != null) {
+                return null;
+            }
+            snapshotViewStarting = true;
+            try {
+                // the txns which didn't see the flag are applied before the view starts
+                while (unlockedTxns.get() > 0) {
+                    Thread.yield();
+                }
+                snapshotView = new SnapshotView(lastProcessedZxid, lastProcessedZxidDigest);
+                return snapshotView;
+            } finally {
+                snapshotViewStarting = false;
+            }
+        }
+    }
+
+    private void endSnapshotView(SnapshotView view) {
+        synchronized (snapshotViewLock) {
+            if (snapshotView == view) {
+                snapshotView = null;
+            }
         }
+        view.release();
+    }
+
+    /**
+     * A point in time view of the tree, see {@link #beginSnapshotView()}.
+     */
+    public final class SnapshotView implements AutoCloseable {
+
+        private final long zxid;
+        private final ZxidDigest digest;
+        // the state of the nodes changed since the view was started, keyed
+        // by path, the root is keyed by ""
+        private final Map<String, DataNode> originals = new ConcurrentHashMap<>();
+        // the children of the changed nodes, shared with the live node
+        // until its children change, see DataNode#getChildrenSnapshot
+        private final Map<String, List<String>> originalChildren = new ConcurrentHashMap<>();
+        private boolean released;
+
+        private SnapshotView(long zxid, ZxidDigest digest) {
+            this.zxid = zxid;
+            this.digest = digest;
+        }
+
+        /**
+         * @return the zxid of the last txn included in the view
+         */
+        public long getZxid() {
+            return zxid;
+        }
+
+        /**
+         * @return the number of nodes copied since the view was started
+         */
+        public int getPreservedCount() {
+            return originals.size();
+        }
+
+        private DataNode getOriginal(String path) {
+            return originals.get(path);
+        }
+
+        private List<String> getOriginalChildren(String path) {
+            List<String> children = originalChildren.get(path);
+            return children == null ? Collections.emptyList() : children;
+        }
+
+        private synchronized void preserve(String path, DataNode node) {
+            if (released) {
+                return;
+            }
+            String key = rootZookeeper.equals(path) ? "" : path;
+            if (originals.containsKey(key)) {
+                return;
+            }
+            StatPersisted statCopy = new StatPersisted();
+            copyStatPersisted(node.stat, statCopy);
+            DataNode original = new DataNode(node.data, node.acl, statCopy);
+            originalChildren.put(key, node.getChildrenSnapshot());
+            originals.put(key, original);
+            // keep the acl in the cache until the view is serialized
+            aclCache.addUsage(original.acl);
+        }
+
+        private synchronized void markCreated(String path) {
+            if (!released) {
+                originals.putIfAbsent(path, CREATED_AFTER_SNAPSHOT);
+            }
+        }
+
+        private synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            for (DataNode original : originals.values()) {
+                if (original != CREATED_AFTER_SNAPSHOT) {
+                    aclCache.removeUsage(original.acl);
+                }
+            }
+            originals.clear();
+            originalChildren.clear();
+        }
+
+        @Override
+        public void close() {
+            endSnapshotView(this);
+        }
+
     }
 
     // visiable for test
@@ -1360,7 +1845,11 @@ public void serializeAcls(OutputArchive oa) throws IOException {
     }
 
     public void serializeNodes(OutputArchive oa) throws IOException {
-        serializeNode(oa, new StringBuilder());
+        serializeNodes(oa, null);
+    }
+
+    private void serializeNodes(OutputArchive oa, SnapshotView view) throws IOException {
+        serializeNode(oa, new StringBuilder(), view);
         // / marks end of stream
         // we need to check if clear had been called in between the snapshot.
         if (root != null) {
@@ -1369,8 +1858,194 @@ public void serializeNodes(OutputArchive oa) throws IOException {
     }
 
     public void serialize(OutputArchive oa, String tag) throws IOException {
+        serialize(oa, tag, null);
+    }
+
+    /**
+     * Serialize the tree as of the given snapshot view.
+     *
+     * @param oa the output archive to serialize into
+     * @param tag the tag of the record
+     * @param view the view to serialize, or null to serialize the live tree
+     * @throws IOException
+     */
+    public void serialize(OutputArchive oa, String tag, SnapshotView view) throws IOException {
         serializeAcls(oa);
-        serializeNodes(oa);
+        serializeNodes(oa, view);
+    }
+
+    /**
+     * Serialize the nodes at the given paths, the nodes that no longer exist
+     * are serialized as deleted. Like full snapshots the delta is fuzzy, the
+     * nodes may include changes made after the paths were collected.
+     *
+     * @param oa the output archive to serialize into
+     * @param paths the paths of the changed nodes, see {@link #swapDirtyPaths()}
+     * @throws IOException
+     */
+    public void serializeDelta(OutputArchive oa, Set<String> paths) throws IOException {
+        serializeAcls(oa);
+        // sorted, so that a parent is written before its children
+        for (String path : new TreeSet<>(paths)) {
+            DataNode node = getNode(path);
+            DataNode nodeCopy = null;
+            if (node != null) {
+                synchronized (node) {
+                    StatPersisted statCopy = new StatPersisted();
+                    copyStatPersisted(node.stat, statCopy);
+                    nodeCopy = new DataNode(node.data, node.acl, statCopy);
+                }
+            }
+            oa.writeString(path, "path");
+            oa.writeBool(nodeCopy != null, "exists");
+            if (nodeCopy != null) {
+                oa.writeRecord(nodeCopy, "node");
+            }
+        }
+        oa.writeString("/", "path");
+    }
+
+    /**
+     * Read a delta written by {@link #serializeDelta(OutputArchive, Set)},
+     * it is applied to the tree with {@link #applyDelta(Delta)}.
+     *
+     * @param ia the input archive to read from
+     * @return the delta
+     * @throws IOException
+     */
+    public static Delta deserializeDelta(InputArchive ia) throws IOException {
+        Delta delta = new Delta();
+        delta.acls.deserialize(ia);
+        String path = ia.readString("path");
+        while (!"/".equals(path)) {
+            DataNode node = null;
+            if (ia.readBool("exists")) {
+                node = new DataNode();
+                ia.readRecord(node, "node");
+            }
+            delta.nodes.add(new SimpleImmutableEntry<>(path, node));
+            path = ia.readString("path");
+        }
+        return delta;
+    }
+
+    /**
+     * Layer a delta on the tree.
+     *
+     * @param delta the delta to apply
+     */
+    public void applyDelta(Delta delta) {
+        aclCache.merge(delta.acls);
+        List<String> deleted = new ArrayList<>();
+        for (Entry<String, DataNode> entry : delta.nodes) {
+            if (entry.getValue() == null) {
+                deleted.add(entry.getKey());
+            } else {
+                applyDeltaNode(entry.getKey(), entry.getValue());
+            }
+        }
+        // the paths are sorted, so the children are removed first
+        for (int i = deleted.size() - 1; i >= 0; i--) {
+            removeDeltaNode(deleted.get(i));
+        }
+
+        nodeDataSize.set(approximateDataSize());
+        pTrie.clear();
+        setupQuota();
+
+        aclCache.purgeUnused();
+    }
+
+    private void applyDeltaNode(String path, DataNode node) {
+        DataNode existing = nodes.get(path);
+        if (existing != null) {
+            synchronized (existing) {
+                nodes.preChange(path, existing);
+                untrackNode(path, existing);
+                aclCache.removeUsage(existing.acl);
+                existing.data = node.data;
+                existing.acl = node.acl;
+                copyStatPersisted(node.stat, existing.stat);
+                aclCache.addUsage(existing.acl);
+                nodes.postChange(path, existing);
+            }
+            trackDeserializedNode(path, existing);
+            return;
+        }
+        int lastSlash = path.lastIndexOf('/');
+        DataNode parent = nodes.get(path.substring(0, lastSlash));
+        if (parent == null) {
+            // the parent was deleted while the delta was written, the txns
+            // after the delta fix it up
+            LOG.debug("Skipping {} from the delta snapshot, its parent is gone", path);
+            return;
+        }
+        nodes.put(path, node);
+        aclCache.addUsage(node.acl);
+        synchronized (parent) {
+            parent.addChild(path.substring(lastSlash + 1));
+        }
+        trackDeserializedNode(path, node);
+    }
+
+    private void removeDeltaNode(String path) {
+        DataNode node = nodes.get(path);
+        if (node == null || path.isEmpty()) {
+            return;
+        }
+        String[] children;
+        synchronized (node) {
+            Set<String> childs = node.getChildren();
+            children = childs.toArray(new String[childs.size()]);
+        }
+        for (String child : children) {
+            removeDeltaNode(path + "/" + child);
+        }
+        nodes.remove(path);
+        aclCache.removeUsage(node.acl);
+        untrackNode(path, node);
+        int lastSlash = path.lastIndexOf('/');
+        DataNode parent = nodes.get(path.substring(0, lastSlash));
+        if (parent != null) {
+            synchronized (parent) {
+                parent.removeChild(path.substring(lastSlash + 1));
+            }
+        }
+    }
+
+    private void untrackNode(String path, DataNode node) {
+        long eowner = node.stat.getEphemeralOwner();
+        EphemeralType ephemeralType = EphemeralType.get(eowner);
+        if (ephemeralType == EphemeralType.CONTAINER) {
+            containers.remove(path);
+        } else if (ephemeralType == EphemeralType.TTL) {
+            ttls.remove(path);
+        } else if (eowner != 0) {
+            Set<String> list = ephemerals.get(eowner);
+            if (list != null) {
+                synchronized (list) {
+                    list.remove(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * The changed nodes read from a delta snapshot.
+     */
+    public static final class Delta {
+
+        private final ReferenceCountedACLCache acls = new ReferenceCountedACLCache();
+        // the nodes in path order, a null node marks a deleted path
+        private final List<Entry<String, DataNode>> nodes = new ArrayList<>();
+
+        /**
+         * @return the number of changed nodes
+         */
+        public int size() {
+            return nodes.size();
+        }
+
     }
 
     public void deserialize(InputArchive ia, String tag) throws IOException {
@@ -1378,6 +2053,31 @@ public void deserialize(InputArchive ia, String tag) throws IOException {
         nodes.clear();
         pTrie.clear();
         nodeDataSize.set(0);
+        // a new tree, the next snapshot can't be a delta
+        swapDirtyPaths();
+        snapshotTaken(-1, false);
+        int loaderThreads = Integer.getInteger(SNAPSHOT_DESERIALIZATION_THREADS, 1);
+        if (loaderThreads > 1) {
+            deserializeNodesInParallel(ia, loaderThreads);
+        } else {
+            deserializeNodes(ia);
+        }
+        // have counted digest for root node with "", ignore here to avoid
+        // counting twice for root node
+        nodes.putWithoutDigest("/", root);
+
+        nodeDataSize.set(approximateDataSize());
+
+        // we are done with deserializing the
+        // the datatree
+        // update the quotas - create path trie
+        // and also update the stat nodes
+        setupQuota();
+
+        aclCache.purgeUnused();
+    }
+
+    private void deserializeNodes(InputArchive ia) throws IOException {
         String path = ia.readString("path");
         while (!"/".equals(path)) {
             DataNode node = new DataNode();
@@ -1393,43 +2093,149 @@ public void deserialize(InputArchive ia, String tag) throws IOException {
                 String parentPath = path.substring(0, lastSlash);
                 DataNode parent = nodes.get(parentPath);
                 if (parent == null) {
-                    throw new IOException("Invalid Datatree, unable to find "
-                                          + "parent "
-                                          + parentPath
-                                          + " of path "
-                                          + path);
+                    throw invalidParent(parentPath, path);
                 }
                 parent.addChild(path.substring(lastSlash + 1));
-                long eowner = node.stat.getEphemeralOwner();
-                EphemeralType ephemeralType = EphemeralType.get(eowner);
-                if (ephemeralType == EphemeralType.CONTAINER) {
-                    containers.add(path);
-                } else if (ephemeralType == EphemeralType.TTL) {
-                    ttls.add(path);
-                } else if (eowner != 0) {
-                    HashSet<String> list = ephemerals.get(eowner);
-                    if (list == null) {
-                        list = new HashSet<String>();
-                        ephemerals.put(eowner, list);
+                trackDeserializedNode(path, node);
+            }
+            path = ia.readString("path");
+        }
+    }
+
+    /**
+     * Rebuild the tree using a pool of loader threads. Records are still
+     * decoded sequentially on the calling thread since the archive is a
+     * single stream, while inserting into the node map (which computes the
+     * digest), linking to the parent and the ephemeral/acl bookkeeping are
+     * done by the loaders in batches.
+     *
+     * Snapshot records are written in pre-order, so the parent of a node is
+     * always decoded before its children, but it may still be in flight on
+     * another loader; such nodes are linked after all the batches are done.
+     *
+     * @param ia the input archive to restore from
+     * @param loaderThreads the number of loader threads
+     * @throws IOException
+     */
+    private void deserializeNodesInParallel(InputArchive ia, int loaderThreads) throws IOException {
+        AtomicInteger loaderCount = new AtomicInteger();
+        ThreadPoolExecutor loaders = new ThreadPoolExecutor(
+            loaderThreads,
+            loaderThreads,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(loaderThreads * 2),
+            r -> {
+                Thread t = new Thread(r, "SnapshotLoader-" + loaderCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            },
+            // bound the decoded records kept in memory by making the
+            // reader help out when the loaders fall behind
+            new ThreadPoolExecutor.CallerRunsPolicy());
+        List<Future<List<Entry<String, DataNode>>>> batches = new ArrayList<>();
+        try {
+            List<Entry<String, DataNode>> batch = new ArrayList<>(SNAPSHOT_DESERIALIZATION_BATCH_SIZE);
+            String path = ia.readString("path");
+            while (!"/".equals(path)) {
+                DataNode node = new DataNode();
+                ia.readRecord(node, "node");
+                if (path.lastIndexOf('/') == -1) {
+                    root = node;
+                    nodes.put(path, node);
+                    aclCache.addUsage(node.acl);
+                } else {
+                    batch.add(new SimpleImmutableEntry<>(path, node));
+                    if (batch.size() == SNAPSHOT_DESERIALIZATION_BATCH_SIZE) {
+                        List<Entry<String, DataNode>> toLoad = batch;
+                        batches.add(loaders.submit(() -> loadDeserializedNodes(toLoad)));
+                        batch = new ArrayList<>(SNAPSHOT_DESERIALIZATION_BATCH_SIZE);
                     }
-                    list.add(path);
                 }
+                path = ia.readString("path");
             }
-            path = ia.readString("path");
+            if (!batch.isEmpty()) {
+                List<Entry<String, DataNode>> toLoad = batch;
+                batches.add(loaders.submit(() -> loadDeserializedNodes(toLoad)));
+            }
+
+            List<Entry<String, DataNode>> orphans = new ArrayList<>();
+            for (Future<List<Entry<String, DataNode>>> f : batches) {
+                orphans.addAll(f.get());
+            }
+            for (Entry<String, DataNode> entry : orphans) {
+                String childPath = entry.getKey();
+                int lastSlash = childPath.lastIndexOf('/');
+                String parentPath = childPath.substring(0, lastSlash);
+                DataNode parent = nodes.get(parentPath);
+                if (parent == null) {
+                    throw invalidParent(parentPath, childPath);
+                }
+                parent.addChild(childPath.substring(lastSlash + 1));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading the snapshot");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to load the snapshot", cause);
+        } finally {
+            loaders.shutdownNow();
         }
-        // have counted digest for root node with "", ignore here to avoid
-        // counting twice for root node
-        nodes.putWithoutDigest("/", root);
+    }
 
-        nodeDataSize.set(approximateDataSize());
+    /**
+     * Load a batch of decoded nodes into the tree.
+     *
+     * @return the nodes whose parent was not in the tree yet
+     */
+    private List<Entry<String, DataNode>> loadDeserializedNodes(List<Entry<String, DataNode>> batch) {
+        List<Entry<String, DataNode>> orphans = new ArrayList<>();
+        Map<Long, Integer> aclUsage = new HashMap<>();
+        for (Entry<String, DataNode> entry : batch) {
+            String path = entry.getKey();
+            DataNode node = entry.getValue();
+            nodes.put(path, node);
+            aclUsage.merge(node.acl, 1, Integer::sum);
+            int lastSlash = path.lastIndexOf('/');
+            DataNode parent = nodes.get(path.substring(0, lastSlash));
+            if (parent == null) {
+                orphans.add(entry);
+            } else {
+                parent.addChild(path.substring(lastSlash + 1));
+            }
+            trackDeserializedNode(path, node);
+        }
+        for (Entry<Long, Integer> usage : aclUsage.entrySet()) {
+            aclCache.addUsage(usage.getKey(), usage.getValue());
+        }
+        return orphans;
+    }
 
-        // we are done with deserializing the
-        // the datatree
-        // update the quotas - create path trie
-        // and also update the stat nodes
-        setupQuota();
+    private void trackDeserializedNode(String path, DataNode node) {
+        long eowner = node.stat.getEphemeralOwner();
+        EphemeralType ephemeralType = EphemeralType.get(eowner);
+        if (ephemeralType == EphemeralType.CONTAINER) {
+            containers.add(path);
+        } else if (ephemeralType == EphemeralType.TTL) {
+            ttls.add(path);
+        } else if (eowner != 0) {
+            HashSet<String> list = ephemerals.computeIfAbsent(eowner, k -> new HashSet<String>());
+            synchronized (list) {
+                list.add(path);
+            }
+        }
+    }
 
-        aclCache.purgeUnused();
+    private static IOException invalidParent(String parentPath, String path) {
+        return new IOException("Invalid Datatree, unable to find "
+                               + "parent "
+                               + parentPath
+                               + " of path "
+                               + path);
     }
 
     /**
@@ -1594,7 +2400,7 @@ public void setCversionPzxid(String path, int newCversion, long zxid) throws Kee
                 newCversion = node.stat.getCversion() + 1;
             }
             if (newCversion > node.stat.getCversion()) {
-                nodes.preChange(path, node);
+                preChange(path, node);
                 node.stat.setCversion(newCversion);
                 node.stat.setPzxid(zxid);
                 nodes.postChange(path, node);
@@ -1696,11 +2502,22 @@ private void logZxidDigest(long zxid, long digest) {
      * @return true if the digest is serialized successfully
      */
     public boolean serializeZxidDigest(OutputArchive oa) throws IOException {
+        return serializeZxidDigest(oa, null);
+    }
+
+    /**
+     * Serializing the digest of the tree as of the given snapshot view.
+     *
+     * @param oa the output stream to write to
+     * @param view the view that was serialized, or null for the live tree
+     * @return true if the digest is serialized successfully
+     */
+    public boolean serializeZxidDigest(OutputArchive oa, SnapshotView view) throws IOException {
         if (!ZooKeeperServer.isDigestEnabled()) {
             return false;
         }
 
-        ZxidDigest zxidDigest = lastProcessedZxidDigest;
+        ZxidDigest zxidDigest = view == null ? lastProcessedZxidDigest : view.digest;
         if (zxidDigest == null) {
             // write an empty digest
             zxidDigest = new ZxidDigest();
@@ -42,6 +42,7 @@
 import org.apache.zookeeper.OpResult.GetChildrenResult;
 import org.apache.zookeeper.OpResult.GetDataResult;
 import org.apache.zookeeper.OpResult.SetDataResult;
+import org.apache.zookeeper.Quotas;
 import org.apache.zookeeper.Watcher.WatcherType;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooDefs.OpCode;
@@ -97,6 +98,15 @@ public class FinalRequestProcessor implements RequestProcessor {
 
     private static final Logger LOG = LoggerFactory.getLogger(FinalRequestProcessor.class);
 
+    /*
+     * Prefixes of the keys in the response cache shared by exists, getACL and
+     * multi read, paths always start with '/'.
+     */
+    private static final String EXISTS_CACHE_KEY = "exists";
+    private static final String GET_ACL_CACHE_KEY = "getACL";
+    private static final String GET_REDACTED_ACL_CACHE_KEY = "getRedactedACL";
+    private static final String MULTI_READ_CACHE_KEY = "multiRead";
+
     private final RequestPathMetricsCollector requestPathMetricsCollector;
 
     ZooKeeperServer zks;
@@ -171,6 +181,8 @@ public void processRequest(Request request) {
         Code err = Code.OK;
         Record rsp = null;
         String path = null;
+        String cacheKey = null;
+        Stat cacheStat = null;
         int responseSize = 0;
         try {
             if (request.getHdr() != null && request.getHdr().getType() == OpCode.error) {
@@ -272,27 +284,42 @@ public void processRequest(Request request) {
                 ByteBufferInputStream.byteBuffer2Record(request.request, multiReadRecord);
                 rsp = new MultiResponse();
                 OpResult subResult;
+                // the response is cached under the versions of all the nodes read,
+                // unless one of the reads failed since errors can depend on the caller
+                StringBuilder multiReadKey = new StringBuilder(MULTI_READ_CACHE_KEY);
                 for (Op readOp : multiReadRecord) {
                     try {
                         Record rec;
+                        Stat stat;
                         switch (readOp.getType()) {
                         case OpCode.getChildren:
-                            rec = handleGetChildrenRequest(readOp.toRequestRecord(), cnxn, request.authInfo);
+                            stat = new Stat();
+                            rec = handleGetChildrenRequest(readOp.toRequestRecord(), cnxn, request.authInfo, stat);
                             subResult = new GetChildrenResult(((GetChildrenResponse) rec).getChildren());
                             break;
                         case OpCode.getData:
                             rec = handleGetDataRequest(readOp.toRequestRecord(), cnxn, request.authInfo);
                             GetDataResponse gdr = (GetDataResponse) rec;
+                            stat = gdr.getStat();
                             subResult = new GetDataResult(gdr.getData(), gdr.getStat());
                             break;
                         default:
                             throw new IOException("Invalid type of readOp");
                         }
+                        if (multiReadKey != null && !readOp.getPath().endsWith(Quotas.statNode)) {
+                            appendMultiReadKey(multiReadKey, readOp.getType(), readOp.getPath(), stat);
+                        } else {
+                            multiReadKey = null;
+                        }
                     } catch (KeeperException e) {
                         subResult = new ErrorResult(e.code().intValue());
+                        multiReadKey = null;
                     }
                     ((MultiResponse) rsp).add(subResult);
                 }
+                if (multiReadKey != null) {
+                    cacheKey = multiReadKey.toString();
+                }
                 break;
             }
             case OpCode.create: {
@@ -370,6 +397,8 @@ public void processRequest(Request request) {
                 }
                 Stat stat = zks.getZKDatabase().statNode(path, existsRequest.getWatch() ? cnxn : null);
                 rsp = new ExistsResponse(stat);
+                cacheKey = EXISTS_CACHE_KEY + path;
+                cacheStat = stat;
                 requestPathMetricsCollector.registerRequest(request.type, path);
                 break;
             }
@@ -453,6 +482,7 @@ public void processRequest(Request request) {
                         path,
                         null);
                     rsp = new GetACLResponse(acl, stat);
+                    cacheKey = GET_ACL_CACHE_KEY + path;
                 } catch (KeeperException.NoAuthException e) {
                     List<ACL> acl1 = new ArrayList<ACL>(acl.size());
                     for (ACL a : acl) {
@@ -465,7 +495,9 @@ public void processRequest(Request request) {
                         }
                     }
                     rsp = new GetACLResponse(acl1, stat);
+                    cacheKey = GET_REDACTED_ACL_CACHE_KEY + path;
                 }
+                cacheStat = stat;
                 break;
             }
             case OpCode.getChildren: {
@@ -473,7 +505,7 @@ public void processRequest(Request request) {
                 GetChildrenRequest getChildrenRequest = new GetChildrenRequest();
                 ByteBufferInputStream.byteBuffer2Record(request.request, getChildrenRequest);
                 path = getChildrenRequest.getPath();
-                rsp = handleGetChildrenRequest(getChildrenRequest, cnxn, request.authInfo);
+                rsp = handleGetChildrenRequest(getChildrenRequest, cnxn, request.authInfo, null);
                 requestPathMetricsCollector.registerRequest(request.type, path);
                 break;
             }
@@ -599,7 +631,7 @@ public void processRequest(Request request) {
         updateStats(request, lastOp, lastZxid);
 
         try {
-            if (path == null || rsp == null) {
+            if (rsp == null || (path == null && cacheKey == null)) {
                 responseSize = cnxn.sendResponse(hdr, rsp, "response");
             } else {
                 int opCode = request.type;
@@ -620,6 +652,14 @@ public void processRequest(Request request) {
                         responseSize = cnxn.sendResponse(hdr, rsp, "response", path, stat, opCode);
                         break;
                     }
+                    case OpCode.exists :
+                    case OpCode.getACL :
+                    case OpCode.multiRead : {
+                        // These share a cache, so the op is part of the key. A multi read
+                        // key also holds the versions of the nodes, and has no stat.
+                        responseSize = cnxn.sendResponse(hdr, rsp, "response", cacheKey, cacheStat, opCode);
+                        break;
+                    }
                     default:
                         responseSize = cnxn.sendResponse(hdr, rsp, "response");
                 }
@@ -635,7 +675,7 @@ public void processRequest(Request request) {
         }
     }
 
-    private Record handleGetChildrenRequest(Record request, ServerCnxn cnxn, List<Id> authInfo) throws KeeperException, IOException {
+    private Record handleGetChildrenRequest(Record request, ServerCnxn cnxn, List<Id> authInfo, Stat stat) throws KeeperException, IOException {
         GetChildrenRequest getChildrenRequest = (GetChildrenRequest) request;
         String path = getChildrenRequest.getPath();
         DataNode n = zks.getZKDatabase().getNode(path);
@@ -644,10 +684,23 @@ private Record handleGetChildrenRequest(Record request, ServerCnxn cnxn, List<Id
         }
         zks.checkACL(cnxn, zks.getZKDatabase().aclForNode(n), ZooDefs.Perms.READ, authInfo, path, null);
         List<String> children = zks.getZKDatabase()
-                                   .getChildren(path, null, getChildrenRequest.getWatch() ? cnxn : null);
+                                   .getChildren(path, stat, getChildrenRequest.getWatch() ? cnxn : null);
         return new GetChildrenResponse(children);
     }
 
+    /**
+     * Append a read of a multi read to its cache key. Paths can't contain
+     * '\0', and the czxid, mzxid, pzxid and aversion of a node determine
+     * the rest of its stat, its data and its children.
+     */
+    private static void appendMultiReadKey(StringBuilder key, int type, String path, Stat stat) {
+        key.append('\0').append(type).append('\0').append(path).append('\0')
+           .append(stat.getCzxid()).append(',')
+           .append(stat.getMzxid()).append(',')
+           .append(stat.getPzxid()).append(',')
+           .append(stat.getAversion());
+    }
+
     private Record handleGetDataRequest(Record request, ServerCnxn cnxn, List<Id> authInfo) throws KeeperException, IOException {
         GetDataRequest getDataRequest = (GetDataRequest) request;
         String path = getDataRequest.getPath();
@@ -237,6 +237,7 @@ void handleWrite(SelectionKey k) throws IOException {
             sock.write(outgoingBuffers.toArray(bufferList));
 
             // Remove the buffers that we have sent
+            int packets = 0;
             ByteBuffer bb;
             while ((bb = outgoingBuffers.peek()) != null) {
                 if (bb == ServerCnxnFactory.closeConn) {
@@ -244,12 +245,16 @@ void handleWrite(SelectionKey k) throws IOException {
                 }
                 if (bb == packetSentinel) {
                     packetSent();
+                    packets++;
                 }
                 if (bb.remaining() > 0) {
                     break;
                 }
                 outgoingBuffers.remove();
             }
+            if (packets > 0) {
+                ServerMetrics.getMetrics().PACKETS_PER_WRITE.add(packets);
+            }
         } else {
             directBuffer.clear();
 
@@ -284,6 +289,7 @@ void handleWrite(SelectionKey k) throws IOException {
 
             int sent = sock.write(directBuffer);
 
+            int packets = 0;
             ByteBuffer bb;
 
             // Remove the buffers that we have sent
@@ -293,6 +299,7 @@ void handleWrite(SelectionKey k) throws IOException {
                 }
                 if (bb == packetSentinel) {
                     packetSent();
+                    packets++;
                 }
                 if (sent < bb.remaining()) {
                     /*
@@ -306,6 +313,9 @@ void handleWrite(SelectionKey k) throws IOException {
                 sent -= bb.remaining();
                 outgoingBuffers.remove();
             }
+            if (packets > 0) {
+                ServerMetrics.getMetrics().PACKETS_PER_WRITE.add(packets);
+            }
         }
     }
 
@@ -23,6 +23,8 @@
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -33,6 +35,7 @@
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
@@ -74,6 +77,12 @@ public class NIOServerCnxnFactory extends ServerCnxnFactory {
      * Expressed as sqrt(numCores/2). Must have at least 1 selector thread.
      */
     public static final String ZOOKEEPER_NIO_NUM_SELECTOR_THREADS = "zookeeper.nio.numSelectorThreads";
+    /**
+     * With more than 1 accept thread, each one accepts connections from its
+     * own listen socket bound with SO_REUSEPORT, so that the kernel spreads
+     * the incoming connections across them. Default: 1
+     */
+    public static final String ZOOKEEPER_NIO_NUM_ACCEPT_THREADS = "zookeeper.nio.numAcceptThreads";
     /** Default: 2 * numCores */
     public static final String ZOOKEEPER_NIO_NUM_WORKER_THREADS = "zookeeper.nio.numWorkerThreads";
     /** Default: 64kB */
@@ -155,7 +164,8 @@ protected void fastCloseSock(SocketChannel sc) {
     }
 
     /**
-     * There is a single AcceptThread which accepts new connections and assigns
+     * There is a single AcceptThread, or one per listen socket with
+     * SO_REUSEPORT, which accepts new connections and assigns
      * them to a SelectorThread using a simple round-robin scheme to spread
      * them across the SelectorThreads. It enforces maximum number of
      * connections per IP and attempts to cope with running out of file
@@ -170,8 +180,8 @@ private class AcceptThread extends AbstractSelectThread {
         private Iterator<SelectorThread> selectorIterator;
         private volatile boolean reconfiguring = false;
 
-        public AcceptThread(ServerSocketChannel ss, InetSocketAddress addr, Set<SelectorThread> selectorThreads) throws IOException {
-            super("NIOServerCxnFactory.AcceptThread:" + addr);
+        public AcceptThread(ServerSocketChannel ss, InetSocketAddress addr, Set<SelectorThread> selectorThreads, int id) throws IOException {
+            super("NIOServerCxnFactory.AcceptThread:" + addr + (id == 0 ? "" : "-" + id));
             this.acceptSocket = ss;
             this.acceptKey = acceptSocket.register(selector, SelectionKey.OP_ACCEPT);
             this.selectorThreads = Collections.unmodifiableList(new ArrayList<SelectorThread>(selectorThreads));
@@ -286,6 +296,7 @@ private boolean doAccept() {
                     throw new IOException("Unable to add connection to selector queue"
                                           + (stopped ? " (shutdown in progress)" : ""));
                 }
+                ServerMetrics.getMetrics().CONNECTION_ACCEPTED.add(1);
                 acceptErrorLogger.flush();
             } catch (IOException e) {
                 // accept, maxClientCnxns, configureBlocking
@@ -571,7 +582,9 @@ public void run() {
 
     }
 
+    // the first of the listen sockets
     ServerSocketChannel ss;
+    private final List<ServerSocketChannel> acceptSockets = new ArrayList<ServerSocketChannel>();
 
     /**
      * We use this buffer to do efficient socket I/O. Because I/O is handled
@@ -603,6 +616,7 @@ public static ByteBuffer getDirectBuffer() {
 
     private static int directBufferBytes;
     private int numSelectorThreads;
+    private int numAcceptThreads;
     private int numWorkerThreads;
     private long workerShutdownTimeoutMS;
 
@@ -616,7 +630,7 @@ public NIOServerCnxnFactory() {
 
     private volatile boolean stopped = true;
     private ConnectionExpirerThread expirerThread;
-    private AcceptThread acceptThread;
+    private final List<AcceptThread> acceptThreads = new ArrayList<AcceptThread>();
     private final Set<SelectorThread> selectorThreads = new HashSet<SelectorThread>();
 
     @Override
@@ -645,6 +659,11 @@ public void configure(InetSocketAddress addr, int maxcc, int backlog, boolean se
             throw new IOException("numSelectorThreads must be at least 1");
         }
 
+        numAcceptThreads = Integer.getInteger(ZOOKEEPER_NIO_NUM_ACCEPT_THREADS, 1);
+        if (numAcceptThreads < 1) {
+            throw new IOException("numAcceptThreads must be at least 1");
+        }
+
         numWorkerThreads = Integer.getInteger(ZOOKEEPER_NIO_NUM_WORKER_THREADS, 2 * numCores);
         workerShutdownTimeoutMS = Long.getLong(ZOOKEEPER_NIO_SHUTDOWN_TIMEOUT, 5000);
 
@@ -659,16 +678,78 @@ public void configure(InetSocketAddress addr, int maxcc, int backlog, boolean se
         }
 
         listenBacklog = backlog;
-        this.ss = ServerSocketChannel.open();
-        ss.socket().setReuseAddress(true);
-        LOG.info("binding to port {}", addr);
-        if (listenBacklog == -1) {
-            ss.socket().bind(addr);
-        } else {
-            ss.socket().bind(addr, listenBacklog);
+        bindAcceptSockets(addr, listenBacklog);
+    }
+
+    /**
+     * Returns SO_REUSEPORT if it is supported, or null. The option is only
+     * defined from Java 9, so it is looked up reflectively.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            return channel.supportedOptions().contains(option) ? option : null;
+        } catch (ReflectiveOperationException | IOException e) {
+            return null;
+        }
+    }
+
+    private ServerSocketChannel bindAcceptSocket(InetSocketAddress addr, int backlog, SocketOption<Boolean> reusePort) throws IOException {
+        ServerSocketChannel socket = ServerSocketChannel.open();
+        try {
+            socket.socket().setReuseAddress(true);
+            if (reusePort != null) {
+                socket.setOption(reusePort, true);
+            }
+            LOG.info("binding to port {}", addr);
+            if (backlog == -1) {
+                socket.socket().bind(addr);
+            } else {
+                socket.socket().bind(addr, backlog);
+            }
+            socket.configureBlocking(false);
+        } catch (IOException e) {
+            tryClose(socket);
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Bind the listen sockets, one per accept thread, and create the accept
+     * threads.
+     */
+    private void bindAcceptSockets(InetSocketAddress addr, int backlog) throws IOException {
+        int count = numAcceptThreads;
+        SocketOption<Boolean> reusePort = null;
+        if (count > 1) {
+            reusePort = reusePortOption();
+            if (reusePort == null) {
+                LOG.warn("SO_REUSEPORT is not supported, using 1 accept thread instead of {}", count);
+                count = 1;
+            }
+        }
+        acceptSockets.clear();
+        acceptThreads.clear();
+        this.ss = bindAcceptSocket(addr, backlog, reusePort);
+        acceptSockets.add(ss);
+        try {
+            // the other sockets share the port of the first one, which may
+            // have been picked by the system
+            InetSocketAddress boundAddr = new InetSocketAddress(addr.getAddress(), ss.socket().getLocalPort());
+            for (int i = 1; i < count; i++) {
+                acceptSockets.add(bindAcceptSocket(boundAddr, backlog, reusePort));
+            }
+            for (int i = 0; i < acceptSockets.size(); i++) {
+                acceptThreads.add(new AcceptThread(acceptSockets.get(i), addr, selectorThreads, i));
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel socket : acceptSockets) {
+                tryClose(socket);
+            }
+            throw e;
         }
-        ss.configureBlocking(false);
-        acceptThread = new AcceptThread(ss, addr, selectorThreads);
     }
 
     private void tryClose(ServerSocketChannel s) {
@@ -681,27 +762,32 @@ private void tryClose(ServerSocketChannel s) {
 
     @Override
     public void reconfigure(InetSocketAddress addr) {
-        ServerSocketChannel oldSS = ss;
+        List<ServerSocketChannel> oldSockets = new ArrayList<ServerSocketChannel>(acceptSockets);
         try {
-            acceptThread.setReconfiguring();
-            tryClose(oldSS);
-            acceptThread.wakeupSelector();
-            try {
-                acceptThread.join();
-            } catch (InterruptedException e) {
-                LOG.error("Error joining old acceptThread when reconfiguring client port.", e);
-                Thread.currentThread().interrupt();
+            for (AcceptThread acceptThread : acceptThreads) {
+                acceptThread.setReconfiguring();
+            }
+            for (ServerSocketChannel oldSS : oldSockets) {
+                tryClose(oldSS);
+            }
+            for (AcceptThread acceptThread : acceptThreads) {
+                acceptThread.wakeupSelector();
+                try {
+                    acceptThread.join();
+                } catch (InterruptedException e) {
+                    LOG.error("Error joining old acceptThread when reconfiguring client port.", e);
+                    Thread.currentThread().interrupt();
+                }
+            }
+            bindAcceptSockets(addr, -1);
+            for (AcceptThread acceptThread : acceptThreads) {
+                acceptThread.start();
             }
-            this.ss = ServerSocketChannel.open();
-            ss.socket().setReuseAddress(true);
-            LOG.info("binding to port {}", addr);
-            ss.socket().bind(addr);
-            ss.configureBlocking(false);
-            acceptThread = new AcceptThread(ss, addr, selectorThreads);
-            acceptThread.start();
         } catch (IOException e) {
             LOG.error("Error reconfiguring client port to {}", addr, e);
-            tryClose(oldSS);
+            for (ServerSocketChannel oldSS : oldSockets) {
+                tryClose(oldSS);
+            }
         }
     }
 
@@ -732,8 +818,10 @@ public void start() {
             }
         }
         // ensure thread is started once and only once
-        if (acceptThread.getState() == Thread.State.NEW) {
-            acceptThread.start();
+        for (AcceptThread acceptThread : acceptThreads) {
+            if (acceptThread.getState() == Thread.State.NEW) {
+                acceptThread.start();
+            }
         }
         if (expirerThread.getState() == Thread.State.NEW) {
             expirerThread.start();
@@ -860,13 +948,15 @@ public void stop() {
         stopped = true;
 
         // Stop queuing connection attempts
-        try {
-            ss.close();
-        } catch (IOException e) {
-            LOG.warn("Error closing listen socket", e);
+        for (ServerSocketChannel acceptSocket : acceptSockets) {
+            try {
+                acceptSocket.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing listen socket", e);
+            }
         }
 
-        if (acceptThread != null) {
+        for (AcceptThread acceptThread : acceptThreads) {
             if (acceptThread.isAlive()) {
                 acceptThread.wakeupSelector();
             } else {
@@ -915,7 +1005,7 @@ public void shutdown() {
 
     @Override
     public void join() throws InterruptedException {
-        if (acceptThread != null) {
+        for (AcceptThread acceptThread : acceptThreads) {
             acceptThread.join();
         }
         for (SelectorThread thread : selectorThreads) {
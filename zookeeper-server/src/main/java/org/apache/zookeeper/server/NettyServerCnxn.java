@@ -19,6 +19,7 @@
 package org.apache.zookeeper.server;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
@@ -71,6 +72,9 @@ public class NettyServerCnxn extends ServerCnxn {
 
     public int readIssuedAfterReadComplete;
 
+    // responses written since the last flush, only accessed from the event loop
+    int writesSinceFlush;
+
     private volatile HandshakeState handshakeState = HandshakeState.NONE;
 
     public enum HandshakeState {
@@ -184,10 +188,26 @@ public int sendResponse(ReplyHeader h, Record r, String tag,
         if (closingChannel || !channel.isOpen()) {
             return 0;
         }
-        ByteBuffer[] bb = serialize(h, r, tag, cacheKey, stat, opCode);
-        int responseSize = bb[0].getInt();
-        bb[0].rewind();
-        sendBuffer(bb);
+        // serialize straight into a pooled buffer of the channel, which
+        // is written without any further copy
+        ByteBuf buf = channel.alloc().ioBuffer(ZooKeeperServer.intBufferStartingSizeBytes);
+        int responseSize;
+        byte[] cached;
+        try {
+            // the packet length, set once the packet is serialized
+            buf.writeInt(0);
+            cached = serialize(new ByteBufOutputStream(buf), h, r, tag, cacheKey, stat, opCode);
+            responseSize = buf.readableBytes() - 4 + (cached == null ? 0 : cached.length);
+            buf.setInt(0, responseSize);
+        } catch (IOException | RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+        if (cached != null) {
+            // a cached record is sent from the cache, after the header
+            buf = Unpooled.wrappedBuffer(buf, Unpooled.wrappedBuffer(cached));
+        }
+        channel.writeAndFlush(buf).addListener(onSendBufferDoneListener);
         decrOutstandingAndCheckThrottle(h);
         return responseSize;
     }
@@ -36,6 +36,7 @@
 import io.netty.channel.group.ChannelGroupFuture;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.ssl.OptionalSslHandler;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslHandler;
@@ -118,6 +119,14 @@ public void setOutstandingHandshakeLimit(int limit) {
     public static final String NETTY_ADVANCED_FLOW_CONTROL = "zookeeper.netty.advancedFlowControl.enabled";
     private boolean advancedFlowControlEnabled = false;
 
+    /**
+     * The maximum number of responses written to a connection before they
+     * are flushed. Flushes are otherwise consolidated until the event loop
+     * has no more pending writes, 0 disables the consolidation.
+     */
+    public static final String NETTY_MAX_WRITES_PER_FLUSH = "zookeeper.netty.maxWritesPerFlush";
+    private int maxWritesPerFlush;
+
     private static final AttributeKey<NettyServerCnxn> CONNECTION_ATTRIBUTE = AttributeKey.valueOf("NettyServerCnxn");
 
     private static final AtomicReference<ByteBufAllocator> TEST_ALLOCATOR = new AtomicReference<>(null);
@@ -473,8 +482,35 @@ public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
 
     }
 
+    @Sharable
+    static class PacketsPerWriteHandler extends ChannelDuplexHandler {
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            NettyServerCnxn cnxn = ctx.channel().attr(CONNECTION_ATTRIBUTE).get();
+            if (cnxn != null) {
+                cnxn.writesSinceFlush++;
+            }
+
+            ctx.write(msg, promise);
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            NettyServerCnxn cnxn = ctx.channel().attr(CONNECTION_ATTRIBUTE).get();
+            if (cnxn != null && cnxn.writesSinceFlush > 0) {
+                ServerMetrics.getMetrics().PACKETS_PER_WRITE.add(cnxn.writesSinceFlush);
+                cnxn.writesSinceFlush = 0;
+            }
+
+            ctx.flush();
+        }
+
+    }
+
     CnxnChannelHandler channelHandler = new CnxnChannelHandler();
     ReadIssuedTrackingHandler readIssuedTrackingHandler = new ReadIssuedTrackingHandler();
+    PacketsPerWriteHandler packetsPerWriteHandler = new PacketsPerWriteHandler();
 
     private ServerBootstrap configureBootstrapAllocator(ServerBootstrap bootstrap) {
         ByteBufAllocator testAllocator = TEST_ALLOCATOR.get();
@@ -506,6 +542,9 @@ private ServerBootstrap configureBootstrapAllocator(ServerBootstrap bootstrap) {
 
         setOutstandingHandshakeLimit(Integer.getInteger(OUTSTANDING_HANDSHAKE_LIMIT, -1));
 
+        this.maxWritesPerFlush = Integer.getInteger(NETTY_MAX_WRITES_PER_FLUSH, 0);
+        LOG.info("{} = {}", NETTY_MAX_WRITES_PER_FLUSH, this.maxWritesPerFlush);
+
         EventLoopGroup bossGroup = NettyUtils.newNioOrEpollEventLoopGroup(NettyUtils.getClientReachableLocalInetAddressCount());
         EventLoopGroup workerGroup = NettyUtils.newNioOrEpollEventLoopGroup();
         ServerBootstrap bootstrap = new ServerBootstrap().group(bossGroup, workerGroup)
@@ -527,10 +566,16 @@ protected void initChannel(SocketChannel ch) throws Exception {
                                                                  } else if (shouldUsePortUnification) {
                                                                      initSSL(pipeline, true);
                                                                  }
+                                                                 pipeline.addLast(packetsPerWriteHandler);
+                                                                 if (maxWritesPerFlush > 0) {
+                                                                     // the responses are written from other threads, the
+                                                                     // flush runs once the event loop has written them all
+                                                                     pipeline.addLast(new FlushConsolidationHandler(maxWritesPerFlush, true));
+                                                                 }
                                                                  pipeline.addLast("servercnxnfactory", channelHandler);
                                                              }
                                                          });
-        this.bootstrap = configureBootstrapAllocator(bootstrap);
+        this.bootstrap = configureBootstrapAllocator(NettyUtils.configureEpollOptions(bootstrap));
         this.bootstrap.validate();
     }
 
@@ -21,26 +21,18 @@
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import org.apache.zookeeper.ZooDefs;
-import org.apache.zookeeper.server.util.AdHash;
 
 /**
  * a simple wrapper to ConcurrentHashMap that recalculates a digest after
  * each mutation.
  */
-public class NodeHashMapImpl implements NodeHashMap {
+public class NodeHashMapImpl extends AbstractNodeHashMap {
 
     private final ConcurrentHashMap<String, DataNode> nodes;
-    private final boolean digestEnabled;
-    private final DigestCalculator digestCalculator;
-
-    private final AdHash hash;
 
     public NodeHashMapImpl(DigestCalculator digestCalculator) {
-        this.digestCalculator = digestCalculator;
+        super(digestCalculator);
         nodes = new ConcurrentHashMap<>();
-        hash = new AdHash();
-        digestEnabled = ZooKeeperServer.isDigestEnabled();
     }
 
     @Override
@@ -80,7 +72,7 @@ public Set<Map.Entry<String, DataNode>> entrySet() {
     @Override
     public void clear() {
         nodes.clear();
-        hash.clear();
+        clearDigest();
     }
 
     @Override
@@ -88,42 +80,4 @@ public int size() {
         return nodes.size();
     }
 
-    @Override
-    public void preChange(String path, DataNode node) {
-        removeDigest(path, node);
-    }
-
-    @Override
-    public void postChange(String path, DataNode node) {
-        // we just made a change, so make sure the digest is
-        // invalidated
-        node.digestCached = false;
-        addDigest(path, node);
-    }
-
-    private void addDigest(String path, DataNode node) {
-        // Excluding everything under '/zookeeper/' for digest calculation.
-        if (path.startsWith(ZooDefs.ZOOKEEPER_NODE_SUBTREE)) {
-            return;
-        }
-        if (digestEnabled) {
-            hash.addDigest(digestCalculator.calculateDigest(path, node));
-        }
-    }
-
-    private void removeDigest(String path, DataNode node) {
-        // Excluding everything under '/zookeeper/' for digest calculation.
-        if (path.startsWith(ZooDefs.ZOOKEEPER_NODE_SUBTREE)) {
-            return;
-        }
-        if (digestEnabled) {
-            hash.removeDigest(digestCalculator.calculateDigest(path, node));
-        }
-    }
-
-    @Override
-    public long getDigest() {
-        return hash.getHash();
-    }
-
 }
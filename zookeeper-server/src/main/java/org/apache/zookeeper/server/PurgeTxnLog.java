@@ -59,7 +59,9 @@ static void printUsage() {
     }
 
     private static final String PREFIX_SNAPSHOT = "snapshot";
+    private static final String PREFIX_DELTA = "delta";
     private static final String PREFIX_LOG = "log";
+    private static final String PREFIX_LOG_INDEX = "logindex";
 
     /**
      * Purges the snapshot and logs keeping the last num snapshots and the
@@ -139,6 +141,13 @@ public boolean accept(File f) {
         List<File> files = new ArrayList<>();
         if (logs != null) {
             files.addAll(Arrays.asList(logs));
+            // and their indexes, log.X is indexed in logindex.X
+            for (File log : logs) {
+                File index = new File(log.getParentFile(), PREFIX_LOG_INDEX + log.getName().substring(PREFIX_LOG.length()));
+                if (index.exists()) {
+                    files.add(index);
+                }
+            }
         }
 
         // add all non-excluded snapshot files to the deletion list
@@ -147,6 +156,12 @@ public boolean accept(File f) {
             files.addAll(Arrays.asList(snapshots));
         }
 
+        // and the delta snapshots, which are layered on the snapshots
+        File[] deltas = txnLog.getSnapDir().listFiles(new MyFileFilter(PREFIX_DELTA));
+        if (deltas != null) {
+            files.addAll(Arrays.asList(deltas));
+        }
+
         // remove the old files
         for (File f : files) {
             final String msg = String.format(
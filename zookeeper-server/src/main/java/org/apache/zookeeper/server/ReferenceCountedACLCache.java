@@ -138,6 +138,29 @@ public void deserialize(InputArchive ia) throws IOException {
         }
     }
 
+    /**
+     * Add the ACLs of another cache, e.g. read from a delta snapshot. The
+     * ACLs of the other cache replace the ones with the same id, the
+     * reference counts are kept.
+     * @param other the cache to merge
+     */
+    public synchronized void merge(ReferenceCountedACLCache other) {
+        for (Map.Entry<Long, List<ACL>> entry : other.longKeyMap.entrySet()) {
+            Long val = entry.getKey();
+            List<ACL> aclList = entry.getValue();
+            if (aclIndex < val) {
+                aclIndex = val;
+            }
+
+            List<ACL> previous = longKeyMap.put(val, aclList);
+            if (previous != null && !previous.equals(aclList)) {
+                aclKeyMap.remove(previous);
+            }
+            aclKeyMap.put(aclList, val);
+            referenceCounter.putIfAbsent(val, new AtomicLongWithEquals(0));
+        }
+    }
+
     public void serialize(OutputArchive oa) throws IOException {
         Map<Long, List<ACL>> clonedLongKeyMap;
         synchronized (this) {
@@ -166,6 +189,17 @@ private void clear() {
     }
 
     public synchronized void addUsage(Long acl) {
+        addUsage(acl, 1);
+    }
+
+    /**
+     * Add multiple usages of the acl at once, used when loading a snapshot
+     * to avoid taking the lock for every node.
+     *
+     * @param acl the acl id
+     * @param usages the number of nodes referencing the acl
+     */
+    public synchronized void addUsage(Long acl, long usages) {
         if (acl == OPEN_UNSAFE_ACL_ID) {
             return;
         }
@@ -177,9 +211,9 @@ public synchronized void addUsage(Long acl) {
 
         AtomicLong count = referenceCounter.get(acl);
         if (count == null) {
-            referenceCounter.put(acl, new AtomicLongWithEquals(1));
+            referenceCounter.put(acl, new AtomicLongWithEquals(usages));
         } else {
-            count.incrementAndGet();
+            count.addAndGet(usages);
         }
     }
 
@@ -27,6 +27,7 @@
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.metrics.Summary;
 import org.apache.zookeeper.metrics.SummarySet;
+import org.apache.zookeeper.server.DataTree.ProcessTxnResult;
 import org.apache.zookeeper.server.quorum.LearnerHandler;
 import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
 import org.apache.zookeeper.server.util.AuthUtil;
@@ -142,6 +143,41 @@ public void setLocalSession(boolean isLocalSession) {
         this.isLocalSession = isLocalSession;
     }
 
+    /**
+     * If this committed write is applied concurrently with the other writes
+     * of its batch, see {@link ZooKeeperServer#concurrentTxnsApplied(List)}.
+     */
+    private boolean isAppliedConcurrently = false;
+
+    /**
+     * The result of this write once applied concurrently, and the watches it
+     * triggered, which are fired when the request is processed in zxid order.
+     */
+    private ProcessTxnResult concurrentTxnResult;
+
+    private List<Runnable> concurrentWatchTriggers;
+
+    public boolean isAppliedConcurrently() {
+        return isAppliedConcurrently;
+    }
+
+    public void setAppliedConcurrently(boolean isAppliedConcurrently) {
+        this.isAppliedConcurrently = isAppliedConcurrently;
+    }
+
+    public ProcessTxnResult getConcurrentTxnResult() {
+        return concurrentTxnResult;
+    }
+
+    public List<Runnable> getConcurrentWatchTriggers() {
+        return concurrentWatchTriggers;
+    }
+
+    public void setConcurrentTxnResult(ProcessTxnResult result, List<Runnable> watchTriggers) {
+        this.concurrentTxnResult = result;
+        this.concurrentWatchTriggers = watchTriggers;
+    }
+
     public void setLargeRequestSize(int size) {
         largeRequestSize = size;
     }
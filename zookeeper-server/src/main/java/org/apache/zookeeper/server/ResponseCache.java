@@ -18,42 +18,126 @@
 
 package org.apache.zookeeper.server;
 
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-@SuppressWarnings("serial")
+/**
+ * Cache of serialized read responses, keyed by path and validated against
+ * the stat of the node when read.
+ * <p>
+ * Lookups go to a ConcurrentHashMap and don't take any lock, a hit only
+ * marks the entry as referenced. The cache is bounded both by the number
+ * of entries and by the total size of the cached responses, and evicts in
+ * approximate LRU order with the CLOCK algorithm: entries are kept in a
+ * queue in insertion order, and the eviction walks it from the head,
+ * giving referenced entries a second chance. Only one thread evicts at a
+ * time, the others simply go on while the cache is trimmed.
+ */
 public class ResponseCache {
     private static final Logger LOG = LoggerFactory.getLogger(ResponseCache.class);
 
     // Magic number chosen to be "big enough but not too big"
     public static final int DEFAULT_RESPONSE_CACHE_SIZE = 400;
+    public static final long DEFAULT_RESPONSE_CACHE_BYTES = 4 * 1024 * 1024;
     private final int cacheSize;
+    private final long maxBytes;
+
     private static class Entry {
-        public Stat stat;
-        public byte[] data;
+        final String key;
+        final Stat stat;
+        final byte[] data;
+        final int weight;
+        volatile boolean referenced;
+
+        Entry(String key, byte[] data, Stat stat) {
+            this.key = key;
+            this.data = data;
+            this.stat = stat;
+            this.weight = weight(key, data);
+        }
     }
 
-    private final Map<String, Entry> cache;
+    private final ConcurrentHashMap<String, Entry> cache;
+    private final ConcurrentLinkedQueue<Entry> clock = new ConcurrentLinkedQueue<>();
+    // the queue also holds replaced and invalidated entries until the clock reaches them
+    private final AtomicInteger clockSize = new AtomicInteger();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
 
     public ResponseCache(int cacheSize) {
+        this(cacheSize, 0);
+    }
+
+    /**
+     * @param cacheSize the maximum number of entries, the cache is disabled
+     *                  if not positive
+     * @param maxBytes the maximum total size of the cached responses, or 0
+     *                 to only bound the number of entries
+     */
+    public ResponseCache(int cacheSize, long maxBytes) {
         this.cacheSize = cacheSize;
-        cache = Collections.synchronizedMap(new LRUCache<>(cacheSize));
-        LOG.info("Response cache size is initialized with value {}.", cacheSize);
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        cache = new ConcurrentHashMap<>(Math.max(16, Math.min(cacheSize, 1 << 16)));
+        if (maxBytes > 0) {
+            LOG.info("Response cache size is initialized with value {} and {} bytes.", cacheSize, maxBytes);
+        } else {
+            LOG.info("Response cache size is initialized with value {}.", cacheSize);
+        }
     }
 
     public int getCacheSize() {
         return cacheSize;
     }
 
-    public void put(String path, byte[] data, Stat stat) {
-        Entry entry = new Entry();
-        entry.data = data;
-        entry.stat = stat;
-        cache.put(path, entry);
+    /**
+     * @return the maximum total size of the cached responses, or 0 if it is
+     *         not bounded
+     */
+    public long getMaxBytes() {
+        return maxBytes == Long.MAX_VALUE ? 0 : maxBytes;
+    }
+
+    /**
+     * @return the number of cached responses
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the total size of the cached responses and their keys
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Cache the serialized response for the given path.
+     *
+     * @return the number of entries evicted to make room for it
+     */
+    public int put(String path, byte[] data, Stat stat) {
+        Entry entry = new Entry(path, data, stat);
+        if (entry.weight > maxBytes) {
+            return 0;
+        }
+        size.incrementAndGet();
+        bytes.addAndGet(entry.weight);
+        Entry replaced = cache.put(path, entry);
+        if (replaced != null) {
+            removed(replaced);
+        }
+        clock.offer(entry);
+        clockSize.incrementAndGet();
+        return needsEviction() ? evict() : 0;
     }
 
     public byte[] get(String key, Stat stat) {
@@ -61,11 +145,16 @@ public byte[] get(String key, Stat stat) {
         if (entry == null) {
             return null;
         }
-        if (!stat.equals(entry.stat)) {
+        if (!Objects.equals(stat, entry.stat)) {
             // The node has been modified, invalidate cache.
-            cache.remove(key);
+            if (cache.remove(key, entry)) {
+                removed(entry);
+            }
             return null;
         } else {
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
             return entry.data;
         }
     }
@@ -74,19 +163,66 @@ public boolean isEnabled() {
         return cacheSize > 0;
     }
 
-    private static class LRUCache<K, V> extends LinkedHashMap<K, V> {
+    private void removed(Entry entry) {
+        size.decrementAndGet();
+        bytes.addAndGet(-entry.weight);
+    }
+
+    private boolean isFull() {
+        return size.get() > cacheSize || bytes.get() > maxBytes;
+    }
 
-        private int cacheSize;
+    private boolean needsEviction() {
+        return isFull() || clockSize.get() > 2 * size.get() + 16;
+    }
 
-        LRUCache(int cacheSize) {
-            super(cacheSize / 4);
-            this.cacheSize = cacheSize;
+    private int evict() {
+        int evicted = 0;
+        // a put failing tryLock leaves its entry to the evicting thread, which
+        // checks the limits again once unlocked so that entry isn't left over
+        while (evictionLock.tryLock()) {
+            try {
+                evicted += evictLocked();
+            } finally {
+                evictionLock.unlock();
+            }
+            if (!needsEviction()) {
+                break;
+            }
         }
+        return evicted;
+    }
 
-        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-            return size() >= cacheSize;
+    private int evictLocked() {
+        int evicted = 0;
+        while (needsEviction()) {
+            Entry entry = clock.poll();
+            if (entry == null) {
+                break;
+            }
+            clockSize.decrementAndGet();
+            if (cache.get(entry.key) != entry) {
+                // replaced or invalidated since it was queued
+                continue;
+            }
+            if (!isFull()) {
+                // only dropping the stale entries
+                clock.offer(entry);
+                clockSize.incrementAndGet();
+            } else if (entry.referenced) {
+                entry.referenced = false;
+                clock.offer(entry);
+                clockSize.incrementAndGet();
+            } else if (cache.remove(entry.key, entry)) {
+                removed(entry);
+                evicted++;
+            }
         }
+        return evicted;
+    }
 
+    private static int weight(String key, byte[] data) {
+        return key.length() + data.length;
     }
 
 }
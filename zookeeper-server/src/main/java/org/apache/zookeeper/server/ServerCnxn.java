@@ -19,7 +19,9 @@
 package org.apache.zookeeper.server;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.InetAddress;
@@ -173,15 +175,12 @@ public void decrOutstandingAndCheckThrottle(ReplyHeader h) {
      * stored along with the value. A cache entry is invalidated if the
      * provided last modified zxid is more recent than the stored one.
      *
-     * Attention: this function is not thread safe, due to caching not being
-     * thread safe.
-     *
      * @param h reply header
      * @param r reply payload, can be null
      * @param tag Jute serialization tag, can be null
      * @param cacheKey Key for caching the serialized payload. A null value prevents caching.
      * @param stat Stat information for the the reply payload, used for cache invalidation.
-     *             A value of 0 prevents caching.
+     *             Can be null if the cache key already identifies the version of the payload.
      * @param opCode The op code appertains to the corresponding request of the response,
      *               used to decide which cache (e.g. read response cache,
      *               list of children response cache, ...) object to look up to when applicable.
@@ -200,66 +199,120 @@ protected byte[] serializeRecord(Record record) throws IOException {
         return baos.toByteArray();
     }
 
+    /**
+     * Serialize a response into a single heap buffer holding the packet
+     * length, the header and the record. A cached record is not copied into
+     * it but sent as is in a second buffer.
+     */
     protected ByteBuffer[] serialize(ReplyHeader h, Record r, String tag,
                                      String cacheKey, Stat stat, int opCode) throws IOException {
-        byte[] header = serializeRecord(h);
-        byte[] data = null;
+        ResponseBuffer out = new ResponseBuffer();
+        // the packet length, set once the packet is serialized
+        out.write(EMPTY_LENGTH);
+        byte[] cached = serialize(out, h, r, tag, cacheKey, stat, opCode);
+        ByteBuffer buffer = ByteBuffer.wrap(out.getBuffer(), 0, out.size());
+        int packetLength = out.size() - EMPTY_LENGTH.length;
+        if (cached == null) {
+            buffer.putInt(0, packetLength);
+            return new ByteBuffer[] {buffer};
+        }
+        buffer.putInt(0, packetLength + cached.length);
+        return new ByteBuffer[] {buffer, ByteBuffer.wrap(cached)};
+    }
+
+    /**
+     * Write the header and the record of a response to the given stream,
+     * without the packet length. Unless it comes from the response cache,
+     * the record is serialized straight into the stream. A cached record is
+     * returned instead, to be sent as is after the stream, the cached arrays
+     * are never modified.
+     *
+     * @return the cached record following the bytes written, null if the
+     * whole response was written to the stream
+     */
+    protected byte[] serialize(OutputStream out, ReplyHeader h, Record r, String tag,
+                               String cacheKey, Stat stat, int opCode) throws IOException {
+        byte[] cached = null;
+        DataOutputStream dos = new DataOutputStream(out);
+        BinaryOutputArchive bos = new BinaryOutputArchive(dos);
+        bos.writeRecord(h, null);
         if (r != null) {
             ResponseCache cache = null;
-            Counter cacheHit = null, cacheMiss = null;
+            Counter cacheHit = null, cacheMiss = null, cacheEviction = null;
             switch (opCode) {
                 case OpCode.getData : {
                     cache = zkServer.getReadResponseCache();
                     cacheHit = ServerMetrics.getMetrics().RESPONSE_PACKET_CACHE_HITS;
                     cacheMiss = ServerMetrics.getMetrics().RESPONSE_PACKET_CACHE_MISSING;
+                    cacheEviction = ServerMetrics.getMetrics().RESPONSE_PACKET_CACHE_EVICTIONS;
                     break;
                 }
                 case OpCode.getChildren2 : {
                     cache = zkServer.getGetChildrenResponseCache();
                     cacheHit = ServerMetrics.getMetrics().RESPONSE_PACKET_GET_CHILDREN_CACHE_HITS;
                     cacheMiss = ServerMetrics.getMetrics().RESPONSE_PACKET_GET_CHILDREN_CACHE_MISSING;
+                    cacheEviction = ServerMetrics.getMetrics().RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS;
+                    break;
+                }
+                case OpCode.exists :
+                case OpCode.getACL :
+                case OpCode.multiRead : {
+                    cache = zkServer.getOtherReadResponseCache();
+                    cacheHit = ServerMetrics.getMetrics().RESPONSE_PACKET_OTHER_READ_CACHE_HITS;
+                    cacheMiss = ServerMetrics.getMetrics().RESPONSE_PACKET_OTHER_READ_CACHE_MISSING;
+                    cacheEviction = ServerMetrics.getMetrics().RESPONSE_PACKET_OTHER_READ_CACHE_EVICTIONS;
                     break;
                 }
                 default:
                     // op codes where response cache is not supported.
             }
 
-            if (cache != null && stat != null && cacheKey != null && !cacheKey.endsWith(Quotas.statNode)) {
+            if (cache != null && cacheKey != null && !cacheKey.endsWith(Quotas.statNode)) {
                 // Use cache to get serialized data.
                 //
                 // NB: Tag is ignored both during cache lookup and serialization,
                 // since is is not used in read responses, which are being cached.
-                data = cache.get(cacheKey, stat);
+                byte[] data = cache.get(cacheKey, stat);
                 if (data == null) {
                     // Cache miss, serialize the response and put it in cache.
                     data = serializeRecord(r);
-                    cache.put(cacheKey, data, stat);
+                    int evicted = cache.put(cacheKey, data, stat);
                     cacheMiss.add(1);
+                    if (evicted > 0) {
+                        cacheEviction.add(evicted);
+                    }
                 } else {
                     cacheHit.add(1);
                 }
+                cached = data;
             } else {
-                data = serializeRecord(r);
+                bos.writeRecord(r, null);
             }
         }
-        int dataLength = data == null ? 0 : data.length;
-        int packetLength = header.length + dataLength;
+        int packetLength = dos.size() + (cached == null ? 0 : cached.length);
         ServerStats serverStats = serverStats();
         if (serverStats != null) {
             serverStats.updateClientResponseSize(packetLength);
         }
-        ByteBuffer lengthBuffer = ByteBuffer.allocate(4).putInt(packetLength);
-        lengthBuffer.rewind();
+        return cached;
+    }
 
-        int bufferLen = data != null ? 3 : 2;
-        ByteBuffer[] buffers = new ByteBuffer[bufferLen];
+    private static final byte[] EMPTY_LENGTH = new byte[4];
 
-        buffers[0] = lengthBuffer;
-        buffers[1] = ByteBuffer.wrap(header);
-        if (data != null) {
-            buffers[2] = ByteBuffer.wrap(data);
+    /**
+     * A ByteArrayOutputStream exposing its buffer, so that it can be sent
+     * without copying.
+     */
+    private static class ResponseBuffer extends ByteArrayOutputStream {
+
+        ResponseBuffer() {
+            super(ZooKeeperServer.intBufferStartingSizeBytes);
+        }
+
+        byte[] getBuffer() {
+            return buf;
         }
-        return buffers;
+
     }
 
     /* notify the client the session is closing and close/cleanup socket */
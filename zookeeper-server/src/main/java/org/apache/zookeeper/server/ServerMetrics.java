@@ -70,6 +70,7 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         FSYNC_TIME = metricsContext.getSummary("fsynctime", DetailLevel.BASIC);
 
         SNAPSHOT_TIME = metricsContext.getSummary("snapshottime", DetailLevel.BASIC);
+        SNAPSHOT_VIEW_PRESERVED_NODES = metricsContext.getSummary("snapshot_view_preserved_nodes", DetailLevel.BASIC);
         DB_INIT_TIME = metricsContext.getSummary("dbinittime", DetailLevel.BASIC);
         READ_LATENCY = metricsContext.getSummary("readlatency", DetailLevel.ADVANCED);
         UPDATE_LATENCY = metricsContext.getSummary("updatelatency", DetailLevel.ADVANCED);
@@ -79,10 +80,19 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         LOOKING_COUNT = metricsContext.getCounter("looking_count");
         DIFF_COUNT = metricsContext.getCounter("diff_count");
         SNAP_COUNT = metricsContext.getCounter("snap_count");
+        SNAP_FILE_COUNT = metricsContext.getCounter("snap_file_count");
+        SNAP_FILE_BYTES = metricsContext.getSummary("snap_file_bytes", DetailLevel.BASIC);
+        SNAP_FANOUT_LEARNERS = metricsContext.getSummary("snap_fanout_learners", DetailLevel.BASIC);
+        SNAP_FANOUT_LEARNERS_DETACHED = metricsContext.getCounter("snap_fanout_learners_detached");
         COMMIT_COUNT = metricsContext.getCounter("commit_count");
         CONNECTION_REQUEST_COUNT = metricsContext.getCounter("connection_request_count");
         CONNECTION_TOKEN_DEFICIT = metricsContext.getSummary("connection_token_deficit", DetailLevel.BASIC);
         CONNECTION_REJECTED = metricsContext.getCounter("connection_rejected");
+        CONNECTION_ACCEPTED = metricsContext.getCounter("connection_accepted");
+        CONNECTION_NEW_SESSION_ADMITTED = metricsContext.getCounter("connection_new_session_admitted");
+        CONNECTION_NEW_SESSION_REJECTED = metricsContext.getCounter("connection_new_session_rejected");
+        CONNECTION_RENEW_SESSION_ADMITTED = metricsContext.getCounter("connection_renew_session_admitted");
+        CONNECTION_RENEW_SESSION_REJECTED = metricsContext.getCounter("connection_renew_session_rejected");
 
         INFLIGHT_SNAP_COUNT = metricsContext.getSummary("inflight_snap_count", DetailLevel.BASIC);
         INFLIGHT_DIFF_COUNT = metricsContext.getSummary("inflight_diff_count", DetailLevel.BASIC);
@@ -110,6 +120,11 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         RESPONSE_PACKET_CACHE_MISSING = metricsContext.getCounter("response_packet_cache_misses");
         RESPONSE_PACKET_GET_CHILDREN_CACHE_HITS = metricsContext.getCounter("response_packet_get_children_cache_hits");
         RESPONSE_PACKET_GET_CHILDREN_CACHE_MISSING = metricsContext.getCounter("response_packet_get_children_cache_misses");
+        RESPONSE_PACKET_CACHE_EVICTIONS = metricsContext.getCounter("response_packet_cache_evictions");
+        RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS = metricsContext.getCounter("response_packet_get_children_cache_evictions");
+        RESPONSE_PACKET_OTHER_READ_CACHE_HITS = metricsContext.getCounter("response_packet_other_read_cache_hits");
+        RESPONSE_PACKET_OTHER_READ_CACHE_MISSING = metricsContext.getCounter("response_packet_other_read_cache_misses");
+        RESPONSE_PACKET_OTHER_READ_CACHE_EVICTIONS = metricsContext.getCounter("response_packet_other_read_cache_evictions");
 
         ENSEMBLE_AUTH_SUCCESS = metricsContext.getCounter("ensemble_auth_success");
 
@@ -156,6 +171,7 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         COMMITS_QUEUED = metricsContext.getCounter("request_commit_queued");
         READS_ISSUED_IN_COMMIT_PROC = metricsContext.getSummary("read_commit_proc_issued", DetailLevel.BASIC);
         WRITES_ISSUED_IN_COMMIT_PROC = metricsContext.getSummary("write_commit_proc_issued", DetailLevel.BASIC);
+        WRITES_APPLIED_CONCURRENTLY_IN_COMMIT_PROC = metricsContext.getSummary("write_commit_proc_applied_concurrently", DetailLevel.BASIC);
 
         THROTTLED_OPS = metricsContext.getCounter("throttled_ops");
 
@@ -206,10 +222,17 @@ private ServerMetrics(MetricsProvider metricsProvider) {
          */
         LEARNER_HANDLER_QP_SIZE = metricsContext.getSummarySet("learner_handler_qp_size", DetailLevel.BASIC);
         LEARNER_HANDLER_QP_TIME = metricsContext.getSummarySet("learner_handler_qp_time_ms", DetailLevel.ADVANCED);
+        SHARED_QUORUM_PACKETS_SERIALIZED = metricsContext.getCounter("shared_quorum_packets_serialized");
+        SHARED_QUORUM_PACKETS_REUSED = metricsContext.getCounter("shared_quorum_packets_reused");
+        LEARNER_UNCOMPRESSED_BYTES = metricsContext.getCounter("learner_uncompressed_bytes");
+        LEARNER_COMPRESSED_BYTES = metricsContext.getCounter("learner_compressed_bytes");
+        LEARNER_COMPRESSION_TIME = metricsContext.getSummarySet("learner_compression_time_us", DetailLevel.ADVANCED);
 
         STARTUP_TXNS_LOADED = metricsContext.getSummary("startup_txns_loaded", DetailLevel.BASIC);
         STARTUP_TXNS_LOAD_TIME = metricsContext.getSummary("startup_txns_load_time", DetailLevel.BASIC);
         STARTUP_SNAP_LOAD_TIME = metricsContext.getSummary("startup_snap_load_time", DetailLevel.BASIC);
+        STARTUP_TXNS_REPLAY_RATE = metricsContext.getSummary("startup_txns_replay_rate", DetailLevel.BASIC);
+        STARTUP_TXNS_REPLAY_BATCH_SIZE = metricsContext.getSummary("startup_txns_replay_batch_size", DetailLevel.ADVANCED);
 
         SYNC_PROCESSOR_QUEUE_AND_FLUSH_TIME = metricsContext.getSummary("sync_processor_queue_and_flush_time_ms", DetailLevel.ADVANCED);
         SYNC_PROCESSOR_QUEUE_SIZE = metricsContext.getSummary("sync_processor_queue_size", DetailLevel.BASIC);
@@ -219,6 +242,7 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         SYNC_PROCESS_TIME = metricsContext.getSummary("sync_process_time", DetailLevel.BASIC);
 
         BATCH_SIZE = metricsContext.getSummary("sync_processor_batch_size", DetailLevel.BASIC);
+        SYNC_PROCESSOR_ADAPTIVE_BATCH_TARGET = metricsContext.getSummary("sync_processor_adaptive_batch_target", DetailLevel.BASIC);
 
         QUORUM_ACK_LATENCY = metricsContext.getSummary("quorum_ack_latency", DetailLevel.ADVANCED);
         ACK_LATENCY = metricsContext.getSummarySet("ack_latency", DetailLevel.ADVANCED);
@@ -233,6 +257,7 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         LARGE_REQUESTS_REJECTED = metricsContext.getCounter("large_requests_rejected");
 
         NETTY_QUEUED_BUFFER = metricsContext.getSummary("netty_queued_buffer_capacity", DetailLevel.BASIC);
+        PACKETS_PER_WRITE = metricsContext.getSummary("packets_per_write", DetailLevel.BASIC);
 
         DIGEST_MISMATCHES_COUNT = metricsContext.getCounter("digest_mismatches_count");
 
@@ -265,6 +290,12 @@ private ServerMetrics(MetricsProvider metricsProvider) {
      */
     public final Summary SNAPSHOT_TIME;
 
+    /**
+     * Number of nodes copied to keep a consistent snapshot view while the
+     * snapshot was written
+     */
+    public final Summary SNAPSHOT_VIEW_PRESERVED_NODES;
+
     /**
      * Db init time (snapshot loading + txnlog replay)
      */
@@ -296,6 +327,13 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Counter LOOKING_COUNT;
     public final Counter DIFF_COUNT;
     public final Counter SNAP_COUNT;
+    // SNAP syncs sent from a snapshot file, and the size of the files sent
+    public final Counter SNAP_FILE_COUNT;
+    public final Summary SNAP_FILE_BYTES;
+    // Learners sent each snapshot serialization shared between learners
+    public final Summary SNAP_FANOUT_LEARNERS;
+    // Learners detached from a shared snapshot serialization for being too slow
+    public final Counter SNAP_FANOUT_LEARNERS_DETACHED;
     public final Counter COMMIT_COUNT;
     public final Counter CONNECTION_REQUEST_COUNT;
 
@@ -310,6 +348,14 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     // Connection throttling related
     public final Summary CONNECTION_TOKEN_DEFICIT;
     public final Counter CONNECTION_REJECTED;
+    // Connections accepted by the NIO accept threads, its rate is the accept rate
+    public final Counter CONNECTION_ACCEPTED;
+    // Connection requests admitted or rejected by the connection throttle,
+    // for new sessions and for renewals of existing sessions
+    public final Counter CONNECTION_NEW_SESSION_ADMITTED;
+    public final Counter CONNECTION_NEW_SESSION_REJECTED;
+    public final Counter CONNECTION_RENEW_SESSION_ADMITTED;
+    public final Counter CONNECTION_RENEW_SESSION_REJECTED;
 
     public final Summary INFLIGHT_SNAP_COUNT;
     public final Summary INFLIGHT_DIFF_COUNT;
@@ -336,6 +382,14 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Summary STARTUP_TXNS_LOADED;
     public final Summary STARTUP_TXNS_LOAD_TIME;
     public final Summary STARTUP_SNAP_LOAD_TIME;
+    /**
+     * Txns replayed per second while loading the database
+     */
+    public final Summary STARTUP_TXNS_REPLAY_RATE;
+    /**
+     * Number of txns applied concurrently in each batch of the parallel replay
+     */
+    public final Summary STARTUP_TXNS_REPLAY_BATCH_SIZE;
 
     public final Summary SYNC_PROCESSOR_QUEUE_AND_FLUSH_TIME;
     public final Summary SYNC_PROCESSOR_QUEUE_SIZE;
@@ -345,6 +399,10 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Summary SYNC_PROCESS_TIME;
 
     public final Summary BATCH_SIZE;
+    /**
+     * The batch size the adaptive flush was aiming for when flushing
+     */
+    public final Summary SYNC_PROCESSOR_ADAPTIVE_BATCH_TARGET;
 
     public final Summary QUORUM_ACK_LATENCY;
     public final SummarySet ACK_LATENCY;
@@ -368,12 +426,17 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Summary DEAD_WATCHERS_CLEANER_LATENCY;
 
     /*
-     * Response cache hit and miss metrics.
+     * Response cache hit, miss and eviction metrics.
      */
     public final Counter RESPONSE_PACKET_CACHE_HITS;
     public final Counter RESPONSE_PACKET_CACHE_MISSING;
     public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_HITS;
     public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_MISSING;
+    public final Counter RESPONSE_PACKET_CACHE_EVICTIONS;
+    public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS;
+    public final Counter RESPONSE_PACKET_OTHER_READ_CACHE_HITS;
+    public final Counter RESPONSE_PACKET_OTHER_READ_CACHE_MISSING;
+    public final Counter RESPONSE_PACKET_OTHER_READ_CACHE_EVICTIONS;
 
     /**
      * Learner handler quorum packet metrics.
@@ -381,6 +444,21 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final SummarySet LEARNER_HANDLER_QP_SIZE;
     public final SummarySet LEARNER_HANDLER_QP_TIME;
 
+    /**
+     * Packets broadcast to the learners that were serialized, and that were
+     * sent without serializing them again.
+     */
+    public final Counter SHARED_QUORUM_PACKETS_SERIALIZED;
+    public final Counter SHARED_QUORUM_PACKETS_REUSED;
+
+    /**
+     * Bytes of the compressed streams to the learners before and after
+     * compression, and the time spent compressing each frame per learner.
+     */
+    public final Counter LEARNER_UNCOMPRESSED_BYTES;
+    public final Counter LEARNER_COMPRESSED_BYTES;
+    public final SummarySet LEARNER_COMPRESSION_TIME;
+
     /*
      * Number of requests that are in the session queue.
      */
@@ -404,6 +482,7 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Counter COMMITS_QUEUED;
     public final Summary READS_ISSUED_IN_COMMIT_PROC;
     public final Summary WRITES_ISSUED_IN_COMMIT_PROC;
+    public final Summary WRITES_APPLIED_CONCURRENTLY_IN_COMMIT_PROC;
 
     // Request op throttling related
     public final Counter THROTTLED_OPS;
@@ -468,6 +547,11 @@ private ServerMetrics(MetricsProvider metricsProvider) {
 
     public final Summary NETTY_QUEUED_BUFFER;
 
+    /*
+     * Number of response packets completed by each write to a client socket
+     */
+    public final Summary PACKETS_PER_WRITE;
+
     // Total number of digest mismatches that are observed when applying
     // txns to data tree.
     public final Counter DIGEST_MISMATCHES_COUNT;
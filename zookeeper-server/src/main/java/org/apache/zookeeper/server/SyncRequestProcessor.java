@@ -23,12 +23,15 @@
 import java.util.ArrayDeque;
 import java.util.Objects;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.persistence.TxnLog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,6 +51,12 @@
  *             It never send ack back to the leader, so the nextProcessor will
  *             be null. This change the semantic of txnlog on the observer
  *             since it only contains committed txns.
+ *
+ * When the fsync pipeline is enabled the batches are synced by a separate
+ * FsyncThread, so that this thread appends the next batch while the previous
+ * one is being synced. The FsyncThread syncs and passes on the batches in the
+ * order they were appended, so the requests still reach the next processor
+ * in zxid order, after they are durable.
  */
 public class SyncRequestProcessor extends ZooKeeperCriticalThread implements RequestProcessor {
 
@@ -85,11 +94,25 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
     private final Queue<Request> toFlush;
     private long lastFlushTime;
 
+    /**
+     * Sizes the batches when adaptive flush is enabled, null otherwise
+     */
+    private final AdaptiveFlushPolicy adaptiveFlush;
+
+    /**
+     * Syncs the batches when the fsync pipeline is enabled, null otherwise
+     */
+    private final FsyncThread fsyncThread;
+
     public SyncRequestProcessor(ZooKeeperServer zks, RequestProcessor nextProcessor) {
         super("SyncThread:" + zks.getServerId(), zks.getZooKeeperServerListener());
         this.zks = zks;
         this.nextProcessor = nextProcessor;
         this.toFlush = new ArrayDeque<>(zks.getMaxBatchSize());
+        this.adaptiveFlush = zks.isAdaptiveFlushEnabled()
+            ? new AdaptiveFlushPolicy(zks.getMaxBatchSize(), System.nanoTime())
+            : null;
+        this.fsyncThread = zks.isFsyncPipelineEnabled() ? new FsyncThread() : null;
     }
 
     /**
@@ -121,10 +144,17 @@ private long getRemainingDelay() {
     /** If both flushDelay and maxMaxBatchSize are set (bigger than 0), flush
      * whenever either condition is hit. If only one or the other is
      * set, flush only when the relevant condition is hit.
+     *
+     * With adaptive flush only maxBatchSize is checked here, the batch is
+     * otherwise flushed once no more requests arrive within the wait time
+     * chosen by the {@link AdaptiveFlushPolicy}.
      */
     private boolean shouldFlush() {
         long flushDelay = zks.getFlushDelay();
         long maxBatchSize = zks.getMaxBatchSize();
+        if (adaptiveFlush != null) {
+            return (maxBatchSize > 0) && (toFlush.size() >= maxBatchSize);
+        }
         if ((flushDelay > 0) && (getRemainingDelay() == 0)) {
             return true;
         }
@@ -162,8 +192,14 @@ public void run() {
             while (true) {
                 ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUE_SIZE.add(queuedRequests.size());
 
-                long pollTime = Math.min(zks.getMaxWriteQueuePollTime(), getRemainingDelay());
-                Request si = queuedRequests.poll(pollTime, TimeUnit.MILLISECONDS);
+                Request si;
+                if (adaptiveFlush != null) {
+                    long waitTime = adaptiveFlush.getFlushWaitNanos(toFlush.size(), System.nanoTime());
+                    si = queuedRequests.poll(waitTime, TimeUnit.NANOSECONDS);
+                } else {
+                    long pollTime = Math.min(zks.getMaxWriteQueuePollTime(), getRemainingDelay());
+                    si = queuedRequests.poll(pollTime, TimeUnit.MILLISECONDS);
+                }
                 if (si == null) {
                     /* We timed out looking for more writes to batch, go ahead and flush immediately */
                     flush();
@@ -200,7 +236,7 @@ public void run() {
                             }.start();
                         }
                     }
-                } else if (toFlush.isEmpty()) {
+                } else if (toFlush.isEmpty() && (fsyncThread == null || fsyncThread.isIdle())) {
                     // optimization for read heavy workloads
                     // iff this is a read or a throttled request(which doesn't need to be written to the disk),
                     // and there are no pending flushes (writes), then just pass this to the next processor
@@ -213,6 +249,9 @@ public void run() {
                     continue;
                 }
                 toFlush.add(si);
+                if (adaptiveFlush != null) {
+                    adaptiveFlush.txnAdded(System.nanoTime());
+                }
                 if (shouldFlush()) {
                     flush();
                 }
@@ -224,22 +263,48 @@ public void run() {
         LOG.info("SyncRequestProcessor exited!");
     }
 
-    private void flush() throws IOException, RequestProcessorException {
+    private void flush() throws IOException, RequestProcessorException, InterruptedException {
         if (this.toFlush.isEmpty()) {
             return;
         }
 
         ServerMetrics.getMetrics().BATCH_SIZE.add(toFlush.size());
 
-        long flushStartTime = Time.currentElapsedTime();
-        zks.getZKDatabase().commit();
-        ServerMetrics.getMetrics().SYNC_PROCESSOR_FLUSH_TIME.add(Time.currentElapsedTime() - flushStartTime);
+        if (fsyncThread != null) {
+            // the batch is synced and passed on by the FsyncThread while
+            // this thread goes on with the next one
+            TxnLog.PendingSync sync = zks.getZKDatabase().startCommit();
+            recordFlush(fsyncThread.getLastSyncNanos());
+            fsyncThread.submit(sync, new ArrayDeque<>(toFlush));
+            toFlush.clear();
+        } else {
+            long flushStartTime = Time.currentElapsedTime();
+            long commitStartNanos = System.nanoTime();
+            zks.getZKDatabase().commit();
+            ServerMetrics.getMetrics().SYNC_PROCESSOR_FLUSH_TIME.add(Time.currentElapsedTime() - flushStartTime);
+
+            recordFlush(System.nanoTime() - commitStartNanos);
+            passOn(toFlush);
+        }
+        lastFlushTime = Time.currentElapsedTime();
+    }
 
+    private void recordFlush(long commitNanos) {
+        if (adaptiveFlush != null) {
+            ServerMetrics.getMetrics().SYNC_PROCESSOR_ADAPTIVE_BATCH_TARGET.add(adaptiveFlush.getTargetBatchSize());
+            adaptiveFlush.flushed(toFlush.size(), commitNanos, System.nanoTime());
+        }
+    }
+
+    /**
+     * Pass the synced requests on to the next processor.
+     */
+    private void passOn(Queue<Request> synced) throws IOException, RequestProcessorException {
         if (this.nextProcessor == null) {
-            this.toFlush.clear();
+            synced.clear();
         } else {
-            while (!this.toFlush.isEmpty()) {
-                final Request i = this.toFlush.remove();
+            while (!synced.isEmpty()) {
+                final Request i = synced.remove();
                 long latency = Time.currentElapsedTime() - i.syncQueueStartTime;
                 ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUE_AND_FLUSH_TIME.add(latency);
                 this.nextProcessor.processRequest(i);
@@ -248,7 +313,14 @@ private void flush() throws IOException, RequestProcessorException {
                 ((Flushable) this.nextProcessor).flush();
             }
         }
-        lastFlushTime = Time.currentElapsedTime();
+    }
+
+    @Override
+    public synchronized void start() {
+        if (fsyncThread != null) {
+            fsyncThread.start();
+        }
+        super.start();
     }
 
     public void shutdown() {
@@ -257,6 +329,9 @@ public void shutdown() {
         try {
             this.join();
             this.flush();
+            if (fsyncThread != null) {
+                fsyncThread.shutdown();
+            }
         } catch (InterruptedException e) {
             LOG.warn("Interrupted while wating for {} to finish", this);
             Thread.currentThread().interrupt();
@@ -278,4 +353,96 @@ public void processRequest(final Request request) {
         ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUED.add(1);
     }
 
+    /**
+     * A batch of appended requests and the sync that makes them durable.
+     */
+    private static class SyncBatch {
+
+        final TxnLog.PendingSync sync;
+        final Queue<Request> requests;
+
+        SyncBatch(TxnLog.PendingSync sync, Queue<Request> requests) {
+            this.sync = sync;
+            this.requests = requests;
+        }
+
+    }
+
+    private static final SyncBatch BATCH_OF_DEATH = new SyncBatch(null, null);
+
+    /**
+     * Syncs the batches in the order they were submitted and passes their
+     * requests on to the next processor.
+     */
+    private class FsyncThread extends ZooKeeperCriticalThread {
+
+        /**
+         * At most one batch waits while another one is being synced, the
+         * requests arriving meanwhile make up a larger next batch.
+         */
+        private final BlockingQueue<SyncBatch> batches = new ArrayBlockingQueue<>(1);
+
+        /** The number of batches submitted and not passed on yet */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private volatile long lastSyncNanos;
+
+        FsyncThread() {
+            super("FsyncThread:" + zks.getServerId(), zks.getZooKeeperServerListener());
+        }
+
+        boolean isIdle() {
+            return pending.get() == 0;
+        }
+
+        long getLastSyncNanos() {
+            return lastSyncNanos;
+        }
+
+        void submit(TxnLog.PendingSync sync, Queue<Request> requests) throws IOException, InterruptedException {
+            pending.incrementAndGet();
+            enqueue(new SyncBatch(sync, requests));
+        }
+
+        private void enqueue(SyncBatch batch) throws IOException, InterruptedException {
+            while (!batches.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                if (!isAlive()) {
+                    throw new IOException(getName() + " is not running");
+                }
+            }
+        }
+
+        void shutdown() throws IOException, InterruptedException {
+            if (isAlive()) {
+                enqueue(BATCH_OF_DEATH);
+                join();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    SyncBatch batch = batches.take();
+                    if (batch == BATCH_OF_DEATH) {
+                        break;
+                    }
+
+                    long flushStartTime = Time.currentElapsedTime();
+                    long syncStartNanos = System.nanoTime();
+                    batch.sync.sync();
+                    lastSyncNanos = System.nanoTime() - syncStartNanos;
+                    ServerMetrics.getMetrics().SYNC_PROCESSOR_FLUSH_TIME.add(Time.currentElapsedTime() - flushStartTime);
+
+                    passOn(batch.requests);
+                    pending.decrementAndGet();
+                }
+            } catch (Throwable t) {
+                handleException(this.getName(), t);
+            }
+            LOG.info("FsyncThread exited!");
+        }
+
+    }
+
 }
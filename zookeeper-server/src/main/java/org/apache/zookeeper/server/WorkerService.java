@@ -18,7 +18,9 @@
 
 package org.apache.zookeeper.server;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
@@ -42,13 +44,29 @@
  *     a given session must be processed in order.
  * ExecutorService provides queue management and thread restarting, so it's
  * useful even with a single thread.
+ *
+ * With {@link #VIRTUAL_THREADS} set and on a JVM supporting them, the work
+ * runs on a virtual thread per task instead, so that work blocking its thread
+ * does not hold up the other requests. Assignable work is then serialized per
+ * id rather than per thread, which preserves the ordering of the work of an
+ * id without limiting the concurrency between ids.
  */
 public class WorkerService {
 
     private static final Logger LOG = LoggerFactory.getLogger(WorkerService.class);
 
+    public static final String VIRTUAL_THREADS = "zookeeper.workerService.virtualThreads";
+
     private final ArrayList<ExecutorService> workers = new ArrayList<ExecutorService>();
 
+    private final boolean useVirtualThreads;
+
+    /**
+     * The work queued per id when assignable work runs on virtual threads,
+     * an id has an entry while some of its work is queued or running.
+     */
+    private ConcurrentHashMap<Long, Lane> lanes;
+
     private final String threadNamePrefix;
     private int numWorkerThreads;
     private boolean threadsAreAssignable;
@@ -68,6 +86,7 @@ public WorkerService(String name, int numThreads, boolean useAssignableThreads)
         this.threadNamePrefix = (name == null ? "" : name) + "Thread";
         this.numWorkerThreads = numThreads;
         this.threadsAreAssignable = useAssignableThreads;
+        this.useVirtualThreads = Boolean.getBoolean(VIRTUAL_THREADS);
         start();
     }
 
@@ -118,7 +137,14 @@ public void schedule(WorkRequest workRequest, long id) {
         // If we have a worker thread pool, use that; otherwise, do the work
         // directly.
         int size = workers.size();
-        if (size > 0) {
+        if (lanes != null) {
+            try {
+                scheduleInLane(scheduledWorkRequest, id);
+            } catch (RejectedExecutionException e) {
+                LOG.warn("ExecutorService rejected execution", e);
+                workRequest.cleanup();
+            }
+        } else if (size > 0) {
             try {
                 // make sure to map negative ids as well to [0, size-1]
                 int workerNum = ((int) (id % size) + size) % size;
@@ -135,6 +161,50 @@ public void schedule(WorkRequest workRequest, long id) {
         }
     }
 
+    private void scheduleInLane(Runnable work, long id) {
+        lanes.compute(id, (key, lane) -> {
+            if (lane == null) {
+                lane = new Lane(key);
+                lane.queue.add(work);
+                workers.get(0).execute(lane);
+            } else {
+                lane.queue.add(work);
+            }
+            return lane;
+        });
+    }
+
+    /**
+     * Runs the work of an id in order. The queue is only accessed while
+     * holding the entry of the id in lanes, the lane is removed once its
+     * queue is empty.
+     */
+    private class Lane implements Runnable {
+
+        private final long id;
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        private Runnable next;
+
+        Lane(long id) {
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                lanes.computeIfPresent(id, (key, lane) -> {
+                    next = queue.poll();
+                    return next == null ? null : lane;
+                });
+                if (next == null) {
+                    return;
+                }
+                next.run();
+            }
+        }
+
+    }
+
     private class ScheduledWorkRequest implements Runnable {
 
         private final WorkRequest workRequest;
@@ -196,8 +266,39 @@ public Thread newThread(Runnable r) {
 
     }
 
+    /**
+     * Returns an executor running each task on a new virtual thread, or null
+     * if the JVM does not support virtual threads. Java 21 APIs are called
+     * reflectively since the code is built for older releases.
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
     public void start() {
-        if (numWorkerThreads > 0) {
+        ExecutorService virtualThreadExecutor = null;
+        if (numWorkerThreads > 0 && useVirtualThreads) {
+            virtualThreadExecutor = newVirtualThreadPerTaskExecutor(threadNamePrefix);
+            if (virtualThreadExecutor == null) {
+                LOG.warn("{} is set but virtual threads are not supported, using {} worker threads",
+                         VIRTUAL_THREADS, numWorkerThreads);
+            }
+        }
+        if (virtualThreadExecutor != null) {
+            workers.add(virtualThreadExecutor);
+            if (threadsAreAssignable) {
+                lanes = new ConcurrentHashMap<>();
+            }
+        } else if (numWorkerThreads > 0) {
             if (threadsAreAssignable) {
                 for (int i = 1; i <= numWorkerThreads; ++i) {
                     workers.add(Executors.newFixedThreadPool(1, new DaemonThreadFactory(threadNamePrefix, i)));
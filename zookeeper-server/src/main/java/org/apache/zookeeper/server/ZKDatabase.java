@@ -20,6 +20,7 @@
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
@@ -47,8 +48,10 @@
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.server.DataTree.ProcessTxnResult;
+import org.apache.zookeeper.server.persistence.FileSnap;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog.PlayBackListener;
+import org.apache.zookeeper.server.persistence.TxnLog;
 import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
 import org.apache.zookeeper.server.quorum.Leader;
 import org.apache.zookeeper.server.quorum.Leader.Proposal;
@@ -379,7 +382,10 @@ public Iterator<Proposal> getProposalsFromTxnLog(long startZxid, long sizeLimit)
         TxnIterator itr = null;
         try {
 
-            itr = snapLog.readTxnLog(startZxid, false);
+            // seek with the index of the txnlog instead of reading it from
+            // its start, while still starting before startZxid so a TRUNC
+            // can be found
+            itr = snapLog.readTxnLogNear(startZxid);
 
             // If we cannot guarantee that this is strictly the starting txn
             // after a given zxid, we should fail.
@@ -621,6 +627,32 @@ public void deserializeSnapshot(InputArchive ia) throws IOException {
         initialized = true;
     }
 
+    /**
+     * deserialize the content of a snapshot file read from a stream, its
+     * checksums are verified like when the file is loaded from disk
+     * @param is the stream of the snapshot file content, left open
+     * @param snapName the name of the snapshot file
+     * @return the zxid of the snapshot
+     * @throws IOException
+     */
+    public long deserializeSnapshot(InputStream is, String snapName) throws IOException {
+        clear();
+        long zxid = FileSnap.deserialize(getDataTree(), getSessionWithTimeOuts(), is, snapName);
+        initialized = true;
+        return zxid;
+    }
+
+    /**
+     * the most recent full snapshot file up to a zxid, delta snapshots are
+     * not included
+     * @param maxZxid the highest zxid of the snapshot
+     * @return the most recent valid snapshot file, null if there is none
+     * @throws IOException
+     */
+    public File findMostRecentSnapshot(long maxZxid) throws IOException {
+        return snapLog.findMostRecentSnapshot(maxZxid);
+    }
+
     /**
      * serialize the snapshot
      * @param oa the output archive to which the snapshot needs to be serialized
@@ -657,6 +689,16 @@ public void commit() throws IOException {
         this.snapLog.commit();
     }
 
+    /**
+     * start a commit to the underlying transaction log, the returned sync
+     * can run on another thread while more requests are appended
+     * @return the sync persisting the requests appended so far
+     * @throws IOException
+     */
+    public TxnLog.PendingSync startCommit() throws IOException {
+        return this.snapLog.startCommit();
+    }
+
     /**
      * close this database. free the resources
      * @throws IOException
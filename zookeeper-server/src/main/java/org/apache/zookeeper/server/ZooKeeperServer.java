@@ -22,7 +22,6 @@
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
@@ -170,6 +169,7 @@ public static void setCloseSessionTxnEnabled(boolean enabled) {
     private ZKDatabase zkDb;
     private ResponseCache readResponseCache;
     private ResponseCache getChildrenResponseCache;
+    private ResponseCache otherReadResponseCache;
     private final AtomicLong hzxid = new AtomicLong(0);
     public static final Exception ok = new Exception("No prob");
     protected RequestProcessor firstProcessor;
@@ -216,6 +216,10 @@ protected enum State {
     private static volatile long maxWriteQueuePollTime;
     private static final String MAX_BATCH_SIZE = "zookeeper.maxBatchSize";
     private static volatile int maxBatchSize;
+    private static final String ADAPTIVE_FLUSH = "zookeeper.adaptiveFlush";
+    private static volatile boolean adaptiveFlush;
+    private static final String FSYNC_PIPELINE = "zookeeper.fsyncPipeline";
+    private static volatile boolean fsyncPipeline;
 
     /**
      * Starting size of read and write ByteArroyOuputBuffers. Default is 32 bytes.
@@ -227,12 +231,17 @@ protected enum State {
 
     public static final String GET_DATA_RESPONSE_CACHE_SIZE = "zookeeper.maxResponseCacheSize";
     public static final String GET_CHILDREN_RESPONSE_CACHE_SIZE = "zookeeper.maxGetChildrenResponseCacheSize";
+    public static final String GET_DATA_RESPONSE_CACHE_BYTES = "zookeeper.maxResponseCacheBytes";
+    public static final String GET_CHILDREN_RESPONSE_CACHE_BYTES = "zookeeper.maxGetChildrenResponseCacheBytes";
+    public static final String OTHER_READ_RESPONSE_CACHE_BYTES = "zookeeper.maxOtherReadResponseCacheBytes";
 
     static {
         long configuredFlushDelay = Long.getLong(FLUSH_DELAY, 0);
         setFlushDelay(configuredFlushDelay);
         setMaxWriteQueuePollTime(Long.getLong(MAX_WRITE_QUEUE_POLL_SIZE, configuredFlushDelay / 3));
         setMaxBatchSize(Integer.getInteger(MAX_BATCH_SIZE, 1000));
+        setAdaptiveFlushEnabled(Boolean.getBoolean(ADAPTIVE_FLUSH));
+        setFsyncPipelineEnabled(Boolean.getBoolean(FSYNC_PIPELINE));
 
         intBufferStartingSizeBytes = Integer.getInteger(INT_BUFFER_STARTING_SIZE_BYTES, DEFAULT_STARTING_BUFFER_SIZE);
 
@@ -320,11 +329,21 @@ public ZooKeeperServer(FileTxnSnapLog txnLogFactory, int tickTime, int minSessio
 
         readResponseCache = new ResponseCache(Integer.getInteger(
             GET_DATA_RESPONSE_CACHE_SIZE,
-            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE));
+            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE),
+            Long.getLong(GET_DATA_RESPONSE_CACHE_BYTES, 0));
 
         getChildrenResponseCache = new ResponseCache(Integer.getInteger(
             GET_CHILDREN_RESPONSE_CACHE_SIZE,
-            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE));
+            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE),
+            Long.getLong(GET_CHILDREN_RESPONSE_CACHE_BYTES, 0));
+
+        // only bounded in bytes, the responses are small but can be many
+        long otherReadResponseCacheBytes = Long.getLong(
+            OTHER_READ_RESPONSE_CACHE_BYTES,
+            ResponseCache.DEFAULT_RESPONSE_CACHE_BYTES);
+        otherReadResponseCache = new ResponseCache(
+            otherReadResponseCacheBytes > 0 ? Integer.MAX_VALUE : 0,
+            otherReadResponseCacheBytes);
 
         this.initialConfig = initialConfig;
 
@@ -1333,7 +1352,7 @@ public double getConnectionDropChance() {
     public void processConnectRequest(ServerCnxn cnxn, ByteBuffer incomingBuffer)
         throws IOException, ClientCnxnLimitException {
 
-        BinaryInputArchive bia = BinaryInputArchive.getArchive(new ByteBufferInputStream(incomingBuffer));
+        BinaryInputArchive bia = BinaryInputArchive.getArchive(incomingBuffer);
         ConnectRequest connReq = new ConnectRequest();
         connReq.deserialize(bia, "connect");
         LOG.debug(
@@ -1355,9 +1374,22 @@ public void processConnectRequest(ServerCnxn cnxn, ByteBuffer incomingBuffer)
             }
         }
 
-        if (!connThrottle.checkLimit(tokensNeeded)) {
+        // renewals of existing sessions are admitted first under overload,
+        // the session id comes from the client so it has to be known here
+        boolean renew = sessionId != 0 && isKnownSession(sessionId);
+        if (!connThrottle.checkLimit(tokensNeeded, renew)) {
+            if (renew) {
+                ServerMetrics.getMetrics().CONNECTION_RENEW_SESSION_REJECTED.add(1);
+            } else {
+                ServerMetrics.getMetrics().CONNECTION_NEW_SESSION_REJECTED.add(1);
+            }
             throw new ClientCnxnLimitException();
         }
+        if (renew) {
+            ServerMetrics.getMetrics().CONNECTION_RENEW_SESSION_ADMITTED.add(1);
+        } else {
+            ServerMetrics.getMetrics().CONNECTION_NEW_SESSION_ADMITTED.add(1);
+        }
         ServerMetrics.getMetrics().CONNECTION_TOKEN_DEFICIT.add(connThrottle.getDeficit());
 
         ServerMetrics.getMetrics().CONNECTION_REQUEST_COUNT.add(1);
@@ -1433,6 +1465,16 @@ public void processConnectRequest(ServerCnxn cnxn, ByteBuffer incomingBuffer)
         }
     }
 
+    /**
+     * @return whether the session is tracked by this server or is a global
+     * session of the database, so that a connection reusing it is a renewal
+     */
+    private boolean isKnownSession(long sessionId) {
+        SessionTracker tracker = sessionTracker;
+        return (tracker != null && tracker.isTrackingSession(sessionId))
+               || zkDb.getSessionWithTimeOuts().containsKey(sessionId);
+    }
+
     public boolean shouldThrottle(long outStandingCount) {
         int globalOutstandingLimit = getGlobalOutstandingLimit();
         if (globalOutstandingLimit < getInflight() || globalOutstandingLimit < getInProcess()) {
@@ -1468,6 +1510,24 @@ static void setMaxBatchSize(int size) {
         maxBatchSize = size;
     }
 
+    boolean isAdaptiveFlushEnabled() {
+        return adaptiveFlush;
+    }
+
+    static void setAdaptiveFlushEnabled(boolean enabled) {
+        LOG.info("{}={}", ADAPTIVE_FLUSH, enabled);
+        adaptiveFlush = enabled;
+    }
+
+    boolean isFsyncPipelineEnabled() {
+        return fsyncPipeline;
+    }
+
+    static void setFsyncPipelineEnabled(boolean enabled) {
+        LOG.info("{}={}", FSYNC_PIPELINE, enabled);
+        fsyncPipeline = enabled;
+    }
+
     private void initLargeRequestThrottlingSettings() {
         setLargeRequestMaxBytes(Integer.getInteger("zookeeper.largeRequestMaxBytes", largeRequestMaxBytes));
         setLargeRequestThreshold(Integer.getInteger("zookeeper.largeRequestThreshold", -1));
@@ -1549,8 +1609,7 @@ public void requestFinished(Request request) {
 
     public void processPacket(ServerCnxn cnxn, ByteBuffer incomingBuffer) throws IOException {
         // We have the request, now process and setup for next
-        InputStream bais = new ByteBufferInputStream(incomingBuffer);
-        BinaryInputArchive bia = BinaryInputArchive.getArchive(bais);
+        BinaryInputArchive bia = BinaryInputArchive.getArchive(incomingBuffer);
         RequestHeader h = new RequestHeader();
         h.deserialize(bia, "header");
 
@@ -1726,27 +1785,21 @@ public ProcessTxnResult processTxn(Request request) {
         if (!writeRequest && !quorumRequest) {
             return new ProcessTxnResult();
         }
+        if (request.isAppliedConcurrently()) {
+            // applied with the rest of its batch, only its watches are left
+            // to fire, in zxid order as the requests are processed in order
+            for (Runnable trigger : request.getConcurrentWatchTriggers()) {
+                trigger.run();
+            }
+            return request.getConcurrentTxnResult();
+        }
         synchronized (outstandingChanges) {
             ProcessTxnResult rc = processTxnInDB(hdr, request.getTxn(), request.getTxnDigest());
 
             // request.hdr is set for write requests, which are the only ones
             // that add to outstandingChanges.
             if (writeRequest) {
-                long zxid = hdr.getZxid();
-                while (!outstandingChanges.isEmpty()
-                        && outstandingChanges.peek().zxid <= zxid) {
-                    ChangeRecord cr = outstandingChanges.remove();
-                    ServerMetrics.getMetrics().OUTSTANDING_CHANGES_REMOVED.add(1);
-                    if (cr.zxid < zxid) {
-                        LOG.warn(
-                            "Zxid outstanding 0x{} is less than current 0x{}",
-                            Long.toHexString(cr.zxid),
-                            Long.toHexString(zxid));
-                    }
-                    if (outstandingChangesForPath.get(cr.path) == cr) {
-                        outstandingChangesForPath.remove(cr.path);
-                    }
-                }
+                removeOutstandingChanges(hdr.getZxid());
             }
 
             // do not add non quorum packets to the queue.
@@ -1757,6 +1810,78 @@ public ProcessTxnResult processTxn(Request request) {
         }
     }
 
+    /**
+     * The nodes a committed request depends on, if it may be applied
+     * concurrently with requests depending on other nodes, or null if it has
+     * to be applied in order with the other requests.
+     *
+     * @see DataTree#conflictKeys(TxnHeader, Record)
+     */
+    public Set<String> getConcurrentApplyKeys(Request request) {
+        TxnHeader hdr = request.getHdr();
+        if (hdr == null
+            || hdr.getType() == OpCode.createSession
+            || getZKDatabase().getDataTree().getDigestFromLoadedSnapshot() != null) {
+            // syncs and session events are applied in order, and so are the
+            // txns until the digest of the loaded snapshot has been compared
+            return null;
+        }
+        return DataTree.conflictKeys(hdr, request.getTxn());
+    }
+
+    /**
+     * Apply a committed request concurrently with the other requests of its
+     * batch. The watches it triggers are kept in the request, and only fired
+     * by {@link #processTxn(Request)} once the request is processed.
+     */
+    public void applyConcurrently(Request request) {
+        List<Runnable> watchTriggers = new ArrayList<>(2);
+        ProcessTxnResult rc = getZKDatabase().getDataTree().replayTxn(request.getHdr(), request.getTxn(), watchTriggers);
+        request.setConcurrentTxnResult(rc, watchTriggers);
+    }
+
+    /**
+     * Called once the requests of a batch, applied concurrently with
+     * {@link #applyConcurrently(Request)}, have all been applied and before
+     * they are processed: move the zxid and digest of the tree to the last
+     * one and do the bookkeeping {@link #processTxn(Request)} does for the
+     * requests applied in order.
+     *
+     * @param requests the requests of the batch, in zxid order
+     */
+    public void concurrentTxnsApplied(List<Request> requests) {
+        Request last = requests.get(requests.size() - 1);
+        DataTree dataTree = getZKDatabase().getDataTree();
+        dataTree.replayedUpTo(last.getHdr().getZxid());
+        dataTree.compareDigest(last.getHdr(), last.getTxn(), last.getTxnDigest());
+        synchronized (outstandingChanges) {
+            for (Request request : requests) {
+                removeOutstandingChanges(request.getHdr().getZxid());
+                if (request.isQuorum()) {
+                    getZKDatabase().addCommittedProposal(request);
+                }
+            }
+        }
+    }
+
+    // must be called under the outstandingChanges lock
+    private void removeOutstandingChanges(long zxid) {
+        while (!outstandingChanges.isEmpty()
+                && outstandingChanges.peek().zxid <= zxid) {
+            ChangeRecord cr = outstandingChanges.remove();
+            ServerMetrics.getMetrics().OUTSTANDING_CHANGES_REMOVED.add(1);
+            if (cr.zxid < zxid) {
+                LOG.warn(
+                    "Zxid outstanding 0x{} is less than current 0x{}",
+                    Long.toHexString(cr.zxid),
+                    Long.toHexString(zxid));
+            }
+            if (outstandingChangesForPath.get(cr.path) == cr) {
+                outstandingChangesForPath.remove(cr.path);
+            }
+        }
+    }
+
     private void processTxnForSessionEvents(Request request, TxnHeader hdr, Record txn) {
         int opCode = (request == null) ? hdr.getType() : request.type;
         long sessionId = (request == null) ? hdr.getClientId() : request.sessionId;
@@ -1813,6 +1938,13 @@ public ResponseCache getGetChildrenResponseCache() {
         return isResponseCachingEnabled ? getChildrenResponseCache : null;
     }
 
+    /**
+     * @return the response cache of exists, getACL and multi read requests
+     */
+    public ResponseCache getOtherReadResponseCache() {
+        return isResponseCachingEnabled ? otherReadResponseCache : null;
+    }
+
     protected void registerMetrics() {
         MetricsContext rootContext = ServerMetrics.getMetrics().getMetricsProvider().getRootContext();
 
@@ -1851,6 +1983,13 @@ protected void registerMetrics() {
         rootContext.registerGauge("min_client_response_size", stats.getClientResponseStats()::getMinBufferSize);
 
         rootContext.registerGauge("outstanding_tls_handshake", this::getOutstandingHandshakeNum);
+
+        rootContext.registerGauge("response_packet_cache_size", readResponseCache::size);
+        rootContext.registerGauge("response_packet_cache_bytes", readResponseCache::getBytes);
+        rootContext.registerGauge("response_packet_get_children_cache_size", getChildrenResponseCache::size);
+        rootContext.registerGauge("response_packet_get_children_cache_bytes", getChildrenResponseCache::getBytes);
+        rootContext.registerGauge("response_packet_other_read_cache_size", otherReadResponseCache::size);
+        rootContext.registerGauge("response_packet_other_read_cache_bytes", otherReadResponseCache::getBytes);
     }
 
     protected void unregisterMetrics() {
@@ -1886,6 +2025,13 @@ protected void unregisterMetrics() {
         rootContext.unregisterGauge("max_client_response_size");
         rootContext.unregisterGauge("min_client_response_size");
 
+        rootContext.unregisterGauge("response_packet_cache_size");
+        rootContext.unregisterGauge("response_packet_cache_bytes");
+        rootContext.unregisterGauge("response_packet_get_children_cache_size");
+        rootContext.unregisterGauge("response_packet_get_children_cache_bytes");
+        rootContext.unregisterGauge("response_packet_other_read_cache_size");
+        rootContext.unregisterGauge("response_packet_other_read_cache_bytes");
+
     }
 
     /**
@@ -282,6 +282,16 @@ public void setConnectionDecreaseRatio(double val) {
 
     ///////////////////////////////////////////////////////////////////////////
 
+    public double getConnectionRenewReserve() {
+        return zks.connThrottle().getRenewReserve();
+    }
+
+    public void setConnectionRenewReserve(double val) {
+        zks.connThrottle().setRenewReserve(val);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
     public int getCommitProcMaxReadBatchSize() {
         return CommitProcessor.getMaxReadBatchSize();
     }
@@ -121,6 +121,9 @@ public interface ZooKeeperServerMXBean {
     double getConnectionDecreaseRatio();
     void setConnectionDecreaseRatio(double val);
 
+    double getConnectionRenewReserve();
+    void setConnectionRenewReserve(double val);
+
     int getCommitProcMaxReadBatchSize();
     void setCommitProcMaxReadBatchSize(int size);
 
@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xerial.snappy.Snappy;
+
+/**
+ * InputStream for the chunked snapshot format, see
+ * {@link ChunkedSnapOutputStream} for the layout.
+ * <p>
+ * The chunks following the one being consumed are read, verified and
+ * decompressed ahead by a pool of threads. A chunk whose checksum doesn't
+ * match fails the read as soon as it is reached.
+ */
+class ChunkedSnapInputStream extends InputStream {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkedSnapInputStream.class);
+
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer index;
+    private final int chunkCount;
+    private final int maxPendingChunks;
+    private final ExecutorService decompressors;
+    private final ArrayDeque<Future<byte[]>> pendingChunks = new ArrayDeque<>();
+    private int nextChunk;
+    private byte[] chunk = new byte[0];
+    private int pos;
+
+    ChunkedSnapInputStream(File file, int threads) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            this.index = readIndex(file, channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.chunkCount = index.capacity() / ChunkedSnapOutputStream.INDEX_ENTRY_LENGTH;
+        this.maxPendingChunks = threads * 2;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.decompressors = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "SnapshotChunkDecompressor-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Check the header, trailer and index of a chunked snapshot, this
+     * doesn't read the chunks themselves.
+     *
+     * @param file file to verify
+     * @return true if the file has a valid trailer and index
+     */
+    static boolean isValid(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            readIndex(file, channel);
+            return true;
+        } catch (InvalidChunkedSnapshotException e) {
+            LOG.info("Invalid snapshot {}. {}", file.getName(), e.getMessage());
+            return false;
+        }
+    }
+
+    private static ByteBuffer readIndex(File file, FileChannel channel) throws IOException {
+        long length = channel.size();
+        if (length < ChunkedSnapOutputStream.HEADER_LENGTH + ChunkedSnapOutputStream.TRAILER_LENGTH) {
+            throw new InvalidChunkedSnapshotException("too short, len = " + length + " bytes");
+        }
+        ByteBuffer header = readFully(channel, 0, ChunkedSnapOutputStream.HEADER_LENGTH);
+        if (header.getInt() != ChunkedSnapOutputStream.MAGIC) {
+            throw new InvalidChunkedSnapshotException("mismatching magic header");
+        }
+        int version = header.getInt();
+        if (version != ChunkedSnapOutputStream.VERSION) {
+            throw new InvalidChunkedSnapshotException("unsupported version " + version);
+        }
+        ByteBuffer trailer = readFully(
+            channel,
+            length - ChunkedSnapOutputStream.TRAILER_LENGTH,
+            ChunkedSnapOutputStream.TRAILER_LENGTH);
+        long indexOffset = trailer.getLong();
+        int chunkCount = trailer.getInt();
+        long indexCrc = trailer.getLong();
+        if (trailer.getInt() != ChunkedSnapOutputStream.MAGIC) {
+            throw new InvalidChunkedSnapshotException("mismatching magic trailer");
+        }
+        long indexLength = (long) chunkCount * ChunkedSnapOutputStream.INDEX_ENTRY_LENGTH;
+        if (chunkCount < 0
+            || indexOffset < ChunkedSnapOutputStream.HEADER_LENGTH
+            || indexOffset + indexLength != length - ChunkedSnapOutputStream.TRAILER_LENGTH) {
+            throw new InvalidChunkedSnapshotException("index out of bounds, offset = " + indexOffset
+                                                      + ", chunks = " + chunkCount);
+        }
+        ByteBuffer index = readFully(channel, indexOffset, (int) indexLength);
+        CRC32 crc = new CRC32();
+        crc.update(index.array());
+        if (crc.getValue() != indexCrc) {
+            throw new InvalidChunkedSnapshotException("index CRC corruption");
+        }
+        return index;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, position + bb.position()) < 0) {
+                throw new InvalidChunkedSnapshotException("unexpected end of file");
+            }
+        }
+        bb.flip();
+        return bb;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureChunk()) {
+            return -1;
+        }
+        return chunk[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, chunk.length - pos);
+        System.arraycopy(chunk, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return chunk.length - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        decompressors.shutdownNow();
+        channel.close();
+    }
+
+    private boolean ensureChunk() throws IOException {
+        while (pos == chunk.length) {
+            while (nextChunk < chunkCount && pendingChunks.size() < maxPendingChunks) {
+                final int i = nextChunk++;
+                pendingChunks.add(decompressors.submit(() -> readChunk(i)));
+            }
+            Future<byte[]> next = pendingChunks.poll();
+            if (next == null) {
+                return false;
+            }
+            try {
+                chunk = next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading snapshot chunk");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Failed to read snapshot chunk", e.getCause());
+            }
+            pos = 0;
+        }
+        return true;
+    }
+
+    private byte[] readChunk(int i) throws IOException {
+        int entry = i * ChunkedSnapOutputStream.INDEX_ENTRY_LENGTH;
+        long offset = index.getLong(entry);
+        int compressedLength = index.getInt(entry + 8);
+        int length = index.getInt(entry + 12);
+        long expectedCrc = index.getLong(entry + 16);
+        ByteBuffer compressed = readFully(channel, offset, compressedLength);
+        CRC32 crc = new CRC32();
+        crc.update(compressed.array());
+        if (crc.getValue() != expectedCrc) {
+            throw new IOException("CRC corruption in chunk " + i + " of " + file);
+        }
+        byte[] data = new byte[length];
+        int uncompressedLength = Snappy.uncompress(compressed.array(), 0, compressedLength, data, 0);
+        if (uncompressedLength != length) {
+            throw new IOException("Mismatching length of chunk " + i + " of " + file
+                                  + ", expected " + length + " but was " + uncompressedLength);
+        }
+        return data;
+    }
+
+    private static class InvalidChunkedSnapshotException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        InvalidChunkedSnapshotException(String message) {
+            super(message);
+        }
+
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import org.xerial.snappy.Snappy;
+
+/**
+ * OutputStream for the chunked snapshot format.
+ * <p>
+ * The serialized snapshot is cut into fixed size chunks, each chunk is
+ * compressed and checksummed on its own by a pool of threads while the
+ * caller keeps serializing the following ones, and the chunks are written
+ * to the file in order. The file layout is:
+ * <pre>
+ * header:  int magic, int version, int chunkSize
+ * chunks:  the compressed bytes of each chunk
+ * index:   per chunk: long offset, int compressedLength, int length, long crc
+ * trailer: long indexOffset, int chunkCount, long indexCrc, int magic
+ * </pre>
+ * The trailer is at a fixed distance from the end of the file, so the
+ * index can be located and each chunk read, decompressed and verified
+ * independently of the others.
+ */
+class ChunkedSnapOutputStream extends OutputStream {
+
+    static final int MAGIC = ByteBuffer.wrap("ZKCS".getBytes()).getInt();
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 12;
+    static final int INDEX_ENTRY_LENGTH = 24;
+    static final int TRAILER_LENGTH = 24;
+
+    private final DataOutputStream out;
+    private final int chunkSize;
+    private final int maxPendingChunks;
+    private final ExecutorService compressors;
+    private final ArrayDeque<Future<Chunk>> pendingChunks = new ArrayDeque<>();
+    private final List<Chunk> writtenChunks = new ArrayList<>();
+    private byte[] buffer;
+    private int count;
+    private long offset;
+    private boolean closed;
+
+    ChunkedSnapOutputStream(OutputStream out, int chunkSize, int threads) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.chunkSize = chunkSize;
+        this.maxPendingChunks = threads * 2;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.compressors = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "SnapshotChunkCompressor-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.buffer = new byte[chunkSize];
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(VERSION);
+        this.out.writeInt(chunkSize);
+        this.offset = HEADER_LENGTH;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == chunkSize) {
+            submitChunk();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == chunkSize) {
+                submitChunk();
+            }
+            int n = Math.min(len, chunkSize - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Only the complete chunks are written out, the partially filled one
+     * is kept until it is full or the stream is closed.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (count > 0) {
+                submitChunk();
+            }
+            while (!pendingChunks.isEmpty()) {
+                writeChunk(pendingChunks.poll());
+            }
+            writeIndex();
+        } finally {
+            compressors.shutdownNow();
+            out.close();
+        }
+    }
+
+    private void submitChunk() throws IOException {
+        final byte[] data = buffer;
+        final int length = count;
+        pendingChunks.add(compressors.submit(() -> Chunk.compress(data, length)));
+        buffer = new byte[chunkSize];
+        count = 0;
+        // bound the memory used by chunks waiting to be written
+        while (pendingChunks.size() >= maxPendingChunks) {
+            writeChunk(pendingChunks.poll());
+        }
+    }
+
+    private void writeChunk(Future<Chunk> future) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing snapshot chunk");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress snapshot chunk", e.getCause());
+        }
+        out.write(chunk.compressed, 0, chunk.compressedLength);
+        chunk.offset = offset;
+        offset += chunk.compressedLength;
+        // the data is on its way to the file, no need to keep it around
+        chunk.compressed = null;
+        writtenChunks.add(chunk);
+    }
+
+    private void writeIndex() throws IOException {
+        ByteBuffer index = ByteBuffer.allocate(writtenChunks.size() * INDEX_ENTRY_LENGTH);
+        for (Chunk chunk : writtenChunks) {
+            index.putLong(chunk.offset);
+            index.putInt(chunk.compressedLength);
+            index.putInt(chunk.length);
+            index.putLong(chunk.crc);
+        }
+        CRC32 indexCrc = new CRC32();
+        indexCrc.update(index.array());
+        out.write(index.array());
+        out.writeLong(offset);
+        out.writeInt(writtenChunks.size());
+        out.writeLong(indexCrc.getValue());
+        out.writeInt(MAGIC);
+        out.flush();
+    }
+
+    private static class Chunk {
+
+        byte[] compressed;
+        int compressedLength;
+        int length;
+        long crc;
+        long offset;
+
+        static Chunk compress(byte[] data, int length) throws IOException {
+            Chunk chunk = new Chunk();
+            chunk.compressed = new byte[Snappy.maxCompressedLength(length)];
+            chunk.compressedLength = Snappy.compress(data, 0, length, chunk.compressed, 0);
+            chunk.length = length;
+            CRC32 crc = new CRC32();
+            crc.update(chunk.compressed, 0, chunk.compressedLength);
+            chunk.crc = crc.getValue();
+            return chunk;
+        }
+
+    }
+
+}
@@ -20,10 +20,13 @@
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.zip.CheckedInputStream;
 import java.util.zip.CheckedOutputStream;
 import org.apache.jute.BinaryInputArchive;
@@ -53,6 +56,10 @@ public class FileSnap implements SnapShot {
 
     public static final String SNAPSHOT_FILE_PREFIX = "snapshot";
 
+    public static final int DELTA_MAGIC = ByteBuffer.wrap("ZKDL".getBytes()).getInt();
+
+    public static final String DELTA_FILE_PREFIX = "delta";
+
     public FileSnap(File snapDir) {
         this.snapDir = snapDir;
     }
@@ -109,8 +116,14 @@ public long deserialize(DataTree dt, Map<Long, Integer> sessions) throws IOExcep
             throw new IOException("Not able to find valid snapshots in " + snapDir);
         }
         dt.lastProcessedZxid = snapZxid;
+        dt.snapshotTaken(snapZxid, false);
         lastSnapshotInfo = new SnapshotInfo(dt.lastProcessedZxid, snap.lastModified() / 1000);
 
+        File delta = deserializeDeltas(dt, sessions);
+        if (delta != null) {
+            lastSnapshotInfo = new SnapshotInfo(dt.lastProcessedZxid, delta.lastModified() / 1000);
+        }
+
         // compare the digest if this is not a fuzzy snapshot, we want to compare
         // and find inconsistent asap.
         if (dt.getDigestFromLoadedSnapshot() != null) {
@@ -119,6 +132,63 @@ public long deserialize(DataTree dt, Map<Long, Integer> sessions) throws IOExcep
         return dt.lastProcessedZxid;
     }
 
+    /**
+     * layer the delta snapshots taken after the loaded snapshot on the
+     * datatree. It stops at the first delta that is invalid or not based
+     * on the previous one, the txns after the last applied delta are then
+     * replayed from the txn log.
+     * @param dt the datatree to apply the deltas to
+     * @param sessions the sessions to be replaced by the ones of the deltas
+     * @return the last delta applied, null if none
+     */
+    private File deserializeDeltas(DataTree dt, Map<Long, Integer> sessions) {
+        List<File> deltas = Util.sortDataDir(snapDir.listFiles(), DELTA_FILE_PREFIX, true);
+        File applied = null;
+        for (File deltaFile : deltas) {
+            long deltaZxid = Util.getZxidFromName(deltaFile.getName(), DELTA_FILE_PREFIX);
+            if (deltaZxid <= dt.lastProcessedZxid) {
+                continue;
+            }
+            try (CheckedInputStream deltaIS = SnapStream.getInputStream(deltaFile)) {
+                InputArchive ia = BinaryInputArchive.getArchive(deltaIS);
+                FileHeader header = new FileHeader();
+                header.deserialize(ia, "fileheader");
+                if (header.getMagic() != DELTA_MAGIC) {
+                    throw new IOException("mismatching magic headers " + header.getMagic() + " !=  " + DELTA_MAGIC);
+                }
+                long baseZxid = ia.readLong("baseZxid");
+                if (baseZxid != dt.lastProcessedZxid) {
+                    LOG.warn(
+                        "Delta snapshot {} is based on 0x{} instead of 0x{}, ignoring it and the later ones",
+                        deltaFile,
+                        Long.toHexString(baseZxid),
+                        Long.toHexString(dt.lastProcessedZxid));
+                    break;
+                }
+                Map<Long, Integer> deltaSessions = new HashMap<>();
+                SerializeUtils.deserializeSessions(ia, deltaSessions);
+                DataTree.Delta delta = DataTree.deserializeDelta(ia);
+                SnapStream.checkSealIntegrity(deltaIS, ia);
+
+                LOG.info("Applying delta snapshot {} with {} changed nodes", deltaFile, delta.size());
+                dt.applyDelta(delta);
+                sessions.clear();
+                sessions.putAll(deltaSessions);
+                dt.lastProcessedZxid = deltaZxid;
+                dt.snapshotTaken(deltaZxid, true);
+                applied = deltaFile;
+
+                if (dt.deserializeZxidDigest(ia, deltaZxid)) {
+                    SnapStream.checkSealIntegrity(deltaIS, ia);
+                }
+            } catch (IOException e) {
+                LOG.warn("problem reading delta snapshot file {}, ignoring it and the later ones", deltaFile, e);
+                break;
+            }
+        }
+        return applied;
+    }
+
     /**
      * deserialize the datatree from an inputarchive
      * @param dt the datatree to be serialized into
@@ -135,6 +205,38 @@ public void deserialize(DataTree dt, Map<Long, Integer> sessions, InputArchive i
         SerializeUtils.deserializeSnapshot(dt, ia, sessions);
     }
 
+    /**
+     * deserialize a datatree from the content of a snapshot file read from
+     * a stream, like a snapshot file streamed by the leader. The stream is
+     * not closed.
+     * @param dt the datatree to be deserialized into
+     * @param sessions the sessions to be filled up
+     * @param is the stream of the file content
+     * @param snapName the name of the snapshot file, which tells its zxid and format
+     * @return the zxid of the snapshot
+     * @throws IOException
+     */
+    public static long deserialize(DataTree dt, Map<Long, Integer> sessions, InputStream is, String snapName) throws IOException {
+        long snapZxid = Util.getZxidFromName(snapName, SNAPSHOT_FILE_PREFIX);
+        if (snapZxid == -1) {
+            throw new IOException("Not a snapshot file name: " + snapName);
+        }
+        CheckedInputStream snapIS = SnapStream.getInputStream(is, SnapStream.getStreamMode(snapName));
+        InputArchive ia = BinaryInputArchive.getArchive(snapIS);
+        FileHeader header = new FileHeader();
+        header.deserialize(ia, "fileheader");
+        if (header.getMagic() != SNAP_MAGIC) {
+            throw new IOException("mismatching magic headers " + header.getMagic() + " !=  " + FileSnap.SNAP_MAGIC);
+        }
+        SerializeUtils.deserializeSnapshot(dt, ia, sessions);
+        SnapStream.checkSealIntegrity(snapIS, ia);
+        if (dt.deserializeZxidDigest(ia, snapZxid)) {
+            SnapStream.checkSealIntegrity(snapIS, ia);
+        }
+        dt.lastProcessedZxid = snapZxid;
+        return snapZxid;
+    }
+
     /**
      * find the most recent snapshot in the database.
      * @return the file containing the most recent snapshot
@@ -147,6 +249,28 @@ public File findMostRecentSnapshot() throws IOException {
         return files.get(0);
     }
 
+    /**
+     * find the most recent snapshot with a zxid not above the given one.
+     * @param maxZxid the highest zxid of the snapshot
+     * @return the file containing the snapshot, null if there is none
+     */
+    public File findMostRecentSnapshot(long maxZxid) throws IOException {
+        List<File> files = Util.sortDataDir(snapDir.listFiles(), SNAPSHOT_FILE_PREFIX, false);
+        for (File f : files) {
+            if (Util.getZxidFromName(f.getName(), SNAPSHOT_FILE_PREFIX) > maxZxid) {
+                continue;
+            }
+            try {
+                if (SnapStream.isValidSnapshot(f)) {
+                    return f;
+                }
+            } catch (IOException e) {
+                LOG.warn("invalid snapshot {}", f, e);
+            }
+        }
+        return null;
+    }
+
     /**
      * find the last (maybe) valid n snapshots. this does some
      * minor checks on the validity of the snapshots. It just
@@ -218,13 +342,31 @@ protected void serialize(
         Map<Long, Integer> sessions,
         OutputArchive oa,
         FileHeader header) throws IOException {
+        serialize(dt, sessions, oa, header, null);
+    }
+
+    /**
+     * serialize the datatree as of the given view and sessions
+     * @param dt the datatree to be serialized
+     * @param sessions the sessions to be serialized
+     * @param oa the output archive to serialize into
+     * @param header the header of this snapshot
+     * @param view the view of the datatree, or null for the live datatree
+     * @throws IOException
+     */
+    protected void serialize(
+        DataTree dt,
+        Map<Long, Integer> sessions,
+        OutputArchive oa,
+        FileHeader header,
+        DataTree.SnapshotView view) throws IOException {
         // this is really a programmatic error and not something that can
         // happen at runtime
         if (header == null) {
             throw new IllegalStateException("Snapshot's not open for writing: uninitialized header");
         }
         header.serialize(oa, "fileheader");
-        SerializeUtils.serializeSnapshot(dt, oa, sessions);
+        SerializeUtils.serializeSnapshot(dt, oa, sessions, view);
     }
 
     /**
@@ -234,16 +376,34 @@ protected void serialize(
      * @param snapShot the file to store snapshot into
      * @param fsync sync the file immediately after write
      */
-    public synchronized void serialize(
+    public void serialize(
         DataTree dt,
         Map<Long, Integer> sessions,
         File snapShot,
         boolean fsync) throws IOException {
+        serialize(dt, sessions, snapShot, fsync, null);
+    }
+
+    /**
+     * serialize the datatree as of the given view and session into the file
+     * snapshot
+     * @param dt the datatree to be serialized
+     * @param sessions the sessions to be serialized
+     * @param snapShot the file to store snapshot into
+     * @param fsync sync the file immediately after write
+     * @param view the view of the datatree, or null for the live datatree
+     */
+    public synchronized void serialize(
+        DataTree dt,
+        Map<Long, Integer> sessions,
+        File snapShot,
+        boolean fsync,
+        DataTree.SnapshotView view) throws IOException {
         if (!close) {
             try (CheckedOutputStream snapOS = SnapStream.getOutputStream(snapShot, fsync)) {
                 OutputArchive oa = BinaryOutputArchive.getArchive(snapOS);
                 FileHeader header = new FileHeader(SNAP_MAGIC, VERSION, dbId);
-                serialize(dt, sessions, oa, header);
+                serialize(dt, sessions, oa, header, view);
                 SnapStream.sealStream(snapOS, oa);
 
                 // Digest feature was added after the CRC to make it backward
@@ -252,7 +412,7 @@ public synchronized void serialize(
                 //
                 // To check the intact, after adding digest we added another
                 // CRC check.
-                if (dt.serializeZxidDigest(oa)) {
+                if (dt.serializeZxidDigest(oa, view)) {
                     SnapStream.sealStream(snapOS, oa);
                 }
 
@@ -265,6 +425,45 @@ public synchronized void serialize(
         }
     }
 
+    /**
+     * serialize the nodes changed since the previous snapshot and the
+     * sessions into a delta snapshot file
+     * @param dt the datatree to be serialized
+     * @param sessions the sessions to be serialized
+     * @param paths the paths of the changed nodes
+     * @param baseZxid the zxid of the previous snapshot
+     * @param delta the file to store the delta snapshot into
+     * @param fsync sync the file immediately after write
+     */
+    public synchronized void serializeDelta(
+        DataTree dt,
+        Map<Long, Integer> sessions,
+        Set<String> paths,
+        long baseZxid,
+        File delta,
+        boolean fsync) throws IOException {
+        if (close) {
+            throw new IOException("FileSnap has already been closed");
+        }
+        try (CheckedOutputStream deltaOS = SnapStream.getOutputStream(delta, fsync)) {
+            OutputArchive oa = BinaryOutputArchive.getArchive(deltaOS);
+            FileHeader header = new FileHeader(DELTA_MAGIC, VERSION, dbId);
+            header.serialize(oa, "fileheader");
+            oa.writeLong(baseZxid, "baseZxid");
+            SerializeUtils.serializeSessions(oa, sessions);
+            dt.serializeDelta(oa, paths);
+            SnapStream.sealStream(deltaOS, oa);
+
+            if (dt.serializeZxidDigest(oa)) {
+                SnapStream.sealStream(deltaOS, oa);
+            }
+
+            lastSnapshotInfo = new SnapshotInfo(
+                Util.getZxidFromName(delta.getName(), DELTA_FILE_PREFIX),
+                delta.lastModified() / 1000);
+        }
+    }
+
     private void writeChecksum(CheckedOutputStream crcOut, OutputArchive oa) throws IOException {
         long val = crcOut.getChecksum().getValue();
         oa.writeLong(val, "val");
@@ -281,6 +480,11 @@ private void checkChecksum(CheckedInputStream crcIn, InputArchive ia) throws IOE
         }
     }
 
+    @Override
+    public boolean isDeltaSupported() {
+        return true;
+    }
+
     /**
      * synchronized close just so that if serialize is in place
      * the close operation will block and will wait till serialize
@@ -154,9 +154,15 @@ public class FileTxnLog implements TxnLog, Closeable {
     private final boolean forceSync = !System.getProperty("zookeeper.forceSync", "yes").equals("no");
     long dbId;
     private final Queue<FileOutputStream> streamsToFlush = new ArrayDeque<>();
+    // the rolled logs handed to a pending sync, closed by it or by close()
+    private final List<FileOutputStream> streamsToClose = new ArrayList<>();
     File logFileWrite = null;
     private FilePadding filePadding = new FilePadding();
 
+    /** the index of logFileWrite, built as the txns are appended */
+    TxnLogIndex writeIndex;
+    private long writeOffset;
+
     private ServerStats serverStats;
 
     private volatile long syncElapsedMS = -1L;
@@ -238,6 +244,7 @@ public synchronized void rollLog() throws IOException {
             prevLogsRunningTotal += getCurrentLogSize();
             this.logStream = null;
             oa = null;
+            persistWriteIndex();
 
             // Roll over the current log file into the running total
         }
@@ -254,6 +261,11 @@ public synchronized void close() throws IOException {
         for (FileOutputStream log : streamsToFlush) {
             log.close();
         }
+        for (FileOutputStream log : streamsToClose) {
+            log.close();
+        }
+        streamsToClose.clear();
+        persistWriteIndex();
     }
 
     /**
@@ -291,8 +303,10 @@ public synchronized boolean append(TxnHeader hdr, Record txn, TxnDigest digest)
             fhdr.serialize(oa, "fileheader");
             // Make sure that the magic number is written before padding.
             logStream.flush();
-            filePadding.setCurrentSize(fos.getChannel().position());
+            writeOffset = fos.getChannel().position();
+            filePadding.setCurrentSize(writeOffset);
             streamsToFlush.add(fos);
+            writeIndex = TxnLogIndex.create(logFileWrite);
         }
         filePadding.padFile(fos.getChannel());
         byte[] buf = Util.marshallTxnEntry(hdr, txn, digest);
@@ -303,6 +317,11 @@ public synchronized boolean append(TxnHeader hdr, Record txn, TxnDigest digest)
         crc.update(buf, 0, buf.length);
         oa.writeLong(crc.getValue(), "txnEntryCRC");
         Util.writeTxnBytes(oa, buf);
+        if (writeIndex != null) {
+            writeIndex.add(hdr.getZxid(), writeOffset);
+        }
+        // crc, length, the txn and the end of record marker
+        writeOffset += 8 + 4 + buf.length + 1;
 
         return true;
     }
@@ -388,39 +407,86 @@ private void close(TxnIterator itr) {
      * disk
      */
     public synchronized void commit() throws IOException {
+        startCommit().sync();
+    }
+
+    @Override
+    public synchronized PendingSync startCommit() throws IOException {
         if (logStream != null) {
             logStream.flush();
         }
-        for (FileOutputStream log : streamsToFlush) {
-            log.flush();
-            if (forceSync) {
-                long startSyncNS = System.nanoTime();
+        List<FileOutputStream> toSync = new ArrayList<>(streamsToFlush);
+        // the rolled logs are closed once they are synced, the current one
+        // is synced again by the next commit
+        List<FileOutputStream> toClose = new ArrayList<>();
+        while (streamsToFlush.size() > 1) {
+            toClose.add(streamsToFlush.poll());
+        }
+        streamsToClose.addAll(toClose);
 
-                FileChannel channel = log.getChannel();
-                channel.force(false);
+        rollLogIfSizeLimitReached();
 
-                syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
-                if (syncElapsedMS > fsyncWarningThresholdMS) {
-                    if (serverStats != null) {
-                        serverStats.incrementFsyncThresholdExceedCount();
-                    }
+        return () -> {
+            for (FileOutputStream log : toSync) {
+                log.flush();
+                if (forceSync) {
+                    long startSyncNS = System.nanoTime();
+
+                    FileChannel channel = log.getChannel();
+                    channel.force(false);
 
-                    LOG.warn(
-                        "fsync-ing the write ahead log in {} took {}ms which will adversely effect operation latency."
-                            + "File size is {} bytes. See the ZooKeeper troubleshooting guide",
-                        Thread.currentThread().getName(),
-                        syncElapsedMS,
-                        channel.size());
+                    recordSyncTime(startSyncNS, channel);
+                }
+            }
+            if (!toClose.isEmpty()) {
+                synchronized (this) {
+                    for (FileOutputStream log : toClose) {
+                        log.close();
+                    }
+                    streamsToClose.removeAll(toClose);
                 }
+            }
+        };
+    }
 
-                ServerMetrics.getMetrics().FSYNC_TIME.add(syncElapsedMS);
+    /**
+     * Update the fsync time metrics and warn if it took too long.
+     * @param startSyncNS the time the sync started at
+     * @param channel the channel that was synced
+     */
+    void recordSyncTime(long startSyncNS, FileChannel channel) throws IOException {
+        syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
+        if (syncElapsedMS > fsyncWarningThresholdMS) {
+            if (serverStats != null) {
+                serverStats.incrementFsyncThresholdExceedCount();
             }
+
+            LOG.warn(
+                "fsync-ing the write ahead log in {} took {}ms which will adversely effect operation latency."
+                    + "File size is {} bytes. See the ZooKeeper troubleshooting guide",
+                Thread.currentThread().getName(),
+                syncElapsedMS,
+                channel.size());
         }
-        while (streamsToFlush.size() > 1) {
-            streamsToFlush.poll().close();
+
+        ServerMetrics.getMetrics().FSYNC_TIME.add(syncElapsedMS);
+    }
+
+    /**
+     * Write the index of the log being rolled or closed, the next log gets
+     * its own.
+     */
+    void persistWriteIndex() {
+        if (writeIndex != null) {
+            writeIndex.persist();
+            writeIndex = null;
         }
+    }
 
-        // Roll the log file if we exceed the size limit
+    /**
+     * Roll the log file if we exceed the size limit
+     */
+    void rollLogIfSizeLimitReached() throws IOException {
         if (txnLogSizeLimit > 0) {
             long logSize = getCurrentLogSize();
 
@@ -462,6 +528,18 @@ public TxnIterator read(long zxid, boolean fastForward) throws IOException {
         return new FileTxnIterator(logDir, zxid, fastForward);
     }
 
+    /**
+     * start reading the transactions from a txn at or before the given zxid,
+     * the closest to it the index of the txnlog knows of. Unlike a fast
+     * forwarded read, the txn before the given zxid can still be found.
+     *
+     * @param zxid the zxid to start reading transactions near
+     * @return returns an iterator to iterate through the transaction logs
+     */
+    public TxnIterator readNear(long zxid) throws IOException {
+        return new FileTxnIterator(logDir, zxid, false, true);
+    }
+
     /**
      * truncate the current transaction logs
      * @param zxid the zxid to truncate the logs to
@@ -478,11 +556,16 @@ public boolean truncate(long zxid) throws IOException {
                                       + "log files were deleted accidentally or dataLogDir was changed in zoo.cfg.");
             }
             long pos = input.getPosition();
+            // the indexes can't follow the truncation, they are rebuilt by the next reads
+            itr.index = null;
+            TxnLogIndex.delete(itr.logFile);
             // now, truncate at the current position
             RandomAccessFile raf = new RandomAccessFile(itr.logFile, "rw");
             raf.setLength(pos);
             raf.close();
             while (itr.goToNextLog()) {
+                itr.index = null;
+                TxnLogIndex.delete(itr.logFile);
                 if (!itr.logFile.delete()) {
                     LOG.warn("Unable to truncate {}", itr.logFile);
                 }
@@ -630,6 +713,10 @@ public static class FileTxnIterator implements TxnLog.TxnIterator {
         //the zxid we are looking for.
         private ArrayList<File> storedFiles;
 
+        // the index of logFile, extended as it is read
+        TxnLogIndex index;
+        private final boolean seek;
+
         /**
          * create an iterator over a transaction database directory
          * @param logDir the transaction database directory
@@ -641,8 +728,24 @@ public static class FileTxnIterator implements TxnLog.TxnIterator {
          * @throws IOException
          */
         public FileTxnIterator(File logDir, long zxid, boolean fastForward) throws IOException {
+            this(logDir, zxid, fastForward, fastForward);
+        }
+
+        /**
+         * create an iterator over a transaction database directory
+         * @param logDir the transaction database directory
+         * @param zxid the zxid to start reading from
+         * @param fastForward   true if the iterator should be fast forwarded to
+         *        point to the txn of a given zxid
+         * @param seek true if the iterator should start from the txn the
+         *        index of the txnlog knows of closest to, and not after, the
+         *        given zxid, else from the starting txn of the txnlog
+         * @throws IOException
+         */
+        FileTxnIterator(File logDir, long zxid, boolean fastForward, boolean seek) throws IOException {
             this.logDir = logDir;
             this.zxid = zxid;
+            this.seek = seek;
             init();
 
             if (fastForward && hdr != null) {
@@ -685,9 +788,34 @@ void init() throws IOException {
                 }
             }
             goToNextLog();
+            if (seek) {
+                seekToIndex();
+            }
             next();
         }
 
+        /**
+         * skip the txns before the txn the index knows of closest to the zxid
+         */
+        private void seekToIndex() throws IOException {
+            if (index == null || inputStream == null) {
+                return;
+            }
+            TxnLogIndex.Entry entry = index.floor(zxid);
+            if (entry == null || entry.offset <= inputStream.getPosition()) {
+                return;
+            }
+            LOG.debug("Seeking to 0x{} at {} of {}", Long.toHexString(entry.zxid), entry.offset, logFile);
+            long remaining = entry.offset - inputStream.getPosition();
+            while (remaining > 0) {
+                long skipped = inputStream.skip(remaining);
+                if (skipped <= 0) {
+                    throw new EOFException("Unable to seek to " + entry.offset + " of " + logFile);
+                }
+                remaining -= skipped;
+            }
+        }
+
         /**
          * Return total storage size of txnlog that will return by this iterator.
          */
@@ -706,8 +834,10 @@ public long getStorageSize() {
          * @throws IOException
          */
         private boolean goToNextLog() throws IOException {
+            persistIndex();
             if (storedFiles.size() > 0) {
                 this.logFile = storedFiles.remove(storedFiles.size() - 1);
+                index = TxnLogIndex.load(this.logFile);
                 ia = createInputArchive(this.logFile);
                 return true;
             }
@@ -764,6 +894,7 @@ public boolean next() throws IOException {
                 return false;
             }
             try {
+                long position = inputStream.getPosition();
                 long crcValue = ia.readLong("crcvalue");
                 byte[] bytes = Util.readTxnBytes(ia);
                 // Since we preallocate, we define EOF to be an
@@ -781,6 +912,9 @@ public boolean next() throws IOException {
                 hdr = logEntry.getHeader();
                 record = logEntry.getTxn();
                 digest = logEntry.getDigest();
+                if (index != null) {
+                    index.add(hdr.getZxid(), position);
+                }
             } catch (EOFException e) {
                 LOG.debug("EOF exception", e);
                 inputStream.close();
@@ -828,11 +962,18 @@ public TxnDigest getDigest() {
          * and release the resources.
          */
         public void close() throws IOException {
+            persistIndex();
             if (inputStream != null) {
                 inputStream.close();
             }
         }
 
+        private void persistIndex() {
+            if (index != null) {
+                index.persist();
+            }
+        }
+
     }
 
 }
@@ -24,7 +24,9 @@
 import java.nio.file.Files;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.apache.jute.Record;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.Code;
@@ -78,6 +80,20 @@ public class FileTxnSnapLog {
 
     private static final String EMPTY_SNAPSHOT_WARNING = "No snapshot found, but there are log entries. ";
 
+    /**
+     * The writer of the transaction log, either "stream" (the default) for
+     * {@link FileTxnLog} or "mapped" for {@link MappedFileTxnLog}.
+     */
+    public static final String ZOOKEEPER_TXNLOG_WRITER = "zookeeper.txnLogWriter";
+
+    /**
+     * The number of threads replaying the transaction log on startup, the
+     * log is replayed serially by default.
+     */
+    public static final String ZOOKEEPER_TXNLOG_REPLAY_THREADS = "zookeeper.txnLogReplayThreads";
+
+    private final int maxDeltas = Integer.getInteger(DataTree.SNAPSHOT_MAX_DELTAS, 0);
+
     /**
      * This listener helps
      * the external apis calling
@@ -166,7 +182,7 @@ public FileTxnSnapLog(File dataDir, File snapDir) throws IOException {
             checkSnapDir();
         }
 
-        txnLog = new FileTxnLog(this.dataDir);
+        txnLog = createTxnLog(this.dataDir);
         snapLog = new FileSnap(this.snapDir);
 
         autoCreateDB = Boolean.parseBoolean(
@@ -177,6 +193,17 @@ public void setServerStats(ServerStats serverStats) {
         txnLog.setServerStats(serverStats);
     }
 
+    private static TxnLog createTxnLog(File logDir) {
+        String writer = System.getProperty(ZOOKEEPER_TXNLOG_WRITER, "stream");
+        if ("mapped".equals(writer)) {
+            return new MappedFileTxnLog(logDir);
+        }
+        if (!"stream".equals(writer)) {
+            LOG.warn("Unknown {} {}, using the stream writer", ZOOKEEPER_TXNLOG_WRITER, writer);
+        }
+        return new FileTxnLog(logDir);
+    }
+
     private void checkLogDir() throws LogDirContentCheckException {
         File[] files = this.dataDir.listFiles(new FilenameFilter() {
             @Override
@@ -319,10 +346,18 @@ public long fastForwardFromEdits(
         Map<Long, Integer> sessions,
         PlayBackListener listener) throws IOException {
         TxnIterator itr = txnLog.read(dt.lastProcessedZxid + 1);
+        long startTime = Time.currentElapsedTime();
+        int replayThreads = Integer.getInteger(ZOOKEEPER_TXNLOG_REPLAY_THREADS, 0);
+        if (replayThreads > 1 && sessions instanceof ConcurrentMap) {
+            ParallelTxnReplayer replayer = new ParallelTxnReplayer(this, dt, sessions, listener, replayThreads);
+            long highestZxid = replayer.replay(itr);
+            txnsLoaded(replayer.getTxnLoaded(), startTime);
+            return highestZxid;
+        }
+
         long highestZxid = dt.lastProcessedZxid;
         TxnHeader hdr;
         int txnLoaded = 0;
-        long startTime = Time.currentElapsedTime();
         try {
             while (true) {
                 // iterator points to
@@ -359,12 +394,19 @@ public long fastForwardFromEdits(
             }
         }
 
+        txnsLoaded(txnLoaded, startTime);
+
+        return highestZxid;
+    }
+
+    private void txnsLoaded(int txnLoaded, long startTime) {
         long loadTime = Time.currentElapsedTime() - startTime;
         LOG.info("{} txns loaded in {} ms", txnLoaded, loadTime);
         ServerMetrics.getMetrics().STARTUP_TXNS_LOADED.add(txnLoaded);
         ServerMetrics.getMetrics().STARTUP_TXNS_LOAD_TIME.add(loadTime);
-
-        return highestZxid;
+        if (loadTime > 0) {
+            ServerMetrics.getMetrics().STARTUP_TXNS_REPLAY_RATE.add(txnLoaded * 1000L / loadTime);
+        }
     }
 
     /**
@@ -393,6 +435,19 @@ public TxnIterator readTxnLog(long zxid, boolean fastForward) throws IOException
         return txnLog.read(zxid, fastForward);
     }
 
+    /**
+     * Get TxnIterator for iterating through txnlog from a txn at or before a
+     * given zxid, the closest to it the index of the txnlog knows of
+     *
+     * @param zxid starting zxid
+     * @return TxnIterator
+     * @throws IOException
+     */
+    public TxnIterator readTxnLogNear(long zxid) throws IOException {
+        FileTxnLog txnLog = new FileTxnLog(dataDir);
+        return txnLog.readNear(zxid);
+    }
+
     /**
      * process the transaction on the datatree
      * @param hdr the hdr of the transaction
@@ -465,12 +520,34 @@ public void save(
         DataTree dataTree,
         ConcurrentHashMap<Long, Integer> sessionsWithTimeouts,
         boolean syncSnap) throws IOException {
-        long lastZxid = dataTree.lastProcessedZxid;
+        // the txns up to the zxid of a delta must have marked their nodes
+        // before the changed paths are collected
+        long deltaZxid = dataTree.lastProcessedZxid;
+        Set<String> dirtyPaths = dataTree.swapDirtyPaths();
+        if (dirtyPaths != null && shouldSaveDelta(dataTree, dirtyPaths, deltaZxid)) {
+            saveDelta(dataTree, sessionsWithTimeouts, dirtyPaths, deltaZxid, syncSnap);
+            return;
+        }
+
+        // with a consistent view the snapshot contains exactly the txns up
+        // to its zxid, otherwise it is fuzzy and fixed up by replaying the
+        // txns after it
+        DataTree.SnapshotView view = dataTree.beginSnapshotView();
+        long lastZxid = view != null ? view.getZxid() : dataTree.lastProcessedZxid;
         File snapshotFile = new File(snapDir, Util.makeSnapshotName(lastZxid));
         LOG.info("Snapshotting: 0x{} to {}", Long.toHexString(lastZxid), snapshotFile);
         try {
-            snapLog.serialize(dataTree, sessionsWithTimeouts, snapshotFile, syncSnap);
+            if (view != null) {
+                snapLog.serialize(dataTree, sessionsWithTimeouts, snapshotFile, syncSnap, view);
+                ServerMetrics.getMetrics().SNAPSHOT_VIEW_PRESERVED_NODES.add(view.getPreservedCount());
+            } else {
+                snapLog.serialize(dataTree, sessionsWithTimeouts, snapshotFile, syncSnap);
+            }
+            dataTree.snapshotTaken(lastZxid, false);
         } catch (IOException e) {
+            if (dirtyPaths != null) {
+                dataTree.restoreDirtyPaths(dirtyPaths);
+            }
             if (snapshotFile.length() == 0) {
                 /* This may be caused by a full disk. In such a case, the server
                  * will get stuck in a loop where it tries to write a snapshot
@@ -489,6 +566,50 @@ public void save(
                  * instead. */
             }
             throw e;
+        } finally {
+            if (view != null) {
+                view.close();
+            }
+        }
+    }
+
+    /**
+     * A delta is taken if there is a snapshot of this tree to base it on,
+     * the maximum number of deltas since the last full snapshot is not
+     * reached yet and less than half of the nodes changed.
+     */
+    private boolean shouldSaveDelta(DataTree dataTree, Set<String> dirtyPaths, long deltaZxid) {
+        long baseZxid = dataTree.getLastSnapshotZxid();
+        return snapLog.isDeltaSupported()
+               && baseZxid >= 0
+               && deltaZxid > baseZxid
+               && dataTree.getDeltasSinceFullSnapshot() < maxDeltas
+               && dirtyPaths.size() <= dataTree.getNodeCount() / 2;
+    }
+
+    private void saveDelta(
+        DataTree dataTree,
+        ConcurrentHashMap<Long, Integer> sessionsWithTimeouts,
+        Set<String> dirtyPaths,
+        long deltaZxid,
+        boolean syncSnap) throws IOException {
+        long baseZxid = dataTree.getLastSnapshotZxid();
+        File deltaFile = new File(snapDir, Util.makeDeltaName(deltaZxid));
+        LOG.info(
+            "Snapshotting {} changed nodes: 0x{} to {} based on 0x{}",
+            dirtyPaths.size(),
+            Long.toHexString(deltaZxid),
+            deltaFile,
+            Long.toHexString(baseZxid));
+        try {
+            snapLog.serializeDelta(dataTree, sessionsWithTimeouts, dirtyPaths, baseZxid, deltaFile, syncSnap);
+            dataTree.snapshotTaken(deltaZxid, true);
+        } catch (IOException e) {
+            dataTree.restoreDirtyPaths(dirtyPaths);
+            if (deltaFile.length() == 0 && !deltaFile.delete()) {
+                LOG.warn("Could not delete empty delta snapshot file: {}", deltaFile.getAbsolutePath());
+            }
+            throw e;
         }
     }
 
@@ -512,7 +633,7 @@ public boolean truncateLog(long zxid) {
                 // I'd rather just close/reopen this object itself, however that
                 // would have a big impact outside ZKDatabase as there are other
                 // objects holding a reference to this object.
-                txnLog = new FileTxnLog(dataDir);
+                txnLog = createTxnLog(dataDir);
                 snapLog = new FileSnap(snapDir);
 
                 return truncated;
@@ -535,6 +656,18 @@ public File findMostRecentSnapshot() throws IOException {
         return snaplog.findMostRecentSnapshot();
     }
 
+    /**
+     * the most recent snapshot in the snapshot directory with a zxid not
+     * above the given one
+     * @param maxZxid the highest zxid of the snapshot
+     * @return the file that contains the snapshot, null if there is none
+     * @throws IOException
+     */
+    public File findMostRecentSnapshot(long maxZxid) throws IOException {
+        FileSnap snaplog = new FileSnap(snapDir);
+        return snaplog.findMostRecentSnapshot(maxZxid);
+    }
+
     /**
      * the n most recent snapshots
      * @param n the number of recent snapshots
@@ -590,6 +723,15 @@ public void commit() throws IOException {
         txnLog.commit();
     }
 
+    /**
+     * start a commit of the transaction log, see {@link TxnLog#startCommit()}
+     * @return the sync persisting the transactions appended so far
+     * @throws IOException
+     */
+    public TxnLog.PendingSync startCommit() throws IOException {
+        return txnLog.startCommit();
+    }
+
     /**
      *
      * @return elapsed sync time of transaction log commit in milliseconds
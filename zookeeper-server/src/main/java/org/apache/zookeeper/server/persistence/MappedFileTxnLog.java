@@ -0,0 +1,340 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Checksum;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.txn.TxnDigest;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A TxnLog writing the same format as {@link FileTxnLog} through memory
+ * mapped regions of the log file instead of a buffered stream.
+ * <p>
+ * Each region is preallocated by mapping it (the file is extended with
+ * zeros, which is the padding the readers expect), txns are serialized into
+ * a reused buffer and copied straight into the mapping, and commit() only
+ * forces the regions written since the previous commit, so all the txns
+ * appended in between are made durable by a single sync.
+ * <p>
+ * The regions are unmapped once they are forced and no longer written, and
+ * when the log is closed, instead of waiting for the GC, so the disk space
+ * of purged logs is released and they can be deleted on Windows.
+ * <p>
+ * Reading, truncating and the file layout are inherited from FileTxnLog.
+ */
+public class MappedFileTxnLog extends FileTxnLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedFileTxnLog.class);
+
+    private static final MethodHandle UNMAP = unmapHandle();
+
+    private FileChannel channel;
+    private MappedByteBuffer region;
+    private Region currentRegion;
+    private long regionStart;
+    private final List<Region> regionsToFlush = new ArrayList<>();
+    // the regions not written anymore, unmapped after their next force
+    private final List<Region> retiredRegions = new ArrayList<>();
+    private final List<FileChannel> channelsToClose = new ArrayList<>();
+    // the rolled logs handed to a pending sync, closed by it or by close()
+    private final List<FileChannel> channelsClosing = new ArrayList<>();
+    private final TxnBuffer txnBuffer = new TxnBuffer();
+    private final OutputArchive txnArchive = BinaryOutputArchive.getArchive(txnBuffer);
+
+    public MappedFileTxnLog(File logDir) {
+        super(logDir);
+    }
+
+    @Override
+    public synchronized boolean append(TxnHeader hdr, Record txn, TxnDigest digest) throws IOException {
+        if (hdr == null) {
+            return false;
+        }
+        if (hdr.getZxid() <= lastZxidSeen) {
+            LOG.warn(
+                "Current zxid {} is <= {} for {}",
+                hdr.getZxid(),
+                lastZxidSeen,
+                hdr.getType());
+        } else {
+            lastZxidSeen = hdr.getZxid();
+        }
+        if (channel == null) {
+            openLog(hdr.getZxid());
+        }
+
+        txnBuffer.reset();
+        hdr.serialize(txnArchive, "hdr");
+        if (txn != null) {
+            txn.serialize(txnArchive, "txn");
+        }
+        if (digest != null) {
+            digest.serialize(txnArchive, "digest");
+        }
+        int length = txnBuffer.size();
+        if (length == 0) {
+            throw new IOException("Faulty serialization for header " + "and txn");
+        }
+        Checksum crc = makeChecksumAlgorithm();
+        crc.update(txnBuffer.getBuffer(), 0, length);
+
+        // crc, length, the txn and the end of record marker
+        ensureCapacity(8 + 4 + length + 1);
+        if (writeIndex != null) {
+            writeIndex.add(hdr.getZxid(), regionStart + region.position());
+        }
+        region.putLong(crc.getValue());
+        region.putInt(length);
+        region.put(txnBuffer.getBuffer(), 0, length);
+        region.put((byte) 0x42);
+        return true;
+    }
+
+    private void openLog(long zxid) throws IOException {
+        LOG.info("Creating new log file: {}", Util.makeLogName(zxid));
+
+        logFileWrite = new File(logDir, Util.makeLogName(zxid));
+        channel = new RandomAccessFile(logFileWrite, "rw").getChannel();
+        regionStart = 0;
+        mapRegion(Math.max(FilePadding.getPreAllocSize(), 4096));
+        region.putInt(TXNLOG_MAGIC);
+        region.putInt(VERSION);
+        region.putLong(dbId);
+        writeIndex = TxnLogIndex.create(logFileWrite);
+    }
+
+    /**
+     * Map the next region if the current one doesn't have room for the
+     * given number of bytes. A txn is never split across regions.
+     */
+    private void ensureCapacity(int bytes) throws IOException {
+        if (region.remaining() >= bytes) {
+            return;
+        }
+        regionStart += region.position();
+        retiredRegions.add(currentRegion);
+        mapRegion(Math.max(FilePadding.getPreAllocSize(), bytes));
+    }
+
+    private void mapRegion(long size) throws IOException {
+        region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, size);
+        currentRegion = new Region(region);
+        regionsToFlush.add(currentRegion);
+    }
+
+    /**
+     * @return the number of bytes written to the current log file, excluding
+     *         the preallocated space
+     */
+    @Override
+    public synchronized long getCurrentLogSize() {
+        if (region != null) {
+            return regionStart + region.position();
+        }
+        return 0;
+    }
+
+    // VisibleForTesting
+    synchronized Region getCurrentRegion() {
+        return currentRegion;
+    }
+
+    @Override
+    public synchronized void rollLog() throws IOException {
+        if (channel != null) {
+            setTotalLogSize(getTotalLogSize());
+            // the regions still have to be forced by the next commit
+            channelsToClose.add(channel);
+            retiredRegions.add(currentRegion);
+            channel = null;
+            region = null;
+            currentRegion = null;
+            regionStart = 0;
+            persistWriteIndex();
+        }
+    }
+
+    @Override
+    public synchronized PendingSync startCommit() throws IOException {
+        List<Region> toForce = new ArrayList<>(regionsToFlush);
+        regionsToFlush.clear();
+        if (currentRegion != null) {
+            // the current region keeps receiving the next txns
+            regionsToFlush.add(currentRegion);
+        }
+        List<Region> toUnmap = new ArrayList<>(retiredRegions);
+        retiredRegions.clear();
+        List<FileChannel> toClose = new ArrayList<>(channelsToClose);
+        channelsToClose.clear();
+        channelsClosing.addAll(toClose);
+        FileChannel lastChannel = channel != null ? channel : toClose.isEmpty() ? null : toClose.get(toClose.size() - 1);
+
+        rollLogIfSizeLimitReached();
+
+        return () -> {
+            if (isForceSync() && !toForce.isEmpty()) {
+                long startSyncNS = System.nanoTime();
+                for (Region toFlush : toForce) {
+                    toFlush.force();
+                }
+                recordSyncTime(startSyncNS, lastChannel);
+            }
+            for (Region retired : toUnmap) {
+                retired.unmap();
+            }
+            if (!toClose.isEmpty()) {
+                synchronized (this) {
+                    for (FileChannel channel : toClose) {
+                        channel.close();
+                    }
+                    channelsClosing.removeAll(toClose);
+                }
+            }
+        };
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        // the regions handed to a pending sync are only forced if still mapped
+        for (Region retired : retiredRegions) {
+            retired.unmap();
+        }
+        retiredRegions.clear();
+        if (currentRegion != null) {
+            currentRegion.unmap();
+            currentRegion = null;
+            region = null;
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        for (FileChannel toClose : channelsToClose) {
+            toClose.close();
+        }
+        for (FileChannel toClose : channelsClosing) {
+            toClose.close();
+        }
+        channelsClosing.clear();
+        persistWriteIndex();
+    }
+
+    /**
+     * A mapped region of a log file. Accessing a buffer once unmapped crashes
+     * the JVM, so forcing and unmapping it are exclusive.
+     */
+    static final class Region {
+
+        private MappedByteBuffer buffer;
+
+        Region(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        synchronized void force() {
+            if (buffer != null) {
+                buffer.force();
+            }
+        }
+
+        synchronized void unmap() {
+            if (buffer == null) {
+                return;
+            }
+            MappedByteBuffer toUnmap = buffer;
+            buffer = null;
+            if (UNMAP != null) {
+                try {
+                    UNMAP.invoke(toUnmap);
+                } catch (Throwable t) {
+                    LOG.warn("Unable to unmap a txn log region, it is released by the GC", t);
+                }
+            }
+        }
+
+        synchronized boolean isMapped() {
+            return buffer != null;
+        }
+
+    }
+
+    /**
+     * The way to unmap a buffer without waiting for the GC, like netty's
+     * PlatformDependent: Unsafe.invokeCleaner on Java 9 and later, the
+     * cleaner of the DirectBuffer on Java 8.
+     *
+     * @return a handle taking the ByteBuffer to unmap, or null if there is none
+     */
+    private static MethodHandle unmapHandle() {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return lookup.unreflect(invokeCleaner).bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("Unsafe.invokeCleaner is not available", e);
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return MethodHandles.filterReturnValue(lookup.unreflect(cleaner), lookup.unreflect(clean))
+                .asType(MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.warn("Unable to unmap the txn log regions, they are released by the GC", e);
+            return null;
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream exposing its buffer so that it can be reused
+     * without copying.
+     */
+    private static class TxnBuffer extends ByteArrayOutputStream {
+
+        TxnBuffer() {
+            super(1024);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+
+    }
+
+}
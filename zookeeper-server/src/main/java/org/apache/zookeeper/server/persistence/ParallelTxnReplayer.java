@@ -0,0 +1,332 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.jute.Record;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.DataTree.ProcessTxnResult;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.server.ZooKeeperThread;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog.PlayBackListener;
+import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.apache.zookeeper.txn.CreateSessionTxn;
+import org.apache.zookeeper.txn.TxnDigest;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays the txn log into a DataTree with several threads.
+ * <p>
+ * A reader thread reads and deserializes the txns ahead, and they are
+ * gathered into batches of txns that don't conflict with each other: no
+ * two txns of a batch touch the same node, the same parent or the same
+ * session. A batch is applied concurrently, while the txns that can't be
+ * partitioned this way (closing a session, multi ops, reconfig, anything
+ * under /zookeeper) are applied alone between two batches, so every node
+ * and session sees its txns in the order of the log.
+ * <p>
+ * The digest of the tree doesn't depend on the order the changes are made
+ * in, so once a batch is applied the digest is the one of the tree at the
+ * last zxid of the batch: it is compared to the digest logged with that
+ * txn and recorded for that zxid. Batches are closed at every zxid kept in
+ * the digest log, and the replay is serial until the digest of the loaded
+ * snapshot has been compared.
+ */
+class ParallelTxnReplayer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelTxnReplayer.class);
+
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    private static final int READ_AHEAD = 4096;
+
+    private static final ReplayedTxn END_OF_LOG = new ReplayedTxn(null, null, null);
+
+    private final FileTxnSnapLog snapLog;
+    private final DataTree dt;
+    private final Map<Long, Integer> sessions;
+    private final PlayBackListener listener;
+    private final int threads;
+
+    private final List<ReplayedTxn> batch = new ArrayList<>();
+    private final Set<String> batchKeys = new HashSet<>();
+    private long batchZxid;
+    private long highestZxid;
+    private int txnLoaded;
+
+    ParallelTxnReplayer(
+        FileTxnSnapLog snapLog,
+        DataTree dt,
+        Map<Long, Integer> sessions,
+        PlayBackListener listener,
+        int threads) {
+        this.snapLog = snapLog;
+        this.dt = dt;
+        this.sessions = sessions;
+        this.listener = listener;
+        this.threads = threads;
+    }
+
+    /**
+     * Replay the txns of the iterator, which is closed when done.
+     *
+     * @return the highest zxid replayed
+     */
+    long replay(TxnIterator itr) throws IOException {
+        highestZxid = dt.lastProcessedZxid;
+        if (itr.getHeader() == null) {
+            // empty logs
+            itr.close();
+            return dt.lastProcessedZxid;
+        }
+
+        TxnReader reader = new TxnReader(itr);
+        AtomicInteger applierNumber = new AtomicInteger();
+        ExecutorService appliers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new ZooKeeperThread("TxnLogReplay-" + applierNumber.incrementAndGet()) {
+                @Override
+                public void run() {
+                    r.run();
+                }
+            };
+            t.setDaemon(true);
+            return t;
+        });
+        reader.start();
+        try {
+            ReplayedTxn next;
+            while ((next = reader.take()) != END_OF_LOG) {
+                TxnHeader hdr = next.hdr;
+                if (hdr.getZxid() < highestZxid && highestZxid != 0) {
+                    LOG.error("{}(highestZxid) > {}(next log) for type {}", highestZxid, hdr.getZxid(), hdr.getType());
+                } else {
+                    highestZxid = hdr.getZxid();
+                }
+
+                Set<String> keys = dt.getDigestFromLoadedSnapshot() == null ? DataTree.conflictKeys(hdr, next.txn) : null;
+                if (keys == null) {
+                    applyBatch(appliers);
+                    apply(next);
+                    continue;
+                }
+                if (batch.size() >= MAX_BATCH_SIZE || !disjoint(keys)) {
+                    applyBatch(appliers);
+                }
+                batch.add(next);
+                batchKeys.addAll(keys);
+                batchZxid = Math.max(batchZxid, hdr.getZxid());
+                if (ZooKeeperServer.isDigestEnabled() && hdr.getZxid() % DataTree.DIGEST_LOG_INTERVAL == 0) {
+                    applyBatch(appliers);
+                }
+            }
+            applyBatch(appliers);
+            reader.checkError();
+        } finally {
+            appliers.shutdownNow();
+            reader.interrupt();
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return highestZxid;
+    }
+
+    /**
+     * @return the number of txns replayed
+     */
+    int getTxnLoaded() {
+        return txnLoaded;
+    }
+
+    private boolean disjoint(Set<String> keys) {
+        for (String key : keys) {
+            if (batchKeys.contains(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Apply a txn alone, exactly like the serial replay does.
+     */
+    private void apply(ReplayedTxn replayed) throws IOException {
+        try {
+            snapLog.processTransaction(replayed.hdr, dt, sessions, replayed.txn);
+            dt.compareDigest(replayed.hdr, replayed.txn, replayed.digest);
+            txnLoaded++;
+        } catch (KeeperException.NoNodeException e) {
+            throw new IOException("Failed to process transaction type: "
+                                  + replayed.hdr.getType()
+                                  + " error: "
+                                  + e.getMessage(),
+                                  e);
+        }
+        listener.onTxnLoaded(replayed.hdr, replayed.txn, replayed.digest);
+    }
+
+    private void applyBatch(ExecutorService appliers) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        ServerMetrics.getMetrics().STARTUP_TXNS_REPLAY_BATCH_SIZE.add(batch.size());
+        if (batch.size() == 1) {
+            apply(batch.get(0));
+        } else {
+            int chunk = (batch.size() + threads - 1) / threads;
+            List<Future<?>> applied = new ArrayList<>();
+            for (int from = 0; from < batch.size(); from += chunk) {
+                List<ReplayedTxn> txns = batch.subList(from, Math.min(from + chunk, batch.size()));
+                applied.add(appliers.submit((Callable<Void>) () -> {
+                    for (ReplayedTxn replayed : txns) {
+                        replayConcurrently(replayed);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : applied) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while replaying the txn log", e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Failed to replay the txn log", e.getCause());
+                }
+            }
+
+            dt.replayedUpTo(batchZxid);
+            ReplayedTxn last = batch.get(batch.size() - 1);
+            dt.compareDigest(last.hdr, last.txn, last.digest);
+            txnLoaded += batch.size();
+            for (ReplayedTxn replayed : batch) {
+                listener.onTxnLoaded(replayed.hdr, replayed.txn, replayed.digest);
+            }
+        }
+        batch.clear();
+        batchKeys.clear();
+        batchZxid = 0;
+    }
+
+    private void replayConcurrently(ReplayedTxn replayed) {
+        TxnHeader hdr = replayed.hdr;
+        if (hdr.getType() == OpCode.createSession) {
+            sessions.put(hdr.getClientId(), ((CreateSessionTxn) replayed.txn).getTimeOut());
+        }
+        ProcessTxnResult rc = dt.replayTxn(hdr, replayed.txn);
+        if (rc.err != Code.OK.intValue()) {
+            LOG.debug("Ignoring processTxn failure hdr: {}, error: {}, path: {}", hdr.getType(), rc.err, rc.path);
+        }
+    }
+
+    private static class ReplayedTxn {
+
+        final TxnHeader hdr;
+        final Record txn;
+        final TxnDigest digest;
+
+        ReplayedTxn(TxnHeader hdr, Record txn, TxnDigest digest) {
+            this.hdr = hdr;
+            this.txn = txn;
+            this.digest = digest;
+        }
+
+    }
+
+    /**
+     * Reads and deserializes the txns ahead of the replay.
+     */
+    private static class TxnReader extends ZooKeeperThread {
+
+        private final TxnIterator itr;
+        private final BlockingQueue<ReplayedTxn> queue = new ArrayBlockingQueue<>(READ_AHEAD);
+        private volatile IOException error;
+
+        TxnReader(TxnIterator itr) {
+            super("TxnLogReader");
+            this.itr = itr;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                do {
+                    queue.put(new ReplayedTxn(itr.getHeader(), itr.getTxn(), itr.getDigest()));
+                } while (itr.next());
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException("Failed to read the txn log", e);
+            } catch (InterruptedException e) {
+                // the replay failed
+                return;
+            } finally {
+                try {
+                    itr.close();
+                } catch (IOException e) {
+                    LOG.warn("Failed to close the txn log", e);
+                }
+            }
+            try {
+                queue.put(END_OF_LOG);
+            } catch (InterruptedException e) {
+                // the replay failed
+            }
+        }
+
+        ReplayedTxn take() throws IOException {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading the txn log", e);
+            }
+        }
+
+        void checkError() throws IOException {
+            if (error != null) {
+                throw error;
+            }
+        }
+
+    }
+
+}
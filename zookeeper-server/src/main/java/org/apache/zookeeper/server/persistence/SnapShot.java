@@ -21,6 +21,7 @@
 import java.io.File;
 import java.io.IOException;
 import java.util.Map;
+import java.util.Set;
 import org.apache.zookeeper.server.DataTree;
 
 /**
@@ -50,6 +51,58 @@ public interface SnapShot {
      */
     void serialize(DataTree dt, Map<Long, Integer> sessions, File name, boolean fsync) throws IOException;
 
+    /**
+     * persist the datatree as of the given view and the sessions into a
+     * persistence storage
+     * @param dt the datatree to be serialized
+     * @param sessions the session timeouts to be serialized
+     * @param name the object name to store snapshot into
+     * @param fsync sync the snapshot immediately after write
+     * @param view the view of the datatree to serialize, or null to
+     *             serialize the live datatree
+     * @throws IOException
+     */
+    default void serialize(
+        DataTree dt,
+        Map<Long, Integer> sessions,
+        File name,
+        boolean fsync,
+        DataTree.SnapshotView view) throws IOException {
+        // a fuzzy snapshot of the live datatree, fixed up by the txns replayed
+        // after the zxid of the view like any snapshot without a view
+        serialize(dt, sessions, name, fsync);
+    }
+
+    /**
+     * persist the datatree nodes changed since the previous snapshot and the
+     * sessions into a persistence storage
+     * @param dt the datatree to be serialized
+     * @param sessions the session timeouts to be serialized
+     * @param paths the paths of the nodes changed since the previous snapshot
+     * @param baseZxid the zxid of the previous snapshot
+     * @param name the object name to store the delta snapshot into
+     * @param fsync sync the delta snapshot immediately after write
+     * @throws IOException if the delta can't be written, or delta snapshots
+     *         aren't supported
+     */
+    default void serializeDelta(
+        DataTree dt,
+        Map<Long, Integer> sessions,
+        Set<String> paths,
+        long baseZxid,
+        File name,
+        boolean fsync) throws IOException {
+        throw new IOException(getClass().getName() + " doesn't write delta snapshots");
+    }
+
+    /**
+     * @return true if {@link #serializeDelta} writes delta snapshots, else
+     *         only full snapshots are taken
+     */
+    default boolean isDeltaSupported() {
+        return false;
+    }
+
     /**
      * find the most recent snapshot file
      * @return the most recent snapshot file
@@ -57,6 +57,17 @@ public class SnapStream {
         System.getProperty(ZOOKEEPER_SHAPSHOT_STREAM_MODE,
                            StreamMode.DEFAULT_MODE.getName()));
 
+    /**
+     * The size of the uncompressed chunks of the chunked snapshot format.
+     */
+    public static final String ZOOKEEPER_SNAPSHOT_CHUNK_SIZE_KB = "zookeeper.snapshot.chunked.chunkSizeKb";
+
+    /**
+     * The number of threads compressing or decompressing the chunks of a
+     * chunked snapshot.
+     */
+    public static final String ZOOKEEPER_SNAPSHOT_CHUNK_THREADS = "zookeeper.snapshot.chunked.threads";
+
     static {
         LOG.info("{} = {}", ZOOKEEPER_SHAPSHOT_STREAM_MODE, streamMode);
     }
@@ -64,6 +75,7 @@ public class SnapStream {
     public enum StreamMode {
         GZIP("gz"),
         SNAPPY("snappy"),
+        CHUNKED("chunked"),
         CHECKED("");
 
         public static final StreamMode DEFAULT_MODE = CHECKED;
@@ -100,20 +112,40 @@ public static StreamMode fromString(String name) {
      * @throws IOException
      */
     public static CheckedInputStream getInputStream(File file) throws IOException {
-        FileInputStream fis = new FileInputStream(file);
-        InputStream is;
-        switch (getStreamMode(file.getName())) {
+        StreamMode mode = getStreamMode(file.getName());
+        if (mode == StreamMode.CHUNKED) {
+            return new CheckedInputStream(
+                new BufferedInputStream(new ChunkedSnapInputStream(file, getChunkThreads())),
+                new Adler32());
+        }
+        return getInputStream(new FileInputStream(file), mode);
+    }
+
+    /**
+     * Return the CheckedInputStream reading the content of a snapshot file
+     * from a stream, like a snapshot file sent over the network.
+     *
+     * @param is the stream of the file content
+     * @param mode the stream mode of the file, chunked snapshots need the file
+     * @return the specific InputStream
+     * @throws IOException
+     */
+    public static CheckedInputStream getInputStream(InputStream is, StreamMode mode) throws IOException {
+        InputStream in;
+        switch (mode) {
         case GZIP:
-            is = new GZIPInputStream(fis);
+            in = new GZIPInputStream(is);
             break;
         case SNAPPY:
-            is = new SnappyInputStream(fis);
+            in = new SnappyInputStream(is);
             break;
+        case CHUNKED:
+            throw new IOException("Chunked snapshots can only be read from a file");
         case CHECKED:
         default:
-            is = new BufferedInputStream(fis);
+            in = new BufferedInputStream(is);
         }
-        return new CheckedInputStream(is, new Adler32());
+        return new CheckedInputStream(in, new Adler32());
     }
 
     /**
@@ -134,6 +166,10 @@ public static CheckedOutputStream getOutputStream(File file, boolean fsync) thro
         case SNAPPY:
             os = new SnappyOutputStream(fos);
             break;
+        case CHUNKED:
+            os = new BufferedOutputStream(new ChunkedSnapOutputStream(
+                new BufferedOutputStream(fos), getChunkSize(), getChunkThreads()));
+            break;
         case CHECKED:
         default:
             os = new BufferedOutputStream(fos);
@@ -191,6 +227,9 @@ public static boolean isValidSnapshot(File file) throws IOException {
         case SNAPPY:
             isValid = isValidSnappyStream(file);
             break;
+        case CHUNKED:
+            isValid = ChunkedSnapInputStream.isValid(file);
+            break;
         case CHECKED:
         default:
             isValid = isValidCheckedStream(file);
@@ -198,6 +237,16 @@ public static boolean isValidSnapshot(File file) throws IOException {
         return isValid;
     }
 
+    private static int getChunkSize() {
+        return Integer.getInteger(ZOOKEEPER_SNAPSHOT_CHUNK_SIZE_KB, 4096) * 1024;
+    }
+
+    private static int getChunkThreads() {
+        return Integer.getInteger(
+            ZOOKEEPER_SNAPSHOT_CHUNK_THREADS,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
     public static void setStreamMode(StreamMode mode) {
         streamMode = mode;
     }
@@ -101,6 +101,20 @@ public interface TxnLog extends Closeable {
      */
     void commit() throws IOException;
 
+    /**
+     * start a commit: the appended transactions are handed to the OS and
+     * the returned sync persists them. Unlike {@link #commit()} the sync can
+     * run on another thread while more transactions are appended, the syncs
+     * have to be run in the order they were started. By default the
+     * transactions are committed right away and the sync does nothing.
+     * @return the sync persisting the transactions appended so far
+     * @throws IOException
+     */
+    default PendingSync startCommit() throws IOException {
+        commit();
+        return () -> { };
+    }
+
     /**
      *
      * @return transaction log's elapsed sync time in milliseconds
@@ -122,6 +136,19 @@ public interface TxnLog extends Closeable {
      */
     long getTotalLogSize();
 
+    /**
+     * the second half of a commit started by {@link #startCommit()}.
+     */
+    interface PendingSync {
+
+        /**
+         * make sure the transactions are persisted
+         * @throws IOException
+         */
+        void sync() throws IOException;
+
+    }
+
     /**
      * an iterating interface for reading
      * transaction logs.
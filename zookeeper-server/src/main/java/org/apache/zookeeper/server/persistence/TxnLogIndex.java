@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.Checksum;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.InputArchive;
+import org.apache.zookeeper.common.AtomicFileWritingIdiom;
+import org.apache.zookeeper.server.util.SerializeUtils;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A sparse index of a txn log file, mapping the zxid of a txn every
+ * interval bytes of the log to its offset, so a reader can seek close to a
+ * zxid instead of reading the log from its start.
+ *
+ * The index of log.X is kept in logindex.X. It is built as the txns are
+ * appended to the log and written when the log is rolled or closed, and
+ * extended by the FileTxnIterators reading a log it doesn't fully cover.
+ * An entry is checked against the log before seeking to it, an index not
+ * matching its log is dropped.
+ */
+class TxnLogIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TxnLogIndex.class);
+
+    public static final String INDEX_FILE_PREFIX = "logindex";
+
+    private static final int MAGIC = ByteBuffer.wrap("ZKLI".getBytes()).getInt();
+
+    private static final int VERSION = 1;
+
+    /**
+     * The log bytes between two entries of the index, the most a seek has
+     * to read past. Set to 0 or less to disable the index.
+     */
+    static final String INTERVAL_KB = "zookeeper.txnLogIndexIntervalKb";
+
+    private static long interval;
+
+    /**
+     * The writers and readers of a log persist its index concurrently, the
+     * index files are only written, replaced or deleted holding their lock.
+     */
+    private static final Object[] FILE_LOCKS = new Object[16];
+
+    static {
+        interval = Long.getLong(INTERVAL_KB, 64) * 1024;
+        LOG.info("{} = {}", INTERVAL_KB, interval / 1024);
+        for (int i = 0; i < FILE_LOCKS.length; i++) {
+            FILE_LOCKS[i] = new Object();
+        }
+    }
+
+    // VisibleForTesting
+    static void setInterval(long bytes) {
+        interval = bytes;
+    }
+
+    /**
+     * An indexed txn
+     */
+    static class Entry {
+
+        final long zxid;
+        final long offset;
+
+        Entry(long zxid, long offset) {
+            this.zxid = zxid;
+            this.offset = offset;
+        }
+
+    }
+
+    private final File logFile;
+    private final File indexFile;
+    private long[] zxids = new long[16];
+    private long[] offsets = new long[16];
+    private int size;
+    private boolean dirty;
+
+    private TxnLogIndex(File logFile) {
+        this.logFile = logFile;
+        this.indexFile = indexFileFor(logFile);
+    }
+
+    static File indexFileFor(File logFile) {
+        long zxid = Util.getZxidFromName(logFile.getName(), FileTxnLog.LOG_FILE_PREFIX);
+        return new File(logFile.getParentFile(), INDEX_FILE_PREFIX + "." + Long.toHexString(zxid));
+    }
+
+    /**
+     * Start the index of a log file being created, dropping the index of a
+     * previous log with the same name.
+     *
+     * @return the index, null if the index is disabled
+     */
+    static TxnLogIndex create(File logFile) {
+        if (interval <= 0) {
+            return null;
+        }
+        delete(logFile);
+        return new TxnLogIndex(logFile);
+    }
+
+    /**
+     * Load the index of the log file, empty if it has none yet.
+     *
+     * @return the index, null if the index is disabled
+     */
+    static TxnLogIndex load(File logFile) {
+        if (interval <= 0) {
+            return null;
+        }
+        TxnLogIndex index = new TxnLogIndex(logFile);
+        if (!index.indexFile.exists()) {
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index.indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Invalid header");
+            }
+            while (true) {
+                long zxid;
+                long offset;
+                try {
+                    zxid = in.readLong();
+                    offset = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                index.append(zxid, offset);
+            }
+        } catch (IOException e) {
+            LOG.warn("Ignoring the txn log index {}", index.indexFile, e);
+            index.clear();
+        }
+        return index;
+    }
+
+    /**
+     * Delete the index of the log file, for when the log is truncated or
+     * removed.
+     */
+    static void delete(File logFile) {
+        File indexFile = indexFileFor(logFile);
+        synchronized (lockFor(indexFile)) {
+            if (indexFile.exists() && !indexFile.delete()) {
+                LOG.warn("Unable to delete the txn log index {}", indexFile);
+            }
+        }
+    }
+
+    /**
+     * Record the txn appended or read at the offset of the log, if it is at
+     * least interval bytes past the last entry.
+     */
+    void add(long zxid, long offset) {
+        long last = size == 0 ? 0 : offsets[size - 1];
+        if (offset - last >= interval && append(zxid, offset)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * @return the last entry at or before the zxid which matches the log,
+     * null if there is none
+     */
+    Entry floor(long zxid) {
+        int i = Arrays.binarySearch(zxids, 0, size, zxid);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        if (i < 0) {
+            return null;
+        }
+        Entry entry = new Entry(zxids[i], offsets[i]);
+        if (!matches(entry)) {
+            LOG.warn(
+                "The txn log index {} doesn't match 0x{} at {}, dropping it",
+                indexFile,
+                Long.toHexString(entry.zxid),
+                entry.offset);
+            clear();
+            delete(logFile);
+            return null;
+        }
+        return entry;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Write the index if entries were added since it was loaded, unless the
+     * index file written meanwhile has as many entries. The index is an
+     * optimization, failing to write it is only logged.
+     */
+    void persist() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        synchronized (lockFor(indexFile)) {
+            if (indexFile.length() >= 8 + size * 16L) {
+                return;
+            }
+            try {
+                new AtomicFileWritingIdiom(indexFile, os -> {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    for (int i = 0; i < size; i++) {
+                        out.writeLong(zxids[i]);
+                        out.writeLong(offsets[i]);
+                    }
+                    out.flush();
+                });
+            } catch (IOException e) {
+                LOG.warn("Unable to write the txn log index {}", indexFile, e);
+            }
+        }
+    }
+
+    private static Object lockFor(File indexFile) {
+        return FILE_LOCKS[(indexFile.hashCode() & Integer.MAX_VALUE) % FILE_LOCKS.length];
+    }
+
+    private boolean append(long zxid, long offset) {
+        if (size > 0 && (zxid <= zxids[size - 1] || offset <= offsets[size - 1])) {
+            return false;
+        }
+        if (size == zxids.length) {
+            zxids = Arrays.copyOf(zxids, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        zxids[size] = zxid;
+        offsets[size] = offset;
+        size++;
+        return true;
+    }
+
+    private void clear() {
+        size = 0;
+        dirty = false;
+    }
+
+    /**
+     * Check the txn at the offset of the entry is a valid txn with its zxid.
+     */
+    private boolean matches(Entry entry) {
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "r")) {
+            if (entry.offset >= raf.length()) {
+                return false;
+            }
+            raf.seek(entry.offset);
+            InputArchive ia = new BinaryInputArchive(raf);
+            long crcValue = ia.readLong("crcvalue");
+            byte[] bytes = Util.readTxnBytes(ia);
+            if (bytes == null || bytes.length == 0) {
+                return false;
+            }
+            Checksum crc = new Adler32();
+            crc.update(bytes, 0, bytes.length);
+            if (crcValue != crc.getValue()) {
+                return false;
+            }
+            TxnHeader hdr = SerializeUtils.deserializeTxn(bytes).getHeader();
+            return hdr != null && hdr.getZxid() == entry.zxid;
+        } catch (IOException e) {
+            LOG.debug("Unable to read the txn at {} of {}", entry.offset, logFile, e);
+            return false;
+        }
+    }
+
+}
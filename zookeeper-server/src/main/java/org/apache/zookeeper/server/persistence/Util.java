@@ -97,6 +97,18 @@ public static String makeSnapshotName(long zxid) {
                + SnapStream.getStreamMode().getFileExtension();
     }
 
+    /**
+     * Creates a delta snapshot file name.
+     *
+     * @param zxid used as a suffix
+     * @return file name
+     */
+    public static String makeDeltaName(long zxid) {
+        return FileSnap.DELTA_FILE_PREFIX + "."
+               + Long.toHexString(zxid)
+               + SnapStream.getStreamMode().getFileExtension();
+    }
+
     /**
      * Extracts snapshot directory property value from the container.
      *
@@ -20,21 +20,26 @@
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.DataTree;
 import org.apache.zookeeper.server.ExitCode;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.RequestProcessor;
 import org.apache.zookeeper.server.ServerMetrics;
 import org.apache.zookeeper.server.WorkerService;
 import org.apache.zookeeper.server.ZooKeeperCriticalThread;
+import org.apache.zookeeper.server.ZooKeeperServer;
 import org.apache.zookeeper.server.ZooKeeperServerListener;
 import org.apache.zookeeper.util.ServiceUtils;
 import org.slf4j.Logger;
@@ -86,6 +91,8 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements RequestP
     public static final String ZOOKEEPER_COMMIT_PROC_MAX_READ_BATCH_SIZE = "zookeeper.commitProcessor.maxReadBatchSize";
     /** Default max commit batch size: 1 */
     public static final String ZOOKEEPER_COMMIT_PROC_MAX_COMMIT_BATCH_SIZE = "zookeeper.commitProcessor.maxCommitBatchSize";
+    /** Default: false */
+    public static final String ZOOKEEPER_COMMIT_PROC_PARALLEL_APPLY = "zookeeper.commitProcessor.parallelApply";
 
     /**
      * Incoming requests.
@@ -156,6 +163,21 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements RequestP
      */
     boolean matchSyncs;
 
+    /**
+     * The server committed writes may be applied to concurrently, see
+     * {@link #allowParallelApply(ZooKeeperServer)}.
+     */
+    private ZooKeeperServer parallelApplyServer;
+
+    private boolean parallelApply;
+
+    /**
+     * The writes of the commit batch being applied concurrently, in zxid
+     * order, and the nodes they depend on.
+     */
+    private final List<Request> parallelApplyBatch = new ArrayList<>();
+    private final Set<String> parallelApplyKeys = new HashSet<>();
+
     public CommitProcessor(RequestProcessor nextProcessor, String id, boolean matchSyncs, ZooKeeperServerListener listener) {
         super("CommitProcessor:" + id, listener);
         this.nextProcessor = nextProcessor;
@@ -377,11 +399,19 @@ public void run() {
                         commitsToProcess--;
                         commitsProcessed++;
 
-                        // Process the write inline.
-                        processWrite(request);
+                        if (parallelApply) {
+                            applyWrite(request);
+                        } else {
+                            // Process the write inline.
+                            processWrite(request);
+                        }
 
                         commitIsWaiting = !committedRequests.isEmpty();
                     }
+                    if (parallelApply) {
+                        // The reads following the writes must see them
+                        finishParallelApply();
+                    }
                     ServerMetrics.getMetrics().WRITE_BATCH_TIME_IN_COMMIT_PROCESSOR
                         .add(Time.currentElapsedTime() - startWriteTime);
                     ServerMetrics.getMetrics().WRITES_ISSUED_IN_COMMIT_PROC.add(commitsProcessed);
@@ -452,6 +482,16 @@ public void start() {
         LOG.info(
             "Configuring CommitProcessor with {} worker threads.",
             numWorkerThreads > 0 ? numWorkerThreads : "no");
+        if (Boolean.getBoolean(ZOOKEEPER_COMMIT_PROC_PARALLEL_APPLY)) {
+            if (parallelApplyServer == null || numWorkerThreads <= 0) {
+                LOG.warn("Committed writes can't be applied concurrently without worker threads or on the leader");
+            } else if (Boolean.getBoolean(DataTree.SNAPSHOT_CONSISTENT_VIEW_ENABLED)) {
+                LOG.warn("Committed writes can't be applied concurrently with consistent snapshot views");
+            } else {
+                parallelApply = true;
+                LOG.info("Configuring CommitProcessor to apply committed writes concurrently");
+            }
+        }
         if (workerPool == null) {
             workerPool = new WorkerService("CommitProcWork", numWorkerThreads, true);
         }
@@ -470,6 +510,61 @@ private void sendToNextProcessor(Request request) {
         workerPool.schedule(workRequest, request.sessionId);
     }
 
+    /**
+     * Allow the committed writes to be applied concurrently to the given
+     * server when {@link #ZOOKEEPER_COMMIT_PROC_PARALLEL_APPLY} is set. The
+     * writes of a commit batch touching neither the same nodes nor the same
+     * parents are applied to the tree by the worker threads, then processed
+     * in zxid order so that their watches and replies go out in order. The
+     * other writes are applied alone between two batches. Only the learners allow it: the outstanding changes of the
+     * leader and its toBeApplied list expect the writes in zxid order.
+     */
+    public void allowParallelApply(ZooKeeperServer zks) {
+        this.parallelApplyServer = zks;
+    }
+
+    private void applyWrite(Request request) throws RequestProcessorException, InterruptedException {
+        Set<String> keys = parallelApplyServer.getConcurrentApplyKeys(request);
+        if (keys == null || !Collections.disjoint(parallelApplyKeys, keys)) {
+            finishParallelApply();
+        }
+        if (keys == null) {
+            processWrite(request);
+            return;
+        }
+        request.setAppliedConcurrently(true);
+        parallelApplyBatch.add(request);
+        parallelApplyKeys.addAll(keys);
+        numRequestsProcessing.incrementAndGet();
+        workerPool.schedule(new ApplyWorkRequest(request), request.sessionId);
+        if (ZooKeeperServer.isDigestEnabled() && request.zxid % DataTree.DIGEST_LOG_INTERVAL == 0) {
+            // the digest of the tree is logged for this zxid
+            finishParallelApply();
+        }
+    }
+
+    /**
+     * Wait for the writes being applied concurrently, move the tree to the
+     * last one, and then process them in zxid order, which fires their
+     * watches and sends their replies.
+     */
+    private void finishParallelApply() throws RequestProcessorException, InterruptedException {
+        if (parallelApplyBatch.isEmpty()) {
+            return;
+        }
+        waitForEmptyPool();
+        if (stopped) {
+            return;
+        }
+        ServerMetrics.getMetrics().WRITES_APPLIED_CONCURRENTLY_IN_COMMIT_PROC.add(parallelApplyBatch.size());
+        parallelApplyServer.concurrentTxnsApplied(parallelApplyBatch);
+        for (Request request : parallelApplyBatch) {
+            processWrite(request);
+        }
+        parallelApplyBatch.clear();
+        parallelApplyKeys.clear();
+    }
+
     private void processWrite(Request request) throws RequestProcessorException {
         processCommitMetrics(request, true);
 
@@ -577,6 +672,38 @@ public void doWork() throws RequestProcessorException {
 
     }
 
+    /**
+     * ApplyWorkRequest applies a committed write of the batch being applied
+     * concurrently, the write is processed later by finishParallelApply
+     */
+    private class ApplyWorkRequest extends WorkerService.WorkRequest {
+
+        private final Request request;
+
+        ApplyWorkRequest(Request request) {
+            this.request = request;
+        }
+
+        @Override
+        public void cleanup() {
+            if (!stopped) {
+                LOG.error("Exception thrown while applying a write, unable to continue.");
+                CommitProcessor.this.halt();
+            }
+        }
+
+        public void doWork() {
+            try {
+                parallelApplyServer.applyConcurrently(request);
+            } finally {
+                if (numRequestsProcessing.decrementAndGet() == 0) {
+                    wakeupOnEmpty();
+                }
+            }
+        }
+
+    }
+
     @SuppressFBWarnings("NN_NAKED_NOTIFY")
     private synchronized void wakeup() {
         notifyAll();
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import org.xerial.snappy.Snappy;
+
+/**
+ * Reads the stream compressed by a CompressedQuorumOutputStream.
+ */
+class CompressedQuorumInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private byte[] compressed = new byte[0];
+    private byte[] block = new byte[0];
+    private int count;
+    private int position;
+
+    CompressedQuorumInputStream(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!readFrame()) {
+            return -1;
+        }
+        return block[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!readFrame()) {
+            return -1;
+        }
+        int n = Math.min(len, count - position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return count - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean readFrame() throws IOException {
+        while (position == count) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            int compressedLength = in.readInt();
+            if (length <= 0 || length > CompressedQuorumOutputStream.BLOCK_SIZE
+                || compressedLength <= 0 || compressedLength > Snappy.maxCompressedLength(length)) {
+                throw new IOException("Invalid compressed frame of " + compressedLength + " bytes for " + length + " bytes");
+            }
+            if (compressed.length < compressedLength) {
+                compressed = new byte[Snappy.maxCompressedLength(CompressedQuorumOutputStream.BLOCK_SIZE)];
+            }
+            in.readFully(compressed, 0, compressedLength);
+            if (block.length < length) {
+                block = new byte[CompressedQuorumOutputStream.BLOCK_SIZE];
+            }
+            count = Snappy.uncompress(compressed, 0, compressedLength, block, 0);
+            if (count != length) {
+                throw new IOException("Compressed frame of " + count + " bytes instead of " + length);
+            }
+            position = 0;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xerial.snappy.Snappy;
+
+/**
+ * Compresses the stream from a LearnerHandler to its learner with Snappy.
+ * The stream is cut into frames of at most BLOCK_SIZE bytes, compressed
+ * separately and each preceded by its uncompressed and compressed lengths.
+ * A flush compresses what is buffered as a frame, so the packets flushed
+ * by the LearnerHandler are not held back.
+ */
+class CompressedQuorumOutputStream extends OutputStream {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompressedQuorumOutputStream.class);
+
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private static volatile Boolean snappyAvailable;
+
+    private final DataOutputStream out;
+    private final String learner;
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final byte[] compressed = new byte[Snappy.maxCompressedLength(BLOCK_SIZE)];
+    private int count;
+
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+
+    /**
+     * @param out the stream to the learner
+     * @param learner the sid of the learner, the metrics are reported for
+     */
+    CompressedQuorumOutputStream(OutputStream out, String learner) {
+        this.out = new DataOutputStream(out);
+        this.learner = learner;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == block.length) {
+            writeFrame();
+        }
+        block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == block.length) {
+                writeFrame();
+            }
+            int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeFrame();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+
+    /**
+     * snappy-java is a provided dependency, the quorum stream is only
+     * compressed when it can be loaded on both ends
+     */
+    static boolean isSnappyAvailable() {
+        if (snappyAvailable == null) {
+            try {
+                Snappy.compress(new byte[1]);
+                snappyAvailable = true;
+            } catch (Throwable t) {
+                LOG.info("Snappy is not available, the quorum stream won't be compressed: {}", t.toString());
+                snappyAvailable = false;
+            }
+        }
+        return snappyAvailable;
+    }
+
+    long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * @return the compressed size of what was sent so far in percents of its
+     * uncompressed size, 0 if nothing was sent
+     */
+    long getCompressionRatio() {
+        return ratio(compressedBytes.get(), uncompressedBytes.get());
+    }
+
+    static long ratio(long compressed, long uncompressed) {
+        return uncompressed == 0 ? 0 : compressed * 100 / uncompressed;
+    }
+
+    private void writeFrame() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        int length = Snappy.compress(block, 0, count, compressed, 0);
+        long elapsedUs = (System.nanoTime() - start) / 1000;
+
+        out.writeInt(count);
+        out.writeInt(length);
+        out.write(compressed, 0, length);
+
+        uncompressedBytes.addAndGet(count);
+        compressedBytes.addAndGet(length + 8);
+        ServerMetrics.getMetrics().LEARNER_UNCOMPRESSED_BYTES.add(count);
+        ServerMetrics.getMetrics().LEARNER_COMPRESSED_BYTES.add(length + 8);
+        ServerMetrics.getMetrics().LEARNER_COMPRESSION_TIME.add(learner, elapsedUs);
+        count = 0;
+    }
+
+}
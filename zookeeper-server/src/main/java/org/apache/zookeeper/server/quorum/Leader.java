@@ -425,6 +425,21 @@ Optional<ServerSocket> createServerSocket(InetSocketAddress address, boolean por
      */
     static final int INFORMANDACTIVATE = 19;
 
+    /**
+     * Learner feature bit: the learner can read a SNAP made of the chunks of
+     * a snapshot file, named by the data of the SNAP packet. The features a
+     * learner supports are sent as an int following its LearnerInfo.
+     */
+    static final int FEATURE_SNAP_FILE = 0x1;
+
+    /**
+     * Learner feature bit: the learner can read a quorum stream compressed by
+     * a CompressedQuorumOutputStream. When the leader compresses the stream
+     * it sets this bit in an int following the protocol version of LEADERINFO,
+     * and compresses what it sends after LEADERINFO.
+     */
+    static final int FEATURE_SNAPPY = 0x2;
+
     final ConcurrentMap<Long, Proposal> outstandingProposals = new ConcurrentHashMap<Long, Proposal>();
 
     private final ConcurrentLinkedQueue<Proposal> toBeApplied = new ConcurrentLinkedQueue<Proposal>();
@@ -1121,9 +1136,10 @@ public void shutdown() {
      *                the packet to be sent
      */
     void sendPacket(QuorumPacket qp) {
+        QuorumPacket shared = SharedQuorumPacket.share(qp);
         synchronized (forwardingFollowers) {
             for (LearnerHandler f : forwardingFollowers) {
-                f.queuePacket(qp);
+                f.queuePacket(shared);
             }
         }
     }
@@ -1132,8 +1148,9 @@ void sendPacket(QuorumPacket qp) {
      * send a packet to all observers
      */
     void sendObserverPacket(QuorumPacket qp) {
+        QuorumPacket shared = SharedQuorumPacket.share(qp);
         for (LearnerHandler f : getObservingLearners()) {
-            f.queuePacket(qp);
+            f.queuePacket(shared);
         }
     }
 
@@ -1239,7 +1256,8 @@ public Proposal propose(Request request) throws XidRolloverException {
 
         byte[] data = SerializeUtils.serializeRequest(request);
         proposalStats.setLastBufferSize(data.length);
-        QuorumPacket pp = new QuorumPacket(Leader.PROPOSAL, request.zxid, data, null);
+        // shared so that the learners being synced reuse its serialization too
+        QuorumPacket pp = new SharedQuorumPacket(Leader.PROPOSAL, request.zxid, data, null);
 
         Proposal p = new Proposal();
         p.packet = pp;
@@ -18,6 +18,7 @@
 
 package org.apache.zookeeper.server.quorum;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
@@ -87,6 +88,9 @@ static class PacketInFlight {
 
     protected BufferedOutputStream bufferedOutput;
 
+    /** the stream from the leader, under leaderIs */
+    protected BufferedInputStream bufferedInput;
+
     protected Socket sock;
     protected MultipleAddresses leaderAddr;
     protected AtomicBoolean sockBeingClosed = new AtomicBoolean(false);
@@ -350,7 +354,8 @@ protected void connectToLeader(MultipleAddresses multiAddr, String hostname) thr
 
         self.authLearner.authenticate(sock, hostname);
 
-        leaderIs = BinaryInputArchive.getArchive(new BufferedInputStream(sock.getInputStream()));
+        bufferedInput = new BufferedInputStream(sock.getInputStream());
+        leaderIs = BinaryInputArchive.getArchive(bufferedInput);
         bufferedOutput = new BufferedOutputStream(sock.getOutputStream());
         leaderOs = BinaryOutputArchive.getArchive(bufferedOutput);
         if (asyncSending) {
@@ -496,6 +501,11 @@ protected long registerWithLeader(int pktType) throws IOException {
         ByteArrayOutputStream bsid = new ByteArrayOutputStream();
         BinaryOutputArchive boa = BinaryOutputArchive.getArchive(bsid);
         boa.writeRecord(li, "LearnerInfo");
+        int features = Leader.FEATURE_SNAP_FILE;
+        if (CompressedQuorumOutputStream.isSnappyAvailable()) {
+            features |= Leader.FEATURE_SNAPPY;
+        }
+        boa.writeInt(features, "features");
         qp.setData(bsid.toByteArray());
 
         writePacket(qp, true);
@@ -503,7 +513,13 @@ protected long registerWithLeader(int pktType) throws IOException {
         final long newEpoch = ZxidUtils.getEpochFromZxid(qp.getZxid());
         if (qp.getType() == Leader.LEADERINFO) {
             // we are connected to a 1.0 server so accept the new epoch and read the next packet
-            leaderProtocolVersion = ByteBuffer.wrap(qp.getData()).getInt();
+            ByteBuffer leaderInfo = ByteBuffer.wrap(qp.getData());
+            leaderProtocolVersion = leaderInfo.getInt();
+            if (leaderInfo.remaining() >= 4 && (leaderInfo.getInt() & Leader.FEATURE_SNAPPY) != 0) {
+                // the leader compresses what it sends after LEADERINFO
+                LOG.info("Leader compresses the quorum stream with snappy");
+                leaderIs = BinaryInputArchive.getArchive(new CompressedQuorumInputStream(bufferedInput));
+            }
             byte[] epochBytes = new byte[4];
             final ByteBuffer wrappedEpochBytes = ByteBuffer.wrap(epochBytes);
             if (newEpoch > self.getAcceptedEpoch()) {
@@ -567,7 +583,17 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
                 LOG.info("Getting a snapshot from leader 0x{}", Long.toHexString(qp.getZxid()));
                 // The leader is going to dump the database
                 // db is clear as part of deserializeSnapshot()
-                zk.getZKDatabase().deserializeSnapshot(leaderIs);
+                if (qp.getData() != null && qp.getData().length > 0) {
+                    // the leader streams one of its snapshot files, the
+                    // txns after it follow as committed proposals
+                    String snapName = new String(qp.getData(), UTF_8);
+                    LOG.info("Reading snapshot file {} from leader", snapName);
+                    SnapshotFileInputStream snapIS = new SnapshotFileInputStream(leaderIs);
+                    zk.getZKDatabase().deserializeSnapshot(snapIS, snapName);
+                    snapIS.skipToEnd();
+                } else {
+                    zk.getZKDatabase().deserializeSnapshot(leaderIs);
+                }
                 // ZOOKEEPER-2819: overwrite config node content extracted
                 // from leader snapshot with local config, to avoid potential
                 // inconsistency of config node content during rolling restart.
@@ -18,13 +18,21 @@
 
 package org.apache.zookeeper.server.quorum;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -46,6 +54,9 @@
 import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.ZooKeeperThread;
 import org.apache.zookeeper.server.ZooTrace;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.SnapStream;
+import org.apache.zookeeper.server.persistence.Util;
 import org.apache.zookeeper.server.quorum.Leader.Proposal;
 import org.apache.zookeeper.server.quorum.QuorumPeer.LearnerType;
 import org.apache.zookeeper.server.quorum.auth.QuorumAuthServer;
@@ -243,6 +254,35 @@ protected void setBufferedOutput(BufferedOutputStream bufferedOutput) {
     public static final String FORCE_SNAP_SYNC = "zookeeper.forceSnapshotSync";
     private boolean forceSnapSync = false;
 
+    /**
+     * Send SNAP from the most recent snapshot file followed by the txns
+     * committed since that snapshot, instead of serializing the data tree,
+     * to the learners supporting it
+     */
+    public static final String SNAP_SYNC_FROM_FILE = "zookeeper.leader.snapSyncFromFile";
+    private static final int SNAP_FILE_CHUNK_SIZE = 64 * 1024;
+    private boolean snapSyncFromFile = false;
+
+    /**
+     * Compress the stream to the learners supporting it with snappy, from
+     * the sync that follows LEADERINFO on
+     */
+    public static final String COMPRESS_LEARNER_STREAM = "zookeeper.leader.compressLearnerStream";
+    private boolean compressLearnerStream = false;
+    private volatile CompressedQuorumOutputStream compressedOutput;
+
+    /**
+     * The features the learner supports, see Leader.FEATURE_SNAP_FILE
+     */
+    private int learnerFeatures = 0;
+
+    /**
+     * The snapshot file to send, opened while choosing the sync so it can't
+     * be purged before being sent
+     */
+    private File snapshotFile;
+    private FileChannel snapshotFileChannel;
+
     /**
      * Keep track of whether we need to queue TRUNC or DIFF into packet queue
      * that we are going to blast it to the learner
@@ -269,6 +309,9 @@ protected void setBufferedOutput(BufferedOutputStream bufferedOutput) {
             forceSnapSync = true;
             LOG.info("Forcing snapshot sync is enabled");
         }
+        snapSyncFromFile = Boolean.getBoolean(SNAP_SYNC_FROM_FILE);
+        compressLearnerStream = Boolean.getBoolean(COMPRESS_LEARNER_STREAM)
+                                && CompressedQuorumOutputStream.isSnappyAvailable();
 
         try {
             QuorumAuthServer authServer = learnerMaster.getQuorumAuthServer();
@@ -353,7 +396,17 @@ private void sendPackets() throws InterruptedException {
                 if (p.getZxid() > 0) {
                     lastZxid = p.getZxid();
                 }
-                oa.writeRecord(p, "packet");
+                if (p instanceof SharedQuorumPacket) {
+                    // serialized once for all the learners
+                    SharedQuorumPacket shared = (SharedQuorumPacket) p;
+                    try {
+                        bufferedOutput.write(shared.getSerialized());
+                    } finally {
+                        shared.sent();
+                    }
+                } else {
+                    oa.writeRecord(p, "packet");
+                }
                 packetsSent.incrementAndGet();
                 messageTracker.trackSent(p.getType());
             } catch (IOException e) {
@@ -371,6 +424,21 @@ private void sendPackets() throws InterruptedException {
                 break;
             }
         }
+        // the packets queued meanwhile won't be sent
+        clearQueuedPackets();
+    }
+
+    /**
+     * Drop the queued packets, releasing the bytes of the shared packets
+     * this learner handler won't send.
+     */
+    private void clearQueuedPackets() {
+        QuorumPacket p;
+        while ((p = queuedPackets.poll()) != null) {
+            if (p instanceof SharedQuorumPacket) {
+                ((SharedQuorumPacket) p).sent();
+            }
+        }
     }
 
     public static String packetToString(QuorumPacket p) {
@@ -490,6 +558,9 @@ public void run() {
                         throw new IOException("Follower is ahead of the leader (has a later activated configuration)");
                     }
                 }
+                if (learnerInfoData.length >= 24) {
+                    this.learnerFeatures = bbsid.getInt();
+                }
             } else {
                 this.sid = learnerMaster.getAndDecrementFollowerCounter();
             }
@@ -525,12 +596,23 @@ public void run() {
                 // fake the message
                 learnerMaster.waitForEpochAck(this.getSid(), ss);
             } else {
-                byte[] ver = new byte[4];
-                ByteBuffer.wrap(ver).putInt(0x10000);
+                boolean compress = compressLearnerStream && (learnerFeatures & Leader.FEATURE_SNAPPY) != 0;
+                byte[] ver = new byte[compress ? 8 : 4];
+                ByteBuffer verBuffer = ByteBuffer.wrap(ver).putInt(0x10000);
+                if (compress) {
+                    verBuffer.putInt(Leader.FEATURE_SNAPPY);
+                }
                 QuorumPacket newEpochPacket = new QuorumPacket(Leader.LEADERINFO, newLeaderZxid, ver, null);
                 oa.writeRecord(newEpochPacket, "packet");
                 messageTracker.trackSent(Leader.LEADERINFO);
                 bufferedOutput.flush();
+                if (compress) {
+                    // nothing is sent to the learner until its ACKEPOCH is read
+                    LOG.info("Compressing the stream to learner sid: {} with snappy", this.sid);
+                    compressedOutput = new CompressedQuorumOutputStream(bufferedOutput, Long.toString(this.sid));
+                    bufferedOutput = new BufferedOutputStream(compressedOutput);
+                    oa = BinaryOutputArchive.getArchive(bufferedOutput);
+                }
                 QuorumPacket ackEpochPacket = new QuorumPacket();
                 ia.readRecord(ackEpochPacket, "packet");
                 messageTracker.trackReceived(ackEpochPacket.getType());
@@ -558,24 +640,11 @@ public void run() {
                 syncThrottler.beginSync(exemptFromThrottle);
                 ServerMetrics.getMetrics().INFLIGHT_SNAP_COUNT.add(syncThrottler.getSyncInProgress());
                 try {
-                    long zxidToSend = learnerMaster.getZKDatabase().getDataTreeLastProcessedZxid();
-                    oa.writeRecord(new QuorumPacket(Leader.SNAP, zxidToSend, null, null), "packet");
-                    messageTracker.trackSent(Leader.SNAP);
-                    bufferedOutput.flush();
-
-                    LOG.info(
-                        "Sending snapshot last zxid of peer is 0x{}, zxid of leader is 0x{}, "
-                            + "send zxid of db as 0x{}, {} concurrent snapshot sync, "
-                            + "snapshot sync was {} from throttle",
-                        Long.toHexString(peerLastZxid),
-                        Long.toHexString(leaderLastZxid),
-                        Long.toHexString(zxidToSend),
-                        syncThrottler.getSyncInProgress(),
-                        exemptFromThrottle ? "exempt" : "not exempt");
-                    // Dump data to peer
-                    learnerMaster.getZKDatabase().serializeSnapshot(oa);
-                    oa.writeString("BenWasHere", "signature");
-                    bufferedOutput.flush();
+                    if (snapshotFile != null) {
+                        sendSnapshotFile(peerLastZxid, exemptFromThrottle);
+                    } else {
+                        sendSnapshot(peerLastZxid, exemptFromThrottle);
+                    }
                 } finally {
                     ServerMetrics.getMetrics().SNAP_COUNT.add(1);
                 }
@@ -733,6 +802,13 @@ public void run() {
                 syncThrottler.endSync();
                 syncThrottler = null;
             }
+            if (snapshotFileChannel != null) {
+                try {
+                    snapshotFileChannel.close();
+                } catch (IOException e) {
+                    LOG.warn("Error closing snapshot {}", snapshotFile, e);
+                }
+            }
             String remoteAddr = getRemoteAddress();
             LOG.warn("******* GOODBYE {} ********", remoteAddr);
             messageTracker.dumpToLog(remoteAddr);
@@ -892,7 +968,7 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
                         currentZxid = peerLastZxid;
                         // Clear out currently queued requests and revert
                         // to sending a snapshot.
-                        queuedPackets.clear();
+                        clearQueuedPackets();
                         needOpPacket = true;
                     } else {
                         LOG.debug("Queueing committedLog 0x{}", Long.toHexString(currentZxid));
@@ -920,6 +996,9 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
             }
             if (needSnap) {
                 currentZxid = db.getDataTreeLastProcessedZxid();
+                if (snapSyncFromFile && (learnerFeatures & Leader.FEATURE_SNAP_FILE) != 0) {
+                    currentZxid = queueSnapshotFileSync(db, minCommittedLog, maxCommittedLog, txnLogSyncEnabled, currentZxid);
+                }
             }
 
             LOG.debug("Start forwarding 0x{} for peer sid: {}", Long.toHexString(currentZxid), getSid());
@@ -938,6 +1017,195 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
         return needSnap;
     }
 
+    /**
+     * Prepare a SNAP sent from the most recent snapshot file, queueing the
+     * proposals committed after that snapshot. The data tree is sent instead
+     * if the snapshot file can't be streamed or if any of these proposals is
+     * neither in the committedLog nor in the txnlog.
+     *
+     * @return the zxid to start forwarding from, lastProcessedZxid if the
+     *         data tree is sent
+     */
+    private long queueSnapshotFileSync(ZKDatabase db, long minCommittedLog, long maxCommittedLog, boolean txnLogSyncEnabled, long lastProcessedZxid) {
+        File snapFile;
+        try {
+            // only a snapshot this server has completed, a more recent one
+            // may still be being written
+            snapFile = db.findMostRecentSnapshot(db.getDataTree().getLastSnapshotZxid());
+        } catch (IOException e) {
+            LOG.warn("Unable to find the most recent snapshot for peer sid: {}", getSid(), e);
+            return lastProcessedZxid;
+        }
+        // chunked snapshots keep their index at the end of the file, they
+        // can't be read as a stream
+        if (snapFile == null || SnapStream.getStreamMode(snapFile.getName()) == SnapStream.StreamMode.CHUNKED) {
+            return lastProcessedZxid;
+        }
+        long snapZxid = Util.getZxidFromName(snapFile.getName(), FileSnap.SNAPSHOT_FILE_PREFIX);
+        if (snapZxid < minCommittedLog && !txnLogSyncEnabled) {
+            return lastProcessedZxid;
+        }
+
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(snapFile.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            LOG.warn("Unable to open snapshot {} for peer sid: {}", snapFile, getSid(), e);
+            return lastProcessedZxid;
+        }
+
+        long queuedZxid = snapZxid;
+        if (snapZxid < minCommittedLog) {
+            // the sizeLimit is meant to choose between the txnlog and a
+            // snapshot, the snapshot is sent anyway here
+            Iterator<Proposal> txnLogItr = db.getProposalsFromTxnLog(snapZxid, 0);
+            queuedZxid = queueProposalsAfter(txnLogItr, snapZxid, minCommittedLog);
+            if (txnLogItr instanceof TxnLogProposalIterator) {
+                ((TxnLogProposalIterator) txnLogItr).close();
+            }
+        }
+        if (queuedZxid < minCommittedLog) {
+            LOG.info(
+                "Unable to queue the txns between snapshot 0x{} and committedLog 0x{} for peer sid: {}",
+                Long.toHexString(snapZxid),
+                Long.toHexString(minCommittedLog),
+                getSid());
+            clearQueuedPackets();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing snapshot {}", snapFile, e);
+            }
+            return lastProcessedZxid;
+        }
+        queuedZxid = queueProposalsAfter(db.getCommittedLog().iterator(), queuedZxid, maxCommittedLog);
+
+        LOG.info(
+            "Sending snapshot {} and the txns up to 0x{} to peer sid: {}",
+            snapFile,
+            Long.toHexString(queuedZxid),
+            getSid());
+        snapshotFile = snapFile;
+        snapshotFileChannel = channel;
+        return queuedZxid;
+    }
+
+    /**
+     * Queue the proposals in (zxid, maxZxid] and their commits.
+     *
+     * @return the zxid of the last proposal queued, zxid if none
+     */
+    private long queueProposalsAfter(Iterator<Proposal> itr, long zxid, long maxZxid) {
+        long queuedZxid = zxid;
+        while (itr.hasNext()) {
+            Proposal propose = itr.next();
+            long packetZxid = propose.packet.getZxid();
+            if (packetZxid > maxZxid) {
+                break;
+            }
+            if (packetZxid <= queuedZxid) {
+                continue;
+            }
+            queuePacket(propose.packet);
+            queueOpPacket(Leader.COMMIT, packetZxid);
+            queuedZxid = packetZxid;
+        }
+        return queuedZxid;
+    }
+
+    /**
+     * Send the data tree to the learner. When the snapshot fanout is enabled
+     * the serialization is shared with the other learners needing a snapshot
+     * at the same time.
+     */
+    private void sendSnapshot(long peerLastZxid, boolean exemptFromThrottle) throws IOException, InterruptedException {
+        SnapshotFanout fanout = learnerMaster.getSnapshotFanout();
+        SnapshotFanout.Subscription subscription = null;
+        if (fanout != null && fanout.isEnabled()) {
+            subscription = fanout.join(learnerMaster.getZKDatabase());
+        }
+        try {
+            long zxidToSend = subscription != null
+                ? subscription.awaitStart()
+                : learnerMaster.getZKDatabase().getDataTreeLastProcessedZxid();
+            oa.writeRecord(new QuorumPacket(Leader.SNAP, zxidToSend, null, null), "packet");
+            messageTracker.trackSent(Leader.SNAP);
+            bufferedOutput.flush();
+
+            LOG.info(
+                "Sending snapshot last zxid of peer is 0x{}, zxid of leader is 0x{}, "
+                    + "send zxid of db as 0x{}, {} concurrent snapshot sync, "
+                    + "snapshot sync was {} from throttle, serialization {}",
+                Long.toHexString(peerLastZxid),
+                Long.toHexString(leaderLastZxid),
+                Long.toHexString(zxidToSend),
+                syncThrottler.getSyncInProgress(),
+                exemptFromThrottle ? "exempt" : "not exempt",
+                subscription != null ? "shared" : "not shared");
+            // Dump data to peer
+            if (subscription != null) {
+                subscription.writeTo(bufferedOutput);
+            } else {
+                learnerMaster.getZKDatabase().serializeSnapshot(oa);
+                oa.writeString("BenWasHere", "signature");
+            }
+            bufferedOutput.flush();
+        } finally {
+            if (subscription != null) {
+                subscription.close();
+            }
+        }
+    }
+
+    /**
+     * Send the snapshot file chosen by syncFollower, as buffers of its
+     * content ended by an empty buffer. The file channel transfers the
+     * content to the socket, which doesn't copy it through the heap when
+     * the socket has a channel.
+     */
+    private void sendSnapshotFile(long peerLastZxid, boolean exemptFromThrottle) throws IOException {
+        long snapZxid = Util.getZxidFromName(snapshotFile.getName(), FileSnap.SNAPSHOT_FILE_PREFIX);
+        try (FileChannel channel = snapshotFileChannel) {
+            snapshotFileChannel = null;
+            long size = channel.size();
+            oa.writeRecord(new QuorumPacket(Leader.SNAP, snapZxid, snapshotFile.getName().getBytes(UTF_8), null), "packet");
+            messageTracker.trackSent(Leader.SNAP);
+
+            LOG.info(
+                "Sending snapshot file {} of {} bytes, last zxid of peer is 0x{}, zxid of leader is 0x{}, "
+                    + "{} concurrent snapshot sync, snapshot sync was {} from throttle",
+                snapshotFile,
+                size,
+                Long.toHexString(peerLastZxid),
+                Long.toHexString(leaderLastZxid),
+                syncThrottler.getSyncInProgress(),
+                exemptFromThrottle ? "exempt" : "not exempt");
+            // the file can only go straight to the socket while the stream isn't compressed
+            SocketChannel socketChannel = compressedOutput == null ? sock.getChannel() : null;
+            WritableByteChannel target = socketChannel != null ? socketChannel : Channels.newChannel(bufferedOutput);
+            long position = 0;
+            while (position < size) {
+                long end = Math.min(position + SNAP_FILE_CHUNK_SIZE, size);
+                oa.writeInt((int) (end - position), "len");
+                if (socketChannel != null) {
+                    bufferedOutput.flush();
+                }
+                while (position < end) {
+                    long n = channel.transferTo(position, end - position, target);
+                    if (n <= 0) {
+                        throw new EOFException("Snapshot " + snapshotFile + " was truncated at " + position);
+                    }
+                    position += n;
+                }
+            }
+            oa.writeInt(0, "len");
+            oa.writeString("BenWasHere", "signature");
+            bufferedOutput.flush();
+            ServerMetrics.getMetrics().SNAP_FILE_COUNT.add(1);
+            ServerMetrics.getMetrics().SNAP_FILE_BYTES.add(size);
+        }
+    }
+
     /**
      * Queue committed proposals into packet queue. The range of packets which
      * is going to be queued are (peerLaxtZxid, maxZxid]
@@ -1045,7 +1313,7 @@ protected long queueCommittedProposals(Iterator<Proposal> itr, long peerLastZxid
     public void shutdown() {
         // Send the packet of death
         try {
-            queuedPackets.clear();
+            clearQueuedPackets();
             queuedPackets.put(proposalOfDeath);
         } catch (InterruptedException e) {
             LOG.warn("Ignoring unexpected exception", e);
@@ -1097,6 +1365,9 @@ private void queueOpPacket(int type, long zxid) {
     }
 
     void queuePacket(QuorumPacket p) {
+        if (p instanceof SharedQuorumPacket) {
+            ((SharedQuorumPacket) p).queued();
+        }
         queuedPackets.add(p);
         // Add a MarkerQuorumPacket at regular intervals.
         if (shouldSendMarkerPacketForLogging() && packetCounter.getAndIncrement() % markerPacketInterval == 0) {
@@ -1120,7 +1391,7 @@ public boolean synced() {
     }
 
     public synchronized Map<String, Object> getLearnerHandlerInfo() {
-        Map<String, Object> info = new LinkedHashMap<>(9);
+        Map<String, Object> info = new LinkedHashMap<>(12);
         info.put("remote_socket_address", getRemoteAddress());
         info.put("sid", getSid());
         info.put("established", getEstablished());
@@ -1130,6 +1401,13 @@ public synchronized Map<String, Object> getLearnerHandlerInfo() {
         info.put("packets_sent", packetsSent.longValue());
         info.put("requests", requestsReceived.longValue());
         info.put("last_zxid", getLastZxid());
+        CompressedQuorumOutputStream compressed = compressedOutput;
+        info.put("compression", compressed != null ? "snappy" : "none");
+        if (compressed != null) {
+            info.put("uncompressed_bytes", compressed.getUncompressedBytes());
+            info.put("compressed_bytes", compressed.getCompressedBytes());
+            info.put("compression_ratio_pct", compressed.getCompressionRatio());
+        }
 
         return info;
     }
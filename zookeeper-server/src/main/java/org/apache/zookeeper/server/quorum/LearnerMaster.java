@@ -42,12 +42,26 @@ public abstract class LearnerMaster {
     private static final String MAX_CONCURRENT_DIFF_SYNCS = "zookeeper.leader.maxConcurrentDiffSyncs";
     private static final int DEFAULT_CONCURRENT_DIFF_SYNCS;
 
+    // Share one serialization of the snapshot between the learners needing it within this wait
+    private static final String SNAP_SYNC_FANOUT_WAIT_MS = "zookeeper.leader.snapSyncFanoutWaitMs";
+    private static final long DEFAULT_SNAP_SYNC_FANOUT_WAIT_MS;
+
+    // Detach a learner from a shared snapshot serialization once it held it for this long
+    private static final String SNAP_SYNC_FANOUT_STALL_MS = "zookeeper.leader.snapSyncFanoutStallMs";
+    private static final long DEFAULT_SNAP_SYNC_FANOUT_STALL_MS;
+
     static {
         DEFAULT_CONCURRENT_SNAPSYNCS = Integer.getInteger(MAX_CONCURRENT_SNAPSYNCS, 10);
         LOG.info("{} = {}", MAX_CONCURRENT_SNAPSYNCS, DEFAULT_CONCURRENT_SNAPSYNCS);
 
         DEFAULT_CONCURRENT_DIFF_SYNCS = Integer.getInteger(MAX_CONCURRENT_DIFF_SYNCS, 100);
         LOG.info("{} = {}", MAX_CONCURRENT_DIFF_SYNCS, DEFAULT_CONCURRENT_DIFF_SYNCS);
+
+        DEFAULT_SNAP_SYNC_FANOUT_WAIT_MS = Long.getLong(SNAP_SYNC_FANOUT_WAIT_MS, -1);
+        LOG.info("{} = {}", SNAP_SYNC_FANOUT_WAIT_MS, DEFAULT_SNAP_SYNC_FANOUT_WAIT_MS);
+
+        DEFAULT_SNAP_SYNC_FANOUT_STALL_MS = Long.getLong(SNAP_SYNC_FANOUT_STALL_MS, 10000);
+        LOG.info("{} = {}", SNAP_SYNC_FANOUT_STALL_MS, DEFAULT_SNAP_SYNC_FANOUT_STALL_MS);
     }
 
     private volatile int maxConcurrentSnapSyncs = DEFAULT_CONCURRENT_SNAPSYNCS;
@@ -57,6 +71,10 @@ public abstract class LearnerMaster {
 
     private final LearnerSyncThrottler learnerDiffSyncThrottler = new LearnerSyncThrottler(maxConcurrentDiffSyncs, LearnerSyncThrottler.SyncType.DIFF);
 
+    private final SnapshotFanout snapshotFanout = new SnapshotFanout(
+        DEFAULT_SNAP_SYNC_FANOUT_WAIT_MS,
+        DEFAULT_SNAP_SYNC_FANOUT_STALL_MS);
+
     public int getMaxConcurrentSnapSyncs() {
         return maxConcurrentSnapSyncs;
     }
@@ -93,6 +111,14 @@ public LearnerSyncThrottler getLearnerDiffSyncThrottler() {
         return learnerDiffSyncThrottler;
     }
 
+    /**
+     * shares the serialization of snapshots between learners
+     * @return snapshot fanout
+     */
+    SnapshotFanout getSnapshotFanout() {
+        return snapshotFanout;
+    }
+
     /**
      * start tracking a learner handler
      * @param learnerHandler to track
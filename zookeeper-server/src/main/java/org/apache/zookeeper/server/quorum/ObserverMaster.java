@@ -352,7 +352,7 @@ public QuorumAuthServer getQuorumAuthServer() {
     }
 
     void proposalReceived(QuorumPacket qp) {
-        proposedPkts.add(new QuorumPacket(Leader.INFORM, qp.getZxid(), qp.getData(), null));
+        proposedPkts.add(new SharedQuorumPacket(Leader.INFORM, qp.getZxid(), qp.getData(), null));
     }
 
     private synchronized QuorumPacket removeProposedPacket(long zxid) {
@@ -203,6 +203,11 @@ protected void registerMetrics() {
         rootContext.registerGauge("quorum_size", () -> {
             return self.getQuorumSize();
         });
+        rootContext.registerGauge("learner_compression_ratio_pct", () -> {
+            return CompressedQuorumOutputStream.ratio(
+                ServerMetrics.getMetrics().LEARNER_COMPRESSED_BYTES.get(),
+                ServerMetrics.getMetrics().LEARNER_UNCOMPRESSED_BYTES.get());
+        });
     }
 
     @Override
@@ -212,6 +217,7 @@ protected void unregisterMetrics() {
         MetricsContext rootContext = ServerMetrics.getMetrics().getMetricsProvider().getRootContext();
 
         rootContext.unregisterGauge("quorum_size");
+        rootContext.unregisterGauge("learner_compression_ratio_pct");
     }
 
     @Override
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.server.ServerMetrics;
+
+/**
+ * A packet queued on several learner handlers, like the proposals and
+ * commits the leader broadcasts. It is serialized once, by the first
+ * learner handler sending it, and the other learner handlers write the
+ * same bytes instead of serializing it again. The bytes are dropped once
+ * every learner handler it was queued on has sent or dropped it, as the
+ * packet may be kept much longer, for instance in the outstanding proposals
+ * or in the committed packets of an ObserverMaster. The packet must not be
+ * changed once queued.
+ */
+class SharedQuorumPacket extends QuorumPacket {
+
+    private volatile byte[] serialized;
+
+    /**
+     * The learner handlers this packet is queued on and not yet sent by
+     */
+    private final AtomicInteger pendingSends = new AtomicInteger();
+
+    SharedQuorumPacket(int type, long zxid, byte[] data, List<Id> authinfo) {
+        super(type, zxid, data, authinfo);
+    }
+
+    /**
+     * @return the packet shared as is if it is already a SharedQuorumPacket,
+     *         a shared copy of it otherwise
+     */
+    static SharedQuorumPacket share(QuorumPacket p) {
+        if (p instanceof SharedQuorumPacket) {
+            return (SharedQuorumPacket) p;
+        }
+        return new SharedQuorumPacket(p.getType(), p.getZxid(), p.getData(), p.getAuthinfo());
+    }
+
+    /**
+     * @return the bytes written by BinaryOutputArchive.writeRecord(packet, "packet")
+     */
+    byte[] getSerialized() throws IOException {
+        byte[] bytes = serialized;
+        if (bytes == null) {
+            // racing senders may both serialize it, to the same bytes
+            ByteArrayOutputStream baos = new ByteArrayOutputStream((int) LearnerHandler.packetSize(this));
+            serialize(BinaryOutputArchive.getArchive(baos), "packet");
+            bytes = baos.toByteArray();
+            serialized = bytes;
+            ServerMetrics.getMetrics().SHARED_QUORUM_PACKETS_SERIALIZED.add(1);
+        } else {
+            ServerMetrics.getMetrics().SHARED_QUORUM_PACKETS_REUSED.add(1);
+        }
+        return bytes;
+    }
+
+    /**
+     * Called when the packet is queued on a learner handler.
+     */
+    void queued() {
+        pendingSends.incrementAndGet();
+    }
+
+    /**
+     * Called when a learner handler the packet was queued on has sent it,
+     * or dropped it unsent, the bytes are dropped when it was the last one.
+     */
+    void sent() {
+        if (pendingSends.decrementAndGet() <= 0) {
+            serialized = null;
+        }
+    }
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.ZooKeeperThread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares one serialization of the data tree between the learners needing a
+ * snapshot at about the same time, like after a leader election. The first
+ * learner opens a pass, which starts serializing after a short wait, and the
+ * learners joining it meanwhile all get the same bytes.
+ *
+ * Each learner has its own bounded queue of chunks, written to its socket by
+ * its own LearnerHandler, so a learner only slows down the serialization
+ * once its queue is full, and a learner leaving the pass doesn't hold the
+ * others. A learner whose queue stays full for too long is detached from the
+ * pass and its snapshot fails, so it can't stall the others either.
+ */
+class SnapshotFanout {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SnapshotFanout.class);
+
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    static final int QUEUE_CHUNKS = 64;
+
+    private static final byte[] END = new byte[0];
+
+    private final long waitMs;
+
+    private final long stallMs;
+
+    // the pass learners can still join, guarded by this
+    private Pass pending;
+
+    /**
+     * @param waitMs how long a pass waits for other learners before starting,
+     *               a negative value disables sharing the serialization
+     * @param stallMs how long a learner with a full queue may hold the pass
+     *                before being detached from it
+     */
+    SnapshotFanout(long waitMs, long stallMs) {
+        this.waitMs = waitMs;
+        this.stallMs = stallMs;
+    }
+
+    boolean isEnabled() {
+        return waitMs >= 0;
+    }
+
+    /**
+     * Join the pass about to start, or open a new one. The learner must
+     * already be forwarded the txns after its last zxid, the pass starts
+     * from a later zxid.
+     */
+    synchronized Subscription join(ZKDatabase db) {
+        if (pending == null || pending.db != db) {
+            final Pass pass = new Pass(db);
+            pending = pass;
+            new ZooKeeperThread("SnapshotFanout") {
+                @Override
+                public void run() {
+                    serialize(pass);
+                }
+            }.start();
+        }
+        Subscription subscription = new Subscription(stallMs);
+        pending.subscriptions.add(subscription);
+        return subscription;
+    }
+
+    private void serialize(Pass pass) {
+        try {
+            Thread.sleep(waitMs);
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while waiting for learners to join the snapshot");
+        }
+        List<Subscription> subscriptions;
+        synchronized (this) {
+            if (pending == pass) {
+                pending = null;
+            }
+            subscriptions = pass.subscriptions;
+        }
+
+        boolean sent = false;
+        Throwable error = null;
+        try {
+            long zxid = pass.db.getDataTreeLastProcessedZxid();
+            LOG.info("Sending snapshot 0x{} to {} learners", Long.toHexString(zxid), subscriptions.size());
+            ServerMetrics.getMetrics().SNAP_FANOUT_LEARNERS.add(subscriptions.size());
+            for (Subscription subscription : subscriptions) {
+                subscription.start(zxid);
+            }
+            FanoutOutputStream out = new FanoutOutputStream(subscriptions);
+            BinaryOutputArchive oa = BinaryOutputArchive.getArchive(out);
+            pass.db.serializeSnapshot(oa);
+            oa.writeString("BenWasHere", "signature");
+            out.flush();
+            for (Subscription subscription : subscriptions) {
+                subscription.offer(END);
+            }
+            sent = true;
+        } catch (Throwable t) {
+            LOG.warn("Failed to serialize the snapshot for {} learners", subscriptions.size(), t);
+            error = t;
+        } finally {
+            // the learners must not wait for a snapshot which won't come
+            if (!sent) {
+                IOException e = error instanceof IOException
+                    ? (IOException) error
+                    : new IOException("Failed to serialize the snapshot", error);
+                for (Subscription subscription : subscriptions) {
+                    subscription.fail(e);
+                }
+            }
+        }
+    }
+
+    private static class Pass {
+
+        final ZKDatabase db;
+        final List<Subscription> subscriptions = new ArrayList<>();
+
+        Pass(ZKDatabase db) {
+            this.db = db;
+        }
+
+    }
+
+    /**
+     * The snapshot as received by one learner.
+     */
+    static class Subscription {
+
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final long stallMs;
+        private volatile long zxid;
+        private volatile IOException error;
+        private volatile boolean closed;
+
+        private Subscription(long stallMs) {
+            this.stallMs = stallMs;
+        }
+
+        private void start(long zxid) {
+            this.zxid = zxid;
+            started.countDown();
+        }
+
+        /**
+         * Wait for the learner to make room in its queue, the chunk is
+         * dropped if the learner left the pass. A learner whose queue stays
+         * full for stallMs is detached from the pass.
+         */
+        private void offer(byte[] chunk) throws InterruptedException {
+            long deadline = Time.currentElapsedTime() + stallMs;
+            while (!closed && !chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                // the learner is writing the previous chunks
+                if (Time.currentElapsedTime() >= deadline) {
+                    LOG.warn("Detaching a learner from the snapshot, its queue was full for {} ms", stallMs);
+                    ServerMetrics.getMetrics().SNAP_FANOUT_LEARNERS_DETACHED.add(1);
+                    closed = true;
+                    fail(new IOException("Too slow to receive the shared snapshot"));
+                }
+            }
+        }
+
+        /**
+         * End the snapshot with an error, without waiting for the learner.
+         */
+        private void fail(IOException e) {
+            error = e;
+            chunks.clear();
+            chunks.offer(END);
+            started.countDown();
+        }
+
+        /**
+         * @return the zxid of the snapshot, once the pass started
+         * @throws IOException if the snapshot already failed
+         */
+        long awaitStart() throws IOException, InterruptedException {
+            started.await();
+            if (error != null) {
+                throw error;
+            }
+            return zxid;
+        }
+
+        /**
+         * Write the serialized snapshot, followed by the signature, as it
+         * is produced.
+         */
+        void writeTo(OutputStream os) throws IOException, InterruptedException {
+            while (true) {
+                byte[] chunk = chunks.take();
+                if (chunk == END) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    return;
+                }
+                os.write(chunk);
+            }
+        }
+
+        /**
+         * Leave the pass, the chunks are not queued for this learner anymore.
+         */
+        void close() {
+            closed = true;
+            chunks.clear();
+        }
+
+    }
+
+    /**
+     * Cuts the serialized snapshot into chunks queued for every learner.
+     */
+    private static class FanoutOutputStream extends OutputStream {
+
+        private final List<Subscription> subscriptions;
+        private byte[] chunk = new byte[CHUNK_SIZE];
+        private int count;
+
+        FanoutOutputStream(List<Subscription> subscriptions) {
+            this.subscriptions = subscriptions;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == chunk.length) {
+                flush();
+            }
+            chunk[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == chunk.length) {
+                    flush();
+                }
+                int n = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            byte[] full = count == chunk.length ? chunk : Arrays.copyOf(chunk, count);
+            try {
+                for (Subscription subscription : subscriptions) {
+                    subscription.offer(full);
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while queueing the snapshot");
+            }
+            // the queued chunk is shared by the learners, it is not reused
+            chunk = new byte[CHUNK_SIZE];
+            count = 0;
+        }
+
+    }
+
+}
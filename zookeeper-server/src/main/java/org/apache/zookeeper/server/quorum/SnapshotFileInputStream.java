@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.IOException;
+import java.io.InputStream;
+import org.apache.jute.InputArchive;
+
+/**
+ * The content of a snapshot file streamed by the leader. The leader sends
+ * the file as a sequence of buffers ended by an empty one, so the learner
+ * reads it from the same archive as the quorum packets.
+ */
+class SnapshotFileInputStream extends InputStream {
+
+    private final InputArchive ia;
+
+    private byte[] chunk = new byte[0];
+
+    private int position;
+
+    private boolean ended;
+
+    SnapshotFileInputStream(InputArchive ia) {
+        this.ia = ia;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        return chunk[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, chunk.length - position);
+        System.arraycopy(chunk, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return chunk.length - position;
+    }
+
+    /**
+     * Read the rest of the file, up to the empty buffer ending it, so the
+     * next read from the archive is the one following the file.
+     */
+    void skipToEnd() throws IOException {
+        while (nextChunk()) {
+            position = chunk.length;
+        }
+    }
+
+    private boolean nextChunk() throws IOException {
+        while (position == chunk.length) {
+            if (ended) {
+                return false;
+            }
+            byte[] next = ia.readBuffer("chunk");
+            if (next == null || next.length == 0) {
+                ended = true;
+                return false;
+            }
+            chunk = next;
+            position = 0;
+        }
+        return true;
+    }
+
+}
@@ -18,6 +18,8 @@
 
 package org.apache.zookeeper.server.util;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * This incremental hash is used to keep track of the hash of
  * the data tree to that we can quickly validate that things
@@ -28,8 +30,9 @@
  */
 public class AdHash {
 
-    /* we use 64 bits so that we can be fast an efficient */
-    private volatile long hash;
+    /* we use 64 bits so that we can be fast an efficient, the updates are
+     * atomic since the snapshot loader adds digests from multiple threads */
+    private final AtomicLong hash = new AtomicLong();
 
     /**
      * Add new digest to the hash value maintained in this class.
@@ -38,7 +41,7 @@ public class AdHash {
      * @return the AdHash itself for chained operations
      */
     public AdHash addDigest(long digest) {
-        hash += digest;
+        hash.addAndGet(digest);
         return this;
     }
 
@@ -49,7 +52,7 @@ public AdHash addDigest(long digest) {
      * @return the AdHash itself for chained operations
      */
     public AdHash removeDigest(long digest) {
-        hash -= digest;
+        hash.addAndGet(-digest);
         return this;
     }
 
@@ -57,25 +60,25 @@ public AdHash removeDigest(long digest) {
      * Return the long value of the hash.
      */
     public long getHash() {
-        return hash;
+        return hash.get();
     }
 
     @Override
     public boolean equals(Object other) {
-        return other instanceof AdHash && ((AdHash) other).hash == this.hash;
+        return other instanceof AdHash && ((AdHash) other).hash.get() == this.hash.get();
     }
 
     @Override
     public int hashCode() {
-        return Long.hashCode(hash);
+        return Long.hashCode(hash.get());
     }
 
     @Override
     public String toString() {
-        return Long.toHexString(hash);
+        return Long.toHexString(hash.get());
     }
 
     public void clear() {
-        hash = 0;
+        hash.set(0);
     }
 }
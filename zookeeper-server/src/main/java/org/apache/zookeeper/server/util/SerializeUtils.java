@@ -145,6 +145,11 @@ public static TxnLogEntry deserializeTxn(byte[] txnBytes) throws IOException {
     }
 
     public static void deserializeSnapshot(DataTree dt, InputArchive ia, Map<Long, Integer> sessions) throws IOException {
+        deserializeSessions(ia, sessions);
+        dt.deserialize(ia, "tree");
+    }
+
+    public static void deserializeSessions(InputArchive ia, Map<Long, Integer> sessions) throws IOException {
         int count = ia.readInt("count");
         while (count > 0) {
             long id = ia.readLong("id");
@@ -158,17 +163,28 @@ public static void deserializeSnapshot(DataTree dt, InputArchive ia, Map<Long, I
             }
             count--;
         }
-        dt.deserialize(ia, "tree");
     }
 
     public static void serializeSnapshot(DataTree dt, OutputArchive oa, Map<Long, Integer> sessions) throws IOException {
+        serializeSnapshot(dt, oa, sessions, null);
+    }
+
+    public static void serializeSnapshot(
+        DataTree dt,
+        OutputArchive oa,
+        Map<Long, Integer> sessions,
+        DataTree.SnapshotView view) throws IOException {
+        serializeSessions(oa, sessions);
+        dt.serialize(oa, "tree", view);
+    }
+
+    public static void serializeSessions(OutputArchive oa, Map<Long, Integer> sessions) throws IOException {
         HashMap<Long, Integer> sessSnap = new HashMap<Long, Integer>(sessions);
         oa.writeInt(sessSnap.size(), "count");
         for (Entry<Long, Integer> entry : sessSnap.entrySet()) {
             oa.writeLong(entry.getKey().longValue(), "id");
             oa.writeInt(entry.getValue().intValue(), "timeout");
         }
-        dt.serialize(oa, "tree");
     }
 
     public static byte[] serializeRequest(Request request) {
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class NettyUtilsTest extends ZKTestCase {
+
+    @After
+    public void tearDown() {
+        System.clearProperty(NettyUtils.NETTY_TRANSPORT);
+        System.clearProperty(NettyUtils.NETTY_EPOLL_TCP_QUICKACK);
+        System.clearProperty(NettyUtils.NETTY_EPOLL_MODE);
+    }
+
+    @Test
+    public void testNioTransport() throws Exception {
+        System.setProperty(NettyUtils.NETTY_TRANSPORT, "nio");
+        assertFalse(NettyUtils.useEpoll());
+        assertEquals(NioSocketChannel.class, NettyUtils.nioOrEpollSocketChannel());
+        assertEquals(NioServerSocketChannel.class, NettyUtils.nioOrEpollServerSocketChannel());
+        EventLoopGroup group = NettyUtils.newNioOrEpollEventLoopGroup(1);
+        try {
+            assertTrue(group instanceof NioEventLoopGroup);
+        } finally {
+            group.shutdownGracefully().sync();
+        }
+        // no epoll option is set with the nio transport
+        Bootstrap bootstrap = NettyUtils.configureEpollOptions(new Bootstrap());
+        assertFalse(bootstrap.config().options().containsKey(EpollChannelOption.EPOLL_MODE));
+    }
+
+    @Test
+    public void testEpollTransport() {
+        Assume.assumeTrue(Epoll.isAvailable());
+        System.setProperty(NettyUtils.NETTY_TRANSPORT, "epoll");
+        System.setProperty(NettyUtils.NETTY_EPOLL_TCP_QUICKACK, "true");
+        System.setProperty(NettyUtils.NETTY_EPOLL_MODE, "level");
+        assertTrue(NettyUtils.useEpoll());
+        Bootstrap bootstrap = NettyUtils.configureEpollOptions(new Bootstrap());
+        assertEquals(EpollMode.LEVEL_TRIGGERED, bootstrap.config().options().get(EpollChannelOption.EPOLL_MODE));
+        assertEquals(true, bootstrap.config().options().get(EpollChannelOption.TCP_QUICKACK));
+    }
+
+}
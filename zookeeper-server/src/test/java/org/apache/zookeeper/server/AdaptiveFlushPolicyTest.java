@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class AdaptiveFlushPolicyTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testLowLoadFlushesImmediately() {
+        AdaptiveFlushPolicy policy = new AdaptiveFlushPolicy(1000, 0);
+        long now = 0;
+        // one txn every 100ms, commits take 1ms
+        for (int i = 0; i < 20; i++) {
+            now += 100 * MS;
+            policy.txnAdded(now);
+            policy.flushed(1, MS, now + MS);
+        }
+        assertEquals(1, policy.getTargetBatchSize());
+
+        policy.txnAdded(now + 100 * MS);
+        assertEquals(0, policy.getFlushWaitNanos(1, now + 100 * MS));
+    }
+
+    @Test
+    public void testHighLoadWaitsForTarget() {
+        AdaptiveFlushPolicy policy = new AdaptiveFlushPolicy(1000, 0);
+        long now = 0;
+        // 100 txns during each 10ms commit
+        for (int i = 0; i < 20; i++) {
+            now += 10 * MS;
+            policy.flushed(100, 10 * MS, now);
+        }
+        assertEquals(100, policy.getTargetBatchSize());
+
+        policy.txnAdded(now);
+        long wait = policy.getFlushWaitNanos(10, now);
+        assertTrue("wait " + wait, wait > 0);
+        // never wait more than half a commit for the batch
+        assertTrue("wait " + wait, wait <= 5 * MS);
+        assertEquals(0, policy.getFlushWaitNanos(10, now + 5 * MS));
+        assertEquals(0, policy.getFlushWaitNanos(100, now));
+    }
+
+    @Test
+    public void testTargetBoundedByMaxBatchSize() {
+        AdaptiveFlushPolicy policy = new AdaptiveFlushPolicy(50, 0);
+        long now = 0;
+        for (int i = 0; i < 20; i++) {
+            now += 10 * MS;
+            policy.flushed(1000, 10 * MS, now);
+        }
+        assertEquals(50, policy.getTargetBatchSize());
+    }
+
+    @Test
+    public void testNothingToFlush() {
+        AdaptiveFlushPolicy policy = new AdaptiveFlushPolicy(1000, 0);
+        assertEquals(1, policy.getTargetBatchSize());
+        assertEquals(0, policy.getFlushWaitNanos(0, 0));
+    }
+
+}
@@ -92,6 +92,64 @@ public void testThrottleWithRefill() throws InterruptedException {
         assertTrue("Third request should be allowed since we've got a new token", throttler.checkLimit(1));
     }
 
+    @Test
+    public void testRenewReserve() {
+        BlueThrottle throttler = new BlueThrottle();
+        throttler.setMaxTokens(10);
+        throttler.setFillTime(2000);
+        throttler.setRenewReserve(0.3);
+        for (int i = 0; i < 7; i++) {
+            assertTrue("New sessions should use the tokens out of the reserve", throttler.checkLimit(1, false));
+        }
+        assertFalse("New sessions should not use the reserved tokens", throttler.checkLimit(1, false));
+        for (int i = 0; i < 3; i++) {
+            assertTrue("Renewals should use the reserved tokens", throttler.checkLimit(1, true));
+        }
+        assertFalse("Renewals should be denied once the bucket is empty", throttler.checkLimit(1, true));
+    }
+
+    @Test
+    public void testRenewReserveOutOfRange() {
+        BlueThrottle throttler = new BlueThrottle();
+        throttler.setRenewReserve(0.3);
+        for (double ratio : new double[]{-0.1, 1.1}) {
+            try {
+                throttler.setRenewReserve(ratio);
+                Assert.fail("renewReserve " + ratio + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertEquals(0.3, throttler.getRenewReserve(), 1e-6);
+    }
+
+    @Test
+    public void testRenewNotDroppedRandomly() throws InterruptedException {
+        int maxTokens = 5;
+        BlueThrottle throttler = new BlueThrottleWithMockRandom(new MockRandom());
+        throttler.setMaxTokens(maxTokens);
+        throttler.setFillCount(maxTokens);
+        throttler.setFillTime(1000);
+        throttler.setFreezeTime(100);
+        throttler.setDropIncrease(0.5);
+        throttler.setRenewReserve(0.2);
+
+        for (int i = 0; i < maxTokens; i++) {
+            throttler.checkLimit(1, true);
+        }
+        Thread.sleep(120);
+        // this will trigger dropping probability being increased
+        throttler.checkLimit(1, false);
+        assertTrue("Dropping probability should be increased", throttler.getDropChance() > 0);
+
+        //allow bucket to be refilled
+        Thread.sleep(1500);
+
+        for (int i = 0; i < maxTokens; i++) {
+            assertTrue("Renewals should not be dropped randomly", throttler.checkLimit(1, true));
+        }
+    }
+
     @Test
     public void testThrottleWithoutRandomDropping() throws InterruptedException {
         int maxTokens = 5;
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Test;
+
+public class ChildrenSetTest extends ZKTestCase {
+
+    @Test
+    public void testSequence() {
+        assertEquals(1, ChildrenSet.sequence("lock-0000000001"));
+        assertEquals(Integer.MAX_VALUE, ChildrenSet.sequence("2147483647"));
+        assertEquals(-1, ChildrenSet.sequence("2147483648"));
+        assertEquals(-1, ChildrenSet.sequence("lock-000000001"));
+        assertEquals(-1, ChildrenSet.sequence("lock-00000000x1"));
+        assertEquals(-1, ChildrenSet.sequence("child"));
+        assertEquals("lock-0000000042", ChildrenSet.format("lock-", 42));
+        assertEquals("2147483647", ChildrenSet.format("", Integer.MAX_VALUE));
+    }
+
+    /**
+     * Compare the set to a HashSet through enough adds and removes of plain
+     * and sequential children to resize the tables and shift the probe
+     * sequences around.
+     */
+    @Test
+    public void testRandomOperations() {
+        ChildrenSet children = new ChildrenSet();
+        Set<String> expected = new HashSet<>();
+        Random random = new Random(11);
+        for (int i = 0; i < 100000; i++) {
+            String child;
+            switch (random.nextInt(3)) {
+            case 0:
+                child = "child" + random.nextInt(5000);
+                break;
+            case 1:
+                child = ChildrenSet.format("lock-", random.nextInt(5000));
+                break;
+            default:
+                child = ChildrenSet.format("member" + random.nextInt(20) + "-", random.nextInt(500));
+            }
+            if (random.nextBoolean()) {
+                assertEquals(child, expected.add(child), children.add(child));
+            } else {
+                assertEquals(child, expected.remove(child), children.remove(child));
+            }
+            if (i % 1000 == 0) {
+                assertEquals(expected, new HashSet<>(children.snapshot()));
+            }
+        }
+        assertEquals(expected.size(), children.size());
+        assertEquals(expected, children);
+        for (String child : expected) {
+            assertTrue(child, children.contains(child));
+        }
+        List<String> snapshot = children.snapshot();
+        assertEquals(expected.size(), snapshot.size());
+        assertEquals(expected, new HashSet<>(snapshot));
+        int length = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+            assertTrue(expected.contains(snapshot.get(i)));
+            length += snapshot.get(i).length();
+        }
+        assertEquals(length, ChildrenSet.length(snapshot));
+    }
+
+    @Test
+    public void testSnapshotIsSharedUntilChanged() {
+        ChildrenSet children = new ChildrenSet();
+        children.add("a");
+        children.add("seq-0000000001");
+        List<String> snapshot = children.snapshot();
+        assertSame(snapshot, children.snapshot());
+
+        children.add("seq-0000000001");
+        assertSame(snapshot, children.snapshot());
+
+        children.remove("seq-0000000001");
+        assertNotSame(snapshot, children.snapshot());
+        assertEquals(2, snapshot.size());
+        assertEquals(1, children.snapshot().size());
+        assertFalse(children.contains("seq-0000000001"));
+
+        try {
+            snapshot.add("b");
+            fail("UnsupportedOperationException is expected");
+        } catch (UnsupportedOperationException e) {
+            // do nothing
+        }
+    }
+
+    @Test
+    public void testIteratingDoesNotKeepACopy() {
+        ChildrenSet children = new ChildrenSet();
+        children.add("a");
+        children.add("seq-0000000001");
+        children.add("seq-0000000002");
+        Set<String> iterated = new HashSet<>();
+        for (String child : children) {
+            iterated.add(child);
+            // the iteration is over a copy
+            children.remove(child);
+        }
+        assertEquals(3, iterated.size());
+        assertTrue(children.isEmpty());
+        assertFalse(children.hasSnapshot());
+
+        children.add("b");
+        assertEquals(1, children.toArray().length);
+        assertFalse(children.hasSnapshot());
+
+        List<String> snapshot = children.snapshot();
+        assertTrue(children.hasSnapshot());
+        assertEquals("b", children.iterator().next());
+        assertSame(snapshot, children.snapshot());
+    }
+
+}
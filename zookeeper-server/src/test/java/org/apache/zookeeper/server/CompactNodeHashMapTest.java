@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.data.StatPersisted;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompactNodeHashMapTest extends ZKTestCase {
+
+    @Before
+    public void setUp() {
+        ZooKeeperServer.setDigestEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        ZooKeeperServer.setDigestEnabled(false);
+    }
+
+    /**
+     * The digest must match the one kept by NodeHashMapImpl for the same
+     * operations.
+     */
+    @Test
+    public void testSameDigestAsNodeHashMapImpl() {
+        NodeHashMapImpl expected = new NodeHashMapImpl(new DigestCalculator());
+        CompactNodeHashMap nodes = new CompactNodeHashMap(new DigestCalculator());
+
+        DataNode n1 = new DataNode("p1".getBytes(), 0L, new StatPersisted());
+        DataNode n2 = new DataNode("p2".getBytes(), 0L, new StatPersisted());
+        for (NodeHashMap map : new NodeHashMap[] {expected, nodes}) {
+            map.put("/p1", n1);
+            map.put("/p2", n2);
+        }
+        assertEquals(expected.getDigest(), nodes.getDigest());
+        assertNotEquals(0L, nodes.getDigest());
+
+        for (NodeHashMap map : new NodeHashMap[] {expected, nodes}) {
+            map.preChange("/p1", n1);
+        }
+        n1.stat.setVersion(1);
+        for (NodeHashMap map : new NodeHashMap[] {expected, nodes}) {
+            map.postChange("/p1", n1);
+            map.remove("/p2");
+        }
+        assertEquals(expected.getDigest(), nodes.getDigest());
+        assertEquals(1, nodes.size());
+
+        nodes.clear();
+        assertEquals(0, nodes.size());
+        assertEquals(0L, nodes.getDigest());
+        assertNull(nodes.get("/p1"));
+    }
+
+    /**
+     * Compare the map to a HashMap through enough puts and removes to
+     * resize the tables and shift the probe sequences around.
+     */
+    @Test
+    public void testRandomOperations() {
+        CompactNodeHashMap nodes = new CompactNodeHashMap(new DigestCalculator());
+        Map<String, DataNode> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 200000; i++) {
+            String path = "/parent" + random.nextInt(50) + "/node" + random.nextInt(2000);
+            if (random.nextInt(10) == 0) {
+                // some paths don't fit in Latin-1
+                path += "/\u00e9\u4e2d";
+            }
+            if (random.nextInt(3) == 0) {
+                assertSame(path, expected.remove(path), nodes.remove(path));
+            } else {
+                DataNode node = new DataNode(new byte[0], 0L, new StatPersisted());
+                assertSame(path, expected.put(path, node), nodes.put(path, node));
+            }
+        }
+        assertEquals(expected.size(), nodes.size());
+        Map<String, DataNode> entries = new HashMap<>();
+        for (Map.Entry<String, DataNode> entry : nodes.entrySet()) {
+            entries.put(entry.getKey(), entry.getValue());
+        }
+        assertEquals(expected, entries);
+        for (Map.Entry<String, DataNode> entry : expected.entrySet()) {
+            assertSame(entry.getValue(), nodes.get(entry.getKey()));
+        }
+    }
+
+    /**
+     * The readers never miss a node which isn't being changed while the
+     * tables are resized and shifted by a writer.
+     */
+    @Test
+    public void testConcurrentReads() throws Exception {
+        CompactNodeHashMap nodes = new CompactNodeHashMap(new DigestCalculator());
+        DataNode stable = new DataNode(new byte[0], 0L, new StatPersisted());
+        for (int i = 0; i < 100; i++) {
+            nodes.put("/stable" + i, stable);
+        }
+        AtomicReference<String> missed = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            DataNode node = new DataNode(new byte[0], 0L, new StatPersisted());
+            for (int i = 0; i < 100000; i++) {
+                nodes.put("/churn" + i, node);
+                if (i >= 100) {
+                    nodes.remove("/churn" + (i - 100));
+                }
+            }
+        });
+        Thread reader = new Thread(() -> {
+            while (writer.isAlive()) {
+                for (int i = 0; i < 100; i++) {
+                    if (nodes.get("/stable" + i) != stable) {
+                        missed.set("/stable" + i);
+                    }
+                }
+            }
+        });
+        writer.start();
+        reader.start();
+        writer.join();
+        reader.join();
+        assertNull(missed.get());
+        assertEquals(200, nodes.size());
+    }
+
+}
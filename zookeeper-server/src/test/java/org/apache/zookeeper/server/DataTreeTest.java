@@ -18,6 +18,7 @@
 
 package org.apache.zookeeper.server;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
@@ -32,6 +33,8 @@
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Semaphore;
@@ -47,6 +50,8 @@
 import org.apache.zookeeper.ZKTestCase;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.common.PathTrie;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.metrics.MetricsUtils;
 import org.apache.zookeeper.txn.CreateTxn;
@@ -258,6 +263,121 @@ public void testPathTrieClearOnDeserialize() throws Exception {
     }
 
 
+    @Test(timeout = 60000)
+    public void testParallelDeserialize() throws Exception {
+        try {
+            ZooKeeperServer.setDigestEnabled(true);
+
+            DataTree tree = new DataTree();
+            List<ACL> acl = Collections.singletonList(new ACL(ZooDefs.Perms.ALL, new Id("digest", "user:pwd")));
+            long zxid = 1;
+            for (int i = 0; i < 20; i++) {
+                String parent = "/parent" + i;
+                tree.createNode(parent, new byte[i], i % 2 == 0 ? acl : ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, zxid, zxid++);
+                for (int j = 0; j < 200; j++) {
+                    String child = parent + "/child" + j;
+                    long owner = j % 10 == 0 ? 1000 + i : 0;
+                    tree.createNode(child, new byte[j], acl, owner, -1, zxid, zxid++);
+                    tree.createNode(child + "/leaf", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, zxid, zxid++);
+                }
+            }
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            BinaryOutputArchive oa = BinaryOutputArchive.getArchive(baos);
+            tree.serialize(oa, "test");
+            baos.flush();
+
+            DataTree sequential = new DataTree();
+            sequential.deserialize(BinaryInputArchive.getArchive(new ByteArrayInputStream(baos.toByteArray())), "test");
+
+            DataTree parallel = new DataTree();
+            System.setProperty(DataTree.SNAPSHOT_DESERIALIZATION_THREADS, "4");
+            try {
+                parallel.deserialize(BinaryInputArchive.getArchive(new ByteArrayInputStream(baos.toByteArray())), "test");
+            } finally {
+                System.clearProperty(DataTree.SNAPSHOT_DESERIALIZATION_THREADS);
+            }
+
+            assertEquals(tree.getNodeCount(), sequential.getNodeCount());
+            assertEquals(sequential.getNodeCount(), parallel.getNodeCount());
+            assertEquals(sequential.getTreeDigest(), parallel.getTreeDigest());
+            assertEquals(tree.getTreeDigest(), parallel.getTreeDigest());
+            assertEquals(sequential.aclCacheSize(), parallel.aclCacheSize());
+            assertEquals(sequential.getEphemerals(), parallel.getEphemerals());
+            assertEquals(sequential.approximateDataSize(), parallel.approximateDataSize());
+            assertSameSubtree(sequential, parallel, "");
+        } finally {
+            ZooKeeperServer.setDigestEnabled(false);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testSerializeSnapshotView() throws Exception {
+        System.setProperty(DataTree.SNAPSHOT_CONSISTENT_VIEW_ENABLED, "true");
+        try {
+            ZooKeeperServer.setDigestEnabled(true);
+            DataTree tree = new DataTree();
+            List<ACL> acl = Collections.singletonList(new ACL(ZooDefs.Perms.ALL, new Id("digest", "user:pwd")));
+            tree.createNode("/a", "a".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, 1, 1);
+            tree.createNode("/b", "b".getBytes(), acl, 0, -1, 2, 2);
+            tree.createNode("/c", "c".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, 3, 3);
+            tree.createNode("/c/child", "child".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, 1000, -1, 4, 4);
+            tree.lastProcessedZxid = 4;
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            tree.serialize(BinaryOutputArchive.getArchive(expected), "tree");
+            long expectedDigest = tree.getTreeDigest();
+            int aclCacheSize = tree.aclCacheSize();
+
+            DataTree.SnapshotView view = tree.beginSnapshotView();
+            assertNotNull(view);
+            assertEquals(4, view.getZxid());
+            assertNull("only one view can be open at a time", tree.beginSnapshotView());
+
+            tree.setData("/a", "a2".getBytes(), 1, 5, 5);
+            tree.createNode("/d", "d".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, 6, 6);
+            tree.deleteNode("/c/child", 7);
+            tree.setACL("/b", ZooDefs.Ids.OPEN_ACL_UNSAFE, 1);
+            tree.deleteNode("/b", 8);
+            tree.createNode("/b", "b2".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, 9, 9);
+
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            tree.serialize(BinaryOutputArchive.getArchive(actual), "tree", view);
+            view.close();
+            assertEquals("the acl only referenced by the view should be released", aclCacheSize - 1, tree.aclCacheSize());
+
+            DataTree expectedTree = new DataTree();
+            expectedTree.deserialize(BinaryInputArchive.getArchive(new ByteArrayInputStream(expected.toByteArray())), "tree");
+            DataTree viewTree = new DataTree();
+            viewTree.deserialize(BinaryInputArchive.getArchive(new ByteArrayInputStream(actual.toByteArray())), "tree");
+
+            assertEquals(expectedDigest, viewTree.getTreeDigest());
+            assertEquals(expectedTree.getNodeCount(), viewTree.getNodeCount());
+            assertSameSubtree(expectedTree, viewTree, "");
+            assertArrayEquals("a".getBytes(), viewTree.getData("/a", new Stat(), null));
+            assertArrayEquals("b".getBytes(), viewTree.getData("/b", new Stat(), null));
+            assertEquals(acl, viewTree.getACL("/b", new Stat()));
+            assertNull(viewTree.getNode("/d"));
+            assertEquals(Collections.singleton("/c/child"), viewTree.getEphemerals(1000));
+
+            assertNotNull("a new view can be started once closed", tree.beginSnapshotView());
+        } finally {
+            System.clearProperty(DataTree.SNAPSHOT_CONSISTENT_VIEW_ENABLED);
+            ZooKeeperServer.setDigestEnabled(false);
+        }
+    }
+
+    private void assertSameSubtree(DataTree expected, DataTree actual, String path) {
+        DataNode expectedNode = expected.getNode(path);
+        DataNode actualNode = actual.getNode(path);
+        assertNotNull(path, actualNode);
+        assertEquals(path, expectedNode.getChildren(), actualNode.getChildren());
+        assertEquals(path, expected.getACL(expectedNode), actual.getACL(actualNode));
+        for (String child : expectedNode.getChildren()) {
+            assertSameSubtree(expected, actual, path + "/" + child);
+        }
+    }
+
     /* ZOOKEEPER-3531 - org.apache.zookeeper.server.DataTree#serialize calls the aclCache.serialize when doing
      * dataree serialization, however, org.apache.zookeeper.server.ReferenceCountedACLCache#serialize
      * could get stuck at OutputArchieve.writeInt due to potential network/disk issues.
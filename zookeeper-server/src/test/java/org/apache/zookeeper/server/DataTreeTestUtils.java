@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.txn.TxnDigest;
+import org.apache.zookeeper.txn.TxnHeader;
+
+/**
+ * This class contains test utility methods for the tests applying txns to a
+ * DataTree some other way and comparing the result with a serial apply
+ */
+public class DataTreeTestUtils {
+
+    /**
+     * Apply the txn to the expected tree and build its request, carrying
+     * the digest of the tree after the txn
+     */
+    public static Request applyTxn(DataTree expected, TxnHeader hdr, Record txn) {
+        expected.processTxn(hdr, txn);
+        Request request = new Request(hdr.getClientId(), hdr.getCxid(), hdr.getType(), hdr, txn, hdr.getZxid());
+        request.setTxnDigest(new TxnDigest(expected.getLastProcessedZxidDigest().getDigestVersion(),
+            expected.getTreeDigest()));
+        return request;
+    }
+
+    public static byte[] serialize(Record record) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        record.serialize(BinaryOutputArchive.getArchive(baos), "txn");
+        return baos.toByteArray();
+    }
+
+    /**
+     * Check the nodes under the path have the same data, stat and children
+     * in both trees
+     */
+    public static void assertSameTree(DataTree expected, DataTree actual, String path) {
+        DataNode expectedNode = expected.getNode(path);
+        DataNode actualNode = actual.getNode(path);
+        assertNotNull(path, actualNode);
+        assertArrayEquals(path, expectedNode.getData(), actualNode.getData());
+        assertEquals(path, expectedNode.stat, actualNode.stat);
+        assertEquals(path, expectedNode.getChildren(), actualNode.getChildren());
+        for (String child : expectedNode.getChildren()) {
+            assertSameTree(expected, actual, path + "/" + child);
+        }
+    }
+
+}
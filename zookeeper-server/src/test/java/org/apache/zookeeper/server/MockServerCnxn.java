@@ -33,7 +33,11 @@ public class MockServerCnxn extends ServerCnxn {
     public boolean secure;
 
     public MockServerCnxn() {
-        super(null);
+        this(null);
+    }
+
+    public MockServerCnxn(ZooKeeperServer zkServer) {
+        super(zkServer);
     }
 
     @Override
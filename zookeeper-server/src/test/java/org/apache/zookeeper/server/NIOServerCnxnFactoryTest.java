@@ -18,11 +18,18 @@
 
 package org.apache.zookeeper.server;
 
+import static org.junit.Assert.assertEquals;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.zookeeper.PortAssignment;
+import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.metric.SimpleCounter;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -66,4 +73,37 @@ public void testShutdownWithoutStart_SocketReleased() throws IOException {
         ss.close();
     }
 
+    @Test
+    public void testMultipleAcceptThreads() throws Exception {
+        factory.shutdown();
+        System.setProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_NUM_ACCEPT_THREADS, "4");
+        try {
+            factory = new NIOServerCnxnFactory();
+            factory.configure(listenAddress, 100);
+        } finally {
+            System.clearProperty(NIOServerCnxnFactory.ZOOKEEPER_NIO_NUM_ACCEPT_THREADS);
+        }
+        ServerMetrics.getMetrics().resetAll();
+        factory.start();
+
+        // with or without SO_REUSEPORT, all the connections are accepted
+        int clients = 20;
+        List<Socket> sockets = new ArrayList<>();
+        SimpleCounter accepted = (SimpleCounter) ServerMetrics.getMetrics().CONNECTION_ACCEPTED;
+        try {
+            for (int i = 0; i < clients; i++) {
+                sockets.add(new Socket(InetAddress.getLoopbackAddress(), listenAddress.getPort()));
+            }
+            long deadline = Time.currentElapsedTime() + 10000;
+            while (accepted.get() < clients && Time.currentElapsedTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(clients, accepted.get());
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
 }
@@ -19,15 +19,19 @@
 package org.apache.zookeeper.server;
 
 import java.net.InetSocketAddress;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.PortAssignment;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.common.ClientX509Util;
+import org.apache.zookeeper.metrics.MetricsUtils;
 import org.apache.zookeeper.server.metric.SimpleCounter;
 import org.apache.zookeeper.test.ClientBase;
 import org.apache.zookeeper.test.SSLAuthTest;
@@ -59,6 +63,7 @@ public void setUp() throws Exception {
     public void tearDown() throws Exception {
 
         System.clearProperty(ServerCnxnFactory.ZOOKEEPER_SERVER_CNXN_FACTORY);
+        System.clearProperty(NettyServerCnxnFactory.NETTY_MAX_WRITES_PER_FLUSH);
         if (x509Util != null) {
             SSLAuthTest.clearSecureSetting(x509Util);
         }
@@ -167,6 +172,33 @@ public void testOutstandingHandshakeLimit() throws Exception {
                 + "after all cnxns established", outstandingHandshakeNum, Matchers.is(0));
     }
 
+    @Test
+    public void testConsolidatedFlushes() throws Exception {
+        System.setProperty(NettyServerCnxnFactory.NETTY_MAX_WRITES_PER_FLUSH, "16");
+        setUpWithServerId(1);
+        ServerMetrics.getMetrics().resetAll();
+
+        ZooKeeper zk = createClient();
+        zooKeeperClients.add(zk);
+        zk.create("/flush", new byte[16], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        int requests = 1000;
+        CountDownLatch responses = new CountDownLatch(requests);
+        AtomicInteger errors = new AtomicInteger();
+        for (int i = 0; i < requests; i++) {
+            zk.getData("/flush", false, (rc, path, ctx, data, stat) -> {
+                if (rc != 0 || data.length != 16) {
+                    errors.incrementAndGet();
+                }
+                responses.countDown();
+            }, null);
+        }
+        Assert.assertTrue(responses.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals(0, errors.get());
+
+        Map<String, Object> metrics = MetricsUtils.currentServerMetrics();
+        Assert.assertThat((Long) metrics.get("cnt_packets_per_write"), Matchers.greaterThan(0L));
+        Assert.assertThat((Long) metrics.get("max_packets_per_write"), Matchers.lessThanOrEqualTo(16L));
+    }
 
     private final class ClientConnectionWatcher implements Watcher {
 
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+
+public class ResponseCacheEvictionTest extends ZKTestCase {
+
+    private static Stat stat(long mzxid) {
+        Stat stat = new Stat();
+        stat.setMzxid(mzxid);
+        return stat;
+    }
+
+    @Test
+    public void testBoundedByEntries() {
+        ResponseCache cache = new ResponseCache(10);
+        int evicted = 0;
+        for (int i = 0; i < 100; i++) {
+            evicted += cache.put("/n" + i, new byte[10], stat(i));
+            assertTrue(cache.size() <= 10);
+        }
+        assertEquals(10, cache.size());
+        assertEquals(90, evicted);
+        // the most recent entries are kept
+        assertNotNull(cache.get("/n99", stat(99)));
+        assertNull(cache.get("/n0", stat(0)));
+    }
+
+    @Test
+    public void testBoundedByBytes() {
+        ResponseCache cache = new ResponseCache(1000, 1000);
+        assertEquals(1000, cache.getMaxBytes());
+        for (int i = 0; i < 100; i++) {
+            // 5 bytes of key and 95 of data
+            cache.put(String.format("/n%03d", i), new byte[95], stat(i));
+            assertTrue(cache.getBytes() <= 1000);
+        }
+        assertEquals(10, cache.size());
+        assertEquals(1000, cache.getBytes());
+
+        // too big to ever fit
+        assertEquals(0, cache.put("/big", new byte[1000], stat(0)));
+        assertNull(cache.get("/big", stat(0)));
+        assertEquals(1000, cache.getBytes());
+    }
+
+    @Test
+    public void testReferencedEntriesAreKept() {
+        ResponseCache cache = new ResponseCache(10);
+        for (int i = 0; i < 10; i++) {
+            cache.put("/n" + i, new byte[1], stat(i));
+        }
+        assertNotNull(cache.get("/n0", stat(0)));
+        for (int i = 10; i < 15; i++) {
+            cache.put("/n" + i, new byte[1], stat(i));
+        }
+        assertNotNull(cache.get("/n0", stat(0)));
+        assertNull(cache.get("/n1", stat(1)));
+    }
+
+    @Test
+    public void testInvalidateAndReplace() {
+        ResponseCache cache = new ResponseCache(10);
+        byte[] data = new byte[] {1, 2};
+        cache.put("/a", data, stat(1));
+        assertArrayEquals(data, cache.get("/a", stat(1)));
+
+        // a newer version of the node invalidates the entry
+        assertNull(cache.get("/a", stat(2)));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+
+        cache.put("/a", data, stat(2));
+        cache.put("/a", new byte[] {3}, stat(3));
+        assertEquals(1, cache.size());
+        assertEquals(3, cache.getBytes());
+        assertNull(cache.get("/a", stat(2)));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testConcurrentAccess() throws InterruptedException {
+        ResponseCache cache = new ResponseCache(64, 64 * 20);
+        AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final long seed = t;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 100000; i++) {
+                    int node = random.nextInt(200);
+                    // the data encodes the version, so that a hit can be checked
+                    int version = random.nextInt(3);
+                    byte[] data = cache.get("/n" + node, stat(version));
+                    if (data == null) {
+                        cache.put("/n" + node, new byte[] {(byte) version}, stat(version));
+                    } else if (data[0] != version) {
+                        failures.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        assertTrue(cache.size() <= 64);
+        assertTrue(cache.getBytes() <= 64 * 20);
+        assertTrue(cache.size() > 0);
+    }
+
+}
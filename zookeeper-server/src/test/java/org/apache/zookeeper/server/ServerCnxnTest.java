@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.GetDataResponse;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.junit.Test;
+
+public class ServerCnxnTest extends ZKTestCase {
+
+    @Test
+    public void testSerializeIntoSingleBuffer() throws Exception {
+        ReplyHeader header = new ReplyHeader(7, 100, 0);
+        Stat stat = new Stat();
+        stat.setMzxid(100);
+        // bigger than the starting size of the buffer, so that it has to grow
+        GetDataResponse response = new GetDataResponse(new byte[ZooKeeperServer.intBufferStartingSizeBytes * 3], stat);
+
+        ByteBuffer[] buffers = new MockServerCnxn().serialize(header, response, "response", null, null, OpCode.error);
+        assertEquals(1, buffers.length);
+        ByteBuffer buffer = buffers[0];
+        byte[] serialized = new byte[buffer.remaining()];
+        buffer.get(serialized);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        BinaryOutputArchive archive = BinaryOutputArchive.getArchive(payload);
+        archive.writeRecord(header, null);
+        archive.writeRecord(response, null);
+        new DataOutputStream(expected).writeInt(payload.size());
+        payload.writeTo(expected);
+        assertArrayEquals(expected.toByteArray(), serialized);
+    }
+
+    @Test
+    public void testCachedRecordNotCopied() throws Exception {
+        ZooKeeperServer zks = mock(ZooKeeperServer.class);
+        ResponseCache cache = new ResponseCache(16, 0);
+        when(zks.getReadResponseCache()).thenReturn(cache);
+        ServerCnxn cnxn = new MockServerCnxn(zks);
+        ReplyHeader header = new ReplyHeader(7, 100, 0);
+        Stat stat = new Stat();
+        stat.setMzxid(100);
+        GetDataResponse response = new GetDataResponse(new byte[100], stat);
+
+        // the first response fills the cache, the second one is sent from it
+        ByteBuffer[] miss = cnxn.serialize(header, response, "response", "/node", stat, OpCode.getData);
+        byte[] cached = cache.get("/node", stat);
+        ByteBuffer[] hit = cnxn.serialize(header, response, "response", "/node", stat, OpCode.getData);
+        for (ByteBuffer[] buffers : new ByteBuffer[][] {miss, hit}) {
+            assertEquals(2, buffers.length);
+            assertSame(cached, buffers[1].array());
+            assertEquals(buffers[0].remaining() - 4 + buffers[1].remaining(), buffers[0].getInt(0));
+        }
+    }
+
+    @Test
+    public void testSerializeHeaderOnly() throws Exception {
+        ReplyHeader header = new ReplyHeader(-2, 5, 0);
+        ByteBuffer buffer = new MockServerCnxn().serialize(header, null, null, null, null, OpCode.ping)[0];
+        assertEquals(buffer.remaining() - 4, buffer.getInt());
+        ReplyHeader read = new ReplyHeader();
+        read.deserialize(BinaryInputArchive.getArchive(
+            new ByteArrayInputStream(buffer.array(), 4, buffer.remaining())), "header");
+        assertEquals(header, read);
+    }
+
+}
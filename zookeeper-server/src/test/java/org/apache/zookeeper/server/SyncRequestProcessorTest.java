@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.ZooDefs;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SyncRequestProcessorTest {
+
+    private ZooKeeperServer zks;
+    private ZKDatabase db;
+    private final List<Integer> passedOn = Collections.synchronizedList(new ArrayList<>());
+    private SyncRequestProcessor syncProcessor;
+
+    @Before
+    public void setup() throws Exception {
+        db = mock(ZKDatabase.class);
+        when(db.append(any(Request.class))).thenAnswer(invocation -> {
+            Request request = invocation.getArgument(0);
+            return request.type != ZooDefs.OpCode.getData;
+        });
+        zks = mock(ZooKeeperServer.class);
+        when(zks.getZKDatabase()).thenReturn(db);
+        when(zks.getMaxBatchSize()).thenReturn(1000);
+        when(zks.isFsyncPipelineEnabled()).thenReturn(true);
+    }
+
+    @After
+    public void tearDown() {
+        if (syncProcessor != null) {
+            syncProcessor.shutdown();
+        }
+    }
+
+    private SyncRequestProcessor startSyncProcessor() {
+        RequestProcessor nextProcessor = mock(RequestProcessor.class);
+        try {
+            doAnswer(invocation -> {
+                passedOn.add(((Request) invocation.getArgument(0)).cxid);
+                return null;
+            }).when(nextProcessor).processRequest(any(Request.class));
+        } catch (RequestProcessor.RequestProcessorException e) {
+            throw new IllegalStateException(e);
+        }
+        syncProcessor = new SyncRequestProcessor(zks, nextProcessor);
+        syncProcessor.start();
+        return syncProcessor;
+    }
+
+    private static Request createRequest(int xid, int type) {
+        return new Request(null, 1, xid, type, ByteBuffer.wrap(new byte[10]), null);
+    }
+
+    @Test
+    public void testPipelinedSyncPassesOnInOrder() throws Exception {
+        when(db.startCommit()).thenReturn(() -> {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        startSyncProcessor();
+        for (int i = 0; i < 500; i++) {
+            syncProcessor.processRequest(createRequest(i, ZooDefs.OpCode.setData));
+        }
+        verify(db, timeout(10000).times(500)).append(any(Request.class));
+        syncProcessor.shutdown();
+        syncProcessor = null;
+
+        assertEquals(500, passedOn.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, (int) passedOn.get(i));
+        }
+    }
+
+    @Test
+    public void testAppendWhileSyncing() throws Exception {
+        CountDownLatch syncing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(db.startCommit()).thenReturn(() -> {
+            syncing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        startSyncProcessor();
+
+        syncProcessor.processRequest(createRequest(1, ZooDefs.OpCode.setData));
+        assertTrue(syncing.await(10, TimeUnit.SECONDS));
+
+        // the next write is appended while the first one is being synced,
+        // and the read doesn't overtake the pending writes
+        syncProcessor.processRequest(createRequest(2, ZooDefs.OpCode.setData));
+        syncProcessor.processRequest(createRequest(3, ZooDefs.OpCode.getData));
+        verify(db, timeout(10000).times(3)).append(any(Request.class));
+        assertTrue(passedOn.isEmpty());
+
+        release.countDown();
+        syncProcessor.shutdown();
+        syncProcessor = null;
+
+        assertEquals(3, passedOn.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, (int) passedOn.get(i));
+        }
+    }
+
+}
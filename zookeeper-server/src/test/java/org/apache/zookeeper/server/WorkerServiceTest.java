@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class WorkerServiceTest extends ZKTestCase {
+
+    @After
+    public void tearDown() {
+        System.clearProperty(WorkerService.VIRTUAL_THREADS);
+    }
+
+    private void checkOrderPerId(boolean useVirtualThreads) throws Exception {
+        System.setProperty(WorkerService.VIRTUAL_THREADS, Boolean.toString(useVirtualThreads));
+        WorkerService workerService = new WorkerService("test", 4, true);
+        int ids = 100;
+        int requestsPerId = 100;
+        int[] next = new int[ids];
+        AtomicInteger outOfOrder = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(ids * requestsPerId);
+        try {
+            for (int i = 0; i < requestsPerId; i++) {
+                for (int id = 0; id < ids; id++) {
+                    int seq = i;
+                    int workId = id;
+                    workerService.schedule(new WorkerService.WorkRequest() {
+                        @Override
+                        public void doWork() {
+                            if (next[workId] != seq) {
+                                outOfOrder.incrementAndGet();
+                            }
+                            next[workId] = seq + 1;
+                            done.countDown();
+                        }
+                    }, workId);
+                }
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            assertEquals(0, outOfOrder.get());
+        } finally {
+            workerService.stop();
+            workerService.join(5000);
+        }
+    }
+
+    @Test
+    public void testAssignableWorkerThreads() throws Exception {
+        checkOrderPerId(false);
+    }
+
+    @Test
+    public void testAssignableVirtualThreads() throws Exception {
+        ExecutorService executor = WorkerService.newVirtualThreadPerTaskExecutor("test");
+        Assume.assumeTrue("virtual threads are not supported", executor != null);
+        executor.shutdown();
+        checkOrderPerId(true);
+    }
+
+    @Test
+    public void testVirtualThreadsBlockingWork() throws Exception {
+        ExecutorService executor = WorkerService.newVirtualThreadPerTaskExecutor("test");
+        Assume.assumeTrue("virtual threads are not supported", executor != null);
+        executor.shutdown();
+        System.setProperty(WorkerService.VIRTUAL_THREADS, "true");
+        WorkerService workerService = new WorkerService("test", 1, false);
+        // more blocked requests than worker threads
+        int requests = 100;
+        CountDownLatch started = new CountDownLatch(requests);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < requests; i++) {
+                workerService.schedule(new WorkerService.WorkRequest() {
+                    @Override
+                    public void doWork() throws Exception {
+                        started.countDown();
+                        release.await();
+                    }
+                });
+            }
+            assertTrue(started.await(30, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            workerService.stop();
+            workerService.join(5000);
+        }
+    }
+
+}
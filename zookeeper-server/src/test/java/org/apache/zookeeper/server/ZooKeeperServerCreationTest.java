@@ -18,10 +18,13 @@
 
 package org.apache.zookeeper.server;
 
+import static org.junit.Assert.assertEquals;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.nio.ByteBuffer;
+import java.util.Map;
 import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.metrics.MetricsUtils;
 import org.apache.zookeeper.proto.ConnectRequest;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.apache.zookeeper.test.ClientBase;
@@ -58,4 +61,45 @@ public void submitRequest(Request si) {
         zks.processConnectRequest(cnxn, ByteBuffer.wrap(baos.toByteArray()));
     }
 
+    /**
+     * A connection is only counted as a session renewal by the throttle when
+     * the session it claims is known to the server.
+     */
+    @Test
+    public void testRenewalOnlyForKnownSession() throws Exception {
+        File tmpDir = ClientBase.createEmptyTestDir();
+        FileTxnSnapLog fileTxnSnapLog = new FileTxnSnapLog(new File(tmpDir, "data"), new File(tmpDir, "data_txnlog"));
+
+        ZooKeeperServer zks = new ZooKeeperServer() {
+            @Override
+            public void submitRequest(Request si) {
+                // NOP
+            }
+        };
+        zks.setTxnLogFactory(fileTxnSnapLog);
+        zks.setZKDatabase(new ZKDatabase(fileTxnSnapLog));
+        zks.createSessionTracker();
+        zks.getZKDatabase().getSessionWithTimeOuts().put(0x42L, 30000);
+        ServerMetrics.getMetrics().resetAll();
+
+        zks.processConnectRequest(new MockServerCnxn(), connectRequest(0x41L));
+        Map<String, Object> metrics = MetricsUtils.currentServerMetrics();
+        assertEquals(1L, metrics.get("connection_new_session_admitted"));
+        assertEquals(0L, metrics.get("connection_renew_session_admitted"));
+
+        zks.processConnectRequest(new MockServerCnxn(), connectRequest(0x42L));
+        metrics = MetricsUtils.currentServerMetrics();
+        assertEquals(1L, metrics.get("connection_new_session_admitted"));
+        assertEquals(1L, metrics.get("connection_renew_session_admitted"));
+    }
+
+    private static ByteBuffer connectRequest(long sessionId) throws Exception {
+        ConnectRequest connReq = new ConnectRequest();
+        connReq.setSessionId(sessionId);
+        connReq.setPasswd(new byte[16]);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        connReq.serialize(BinaryOutputArchive.getArchive(baos), "connect");
+        return ByteBuffer.wrap(baos.toByteArray());
+    }
+
 }
@@ -179,7 +179,13 @@ public void testMonitor() throws IOException, InterruptedException {
                 new Field("global_sessions", Long.class),
                 new Field("local_sessions", Long.class),
                 new Field("connection_drop_probability", Double.class),
-                new Field("outstanding_tls_handshake", Integer.class)
+                new Field("outstanding_tls_handshake", Integer.class),
+                new Field("response_packet_cache_size", Integer.class),
+                new Field("response_packet_cache_bytes", Long.class),
+                new Field("response_packet_get_children_cache_size", Integer.class),
+                new Field("response_packet_get_children_cache_bytes", Long.class),
+                new Field("response_packet_other_read_cache_size", Integer.class),
+                new Field("response_packet_other_read_cache_bytes", Long.class)
         ));
         Map<String, Object> metrics = MetricsUtils.currentServerMetrics();
 
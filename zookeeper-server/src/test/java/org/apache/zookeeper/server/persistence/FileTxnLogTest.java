@@ -42,6 +42,7 @@
 import org.apache.zookeeper.server.ServerStats;
 import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.server.util.OSMXBean;
 import org.apache.zookeeper.test.ClientBase;
 import org.apache.zookeeper.txn.CreateTxn;
 import org.apache.zookeeper.txn.TxnHeader;
@@ -198,6 +199,33 @@ public void testGetCurrentLogSize() throws Exception {
         assertTrue(log.getCurrentLogSize() > (zxid - 1) * NODE_SIZE);
     }
 
+    /**
+     * Test that close() closes the rolled logs of a pending sync never run
+     */
+    @Test
+    public void testCloseWithPendingSync() throws Exception {
+        OSMXBean osMbean = new OSMXBean();
+        if (!osMbean.getUnix()) {
+            LOG.info("Unable to run test on non-unix system");
+            return;
+        }
+        FileTxnLog.setTxnLogSizeLimit(-1);
+        File tmpDir = ClientBase.createTmpDir();
+        FileTxnLog log = new FileTxnLog(tmpDir);
+        CreateRequest record = new CreateRequest(null, new byte[NODE_SIZE], ZooDefs.Ids.OPEN_ACL_UNSAFE, 0);
+        long startFdCount = osMbean.getOpenFileDescriptorCount();
+        for (int zxid = 1; zxid <= 50; zxid++) {
+            log.append(new TxnHeader(0, 0, zxid, 0, 0), record);
+            log.rollLog();
+            // the sync closing the rolled logs is dropped
+            log.startCommit();
+        }
+        log.close();
+        long endFdCount = osMbean.getOpenFileDescriptorCount();
+        LOG.info("Start fdcount is: {}, end fdcount is: {}", startFdCount, endFdCount);
+        assertTrue("Leaked " + (endFdCount - startFdCount) + " fds", endFdCount - startFdCount < 10);
+    }
+
     /**
      * Test that the server can correctly load the data when there are multiple
      * txnlogs per snapshot
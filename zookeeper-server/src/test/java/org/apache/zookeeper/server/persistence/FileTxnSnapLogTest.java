@@ -18,6 +18,7 @@
 
 package org.apache.zookeeper.server.persistence;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
@@ -29,6 +30,7 @@
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import org.apache.jute.BinaryInputArchive;
@@ -44,6 +46,7 @@
 import org.apache.zookeeper.test.ClientBase;
 import org.apache.zookeeper.test.TestUtils;
 import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.DeleteTxn;
 import org.apache.zookeeper.txn.SetDataTxn;
 import org.apache.zookeeper.txn.TxnDigest;
 import org.apache.zookeeper.txn.TxnHeader;
@@ -163,6 +166,29 @@ private FileTxnSnapLog createFileTxnSnapLogWithAutoCreateDB(
         return fileTxnSnapLog;
     }
 
+    /**
+     * A snapshot above the given zxid, like one still being written, is
+     * skipped.
+     */
+    @Test
+    public void testFindMostRecentSnapshotUpToZxid() throws IOException {
+        FileTxnSnapLog snapLog = new FileTxnSnapLog(logDir, snapDir);
+        DataTree dt = new DataTree();
+        for (long zxid = 1; zxid <= 3; zxid++) {
+            dt.lastProcessedZxid = zxid;
+            snapLog.save(dt, new ConcurrentHashMap<>(), false);
+        }
+        assertEquals(3, snapshotZxid(snapLog.findMostRecentSnapshot()));
+        assertEquals(3, snapshotZxid(snapLog.findMostRecentSnapshot(10)));
+        assertEquals(2, snapshotZxid(snapLog.findMostRecentSnapshot(2)));
+        assertNull(snapLog.findMostRecentSnapshot(0));
+        snapLog.close();
+    }
+
+    private static long snapshotZxid(File snapshot) {
+        return Util.getZxidFromName(snapshot.getName(), FileSnap.SNAPSHOT_FILE_PREFIX);
+    }
+
     /**
      * Test verifies the auto creation of log dir and snap dir.
      * Sets "zookeeper.datadir.autocreate" to true.
@@ -397,4 +423,87 @@ void testSnapshotSerializationCompatibility(Boolean digestEnabled, Boolean snapp
         snaplog.restore(dataTree, sessions, (hdr, rec, digest) -> {  });
         assertEquals(expectedNodeCount, dataTree.getNodeCount());
     }
+
+    @Test
+    public void testDeltaSnapshots() throws IOException {
+        System.setProperty(DataTree.SNAPSHOT_MAX_DELTAS, "2");
+        try {
+            File dataDir = ClientBase.createEmptyTestDir();
+            FileTxnSnapLog snaplog = new FileTxnSnapLog(dataDir, dataDir);
+            DataTree dataTree = new DataTree();
+            ConcurrentHashMap<Long, Integer> sessions = new ConcurrentHashMap<>();
+            long zxid = 0;
+            for (int i = 0; i < 20; i++) {
+                create(dataTree, "/node" + i, ++zxid, 0);
+            }
+            snaplog.save(dataTree, sessions, false);
+            assertEquals(1, snaplog.findNRecentSnapshots(10).size());
+
+            // the first delta
+            sessions.put(5L, 3000);
+            create(dataTree, "/node1/child", ++zxid, 5L);
+            dataTree.processTxn(new TxnHeader(1, 1, ++zxid, 1, ZooDefs.OpCode.setData),
+                new SetDataTxn("/node2", "changed".getBytes(), 1));
+            dataTree.processTxn(new TxnHeader(1, 1, ++zxid, 1, ZooDefs.OpCode.delete), new DeleteTxn("/node3"));
+            snaplog.save(dataTree, sessions, false);
+
+            // the second delta, removing a node created by the first one
+            dataTree.processTxn(new TxnHeader(1, 1, ++zxid, 1, ZooDefs.OpCode.delete), new DeleteTxn("/node1/child"));
+            create(dataTree, "/node3", ++zxid, 0);
+            snaplog.save(dataTree, sessions, false);
+            long lastDeltaZxid = zxid;
+
+            assertEquals(1, snaplog.findNRecentSnapshots(10).size());
+            File[] deltas = snaplog.getSnapDir().listFiles((dir, name) -> name.startsWith(FileSnap.DELTA_FILE_PREFIX));
+            assertEquals(2, deltas.length);
+
+            DataTree restored = new DataTree();
+            ConcurrentHashMap<Long, Integer> restoredSessions = new ConcurrentHashMap<>();
+            new FileTxnSnapLog(dataDir, dataDir).restore(restored, restoredSessions, (hdr, rec, digest) -> { });
+            assertEquals(lastDeltaZxid, restored.lastProcessedZxid);
+            assertEquals(sessions, restoredSessions);
+            assertSameTree(dataTree, restored, "");
+            assertTrue(restored.getEphemerals(5L).isEmpty());
+
+            // the max number of deltas is reached, the next one is full
+            create(dataTree, "/node20", ++zxid, 0);
+            snaplog.save(dataTree, sessions, false);
+            assertEquals(2, snaplog.findNRecentSnapshots(10).size());
+            assertEquals(0, dataTree.getDeltasSinceFullSnapshot());
+
+            // without the first delta the later ones can't be applied
+            Arrays.sort(deltas);
+            assertTrue(deltas[0].delete());
+            for (File snapshot : snaplog.findNRecentSnapshots(1)) {
+                assertTrue(snapshot.delete());
+            }
+            restored = new DataTree();
+            new FileTxnSnapLog(dataDir, dataDir).restore(restored, restoredSessions, (hdr, rec, digest) -> { });
+            assertEquals(20, restored.lastProcessedZxid);
+            assertNotNull(restored.getNode("/node3"));
+            assertNull(restored.getNode("/node1/child"));
+        } finally {
+            System.clearProperty(DataTree.SNAPSHOT_MAX_DELTAS);
+        }
+    }
+
+    private static void create(DataTree dataTree, String path, long zxid, long ephemeralOwner) {
+        long sessionId = ephemeralOwner != 0 ? ephemeralOwner : 1;
+        dataTree.processTxn(new TxnHeader(sessionId, 1, zxid, 1, ZooDefs.OpCode.create),
+            new CreateTxn(path, ("data" + zxid).getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, ephemeralOwner != 0, -1),
+            null);
+    }
+
+    private static void assertSameTree(DataTree expected, DataTree actual, String path) {
+        DataNode expectedNode = expected.getNode(path);
+        DataNode actualNode = actual.getNode(path);
+        assertNotNull(path, actualNode);
+        assertArrayEquals(path, expectedNode.getData(), actualNode.getData());
+        assertEquals(path, expectedNode.stat, actualNode.stat);
+        assertEquals(path, expected.getACL(expectedNode), actual.getACL(actualNode));
+        assertEquals(path, expectedNode.getChildren(), actualNode.getChildren());
+        for (String child : expectedNode.getChildren()) {
+            assertSameTree(expected, actual, path + "/" + child);
+        }
+    }
 }
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnDigest;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Test;
+
+public class MappedFileTxnLogTest extends ZKTestCase {
+
+    private static final int KB = 1024;
+
+    private final long preAllocSize = FilePadding.getPreAllocSize();
+
+    @After
+    public void tearDown() {
+        FilePadding.setPreallocSize(preAllocSize);
+    }
+
+    @Test
+    public void testAppendAndRead() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        MappedFileTxnLog txnLog = new MappedFileTxnLog(logDir);
+        for (int i = 1; i <= 100; i++) {
+            assertTrue(txnLog.append(header(i), createTxn(i, new byte[i]), new TxnDigest(2, i)));
+            if (i % 10 == 0) {
+                txnLog.commit();
+            }
+        }
+        txnLog.close();
+
+        assertEquals(100, txnLog.getLastLoggedZxid());
+        TxnLog.TxnIterator itr = new FileTxnLog(logDir).read(1);
+        for (int i = 1; i <= 100; i++) {
+            assertEquals(i, itr.getHeader().getZxid());
+            assertArrayEquals(new byte[i], ((CreateTxn) itr.getTxn()).getData());
+            assertEquals(i, itr.getDigest().getTreeDigest());
+            assertEquals(i < 100, itr.next());
+        }
+        itr.close();
+    }
+
+    @Test
+    public void testTxnsLargerThanPreallocSize() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        FilePadding.setPreallocSize(8 * KB);
+        MappedFileTxnLog txnLog = new MappedFileTxnLog(logDir);
+
+        // fill the data with 0xff so that a padding 0 inside a txn corrupts it
+        byte[] data = new byte[20 * KB];
+        Arrays.fill(data, (byte) 0xff);
+        for (int i = 1; i <= 10; i++) {
+            txnLog.append(header(i), createTxn(i, i % 2 == 0 ? data : new byte[KB]));
+            txnLog.commit();
+        }
+        assertTrue(txnLog.getCurrentLogSize() > 100 * KB);
+        txnLog.close();
+
+        FileTxnLog.FileTxnIterator itr = new FileTxnLog.FileTxnIterator(logDir, 1);
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i, itr.getHeader().getZxid());
+            assertArrayEquals(i % 2 == 0 ? data : new byte[KB], ((CreateTxn) itr.getTxn()).getData());
+            itr.next();
+        }
+        itr.close();
+    }
+
+    @Test
+    public void testRegionsUnmapped() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        FilePadding.setPreallocSize(8 * KB);
+        MappedFileTxnLog txnLog = new MappedFileTxnLog(logDir);
+        txnLog.append(header(1), createTxn(1, new byte[KB]));
+        MappedFileTxnLog.Region first = txnLog.getCurrentRegion();
+        for (int i = 2; i <= 20; i++) {
+            txnLog.append(header(i), createTxn(i, new byte[KB]));
+        }
+        MappedFileTxnLog.Region last = txnLog.getCurrentRegion();
+        assertTrue(first != last);
+        assertTrue(first.isMapped());
+
+        // forced by the commit, then not needed anymore
+        txnLog.commit();
+        assertFalse(first.isMapped());
+        assertTrue(last.isMapped());
+
+        txnLog.rollLog();
+        txnLog.close();
+        assertFalse(last.isMapped());
+
+        TxnLog.TxnIterator itr = new FileTxnLog(logDir).read(1);
+        for (int i = 1; i <= 20; i++) {
+            assertEquals(i, itr.getHeader().getZxid());
+            assertEquals(i < 20, itr.next());
+        }
+        itr.close();
+    }
+
+    @Test
+    public void testRollLog() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        MappedFileTxnLog txnLog = new MappedFileTxnLog(logDir);
+        txnLog.append(header(1), createTxn(1, new byte[10]));
+        txnLog.commit();
+        long firstLogSize = txnLog.getCurrentLogSize();
+        txnLog.rollLog();
+        assertEquals(0, txnLog.getCurrentLogSize());
+        assertEquals(firstLogSize, txnLog.getTotalLogSize());
+
+        txnLog.append(header(2), createTxn(2, new byte[10]));
+        txnLog.commit();
+        txnLog.close();
+
+        File[] logs = FileTxnLog.getLogFiles(logDir.listFiles(), 0);
+        assertEquals(2, logs.length);
+        assertEquals(Util.makeLogName(1), logs[0].getName());
+        assertEquals(Util.makeLogName(2), logs[1].getName());
+        assertEquals(2, new FileTxnLog(logDir).getLastLoggedZxid());
+    }
+
+    @Test
+    public void testTruncate() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        MappedFileTxnLog txnLog = new MappedFileTxnLog(logDir);
+        for (int i = 1; i <= 10; i++) {
+            txnLog.append(header(i), createTxn(i, new byte[10]));
+        }
+        txnLog.commit();
+        txnLog.close();
+
+        new FileTxnLog(logDir).truncate(5);
+        TxnLog.TxnIterator itr = new FileTxnLog(logDir).read(1);
+        for (int i = 1; i < 5; i++) {
+            assertTrue(itr.next());
+        }
+        assertEquals(5, itr.getHeader().getZxid());
+        assertFalse(itr.next());
+        itr.close();
+    }
+
+    private static TxnHeader header(long zxid) {
+        return new TxnHeader(1, (int) zxid, zxid, zxid, ZooDefs.OpCode.create);
+    }
+
+    private static CreateTxn createTxn(long zxid, byte[] data) {
+        return new CreateTxn("/node" + zxid, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 1);
+    }
+
+}
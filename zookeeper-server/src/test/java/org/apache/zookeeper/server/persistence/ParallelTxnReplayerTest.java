@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import static org.apache.zookeeper.server.DataTreeTestUtils.assertSameTree;
+import static org.apache.zookeeper.server.DataTreeTestUtils.serialize;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.metrics.MetricsUtils;
+import org.apache.zookeeper.server.DataNode;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.DataTreeTestUtils;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.CloseSessionTxn;
+import org.apache.zookeeper.txn.CreateSessionTxn;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.MultiTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.Txn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Test;
+
+public class ParallelTxnReplayerTest extends ZKTestCase {
+
+    @After
+    public void tearDown() {
+        System.clearProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_REPLAY_THREADS);
+    }
+
+    @Test
+    public void testConflictKeys() {
+        TxnHeader create = new TxnHeader(1, 1, 1, 1, OpCode.create);
+        assertEquals(new HashSet<>(Arrays.asList("/a/b", "/a")),
+            DataTree.conflictKeys(create, new CreateTxn("/a/b", new byte[0], null, false, 1)));
+        assertEquals(Collections.singleton("/a"),
+            DataTree.conflictKeys(new TxnHeader(1, 1, 2, 1, OpCode.setData), new SetDataTxn("/a", null, 1)));
+        assertEquals(Collections.singleton("5"),
+            DataTree.conflictKeys(new TxnHeader(5, 1, 3, 1, OpCode.createSession), new CreateSessionTxn(3000)));
+        assertNull(DataTree.conflictKeys(new TxnHeader(5, 1, 4, 1, OpCode.closeSession), null));
+        assertNull(DataTree.conflictKeys(new TxnHeader(1, 1, 5, 1, OpCode.multi), new MultiTxn()));
+        assertNull(DataTree.conflictKeys(create, new CreateTxn("/zookeeper/quota/a", new byte[0], null, false, 1)));
+    }
+
+    @Test
+    public void testReplayMatchesSerialReplay() throws IOException {
+        File dataDir = ClientBase.createEmptyTestDir();
+        FileTxnSnapLog snapLog = new FileTxnSnapLog(dataDir, dataDir);
+        DataTree expected = new DataTree();
+        ConcurrentHashMap<Long, Integer> sessions = new ConcurrentHashMap<>();
+        snapLog.save(expected, sessions, false);
+
+        Random random = new Random(42);
+        List<String> paths = new ArrayList<>();
+        List<Long> liveSessions = new ArrayList<>();
+        for (long zxid = 1; zxid <= 5000; zxid++) {
+            int op = random.nextInt(20);
+            if (op == 0 || liveSessions.isEmpty()) {
+                long sessionId = zxid;
+                liveSessions.add(sessionId);
+                sessions.put(sessionId, 3000);
+                log(snapLog, expected, new TxnHeader(sessionId, 0, zxid, zxid, OpCode.createSession),
+                    new CreateSessionTxn(3000));
+            } else if (op == 1) {
+                long sessionId = liveSessions.remove(random.nextInt(liveSessions.size()));
+                sessions.remove(sessionId);
+                List<String> ephemerals = new ArrayList<>(expected.getEphemerals(sessionId));
+                paths.removeAll(ephemerals);
+                log(snapLog, expected, new TxnHeader(sessionId, 0, zxid, zxid, OpCode.closeSession),
+                    ZooKeeperServer.isCloseSessionTxnEnabled() ? new CloseSessionTxn(ephemerals) : null);
+            } else if (op == 2 && !paths.isEmpty()) {
+                String path = paths.get(random.nextInt(paths.size()));
+                log(snapLog, expected, new TxnHeader(1, 0, zxid, zxid, OpCode.multi),
+                    new MultiTxn(Collections.singletonList(
+                        new Txn(OpCode.setData, serialize(new SetDataTxn(path, ("multi" + zxid).getBytes(), 1))))));
+            } else if (op < 8 && !paths.isEmpty()) {
+                String path = paths.get(random.nextInt(paths.size()));
+                log(snapLog, expected, new TxnHeader(1, 0, zxid, zxid, OpCode.setData),
+                    new SetDataTxn(path, ("data" + zxid).getBytes(), 1));
+            } else if (op < 11 && !paths.isEmpty()) {
+                String path = paths.get(random.nextInt(paths.size()));
+                if (!expected.getNode(path).getChildren().isEmpty()) {
+                    continue;
+                }
+                paths.remove(path);
+                log(snapLog, expected, new TxnHeader(1, 0, zxid, zxid, OpCode.delete), new DeleteTxn(path));
+            } else {
+                String parent = paths.isEmpty() || random.nextBoolean() ? "" : paths.get(random.nextInt(paths.size()));
+                String path = parent + "/n" + zxid;
+                long sessionId = liveSessions.get(random.nextInt(liveSessions.size()));
+                boolean ephemeral = random.nextInt(4) == 0 && parent.isEmpty();
+                DataNode parentNode = expected.getNode(parent.isEmpty() ? "/" : parent);
+                if (parentNode.stat.getEphemeralOwner() != 0) {
+                    continue;
+                }
+                paths.add(path);
+                log(snapLog, expected, new TxnHeader(sessionId, 0, zxid, zxid, OpCode.create),
+                    new CreateTxn(path, ("data" + zxid).getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, ephemeral,
+                        parentNode.stat.getCversion() + 1));
+            }
+        }
+        snapLog.commit();
+        snapLog.close();
+
+        System.setProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_REPLAY_THREADS, "4");
+        ServerMetrics.getMetrics().resetAll();
+        DataTree restored = new DataTree();
+        ConcurrentHashMap<Long, Integer> restoredSessions = new ConcurrentHashMap<>();
+        List<Long> loaded = new ArrayList<>();
+        long highestZxid = new FileTxnSnapLog(dataDir, dataDir).restore(restored, restoredSessions,
+            (hdr, rec, digest) -> loaded.add(hdr.getZxid()));
+
+        assertEquals(expected.lastProcessedZxid, highestZxid);
+        assertEquals(expected.lastProcessedZxid, restored.lastProcessedZxid);
+        for (int i = 1; i < loaded.size(); i++) {
+            assertTrue(loaded.get(i - 1) < loaded.get(i));
+        }
+        assertEquals(sessions, restoredSessions);
+        assertEquals(expected.getTreeDigest(), restored.getTreeDigest());
+        assertEquals(expected.getLastProcessedZxidDigest().getDigest(), restored.getLastProcessedZxidDigest().getDigest());
+        assertEquals(expected.getNodeCount(), restored.getNodeCount());
+        assertEquals(expected.getEphemeralsCount(), restored.getEphemeralsCount());
+        assertSameTree(expected, restored, "");
+
+        Map<String, Object> metrics = MetricsUtils.currentServerMetrics();
+        assertEquals(0L, metrics.get("digest_mismatches_count"));
+        assertTrue((long) metrics.get("max_startup_txns_replay_batch_size") > 1);
+    }
+
+    private static void log(FileTxnSnapLog snapLog, DataTree dataTree, TxnHeader hdr, Record txn) throws IOException {
+        snapLog.append(DataTreeTestUtils.applyTxn(dataTree, hdr, txn));
+    }
+
+}
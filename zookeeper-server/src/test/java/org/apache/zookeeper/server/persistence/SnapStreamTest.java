@@ -19,12 +19,16 @@
 package org.apache.zookeeper.server.persistence;
 
 import static org.apache.zookeeper.test.ClientBase.createTmpDir;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.zip.CheckedInputStream;
 import java.util.zip.CheckedOutputStream;
 import org.apache.jute.BinaryInputArchive;
@@ -33,14 +37,22 @@
 import org.apache.jute.OutputArchive;
 import org.apache.zookeeper.server.persistence.SnapStream.StreamMode;
 import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
 public class SnapStreamTest {
 
+    private StreamMode previousMode;
+
+    @Before
+    public void setUp() {
+        previousMode = SnapStream.getStreamMode();
+    }
+
     @After
     public void tearDown() {
         System.clearProperty(SnapStream.ZOOKEEPER_SHAPSHOT_STREAM_MODE);
-        SnapStream.setStreamMode(StreamMode.DEFAULT_MODE);
+        SnapStream.setStreamMode(previousMode);
     }
 
     @Test
@@ -54,6 +66,9 @@ public void testStreamMode() {
         assertEquals(StreamMode.SNAPPY.getName(), "snappy");
         assertEquals(StreamMode.SNAPPY.getFileExtension(), ".snappy");
         assertEquals(StreamMode.SNAPPY, StreamMode.fromString("snappy"));
+        assertEquals(StreamMode.CHUNKED.getName(), "chunked");
+        assertEquals(StreamMode.CHUNKED.getFileExtension(), ".chunked");
+        assertEquals(StreamMode.CHUNKED, StreamMode.fromString("chunked"));
     }
 
     @Test
@@ -61,6 +76,7 @@ public void testGetStreamMode() {
         assertEquals("expected to return un-compressed stream", StreamMode.CHECKED, SnapStream.getStreamMode("snapshot.180000e3a2"));
         assertEquals("expected to return snappy stream", StreamMode.SNAPPY, SnapStream.getStreamMode("snapshot.180000e3a2.snappy"));
         assertEquals("expected to return gzip stream", StreamMode.GZIP, SnapStream.getStreamMode("snapshot.180000e3a2.gz"));
+        assertEquals("expected to return chunked stream", StreamMode.CHUNKED, SnapStream.getStreamMode("snapshot.180000e3a2.chunked"));
     }
 
     @Test
@@ -78,6 +94,90 @@ public void testSerializeDeserializeWithGZIP() throws IOException {
         testSerializeDeserialize(StreamMode.GZIP, ".gz");
     }
 
+    @Test
+    public void testSerializeDeserializeWithChunked() throws IOException {
+        testSerializeDeserialize(StreamMode.CHUNKED, ".chunked");
+    }
+
+    @Test
+    public void testSerializeDeserializeWithMultipleChunks() throws IOException {
+        System.setProperty(SnapStream.ZOOKEEPER_SNAPSHOT_CHUNK_SIZE_KB, "1");
+        try {
+            File file = writeChunkedSnapshot(100);
+            assertTrue(SnapStream.isValidSnapshot(file));
+
+            CheckedInputStream is = SnapStream.getInputStream(file);
+            InputArchive ia = BinaryInputArchive.getArchive(is);
+            for (int i = 0; i < 100; i++) {
+                assertArrayEquals(chunkedPayload(i), ia.readBuffer("data"));
+            }
+            SnapStream.checkSealIntegrity(is, ia);
+            is.close();
+        } finally {
+            System.clearProperty(SnapStream.ZOOKEEPER_SNAPSHOT_CHUNK_SIZE_KB);
+        }
+    }
+
+    @Test
+    public void testCorruptedChunk() throws IOException {
+        System.setProperty(SnapStream.ZOOKEEPER_SNAPSHOT_CHUNK_SIZE_KB, "1");
+        try {
+            File file = writeChunkedSnapshot(100);
+            // flip a byte in the middle of the chunks, the index is intact
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(raf.length() / 2);
+                int b = raf.read();
+                raf.seek(raf.length() / 2);
+                raf.write(b ^ 0xff);
+            }
+            assertTrue(SnapStream.isValidSnapshot(file));
+
+            CheckedInputStream is = SnapStream.getInputStream(file);
+            InputArchive ia = BinaryInputArchive.getArchive(is);
+            try {
+                for (int i = 0; i < 100; i++) {
+                    ia.readBuffer("data");
+                }
+                fail("the corrupted chunk should have been detected");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("CRC corruption in chunk"));
+            } finally {
+                is.close();
+            }
+        } finally {
+            System.clearProperty(SnapStream.ZOOKEEPER_SNAPSHOT_CHUNK_SIZE_KB);
+        }
+    }
+
+    @Test
+    public void testTruncatedChunkedSnapshot() throws IOException {
+        File file = writeChunkedSnapshot(10);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        assertFalse(SnapStream.isValidSnapshot(file));
+    }
+
+    private File writeChunkedSnapshot(int records) throws IOException {
+        SnapStream.setStreamMode(StreamMode.CHUNKED);
+        File file = new File(createTmpDir(), "snapshot.180000e3a2.chunked");
+        CheckedOutputStream os = SnapStream.getOutputStream(file, false);
+        OutputArchive oa = BinaryOutputArchive.getArchive(os);
+        for (int i = 0; i < records; i++) {
+            oa.writeBuffer(chunkedPayload(i), "data");
+        }
+        SnapStream.sealStream(os, oa);
+        os.flush();
+        os.close();
+        return file;
+    }
+
+    private static byte[] chunkedPayload(int i) {
+        byte[] data = new byte[100 + i * 10];
+        Arrays.fill(data, (byte) i);
+        return data;
+    }
+
     private void testSerializeDeserialize(StreamMode mode, String fileSuffix) throws IOException {
         testSerializeDeserialize(mode, fileSuffix, false);
         testSerializeDeserialize(mode, fileSuffix, true);
@@ -134,6 +234,7 @@ public void testInvalidSnapshot() throws IOException {
         checkInvalidSnapshot("snapshot.180000e3a2");
         checkInvalidSnapshot("snapshot.180000e3a2.gz");
         checkInvalidSnapshot("snapshot.180000e3a2.snappy");
+        checkInvalidSnapshot("snapshot.180000e3a2.chunked");
     }
 
 }
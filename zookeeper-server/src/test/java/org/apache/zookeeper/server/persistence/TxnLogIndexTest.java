@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TxnLogIndexTest extends ZKTestCase {
+
+    private static final int KB = 1024;
+
+    private final long preAllocSize = FilePadding.getPreAllocSize();
+
+    @Before
+    public void setUp() {
+        FilePadding.setPreallocSize(8 * KB);
+        TxnLogIndex.setInterval(KB);
+    }
+
+    @After
+    public void tearDown() {
+        FilePadding.setPreallocSize(preAllocSize);
+        TxnLogIndex.setInterval(64 * KB);
+    }
+
+    @Test
+    public void testReadNearSeeksWithIndex() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        File logFile = writeLog(logDir, 1, 200);
+        File indexFile = TxnLogIndex.indexFileFor(logFile);
+
+        // writing the log builds its index
+        assertTrue(indexFile.exists());
+        int written = TxnLogIndex.load(logFile).size();
+        assertTrue(written > 10);
+
+        // reading a log without an index builds it
+        TxnLogIndex.delete(logFile);
+        readAll(new FileTxnLog(logDir).read(1), 1, 200);
+        assertTrue(indexFile.exists());
+        assertEquals(written, TxnLogIndex.load(logFile).size());
+
+        TxnLog.TxnIterator itr = new FileTxnLog(logDir).readNear(150);
+        long zxid = itr.getHeader().getZxid();
+        assertTrue("0x" + Long.toHexString(zxid), zxid <= 150 && zxid > 130);
+        readAll(itr, zxid, 200);
+
+        // the txn before the requested one is still found when it isn't logged
+        itr = new FileTxnLog(logDir).readNear(1000);
+        assertTrue(itr.getHeader().getZxid() <= 200);
+        readAll(itr, itr.getHeader().getZxid(), 200);
+
+        itr = new FileTxnLog(logDir).read(150);
+        assertEquals(150, itr.getHeader().getZxid());
+        itr.close();
+
+        itr = new FileTxnLog(logDir).read(150, false);
+        assertEquals(1, itr.getHeader().getZxid());
+        itr.close();
+    }
+
+    @Test
+    public void testMappedLogIndexedOnWrite() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        File logFile = writeLog(new MappedFileTxnLog(logDir), logDir, 1, 200);
+        assertTrue(TxnLogIndex.load(logFile).size() > 10);
+
+        TxnLog.TxnIterator itr = new FileTxnLog(logDir).readNear(150);
+        long zxid = itr.getHeader().getZxid();
+        assertTrue("0x" + Long.toHexString(zxid), zxid <= 150 && zxid > 130);
+        readAll(itr, zxid, 200);
+    }
+
+    @Test
+    public void testRolledLogIndexed() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        FileTxnLog txnLog = new FileTxnLog(logDir);
+        append(txnLog, 1, 200);
+        txnLog.commit();
+        File logFile = new File(logDir, Util.makeLogName(1));
+        assertFalse(TxnLogIndex.indexFileFor(logFile).exists());
+
+        txnLog.rollLog();
+        assertTrue(TxnLogIndex.load(logFile).size() > 10);
+        append(txnLog, 201, 300);
+        txnLog.commit();
+        txnLog.close();
+        assertTrue(TxnLogIndex.load(new File(logDir, Util.makeLogName(201))).size() > 5);
+    }
+
+    @Test
+    public void testConcurrentReadersPersistIndex() throws Exception {
+        File logDir = ClientBase.createTmpDir();
+        File logFile = writeLog(logDir, 1, 200);
+        int written = TxnLogIndex.load(logFile).size();
+        TxnLogIndex.delete(logFile);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> reads = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                reads.add(executor.submit(() -> {
+                    readAll(new FileTxnLog(logDir).read(1), 1, 200);
+                    return null;
+                }));
+            }
+            for (Future<?> read : reads) {
+                read.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(written, TxnLogIndex.load(logFile).size());
+        assertFalse(new File(logDir, TxnLogIndex.indexFileFor(logFile).getName() + ".tmp").exists());
+    }
+
+    @Test
+    public void testIndexNotMatchingLogIsDropped() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        File logFile = writeLog(logDir, 1, 200);
+        readAll(new FileTxnLog(logDir).read(1), 1, 200);
+        File indexFile = TxnLogIndex.indexFileFor(logFile);
+        assertTrue(indexFile.exists());
+
+        // replace the log by one with other zxids at the same offsets
+        File otherDir = ClientBase.createTmpDir();
+        File otherLog = writeLog(otherDir, 1001, 1200);
+        Files.copy(otherLog.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        TxnLog.TxnIterator itr = new FileTxnLog(logDir).readNear(1150);
+        assertEquals(1001, itr.getHeader().getZxid());
+        assertFalse(indexFile.exists());
+        readAll(itr, 1001, 1200);
+    }
+
+    @Test
+    public void testTruncateDropsIndex() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        File logFile = writeLog(logDir, 1, 200);
+        readAll(new FileTxnLog(logDir).read(1), 1, 200);
+        File indexFile = TxnLogIndex.indexFileFor(logFile);
+        assertTrue(indexFile.exists());
+
+        new FileTxnLog(logDir).truncate(100);
+        assertFalse(indexFile.exists());
+
+        TxnLog.TxnIterator itr = new FileTxnLog(logDir).readNear(150);
+        assertEquals(1, itr.getHeader().getZxid());
+        readAll(itr, 1, 100);
+    }
+
+    private static File writeLog(File logDir, long from, long to) throws IOException {
+        return writeLog(new FileTxnLog(logDir), logDir, from, to);
+    }
+
+    private static File writeLog(FileTxnLog txnLog, File logDir, long from, long to) throws IOException {
+        append(txnLog, from, to);
+        txnLog.commit();
+        txnLog.close();
+        return new File(logDir, Util.makeLogName(from));
+    }
+
+    private static void append(FileTxnLog txnLog, long from, long to) throws IOException {
+        for (long zxid = from; zxid <= to; zxid++) {
+            txnLog.append(
+                new TxnHeader(1, (int) zxid, zxid, zxid, ZooDefs.OpCode.create),
+                new CreateTxn("/node" + (zxid % 1000), new byte[100], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 1));
+        }
+    }
+
+    private static void readAll(TxnLog.TxnIterator itr, long from, long to) throws IOException {
+        for (long zxid = from; zxid <= to; zxid++) {
+            assertEquals(zxid, itr.getHeader().getZxid());
+            assertEquals(zxid < to, itr.next());
+        }
+        itr.close();
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.apache.zookeeper.server.DataTreeTestUtils.assertSameTree;
+import static org.apache.zookeeper.server.DataTreeTestUtils.serialize;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.jute.Record;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.metrics.MetricsUtils;
+import org.apache.zookeeper.server.DataNode;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.DataTreeTestUtils;
+import org.apache.zookeeper.server.FinalRequestProcessor;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.ErrorTxn;
+import org.apache.zookeeper.txn.MultiTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.Txn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CommitProcessorParallelApplyTest extends ZKTestCase {
+
+    File tmpDir;
+    ZooKeeperServer zks;
+    CommitProcessor commitProcessor;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_PARALLEL_APPLY, "true");
+        System.setProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_NUM_WORKER_THREADS, "4");
+        System.setProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_MAX_COMMIT_BATCH_SIZE, "64");
+        ServerMetrics.getMetrics().resetAll();
+        tmpDir = ClientBase.createTmpDir();
+        ClientBase.setupTestEnv();
+        zks = new ZooKeeperServer(tmpDir, tmpDir, 4000);
+        zks.startdata();
+        commitProcessor = new CommitProcessor(new FinalRequestProcessor(zks), "1", true, null);
+        commitProcessor.allowParallelApply(zks);
+        commitProcessor.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        commitProcessor.shutdown();
+        commitProcessor.join();
+        zks.getZKDatabase().close();
+        ClientBase.recursiveDelete(tmpDir);
+        System.clearProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_PARALLEL_APPLY);
+        System.clearProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_NUM_WORKER_THREADS);
+        System.clearProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_MAX_COMMIT_BATCH_SIZE);
+    }
+
+    @Test
+    public void testParallelApplyMatchesSerialApply() throws Exception {
+        DataTree expected = new DataTree();
+        Random random = new Random(42);
+        List<String> paths = new ArrayList<>();
+        long lastZxid = 0;
+        for (long zxid = 1; zxid <= 5000; zxid++) {
+            long sessionId = 1 + random.nextInt(10);
+            int op = random.nextInt(20);
+            if (op == 0 && !paths.isEmpty()) {
+                String path = paths.get(random.nextInt(paths.size()));
+                commit(expected, new TxnHeader(sessionId, 0, zxid, zxid, OpCode.multi),
+                    new MultiTxn(Collections.singletonList(
+                        new Txn(OpCode.setData, serialize(new SetDataTxn(path, ("multi" + zxid).getBytes(), 1))))));
+            } else if (op == 1) {
+                commit(expected, new TxnHeader(sessionId, 0, zxid, zxid, OpCode.error),
+                    new ErrorTxn(Code.NODEEXISTS.intValue()));
+            } else if (op < 8 && !paths.isEmpty()) {
+                String path = paths.get(random.nextInt(paths.size()));
+                commit(expected, new TxnHeader(sessionId, 0, zxid, zxid, OpCode.setData),
+                    new SetDataTxn(path, ("data" + zxid).getBytes(), 1));
+            } else if (op < 11 && !paths.isEmpty()) {
+                String path = paths.get(random.nextInt(paths.size()));
+                if (!expected.getNode(path).getChildren().isEmpty()) {
+                    continue;
+                }
+                paths.remove(path);
+                commit(expected, new TxnHeader(sessionId, 0, zxid, zxid, OpCode.delete), new DeleteTxn(path));
+            } else {
+                String parent = paths.isEmpty() || random.nextInt(4) == 0 ? "" : paths.get(random.nextInt(paths.size()));
+                String path = parent + "/n" + zxid;
+                DataNode parentNode = expected.getNode(parent.isEmpty() ? "/" : parent);
+                paths.add(path);
+                commit(expected, new TxnHeader(sessionId, 0, zxid, zxid, OpCode.create),
+                    new CreateTxn(path, ("data" + zxid).getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, false,
+                        parentNode.stat.getCversion() + 1));
+            }
+            lastZxid = zxid;
+        }
+
+        waitForCommitted(lastZxid);
+
+        DataTree actual = zks.getZKDatabase().getDataTree();
+        assertEquals(expected.lastProcessedZxid, actual.lastProcessedZxid);
+        assertEquals(expected.getTreeDigest(), actual.getTreeDigest());
+        assertEquals(expected.getLastProcessedZxidDigest().getDigest(), actual.getLastProcessedZxidDigest().getDigest());
+        assertEquals(expected.getNodeCount(), actual.getNodeCount());
+        assertSameTree(expected, actual, "");
+
+        long previous = 0;
+        for (Leader.Proposal p : zks.getZKDatabase().getCommittedLog()) {
+            assertTrue(previous < p.packet.getZxid());
+            previous = p.packet.getZxid();
+        }
+
+        Map<String, Object> metrics = MetricsUtils.currentServerMetrics();
+        assertEquals(0L, metrics.get("digest_mismatches_count"));
+        assertTrue((long) metrics.get("max_write_commit_proc_applied_concurrently") > 1);
+    }
+
+    @Test
+    public void testWatchesFiredInZxidOrder() throws Exception {
+        DataTree expected = new DataTree();
+        List<String> paths = new ArrayList<>();
+        long zxid = 0;
+        for (int i = 0; i < 500; i++) {
+            String path = "/w" + i;
+            paths.add(path);
+            zxid++;
+            commit(expected, new TxnHeader(1 + i % 10, 0, zxid, zxid, OpCode.create),
+                new CreateTxn(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, false,
+                    expected.getNode("/").stat.getCversion() + 1));
+        }
+        waitForCommitted(zxid);
+
+        List<String> fired = Collections.synchronizedList(new ArrayList<>());
+        Watcher watcher = event -> fired.add(event.getPath());
+        DataTree actual = zks.getZKDatabase().getDataTree();
+        for (String path : paths) {
+            actual.getData(path, new Stat(), watcher);
+        }
+
+        // the writes of a batch touch different nodes, so they are applied
+        // concurrently, still their watches must fire in zxid order
+        Collections.shuffle(paths, new Random(42));
+        for (String path : paths) {
+            zxid++;
+            commit(expected, new TxnHeader(1 + zxid % 10, 0, zxid, zxid, OpCode.setData),
+                new SetDataTxn(path, ("data" + zxid).getBytes(), 1));
+        }
+        waitForCommitted(zxid);
+        // the watches of the last batch fire once the batch is committed
+        long deadline = System.currentTimeMillis() + 30000;
+        while (fired.size() < paths.size()) {
+            assertTrue("watches not fired in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        assertEquals(paths, fired);
+        Map<String, Object> metrics = MetricsUtils.currentServerMetrics();
+        assertTrue((long) metrics.get("max_write_commit_proc_applied_concurrently") > 1);
+    }
+
+    private void commit(DataTree expected, TxnHeader hdr, Record txn) {
+        commitProcessor.commit(DataTreeTestUtils.applyTxn(expected, hdr, txn));
+    }
+
+    private void waitForCommitted(long zxid) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (zks.getZKDatabase().getmaxCommittedLog() != zxid) {
+            assertTrue("writes not applied in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.metrics.MetricsUtils;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompressedQuorumStreamTest extends ZKTestCase {
+
+    @Before
+    public void setUp() {
+        ServerMetrics.getMetrics().resetAll();
+    }
+
+    @Test
+    public void testPacketsRoundTrip() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CompressedQuorumOutputStream compressed = new CompressedQuorumOutputStream(baos, "1");
+        BufferedOutputStream bufferedOutput = new BufferedOutputStream(compressed);
+        BinaryOutputArchive oa = BinaryOutputArchive.getArchive(bufferedOutput);
+
+        // spans several frames
+        byte[] data = new byte[3 * CompressedQuorumOutputStream.BLOCK_SIZE + 17];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 31);
+        }
+        oa.writeRecord(new QuorumPacket(Leader.PROPOSAL, 1, data, null), "packet");
+        bufferedOutput.flush();
+        int flushed = baos.size();
+        oa.writeRecord(new QuorumPacket(Leader.COMMIT, 1, null, null), "packet");
+        bufferedOutput.flush();
+        assertTrue("a flush must send the packet", baos.size() > flushed);
+
+        BinaryInputArchive ia = BinaryInputArchive.getArchive(
+            new CompressedQuorumInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        QuorumPacket proposal = new QuorumPacket();
+        ia.readRecord(proposal, "packet");
+        assertEquals(Leader.PROPOSAL, proposal.getType());
+        assertArrayEquals(data, proposal.getData());
+        QuorumPacket commit = new QuorumPacket();
+        ia.readRecord(commit, "packet");
+        assertEquals(Leader.COMMIT, commit.getType());
+        assertEquals(1, commit.getZxid());
+
+        assertEquals(data.length + 40, compressed.getUncompressedBytes());
+        assertEquals(baos.size(), compressed.getCompressedBytes());
+        assertTrue(compressed.getCompressedBytes() < compressed.getUncompressedBytes());
+
+        Map<String, Object> metrics = MetricsUtils.currentServerMetrics();
+        assertEquals(compressed.getUncompressedBytes(), metrics.get("learner_uncompressed_bytes"));
+        assertEquals(compressed.getCompressedBytes(), metrics.get("learner_compressed_bytes"));
+        assertEquals(
+            compressed.getCompressedBytes() * 100 / compressed.getUncompressedBytes(),
+            compressed.getCompressionRatio());
+        assertEquals(5L, metrics.get("cnt_1_learner_compression_time_us"));
+    }
+
+    @Test
+    public void testCorruptedFrame() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CompressedQuorumOutputStream compressed = new CompressedQuorumOutputStream(baos, "1");
+        compressed.write(new byte[1024]);
+        compressed.flush();
+        byte[] bytes = baos.toByteArray();
+        // claims more than a frame can hold
+        bytes[0] = 0x7f;
+
+        CompressedQuorumInputStream is = new CompressedQuorumInputStream(new ByteArrayInputStream(bytes));
+        try {
+            is.read();
+            fail("Should have failed on the corrupted frame");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+}
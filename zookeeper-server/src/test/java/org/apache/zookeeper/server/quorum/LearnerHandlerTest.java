@@ -20,6 +20,8 @@
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -559,4 +561,19 @@ public void testTxnLogGap() throws Exception {
         reset();
     }
 
+    @Test
+    public void testShutdownReleasesQueuedSharedPackets() throws Exception {
+        SharedQuorumPacket shared = SharedQuorumPacket.share(new QuorumPacket(Leader.COMMIT, 1, null, null));
+        // also queued on another learner handler, which sends it
+        shared.queued();
+        learnerHandler.queuePacket(shared);
+        byte[] serialized = shared.getSerialized();
+        shared.sent();
+        assertSame(serialized, shared.getSerialized());
+
+        // the packet is dropped unsent
+        learnerHandler.shutdown();
+        assertNotSame(serialized, shared.getSerialized());
+    }
+
 }
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.Map;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.metrics.MetricsUtils;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.junit.Test;
+
+public class SharedQuorumPacketTest extends ZKTestCase {
+
+    @Test
+    public void testSerializedOnce() throws Exception {
+        ServerMetrics.getMetrics().resetAll();
+        QuorumPacket qp = new QuorumPacket(Leader.PROPOSAL, 0x100000001L, "txn".getBytes(),
+            Collections.singletonList(new Id("digest", "user")));
+        SharedQuorumPacket shared = SharedQuorumPacket.share(qp);
+        assertSame(shared, SharedQuorumPacket.share(shared));
+        assertEquals(qp, shared);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive.getArchive(baos).writeRecord(qp, "packet");
+        byte[] serialized = shared.getSerialized();
+        assertArrayEquals(baos.toByteArray(), serialized);
+        assertSame(serialized, shared.getSerialized());
+
+        QuorumPacket read = new QuorumPacket();
+        BinaryInputArchive.getArchive(new ByteArrayInputStream(serialized)).readRecord(read, "packet");
+        assertEquals(qp, read);
+
+        Map<String, Object> metrics = MetricsUtils.currentServerMetrics();
+        assertEquals(1L, metrics.get("shared_quorum_packets_serialized"));
+        assertEquals(1L, metrics.get("shared_quorum_packets_reused"));
+    }
+
+    @Test
+    public void testSerializedDroppedOnceSent() throws Exception {
+        SharedQuorumPacket shared = SharedQuorumPacket.share(new QuorumPacket(Leader.COMMIT, 1, null, null));
+        shared.queued();
+        shared.queued();
+        byte[] serialized = shared.getSerialized();
+        shared.sent();
+        assertSame(serialized, shared.getSerialized());
+        shared.sent();
+        // sent by all the learner handlers, it is serialized again if queued later
+        byte[] again = shared.getSerialized();
+        assertNotSame(serialized, again);
+        assertArrayEquals(serialized, again);
+    }
+
+    @Test
+    public void testPacketWithoutData() throws Exception {
+        SharedQuorumPacket shared = SharedQuorumPacket.share(new QuorumPacket(Leader.COMMIT, 1, null, null));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive.getArchive(baos).writeRecord(new QuorumPacket(Leader.COMMIT, 1, null, null), "packet");
+        assertArrayEquals(baos.toByteArray(), shared.getSerialized());
+    }
+
+}
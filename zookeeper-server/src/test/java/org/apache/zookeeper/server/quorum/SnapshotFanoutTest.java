@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.metrics.MetricsUtils;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotFanoutTest extends ZKTestCase {
+
+    private ZKDatabase db;
+
+    @Before
+    public void setUp() throws Exception {
+        ServerMetrics.getMetrics().resetAll();
+        db = new ZKDatabase(null);
+        // larger than the queue of a learner, so the serialization waits for them
+        byte[] data = new byte[64 * 1024];
+        for (int i = 0; i < 100; i++) {
+            db.getDataTree().createNode("/node" + i, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, i, i + 1, 1);
+        }
+        db.setlastProcessedZxid(100);
+    }
+
+    @Test
+    public void testLearnersGetTheSameSnapshot() throws Exception {
+        byte[] expected = serialize();
+        SnapshotFanout fanout = new SnapshotFanout(200, 10000);
+        SnapshotFanout.Subscription first = fanout.join(db);
+        SnapshotFanout.Subscription second = fanout.join(db);
+        // leaves the pass without reading it
+        SnapshotFanout.Subscription gone = fanout.join(db);
+        gone.close();
+
+        assertEquals(100, first.awaitStart());
+        assertEquals(100, second.awaitStart());
+        ByteArrayOutputStream firstOut = new ByteArrayOutputStream();
+        Thread reader = new Thread(() -> {
+            try {
+                first.writeTo(firstOut);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reader.start();
+        ByteArrayOutputStream secondOut = new ByteArrayOutputStream();
+        second.writeTo(secondOut);
+        reader.join(30000);
+        assertFalse(reader.isAlive());
+
+        assertArrayEquals(expected, firstOut.toByteArray());
+        assertArrayEquals(expected, secondOut.toByteArray());
+
+        Map<String, Object> metrics = MetricsUtils.currentServerMetrics();
+        assertEquals(1L, metrics.get("cnt_snap_fanout_learners"));
+        assertEquals(3L, metrics.get("max_snap_fanout_learners"));
+    }
+
+    @Test
+    public void testLaterLearnerGetsNewPass() throws Exception {
+        SnapshotFanout fanout = new SnapshotFanout(0, 10000);
+        SnapshotFanout.Subscription first = fanout.join(db);
+        first.awaitStart();
+        assertEquals(1L, MetricsUtils.currentServerMetrics().get("cnt_snap_fanout_learners"));
+        // the first pass has started, so the second learner gets its own
+        SnapshotFanout.Subscription second = fanout.join(db);
+
+        byte[] expected = serialize();
+        ByteArrayOutputStream firstOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream secondOut = new ByteArrayOutputStream();
+        first.writeTo(firstOut);
+        second.awaitStart();
+        second.writeTo(secondOut);
+        assertArrayEquals(expected, firstOut.toByteArray());
+        assertArrayEquals(expected, secondOut.toByteArray());
+        Map<String, Object> metrics = MetricsUtils.currentServerMetrics();
+        assertEquals(2L, metrics.get("cnt_snap_fanout_learners"));
+        assertEquals(1L, metrics.get("max_snap_fanout_learners"));
+    }
+
+    @Test
+    public void testSlowLearnerDetached() throws Exception {
+        byte[] expected = serialize();
+        SnapshotFanout fanout = new SnapshotFanout(200, 500);
+        SnapshotFanout.Subscription reading = fanout.join(db);
+        // never reads, its queue fills up
+        SnapshotFanout.Subscription stalled = fanout.join(db);
+
+        reading.awaitStart();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        reading.writeTo(out);
+        assertArrayEquals(expected, out.toByteArray());
+
+        try {
+            stalled.writeTo(new ByteArrayOutputStream());
+            fail("The stalled learner should have been detached");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1L, MetricsUtils.currentServerMetrics().get("snap_fanout_learners_detached"));
+    }
+
+    @Test
+    public void testSerializationErrorFailsLearners() throws Exception {
+        ZKDatabase failing = new ZKDatabase(null) {
+            @Override
+            public void serializeSnapshot(OutputArchive oa) {
+                throw new IllegalStateException("broken tree");
+            }
+        };
+        SnapshotFanout fanout = new SnapshotFanout(0, 10000);
+        SnapshotFanout.Subscription subscription = fanout.join(failing);
+        try {
+            subscription.awaitStart();
+            subscription.writeTo(new ByteArrayOutputStream());
+            fail("The snapshot should have failed");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private byte[] serialize() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive oa = BinaryOutputArchive.getArchive(baos);
+        db.serializeSnapshot(oa);
+        oa.writeString("BenWasHere", "signature");
+        return baos.toByteArray();
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.persistence.SnapStream;
+import org.apache.zookeeper.server.persistence.SnapStream.StreamMode;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotFileInputStreamTest extends ZKTestCase {
+
+    private File tmpDir;
+    private DataTree dt;
+
+    @Before
+    public void setUp() throws Exception {
+        tmpDir = ClientBase.createTmpDir();
+        dt = new DataTree();
+        for (int i = 0; i < 1000; i++) {
+            dt.createNode("/node" + i, ("data" + i).getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, i, i + 1, 1);
+        }
+        dt.lastProcessedZxid = 1000;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        SnapStream.setStreamMode(StreamMode.DEFAULT_MODE);
+        ClientBase.recursiveDelete(tmpDir);
+    }
+
+    @Test
+    public void testCheckedSnapshot() throws Exception {
+        testStreamedSnapshot(StreamMode.CHECKED);
+    }
+
+    @Test
+    public void testGzipSnapshot() throws Exception {
+        testStreamedSnapshot(StreamMode.GZIP);
+    }
+
+    @Test
+    public void testSnappySnapshot() throws Exception {
+        testStreamedSnapshot(StreamMode.SNAPPY);
+    }
+
+    @Test
+    public void testCorruptedSnapshot() throws Exception {
+        File snap = saveSnapshot(StreamMode.CHECKED);
+        byte[] content = Files.readAllBytes(snap.toPath());
+        // change the data of a node, only the checksum can tell
+        byte[] data = "data500".getBytes();
+        int position = indexOf(content, data);
+        content[position + data.length - 1] = '9';
+        BinaryInputArchive ia = BinaryInputArchive.getArchive(new ByteArrayInputStream(stream(content)));
+        try {
+            new ZKDatabase(null).deserializeSnapshot(new SnapshotFileInputStream(ia), snap.getName());
+            fail("corrupted snapshot should not be deserialized");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private void testStreamedSnapshot(StreamMode mode) throws Exception {
+        File snap = saveSnapshot(mode);
+        BinaryInputArchive ia = BinaryInputArchive.getArchive(
+            new ByteArrayInputStream(stream(Files.readAllBytes(snap.toPath()))));
+
+        ZKDatabase db = new ZKDatabase(null);
+        SnapshotFileInputStream snapIS = new SnapshotFileInputStream(ia);
+        assertEquals(1000, db.deserializeSnapshot(snapIS, snap.getName()));
+        snapIS.skipToEnd();
+        // the next read from the archive is the one following the file
+        assertEquals("BenWasHere", ia.readString("signature"));
+
+        DataTree actual = db.getDataTree();
+        assertEquals(1000, actual.lastProcessedZxid);
+        assertEquals(dt.getNodeCount(), actual.getNodeCount());
+        assertEquals(dt.getTreeDigest(), actual.getTreeDigest());
+        for (int i = 0; i < 1000; i++) {
+            assertNotNull(actual.getNode("/node" + i));
+            assertArrayEquals(("data" + i).getBytes(), actual.getNode("/node" + i).getData());
+        }
+        assertEquals(Integer.valueOf(3000), db.getSessionWithTimeOuts().get(1L));
+    }
+
+    private File saveSnapshot(StreamMode mode) throws IOException {
+        SnapStream.setStreamMode(mode);
+        FileTxnSnapLog snapLog = new FileTxnSnapLog(tmpDir, tmpDir);
+        ConcurrentHashMap<Long, Integer> sessions = new ConcurrentHashMap<>();
+        sessions.put(1L, 3000);
+        snapLog.save(dt, sessions, false);
+        File snap = snapLog.findMostRecentSnapshot();
+        snapLog.close();
+        assertEquals(mode, SnapStream.getStreamMode(snap.getName()));
+        return snap;
+    }
+
+    private static int indexOf(byte[] content, byte[] bytes) {
+        for (int i = 0; i + bytes.length <= content.length; i++) {
+            if (Arrays.equals(bytes, Arrays.copyOfRange(content, i, i + bytes.length))) {
+                return i;
+            }
+        }
+        throw new AssertionError("not found");
+    }
+
+    /**
+     * Stream the file content the way the leader does, as buffers ended by
+     * an empty one, followed by the signature.
+     */
+    private static byte[] stream(byte[] content) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive oa = BinaryOutputArchive.getArchive(baos);
+        for (int position = 0; position < content.length; position += 1000) {
+            oa.writeBuffer(Arrays.copyOfRange(content, position, Math.min(position + 1000, content.length)), "chunk");
+        }
+        oa.writeBuffer(new byte[0], "chunk");
+        oa.writeString("BenWasHere", "signature");
+        return baos.toByteArray();
+    }
+
+}
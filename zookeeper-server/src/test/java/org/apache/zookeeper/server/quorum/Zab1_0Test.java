@@ -30,12 +30,15 @@
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
@@ -296,6 +299,22 @@ public interface FollowerConversation {
 
     }
 
+    /**
+     * A conversation which switches the streams, as when the quorum stream
+     * gets compressed.
+     */
+    public interface LeaderStreamConversation {
+
+        void converseWithLeader(InputStream is, OutputStream os, Leader l) throws Exception;
+
+    }
+
+    public interface FollowerStreamConversation {
+
+        void converseWithFollower(InputStream is, OutputStream os, Follower f) throws Exception;
+
+    }
+
     public interface ObserverConversation {
 
         void converseWithObserver(InputArchive ia, OutputArchive oa, Observer o) throws Exception;
@@ -303,6 +322,11 @@ public interface ObserverConversation {
     }
 
     public void testLeaderConversation(LeaderConversation conversation) throws Exception {
+        testLeaderStreamConversation((is, os, l) -> conversation.converseWithLeader(
+            BinaryInputArchive.getArchive(is), BinaryOutputArchive.getArchive(os), l));
+    }
+
+    public void testLeaderStreamConversation(LeaderStreamConversation conversation) throws Exception {
         Socket[] pair = getSocketPair();
         Socket leaderSocket = pair[0];
         Socket followerSocket = pair[1];
@@ -326,10 +350,7 @@ public void testLeaderConversation(LeaderConversation conversation) throws Excep
             lh.start();
             leaderSocket.setSoTimeout(4000);
 
-            InputArchive ia = BinaryInputArchive.getArchive(followerSocket.getInputStream());
-            OutputArchive oa = BinaryOutputArchive.getArchive(followerSocket.getOutputStream());
-
-            conversation.converseWithLeader(ia, oa, leader);
+            conversation.converseWithLeader(followerSocket.getInputStream(), followerSocket.getOutputStream(), leader);
         } finally {
             if (leader != null) {
                 leader.shutdown("end of test");
@@ -409,6 +430,11 @@ public void testPopulatedLeaderConversation(PopulatedLeaderConversation conversa
     }
 
     public void testFollowerConversation(FollowerConversation conversation) throws Exception {
+        testFollowerStreamConversation((is, os, f) -> conversation.converseWithFollower(
+            BinaryInputArchive.getArchive(is), BinaryOutputArchive.getArchive(os), f));
+    }
+
+    public void testFollowerStreamConversation(FollowerStreamConversation conversation) throws Exception {
         File tmpDir = File.createTempFile("test", "dir", testData);
         tmpDir.delete();
         tmpDir.mkdir();
@@ -439,10 +465,7 @@ public void run() {
             followerThread.start();
             Socket leaderSocket = ss.accept();
 
-            InputArchive ia = BinaryInputArchive.getArchive(leaderSocket.getInputStream());
-            OutputArchive oa = BinaryOutputArchive.getArchive(leaderSocket.getOutputStream());
-
-            conversation.converseWithFollower(ia, oa, follower);
+            conversation.converseWithFollower(leaderSocket.getInputStream(), leaderSocket.getOutputStream(), follower);
         } finally {
             if (follower != null) {
                 follower.shutdown();
@@ -864,6 +887,176 @@ public void converseWithLeader(InputArchive ia, OutputArchive oa, Leader l) thro
         });
     }
 
+    @Test
+    public void testLeaderCompressesForSnappyLearner() throws Exception {
+        System.setProperty(LearnerHandler.COMPRESS_LEARNER_STREAM, "true");
+        try {
+            testLeaderStreamConversation((is, os, l) -> {
+                assertTrue(CompressedQuorumOutputStream.isSnappyAvailable());
+                InputArchive ia = BinaryInputArchive.getArchive(is);
+                OutputArchive oa = BinaryOutputArchive.getArchive(os);
+                QuorumPacket qp = new QuorumPacket(Leader.FOLLOWERINFO, 0, learnerInfo(true), null);
+                oa.writeRecord(qp, null);
+
+                readPacketSkippingPing(ia, qp);
+                assertEquals(Leader.LEADERINFO, qp.getType());
+                assertEquals(8, qp.getData().length);
+                ByteBuffer leaderInfo = ByteBuffer.wrap(qp.getData());
+                assertEquals(0x10000, leaderInfo.getInt());
+                assertEquals(Leader.FEATURE_SNAPPY, leaderInfo.getInt());
+
+                // the stream from the learner isn't compressed
+                qp = new QuorumPacket(Leader.ACKEPOCH, 0, new byte[4], null);
+                oa.writeRecord(qp, null);
+
+                syncWithLeader(BinaryInputArchive.getArchive(new CompressedQuorumInputStream(is)), oa, l);
+            });
+        } finally {
+            System.clearProperty(LearnerHandler.COMPRESS_LEARNER_STREAM);
+        }
+    }
+
+    @Test
+    public void testLeaderRefusesCompression() throws Exception {
+        // the learner supports it, the leader doesn't compress
+        testLeaderStreamConversation((is, os, l) -> {
+            InputArchive ia = BinaryInputArchive.getArchive(is);
+            OutputArchive oa = BinaryOutputArchive.getArchive(os);
+            QuorumPacket qp = new QuorumPacket(Leader.FOLLOWERINFO, 0, learnerInfo(true), null);
+            oa.writeRecord(qp, null);
+
+            readPacketSkippingPing(ia, qp);
+            assertEquals(Leader.LEADERINFO, qp.getType());
+            assertEquals(4, qp.getData().length);
+
+            qp = new QuorumPacket(Leader.ACKEPOCH, 0, new byte[4], null);
+            oa.writeRecord(qp, null);
+
+            syncWithLeader(ia, oa, l);
+        });
+    }
+
+    @Test
+    public void testLeaderDoesNotCompressForOldLearner() throws Exception {
+        System.setProperty(LearnerHandler.COMPRESS_LEARNER_STREAM, "true");
+        try {
+            // the learner sends no features
+            testLeaderStreamConversation((is, os, l) -> {
+                InputArchive ia = BinaryInputArchive.getArchive(is);
+                OutputArchive oa = BinaryOutputArchive.getArchive(os);
+                QuorumPacket qp = new QuorumPacket(Leader.FOLLOWERINFO, 0, learnerInfo(false), null);
+                oa.writeRecord(qp, null);
+
+                readPacketSkippingPing(ia, qp);
+                assertEquals(Leader.LEADERINFO, qp.getType());
+                assertEquals(4, qp.getData().length);
+
+                qp = new QuorumPacket(Leader.ACKEPOCH, 0, new byte[4], null);
+                oa.writeRecord(qp, null);
+
+                syncWithLeader(ia, oa, l);
+            });
+        } finally {
+            System.clearProperty(LearnerHandler.COMPRESS_LEARNER_STREAM);
+        }
+    }
+
+    @Test
+    public void testFollowerReadsCompressedStream() throws Exception {
+        testFollowerStreamConversation((is, os, f) -> {
+            InputArchive ia = BinaryInputArchive.getArchive(is);
+            OutputArchive oa = BinaryOutputArchive.getArchive(os);
+            QuorumPacket qp = new QuorumPacket();
+            readPacketSkippingPing(ia, qp);
+            assertEquals(Leader.FOLLOWERINFO, qp.getType());
+            ByteBuffer learnerInfo = ByteBuffer.wrap(qp.getData());
+            learnerInfo.position(20);
+            assertEquals(Leader.FEATURE_SNAPPY, learnerInfo.getInt() & Leader.FEATURE_SNAPPY);
+
+            qp = new QuorumPacket(Leader.LEADERINFO, ZxidUtils.makeZxid(1, 0), new byte[8], null);
+            ByteBuffer.wrap(qp.getData()).putInt(0x10000).putInt(Leader.FEATURE_SNAPPY);
+            oa.writeRecord(qp, null);
+
+            readPacketSkippingPing(ia, qp);
+            assertEquals(Leader.ACKEPOCH, qp.getType());
+
+            BufferedOutputStream compressed = new BufferedOutputStream(new CompressedQuorumOutputStream(os, "0"));
+            syncWithFollower(BinaryOutputArchive.getArchive(compressed), f);
+            compressed.flush();
+            readUpToDateAcks(ia, f);
+        });
+    }
+
+    @Test
+    public void testFollowerWithOldLeader() throws Exception {
+        // the leader sends no features
+        testFollowerStreamConversation((is, os, f) -> {
+            InputArchive ia = BinaryInputArchive.getArchive(is);
+            OutputArchive oa = BinaryOutputArchive.getArchive(os);
+            QuorumPacket qp = new QuorumPacket();
+            readPacketSkippingPing(ia, qp);
+            assertEquals(Leader.FOLLOWERINFO, qp.getType());
+
+            qp = new QuorumPacket(Leader.LEADERINFO, ZxidUtils.makeZxid(1, 0), new byte[4], null);
+            ByteBuffer.wrap(qp.getData()).putInt(0x10000);
+            oa.writeRecord(qp, null);
+
+            readPacketSkippingPing(ia, qp);
+            assertEquals(Leader.ACKEPOCH, qp.getType());
+
+            syncWithFollower(oa, f);
+            readUpToDateAcks(ia, f);
+        });
+    }
+
+    private static byte[] learnerInfo(boolean snappy) throws IOException {
+        LearnerInfo li = new LearnerInfo(1, 0x10000, 0);
+        byte[] liBytes = new byte[snappy ? 24 : 20];
+        ByteBuffer bb = ByteBuffer.wrap(liBytes);
+        ByteBufferOutputStream.record2ByteBuffer(li, bb);
+        if (snappy) {
+            bb.putInt(Leader.FEATURE_SNAPPY);
+        }
+        return liBytes;
+    }
+
+    private void syncWithLeader(InputArchive ia, OutputArchive oa, Leader l) throws Exception {
+        QuorumPacket qp = new QuorumPacket();
+        readPacketSkippingPing(ia, qp);
+        assertEquals(Leader.DIFF, qp.getType());
+
+        readPacketSkippingPing(ia, qp);
+        assertEquals(Leader.NEWLEADER, qp.getType());
+        assertEquals(ZxidUtils.makeZxid(1, 0), qp.getZxid());
+        assertCurrentEpochGotUpdated(1, l.self, ClientBase.CONNECTION_TIMEOUT);
+
+        qp = new QuorumPacket(Leader.ACK, qp.getZxid(), null, null);
+        oa.writeRecord(qp, null);
+
+        readPacketSkippingPing(ia, qp);
+        assertEquals(Leader.UPTODATE, qp.getType());
+    }
+
+    private void syncWithFollower(OutputArchive oa, Follower f) throws Exception {
+        QuorumPacket qp = new QuorumPacket(Leader.DIFF, f.fzk.getLastProcessedZxid(), new byte[0], null);
+        oa.writeRecord(qp, null);
+        qp = new QuorumPacket(Leader.NEWLEADER, ZxidUtils.makeZxid(1, 0), null, null);
+        oa.writeRecord(qp, null);
+        qp = new QuorumPacket(Leader.UPTODATE, 0, null, null);
+        oa.writeRecord(qp, null);
+    }
+
+    private void readUpToDateAcks(InputArchive ia, Follower f) throws Exception {
+        QuorumPacket qp = new QuorumPacket();
+        readPacketSkippingPing(ia, qp);
+        assertEquals(Leader.ACK, qp.getType());
+        assertEquals(ZxidUtils.makeZxid(1, 0), qp.getZxid());
+        readPacketSkippingPing(ia, qp);
+        assertEquals(Leader.ACK, qp.getType());
+        assertEquals(ZxidUtils.makeZxid(1, 0), qp.getZxid());
+        assertEquals(1, f.self.getCurrentEpoch());
+    }
+
     @Test
     public void testTxnTimeout() throws Exception {
         testLeaderConversation(new LeaderConversation() {
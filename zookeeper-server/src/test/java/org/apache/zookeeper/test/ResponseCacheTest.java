@@ -21,10 +21,14 @@
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
@@ -66,6 +70,51 @@ public void testResponseCache() throws Exception {
         }
     }
 
+    @Test
+    public void testOtherReadResponseCache() throws Exception {
+        ZooKeeper zk = createClient();
+        String hits = "response_packet_other_read_cache_hits";
+        String misses = "response_packet_other_read_cache_misses";
+
+        try {
+            ServerMetrics.getMetrics().resetAll();
+            createPath("/other", zk);
+
+            Stat stat = zk.exists("/other", false);
+            assertEquals(stat, zk.exists("/other", false));
+            checkCacheStatus(1, 1, hits, misses);
+            zk.setData("/other", "changed".getBytes(), -1);
+            assertEquals(stat.getVersion() + 1, zk.exists("/other", false).getVersion());
+            checkCacheStatus(1, 2, hits, misses);
+
+            assertEquals(ZooDefs.Ids.OPEN_ACL_UNSAFE, zk.getACL("/other", new Stat()));
+            assertEquals(ZooDefs.Ids.OPEN_ACL_UNSAFE, zk.getACL("/other", new Stat()));
+            checkCacheStatus(2, 3, hits, misses);
+            zk.setACL("/other", ZooDefs.Ids.READ_ACL_UNSAFE, -1);
+            assertEquals(ZooDefs.Ids.READ_ACL_UNSAFE, zk.getACL("/other", new Stat()));
+            checkCacheStatus(2, 4, hits, misses);
+
+            List<Op> reads = Arrays.asList(Op.getData("/other"), Op.getChildren("/"));
+            List<OpResult> results = zk.multi(reads);
+            assertEquals(results, zk.multi(reads));
+            checkCacheStatus(3, 5, hits, misses);
+            // a new child of the root changes the result of the second read
+            createPath("/other2", zk);
+            List<OpResult> changed = zk.multi(reads);
+            assertEquals(results.get(0), changed.get(0));
+            assertTrue(((OpResult.GetChildrenResult) changed.get(1)).getChildren().contains("other2"));
+            checkCacheStatus(3, 6, hits, misses);
+
+            // failed reads are not cached
+            List<Op> failing = Arrays.asList(Op.getData("/other"), Op.getData("/missing"));
+            zk.multi(failing);
+            zk.multi(failing);
+            checkCacheStatus(3, 6, hits, misses);
+        } finally {
+            zk.close();
+        }
+    }
+
     private void checkCacheStatus(long expectedHits, long expectedMisses,
                                   String cacheHitMetricsName, String cacheMissMetricsName) {
 